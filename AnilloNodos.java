@@ -0,0 +1,181 @@
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Reparto de los archivos entre los nodos de un cluster por hash consistente. Cada nodo ocupa
+// VIRTUALES posiciones en un anillo de 64 bits; los responsables de un archivo son los
+// 'replicas' primeros nodos distintos que se encuentran avanzando desde el hash de su ruta. Al
+// entrar o salir un nodo solo cambian de dueño los archivos de los tramos que ocupa él, y con
+// varias posiciones por nodo esos tramos quedan repartidos entre todos los demás.
+//
+// Los nodos se identifican por la dirección con que los alcanzan los clientes ("host:puerto").
+// Servidor y cliente construyen el mismo anillo a partir de la lista de nodos, así que basta con
+// enviar la lista (trama ANILLO). Los nodos caídos siguen en el anillo: sus archivos no cambian
+// de dueño, y las lecturas pasan a la siguiente réplica.
+public class AnilloNodos {
+    private static final int VIRTUALES = 128;
+
+    private final List<String> nodos; // Ordenados
+    private final int replicas;
+    private final Set<String> caidos;
+    private final long[] posiciones;  // Ordenadas
+    private final int[] nodoEn;       // Índice en 'nodos' del dueño de cada posición
+
+    public AnilloNodos(Collection<String> nodos, int replicas, Collection<String> caidos) {
+        this.nodos = List.copyOf(new TreeSet<>(nodos));
+        this.replicas = Math.max(1, Math.min(replicas, this.nodos.size()));
+        this.caidos = Collections.unmodifiableSet(new TreeSet<>(caidos));
+        if (this.nodos.size() > 256) {
+            throw new IllegalArgumentException("Un cluster admite como máximo 256 nodos.");
+        }
+        long[] claves = new long[this.nodos.size() * VIRTUALES];
+        for (int n = 0; n < this.nodos.size(); n++) {
+            for (int v = 0; v < VIRTUALES; v++) {
+                // El índice del nodo en los 8 bits bajos hace únicas las posiciones y permite
+                // recuperar el dueño tras ordenarlas sin una tabla aparte.
+                claves[n * VIRTUALES + v] = (posicion(this.nodos.get(n) + "#" + v) & ~0xFFL) | n;
+            }
+        }
+        Arrays.sort(claves);
+        this.posiciones = claves;
+        this.nodoEn = new int[claves.length];
+        for (int i = 0; i < claves.length; i++) {
+            nodoEn[i] = (int) (claves[i] & 0xFF);
+        }
+    }
+
+    // Los nodos responsables de 'ruta', empezando por el principal. Con un anillo vacío, ninguno.
+    public List<String> duenos(String ruta) {
+        List<String> duenos = new ArrayList<>(replicas);
+        if (posiciones.length == 0) {
+            return duenos;
+        }
+        int i = primeraDesde(posicion(ruta));
+        while (duenos.size() < replicas) {
+            String nodo = nodos.get(nodoEn[i]);
+            if (!duenos.contains(nodo)) duenos.add(nodo);
+            i = (i + 1) % posiciones.length;
+        }
+        return duenos;
+    }
+
+    public boolean esDueno(String nodo, String ruta) {
+        return duenos(ruta).contains(nodo);
+    }
+
+    // Los responsables de 'ruta' que responden, en orden, seguidos de los caídos: el orden en
+    // que conviene intentar una lectura.
+    public List<String> duenosPorDisponibilidad(String ruta) {
+        List<String> orden = new ArrayList<>(duenos(ruta));
+        orden.sort((a, b) -> Boolean.compare(caidos.contains(a), caidos.contains(b)));
+        return orden;
+    }
+
+    // Primera posición >= 'clave', dando la vuelta al final del anillo (búsqueda binaria).
+    private int primeraDesde(long clave) {
+        int bajo = 0;
+        int alto = posiciones.length;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (posiciones[medio] < clave) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo == posiciones.length ? 0 : bajo;
+    }
+
+    // Los primeros 8 bytes del SHA-256 de la clave: se reparten uniformemente sea cual sea el
+    // parecido entre rutas o nombres de nodo.
+    static long posicion(String clave) {
+        try {
+            byte[] resumen = MessageDigest.getInstance("SHA-256").digest(clave.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(resumen).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible.", e);
+        }
+    }
+
+    // Partes de la dirección de un nodo ("host:puerto"). Una dirección mal formada lanza
+    // IllegalArgumentException.
+    public static String host(String nodo) {
+        int dosPuntos = nodo.lastIndexOf(':');
+        if (dosPuntos <= 0) {
+            throw new IllegalArgumentException("Dirección de nodo no válida: '" + nodo + "' (use host:puerto).");
+        }
+        return nodo.substring(0, dosPuntos);
+    }
+
+    public static int puerto(String nodo) {
+        host(nodo);
+        try {
+            int puerto = Integer.parseInt(nodo.substring(nodo.lastIndexOf(':') + 1));
+            if (puerto > 0 && puerto < 65536) return puerto;
+        } catch (NumberFormatException e) {
+            // Se informa abajo
+        }
+        throw new IllegalArgumentException("Dirección de nodo no válida: '" + nodo + "' (use host:puerto).");
+    }
+
+    public List<String> getNodos() {
+        return nodos;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public boolean estaCaido(String nodo) {
+        return caidos.contains(nodo);
+    }
+
+    public Set<String> getCaidos() {
+        return caidos;
+    }
+
+    public boolean isVacio() {
+        return nodos.isEmpty();
+    }
+
+    // --- Trama ANILLO ---
+
+    public ByteBuffer trama() {
+        Protocolo.ConstructorTrama trama = new Protocolo.ConstructorTrama(Protocolo.ANILLO).varint(replicas).varint(nodos.size());
+        for (String nodo : nodos) {
+            trama.cadena(nodo).varint(caidos.contains(nodo) ? 0 : 1);
+        }
+        return trama.terminar();
+    }
+
+    public static AnilloNodos leer(ByteBuffer carga) throws StreamCorruptedException {
+        int replicas = (int) Protocolo.leerVarint(carga);
+        long cantidad = Protocolo.leerVarint(carga);
+        List<String> nodos = new ArrayList<>();
+        List<String> caidos = new ArrayList<>();
+        for (long i = 0; i < cantidad; i++) {
+            String nodo = Protocolo.leerCadena(carga);
+            nodos.add(nodo);
+            if (Protocolo.leerVarint(carga) == 0) caidos.add(nodo);
+        }
+        return new AnilloNodos(nodos, replicas, caidos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder texto = new StringBuilder(nodos.size() + " nodos, " + replicas + " copias de cada archivo:");
+        for (String nodo : nodos) {
+            texto.append(' ').append(nodo).append(caidos.contains(nodo) ? " (caído)" : "");
+        }
+        return texto.toString();
+    }
+}
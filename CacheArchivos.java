@@ -0,0 +1,210 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caché de los archivos más pedidos, guardados fuera del heap (ByteBuffer directo) y limitada
+// por un presupuesto de bytes. Se expulsa el usado hace más tiempo (LRU). Una entrada es válida
+// mientras su tamaño y fecha coincidan con los del índice; si el archivo cambió, se descarta.
+//
+// Se guarda una copia y no un MappedByteBuffer a propósito: una copia no cambia si alguien
+// reescribe o trunca el archivo mientras se envía.
+//
+// Cada archivo se carga una sola vez aunque lo pidan varias sesiones a la vez: las demás
+// esperan esa carga. Las cargas en curso ya cuentan contra el presupuesto, así que la memoria
+// directa usada no pasa de él por muchos fallos simultáneos.
+public class CacheArchivos {
+    private final long presupuesto;
+    private final long maximoPorArchivo; // Un archivo grande no debe vaciar la caché entera
+    private final LinkedHashMap<String, Contenido> entradas = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Contenido>> cargando = new HashMap<>();
+    private long bytesEnCache;
+    private long bytesCargando; // Reservados por las cargas en curso
+
+    private final AtomicLong aciertos = new AtomicLong();
+    private final AtomicLong fallos = new AtomicLong();
+    private final AtomicLong expulsiones = new AtomicLong();
+    private final AtomicLong invalidaciones = new AtomicLong();
+
+    // Un presupuesto de 0 desactiva la caché.
+    public CacheArchivos(long presupuesto) {
+        this.presupuesto = presupuesto;
+        this.maximoPorArchivo = Math.min(presupuesto / 4, Integer.MAX_VALUE - 8);
+    }
+
+    // Contenido completo de un archivo tal como estaba al cargarlo.
+    public static final class Contenido {
+        private final ByteBuffer datos;
+        private final long modificado;
+
+        private Contenido(ByteBuffer datos, long modificado) {
+            this.datos = datos.asReadOnlyBuffer();
+            this.modificado = modificado;
+        }
+
+        public long getTamano() {
+            return datos.capacity();
+        }
+
+        public long getModificado() {
+            return modificado;
+        }
+
+        // Vista de 'longitud' bytes desde 'posicion', con posición propia (segura entre hilos).
+        public ByteBuffer vista(long posicion, long longitud) {
+            return datos.duplicate().limit((int) (posicion + longitud)).position((int) posicion);
+        }
+    }
+
+    // Devuelve el contenido del archivo descrito por 'entrada' (del índice), cargándolo si no
+    // estaba y 'cargarSiFalta' es true (no compensa leer un archivo entero para enviar un rango).
+    // Devuelve null si la caché está desactivada, el archivo no cabe o no está cargado; en ese
+    // caso se envía directamente desde el disco.
+    public Contenido obtener(File archivo, EntradaArchivo entrada, boolean cargarSiFalta) throws IOException {
+        if (presupuesto == 0 || entrada == null || entrada.getTamano() > maximoPorArchivo) {
+            return null;
+        }
+        String nombre = entrada.getNombre();
+        CompletableFuture<Contenido> carga;
+        synchronized (this) {
+            Contenido contenido = entradas.get(nombre);
+            if (contenido != null) {
+                if (coincide(contenido, entrada)) {
+                    aciertos.incrementAndGet();
+                    return contenido;
+                }
+                quitar(nombre);
+                invalidaciones.incrementAndGet();
+            }
+            if (!cargarSiFalta) {
+                return null;
+            }
+            fallos.incrementAndGet();
+            carga = cargando.get(nombre);
+            if (carga == null) {
+                liberarEspacio(entrada.getTamano());
+                if (bytesEnCache + bytesCargando + entrada.getTamano() > presupuesto) {
+                    return null; // El resto del presupuesto está reservado por otras cargas
+                }
+                bytesCargando += entrada.getTamano();
+                cargando.put(nombre, new CompletableFuture<>());
+            }
+        }
+        if (carga != null) {
+            // Otra sesión lo está cargando: se usa su resultado si es de esta misma versión.
+            Contenido cargado = esperar(carga);
+            return cargado != null && coincide(cargado, entrada) ? cargado : null;
+        }
+
+        // La lectura se hace fuera del cerrojo para no frenar al resto de sesiones.
+        Contenido cargado = null;
+        try {
+            cargado = cargar(archivo, entrada);
+            return cargado;
+        } finally {
+            synchronized (this) {
+                bytesCargando -= entrada.getTamano();
+                if (cargado != null) {
+                    quitar(nombre); // Una versión anterior que se añadió mientras tanto
+                    liberarEspacio(cargado.getTamano());
+                    entradas.put(nombre, cargado);
+                    bytesEnCache += cargado.getTamano();
+                }
+                cargando.remove(nombre).complete(cargado);
+            }
+        }
+    }
+
+    private static boolean coincide(Contenido contenido, EntradaArchivo entrada) {
+        return contenido.getTamano() == entrada.getTamano() && contenido.modificado == entrada.getModificado();
+    }
+
+    // Una carga que falla se completa con null, igual que una que encuentra el archivo cambiado:
+    // quien esperaba lee del disco por su cuenta.
+    private static Contenido esperar(CompletableFuture<Contenido> carga) throws IOException {
+        try {
+            return carga.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Espera interrumpida.");
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    // Devuelve null si el archivo cambió durante la lectura (ya no coincide con el índice).
+    private static Contenido cargar(File archivo, EntradaArchivo entrada) throws IOException {
+        ByteBuffer datos = ByteBuffer.allocateDirect((int) entrada.getTamano());
+        try (FileChannel canal = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+            if (canal.size() != entrada.getTamano()) {
+                return null;
+            }
+            while (datos.hasRemaining()) {
+                if (canal.read(datos, datos.position()) < 0) throw new EOFException("El archivo se truncó durante la lectura.");
+            }
+        }
+        if (archivo.lastModified() != entrada.getModificado()) {
+            return null;
+        }
+        return new Contenido(datos.flip(), entrada.getModificado());
+    }
+
+    private void liberarEspacio(long necesario) {
+        Iterator<Map.Entry<String, Contenido>> antiguos = entradas.entrySet().iterator();
+        while (bytesEnCache + bytesCargando + necesario > presupuesto && antiguos.hasNext()) {
+            bytesEnCache -= antiguos.next().getValue().getTamano();
+            antiguos.remove();
+            expulsiones.incrementAndGet();
+        }
+    }
+
+    private void quitar(String nombre) {
+        Contenido contenido = entradas.remove(nombre);
+        if (contenido != null) bytesEnCache -= contenido.getTamano();
+    }
+
+    public long getAciertos() {
+        return aciertos.get();
+    }
+
+    public long getFallos() {
+        return fallos.get();
+    }
+
+    public long getExpulsiones() {
+        return expulsiones.get();
+    }
+
+    public long getInvalidaciones() {
+        return invalidaciones.get();
+    }
+
+    public synchronized long getBytesEnCache() {
+        return bytesEnCache;
+    }
+
+    public synchronized int getArchivosEnCache() {
+        return entradas.size();
+    }
+
+    public long getPresupuesto() {
+        return presupuesto;
+    }
+
+    @Override
+    public String toString() {
+        return "Caché de archivos: " + getAciertos() + " aciertos, " + getFallos() + " fallos, "
+                + getExpulsiones() + " expulsiones, " + getInvalidaciones() + " invalidaciones; "
+                + getArchivosEnCache() + " archivos (" + getBytesEnCache() + " de " + presupuesto + " bytes).";
+    }
+}
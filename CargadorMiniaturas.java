@@ -0,0 +1,121 @@
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Miniaturas para las celdas del explorador de archivos. Se piden al servidor en un hilo
+// propio, de modo que el EDT nunca espera a la red. Si la conexión de la ventana admite varias
+// operaciones a la vez (servidor v5) se comparte; si no, se abre otra para no esperar detrás de
+// las descargas. Solo se piden las de las celdas que se pintan, que son las visibles, y se
+// guardan en una caché LRU limitada por memoria.
+public class CargadorMiniaturas {
+    private static final long PRESUPUESTO_BYTES = 32L * 1024 * 1024;
+    // Al desplazarse rápido se piden muchas celdas que enseguida dejan de verse: se atiende
+    // primero la última pedida y las más antiguas se olvidan (se volverán a pedir si se pintan).
+    private static final int MAXIMO_PENDIENTES = 64;
+    // Marca para las imágenes sin miniatura, para no volver a pedirlas.
+    private static final ImageIcon SIN_MINIATURA = new ImageIcon();
+
+    private final int tamano;
+    private final Runnable alLlegar; // Se ejecuta en el EDT cada vez que llega una miniatura
+    private final LinkedHashMap<String, ImageIcon> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesEnCache;
+    private final Deque<String> pendientes = new ArrayDeque<>();
+    private final Set<String> solicitadas = new HashSet<>();
+    private Thread hilo;
+    private boolean activo;
+
+    public CargadorMiniaturas(int tamano, Runnable alLlegar) {
+        this.tamano = tamano;
+        this.alLlegar = alLlegar;
+    }
+
+    // Empieza a atender peticiones con la conexión de la ventana o con una propia.
+    public synchronized void iniciar(Cliente compartido, String host) {
+        detener();
+        activo = true;
+        hilo = new Thread(() -> atender(compartido, host), "miniaturas-explorador");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    public synchronized void detener() {
+        activo = false;
+        pendientes.clear();
+        solicitadas.clear();
+        cache.clear();
+        bytesEnCache = 0;
+        notifyAll();
+    }
+
+    // Miniatura de la celda 'valor' ("nombre (N bytes)"), o null si todavía no está (en ese
+    // caso se pide) o no hay. Se llama desde el renderer, en el EDT: nunca bloquea.
+    public synchronized ImageIcon obtener(String valor) {
+        ImageIcon icono = cache.get(valor);
+        if (icono != null) {
+            return icono == SIN_MINIATURA ? null : icono;
+        }
+        if (activo && solicitadas.add(valor)) {
+            pendientes.addFirst(valor);
+            if (pendientes.size() > MAXIMO_PENDIENTES) {
+                solicitadas.remove(pendientes.removeLast());
+            }
+            notifyAll();
+        }
+        return null;
+    }
+
+    private void atender(Cliente compartido, String host) {
+        boolean propia = !compartido.isMultiplexado();
+        Cliente cliente = propia ? new Cliente() : compartido;
+        if (propia && !cliente.conectar(host)) {
+            System.err.println("No se pudo abrir la conexión para las miniaturas.");
+            return;
+        }
+        try {
+            while (true) {
+                String valor;
+                synchronized (this) {
+                    while (activo && pendientes.isEmpty()) {
+                        wait();
+                    }
+                    if (!activo || Thread.currentThread() != hilo) return;
+                    valor = pendientes.removeFirst();
+                }
+                BufferedImage miniatura = cliente.obtenerMiniatura(valor.split(" \\(")[0], tamano);
+                synchronized (this) {
+                    if (Thread.currentThread() != hilo || !solicitadas.remove(valor)) continue; // Se detuvo mientras tanto
+                    guardar(valor, miniatura == null ? SIN_MINIATURA : new ImageIcon(ClienteGUI.ajustar(miniatura, tamano, tamano)));
+                }
+                SwingUtilities.invokeLater(alLlegar);
+            }
+        } catch (IOException e) {
+            System.err.println("Se perdió la conexión de las miniaturas: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (propia) cliente.desconectar();
+        }
+    }
+
+    // Cada miniatura ocupa ancho x alto x 4 bytes (ARGB); se expulsan las usadas hace más tiempo.
+    private void guardar(String valor, ImageIcon icono) {
+        bytesEnCache += bytesDe(icono);
+        cache.put(valor, icono);
+        Iterator<Map.Entry<String, ImageIcon>> entradas = cache.entrySet().iterator();
+        while (bytesEnCache > PRESUPUESTO_BYTES && entradas.hasNext()) {
+            bytesEnCache -= bytesDe(entradas.next().getValue());
+            entradas.remove();
+        }
+    }
+
+    private static long bytesDe(ImageIcon icono) {
+        return icono == SIN_MINIATURA ? 0 : 4L * icono.getIconWidth() * icono.getIconHeight();
+    }
+}
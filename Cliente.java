@@ -1,158 +1,1596 @@
-// Cliente.java
-import javax.swing.SwingUtilities;
-import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Scanner;
-
-public class Cliente {
-    private Socket clienteSocket;
-    private ObjectOutputStream salida;
-    private ObjectInputStream entrada;
-
-    // --- MÉTODOS DEL MOTOR DE COMUNICACIÓN ---
-    
-    public boolean conectar(String host) {
-        try {
-            clienteSocket = new Socket(host, 11000);
-            salida = new ObjectOutputStream(clienteSocket.getOutputStream());
-            salida.flush();
-            entrada = new ObjectInputStream(clienteSocket.getInputStream());
-            entrada.readObject(); // Lee mensaje de bienvenida
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-    public List<String> listarArchivos() throws IOException, ClassNotFoundException {
-        enviarSolicitud("LISTAR_ARCHIVOS");
-        String respuesta = (String) entrada.readObject();
-        if (respuesta.startsWith("--- Archivos Disponibles ---")) {
-            List<String> archivos = new ArrayList<>();
-            String[] lineas = respuesta.split("\n");
-            for (int i = 1; i < lineas.length; i++) {
-                archivos.add(lineas[i].substring(2));
-            }
-            return archivos;
-        }
-        return Collections.emptyList();
-    }
-
-    public boolean descargarArchivo(String nombreArchivo) throws IOException, ClassNotFoundException {
-        enviarSolicitud("SOLICITAR_ARCHIVO:" + nombreArchivo);
-        Object respuesta = entrada.readObject();
-
-        if (respuesta instanceof String && ((String) respuesta).equals("ARCHIVO_ENCONTRADO")) {
-            Archivo archivoRecibido = (Archivo) entrada.readObject();
-            guardarArchivo(archivoRecibido);
-            return true;
-        }
-        return false;
-    }
-    
-    public void desconectar() {
-        try {
-            if (clienteSocket != null && !clienteSocket.isClosed()) {
-                enviarSolicitud("SALIR");
-            }
-        } catch (IOException e) {
-            // Ignorar
-        } finally {
-            try {
-                if (salida != null) salida.close();
-                if (entrada != null) entrada.close();
-                if (clienteSocket != null) clienteSocket.close();
-            } catch (IOException e) {
-                // Ignorar
-            }
-        }
-    }
-    
-    private void guardarArchivo(Archivo archivo) throws IOException {
-        File descargasDir = new File("descargas_cliente");
-        if (!descargasDir.exists()) descargasDir.mkdir();
-        File archivoDestino = new File(descargasDir, archivo.getNombre());
-        try (FileOutputStream fos = new FileOutputStream(archivoDestino)) {
-            fos.write(archivo.getDatos());
-        }
-    }
-
-    private void enviarSolicitud(String solicitud) throws IOException {
-        salida.writeObject(solicitud);
-        salida.flush();
-    }
-    
-    // --- PUNTO DE ENTRADA PRINCIPAL ---
-    
-    public static void main(String[] args) {
-        // Por defecto, se ejecuta la GUI.
-        // Si se pasa cualquier argumento (como --console o -c), se ejecuta en modo consola.
-        if (args.length > 0) {
-            System.out.println("Iniciando cliente en modo consola...");
-            ejecutarModoConsola();
-        } else {
-            System.out.println("Iniciando cliente en modo GUI...");
-            SwingUtilities.invokeLater(() -> new ClienteGUI().setVisible(true));
-        }
-    }
-    
-    // --- LÓGICA DEL MODO CONSOLA ---
-    
-    public static void ejecutarModoConsola() {
-        Scanner scanner = new Scanner(System.in);
-        System.out.print("Ingrese el host del servidor (ej. localhost): ");
-        String host = scanner.nextLine();
-        
-        Cliente cliente = new Cliente();
-        
-        if (!cliente.conectar(host)) {
-            System.err.println("No se pudo conectar al servidor. Terminando.");
-            return;
-        }
-        
-        System.out.println("¡Conexión exitosa!");
-
-        try {
-            while (true) {
-                System.out.println("\n--- MENÚ DE CONSOLA ---");
-                System.out.println("1. Listar archivos");
-                System.out.println("2. Descargar archivo");
-                System.out.println("3. Salir");
-                System.out.print("Opción: ");
-                String opcion = scanner.nextLine();
-
-                if ("1".equals(opcion)) {
-                    System.out.println("Obteniendo lista de archivos...");
-                    List<String> archivos = cliente.listarArchivos();
-                    if (archivos.isEmpty()) {
-                        System.out.println("No hay archivos en el servidor.");
-                    } else {
-                        System.out.println("--- Archivos Disponibles ---");
-                        archivos.forEach(System.out::println);
-                    }
-                } else if ("2".equals(opcion)) {
-                    System.out.print("Nombre del archivo a descargar: ");
-                    String nombreArchivo = scanner.nextLine();
-                    if (cliente.descargarArchivo(nombreArchivo)) {
-                        System.out.println("¡Archivo descargado con éxito en 'descargas_cliente'!");
-                    } else {
-                        System.out.println("Error: No se pudo descargar el archivo.");
-                    }
-                } else if ("3".equals(opcion)) {
-                    break;
-                } else {
-                    System.out.println("Opción no válida.");
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("Error durante la comunicación: " + e.getMessage());
-        } finally {
-            cliente.desconectar();
-            System.out.println("Conexión cerrada. Adiós.");
-            scanner.close();
-        }
-    }
+// Cliente.java
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Los métodos públicos se pueden llamar desde varios hilos a la vez. Con un servidor v5 cada
+// operación viaja en su propio canal y sus respuestas se intercalan con las de las demás, así
+// que una vista previa no espera a que termine una descarga grande; con servidores anteriores
+// las operaciones se turnan la conexión.
+//
+// "try": cada método reserva su turno o su canal con 'try (Operacion operacion = ...)' y no
+// vuelve a nombrar la operación dentro del bloque; solo importa que se cierre al salir.
+@SuppressWarnings("try")
+public class Cliente {
+    private static final int TAMANO_BLOQUE = 64 * 1024;
+    // Solicitudes que 'descargarArchivos' envía sin haber leído aún sus respuestas.
+    private static final int VENTANA_SOLICITUDES = 16;
+    // Tramas recibidas de un canal que aún no ha leído su operación. Si se llena, el lector deja
+    // de leer la conexión hasta que haya hueco.
+    private static final int MAXIMO_TRAMAS_EN_COLA = 64;
+    // Marca que recibe cada canal en espera cuando se pierde la conexión.
+    private static final Protocolo.Trama CONEXION_PERDIDA = new Protocolo.Trama(Protocolo.ERROR, ByteBuffer.allocate(0));
+
+    private Socket clienteSocket;
+    private String host;
+    private int puerto;
+    // Protocolo acordado al conectar: binario con servidores nuevos, serializado con los antiguos.
+    private boolean binario;
+    private int versionProtocolo;
+    private DataOutputStream salidaDatos;
+    private DataInputStream entradaDatos; // Lectura binaria (tramas y transferencias directas)
+    private ObjectOutputStream salida;
+    private ObjectInputStream entrada;
+    private File directorioDescargas = new File("descargas_cliente");
+    // Hashes ya calculados de las copias locales, con el tamaño y la fecha que tenían entonces:
+    // mientras no cambien, una descarga condicional no vuelve a leer la copia entera.
+    private final Map<File, EntradaArchivo> hashesLocales = new ConcurrentHashMap<>();
+    // Si se ofrece al servidor recibir el contenido comprimido (él decide según el tipo de archivo).
+    private boolean compresion = true;
+    // Con canales (v5) un hilo lector reparte las respuestas entre las operaciones en curso;
+    // sin ellos, cada operación usa la conexión en exclusiva.
+    private boolean multiplexado;
+    private Thread lector;
+    private volatile IOException errorConexion; // Por qué terminó el lector
+    private final AtomicLong ultimoCanal = new AtomicLong();
+    private final Map<Long, Canal> canales = new ConcurrentHashMap<>();
+    private final ThreadLocal<Canal> canalActual = new ThreadLocal<>();
+    private final Semaphore canalesLibres = new Semaphore(Protocolo.MAXIMO_CANALES, true);
+    private final ReentrantLock turnoExclusivo = new ReentrantLock();
+    private final ReentrantLock cerrojoEscritura = new ReentrantLock();
+
+    // --- MÉTODOS DEL MOTOR DE COMUNICACIÓN ---
+    
+    public boolean conectar(String host) {
+        return conectar(host, ConfiguracionServidor.PUERTO_POR_DEFECTO);
+    }
+
+    // Intenta primero el protocolo binario; si el servidor responde con el encabezado de
+    // ObjectOutputStream es que no lo conoce, y se vuelve a conectar con el serializado.
+    public boolean conectar(String host, int puerto) {
+        this.host = host;
+        this.puerto = puerto;
+        try {
+            if (!conectarBinario(host, puerto)) {
+                conectarSerializado(host, puerto);
+            }
+            return true;
+        } catch (Exception e) {
+            cerrarSocket();
+            return false;
+        }
+    }
+
+    private boolean conectarBinario(String host, int puerto) throws IOException {
+        abrirSocket(host, puerto);
+        salidaDatos = new DataOutputStream(new BufferedOutputStream(clienteSocket.getOutputStream()));
+        entradaDatos = new DataInputStream(new BufferedInputStream(clienteSocket.getInputStream()));
+        salidaDatos.write(Protocolo.saludo(Protocolo.VERSION));
+        salidaDatos.flush();
+
+        byte[] respuesta = new byte[Protocolo.MAGIA.length + 1];
+        entradaDatos.readFully(respuesta);
+        if (respuesta[0] == (byte) 0xAC && respuesta[1] == (byte) 0xED) {
+            cerrarSocket();
+            return false;
+        }
+        versionProtocolo = Protocolo.versionDeSaludo(respuesta);
+        if (versionProtocolo < 1) {
+            throw new IOException("El servidor no soporta ninguna versión común del protocolo.");
+        }
+        binario = true;
+        multiplexado = versionProtocolo >= 5;
+        if (multiplexado) {
+            errorConexion = null;
+            canales.clear();
+            DataInputStream entradaCanales = entradaDatos;
+            lector = new Thread(() -> leerCanales(entradaCanales), "cliente-canales");
+            lector.setDaemon(true);
+            lector.start();
+        }
+        return true;
+    }
+
+    private void conectarSerializado(String host, int puerto) throws IOException, ClassNotFoundException {
+        abrirSocket(host, puerto);
+        binario = false;
+        salida = new ObjectOutputStream(clienteSocket.getOutputStream());
+        salida.flush();
+        entrada = new ObjectInputStream(clienteSocket.getInputStream());
+        entradaDatos = new DataInputStream(clienteSocket.getInputStream());
+        entrada.readObject(); // Lee mensaje de bienvenida
+    }
+
+    private void abrirSocket(String host, int puerto) throws IOException {
+        clienteSocket = new Socket(host, puerto);
+        clienteSocket.setTcpNoDelay(true);
+    }
+
+    public boolean isBinario() {
+        return binario;
+    }
+
+    // Si varias operaciones pueden estar en curso a la vez sobre esta conexión.
+    public boolean isMultiplexado() {
+        return multiplexado;
+    }
+
+    // Versión del protocolo binario acordada al conectar; 0 con el protocolo serializado.
+    public int getVersionProtocolo() {
+        return versionProtocolo;
+    }
+
+    // Si la conexión sigue abierta. Con canales, la cierra también un error de lectura del lector.
+    public boolean isConectado() {
+        return clienteSocket != null && !clienteSocket.isClosed() && (!multiplexado || errorConexion == null);
+    }
+
+    // Devuelve las entradas como "nombre (N bytes)", el formato que muestran la GUI y la consola.
+    public List<String> listarArchivos() throws IOException, ClassNotFoundException {
+        List<String> archivos = new ArrayList<>();
+        for (EntradaArchivo entrada : listarEntradas()) {
+            archivos.add(entrada.toString());
+        }
+        return archivos;
+    }
+
+    public List<EntradaArchivo> listarEntradas() throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (binario) {
+                enviarTrama(new Protocolo.ConstructorTrama(Protocolo.LISTAR).terminar());
+                ByteBuffer carga = leerRespuesta(Protocolo.LISTA).getCarga();
+                int cantidad = (int) Protocolo.leerVarint(carga);
+                List<EntradaArchivo> entradas = new ArrayList<>(cantidad);
+                for (int i = 0; i < cantidad; i++) {
+                    EntradaArchivo entrada = new EntradaArchivo(Protocolo.leerCadena(carga), Protocolo.leerVarint(carga), Protocolo.leerVarint(carga));
+                    String hash = versionProtocolo >= 2 ? Protocolo.leerCadena(carga) : "";
+                    entradas.add(hash.isEmpty() ? entrada : entrada.conHash(hash));
+                }
+                return entradas;
+            }
+
+            enviarSolicitud("LISTAR_ARCHIVOS");
+            String respuesta = (String) entrada.readObject();
+            if (respuesta.startsWith("--- Archivos Disponibles ---")) {
+                List<EntradaArchivo> entradas = new ArrayList<>();
+                String[] lineas = respuesta.split("\n");
+                for (int i = 1; i < lineas.length; i++) {
+                    entradas.add(EntradaArchivo.desdeLinea(lineas[i].substring(2)));
+                }
+                return entradas;
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    // Una página del directorio 'directorio' ("" = raíz) a partir del 'cursor' de la anterior
+    // ("" = la primera), en el orden dado (Protocolo.ORDEN_*). 'maximo' 0 deja el tamaño de la
+    // página al servidor. Con un servidor anterior a la versión 7 solo existe la raíz, y se
+    // devuelve entera como una sola página.
+    public PaginaListado listarPagina(String directorio, String cursor, int orden, boolean descendente, int maximo)
+            throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario || versionProtocolo < 7) {
+                if (!directorio.isEmpty()) {
+                    throw new IOException("El servidor no admite subdirectorios.");
+                }
+                List<EntradaArchivo> entradas = new ArrayList<>(listarEntradas());
+                entradas.sort(PaginaListado.comparador(orden, descendente));
+                return new PaginaListado(directorio, entradas, entradas.size(), "");
+            }
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.LISTAR_DIRECTORIO).cadena(directorio).cadena(cursor)
+                    .varint(orden).varint(descendente ? 1 : 0).varint(maximo).terminar());
+            ByteBuffer carga = leerRespuesta(Protocolo.PAGINA).getCarga();
+            String listado = Protocolo.leerCadena(carga);
+            int total = (int) Protocolo.leerVarint(carga);
+            int cantidad = (int) Protocolo.leerVarint(carga);
+            List<EntradaArchivo> entradas = new ArrayList<>(cantidad);
+            for (int i = 0; i < cantidad; i++) {
+                String nombre = Protocolo.leerCadena(carga);
+                boolean esDirectorio = Protocolo.leerVarint(carga) != 0;
+                long tamano = Protocolo.leerVarint(carga);
+                long modificado = Protocolo.leerVarint(carga);
+                String hash = Protocolo.leerCadena(carga);
+                if (esDirectorio) {
+                    entradas.add(EntradaArchivo.directorio(nombre, modificado));
+                } else {
+                    EntradaArchivo entrada = new EntradaArchivo(nombre, tamano, modificado);
+                    entradas.add(hash.isEmpty() ? entrada : entrada.conHash(hash));
+                }
+            }
+            return new PaginaListado(listado, entradas, total, Protocolo.leerCadena(carga));
+        }
+    }
+
+    // Lista un directorio completo página a página y entrega cada una a 'receptor' en cuanto
+    // llega, de modo que quien muestra el listado puede empezar sin esperar al final. Si el
+    // receptor lanza una excepción (por ejemplo, porque el usuario ya cambió de directorio) no
+    // se piden más páginas.
+    public void listarDirectorio(String directorio, int orden, boolean descendente, Consumer<PaginaListado> receptor)
+            throws IOException, ClassNotFoundException {
+        String cursor = "";
+        do {
+            PaginaListado pagina = listarPagina(directorio, cursor, orden, descendente, 0);
+            receptor.accept(pagina);
+            cursor = pagina.getSiguiente();
+        } while (!cursor.isEmpty());
+    }
+
+    // Todos los archivos de todos los directorios del servidor, con su ruta completa como nombre.
+    public List<EntradaArchivo> listarArbol() throws IOException, ClassNotFoundException {
+        List<EntradaArchivo> archivos = new ArrayList<>();
+        Deque<String> pendientes = new ArrayDeque<>(List.of(""));
+        while (!pendientes.isEmpty()) {
+            String directorio = pendientes.pop();
+            listarDirectorio(directorio, Protocolo.ORDEN_NOMBRE, false, pagina -> {
+                for (EntradaArchivo entrada : pagina.getEntradas()) {
+                    String ruta = PaginaListado.ruta(directorio, entrada.getNombre());
+                    if (entrada.esDirectorio()) {
+                        pendientes.push(ruta);
+                    } else {
+                        archivos.add(entrada.conNombre(ruta));
+                    }
+                }
+            });
+        }
+        return archivos;
+    }
+
+    // Archivos de todo el árbol (o del directorio de la consulta) que cumplen la consulta, en
+    // ConsultaBusqueda.ORDEN. El servidor usa sus índices y solo envía los resultados. Con un
+    // servidor anterior a la versión 8 se recorre el listado completo y se filtra aquí.
+    public ConsultaBusqueda.Resultado buscar(ConsultaBusqueda consulta) throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario || versionProtocolo < 8) {
+                return buscarEnListado(consulta);
+            }
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.BUSCAR).cadena(consulta.getTexto()).varint(consulta.getModo())
+                    .cadena(consulta.getExtension()).cadena(consulta.getDirectorio())
+                    .varint(consulta.getTamanoMinimo()).varint(consulta.getTamanoMaximo())
+                    .varint(consulta.getModificadoDesde()).varint(consulta.getModificadoHasta())
+                    .varint(consulta.getMaximo()).terminar());
+            ByteBuffer carga = leerRespuesta(Protocolo.RESULTADOS).getCarga();
+            int cantidad = (int) Protocolo.leerVarint(carga);
+            List<EntradaArchivo> entradas = new ArrayList<>(cantidad);
+            for (int i = 0; i < cantidad; i++) {
+                EntradaArchivo entrada = new EntradaArchivo(Protocolo.leerCadena(carga), Protocolo.leerVarint(carga), Protocolo.leerVarint(carga));
+                String hash = Protocolo.leerCadena(carga);
+                entradas.add(hash.isEmpty() ? entrada : entrada.conHash(hash));
+            }
+            return new ConsultaBusqueda.Resultado(entradas, Protocolo.leerVarint(carga) != 0);
+        }
+    }
+
+    private ConsultaBusqueda.Resultado buscarEnListado(ConsultaBusqueda consulta) throws IOException, ClassNotFoundException {
+        List<EntradaArchivo> encontradas = new ArrayList<>();
+        Deque<String> pendientes = new ArrayDeque<>(List.of(consulta.getDirectorio()));
+        while (!pendientes.isEmpty()) {
+            String directorio = pendientes.pop();
+            listarDirectorio(directorio, Protocolo.ORDEN_NOMBRE, false, pagina -> {
+                for (EntradaArchivo entrada : pagina.getEntradas()) {
+                    String ruta = PaginaListado.ruta(directorio, entrada.getNombre());
+                    if (entrada.esDirectorio()) {
+                        pendientes.push(ruta);
+                    } else if (consulta.coincide(entrada.conNombre(ruta))) {
+                        encontradas.add(entrada.conNombre(ruta));
+                    }
+                }
+            });
+        }
+        encontradas.sort(ConsultaBusqueda.ORDEN);
+        int maximo = consulta.getMaximo() == 0 ? Protocolo.TAMANO_PAGINA : consulta.getMaximo();
+        return encontradas.size() > maximo
+                ? new ConsultaBusqueda.Resultado(new ArrayList<>(encontradas.subList(0, maximo)), true)
+                : new ConsultaBusqueda.Resultado(encontradas, false);
+    }
+
+    public boolean descargarArchivo(String nombreArchivo) throws IOException, ClassNotFoundException {
+        return descargarArchivo(nombreArchivo, ProgresoDescarga.NINGUNO);
+    }
+
+    // El contenido se lee en bloques de tamaño fijo y se escribe en disco a medida que llega, así
+    // que la memoria usada no depende del tamaño del archivo (se admiten archivos de más de 2 GB).
+    // Se descarga sobre un '.parcial' que solo se renombra al completarse. Si la descarga se
+    // interrumpe, el '.parcial' y su '.info' (tamaño y fecha del original) se conservan y la
+    // siguiente llamada pide solo lo que falta; si el archivo cambió en el servidor, este lo
+    // envía completo. Si ya existe una copia local completa, la descarga es condicional: se envía
+    // su hash y, si el servidor tiene el mismo contenido, no se transfiere nada. Con un servidor
+    // antiguo se recurre al protocolo serializado.
+    public boolean descargarArchivo(String nombreArchivo, ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario) {
+                return descargarArchivoSerializado(nombreArchivo);
+            }
+            DescargaReanudable descarga = new DescargaReanudable(nombreArchivo);
+            enviarTrama(descarga.solicitud());
+            if (descarga.recibir(progreso)) {
+                return true;
+            }
+            return descarga.descartada && descargarArchivo(nombreArchivo, progreso);
+        }
+    }
+
+    // Descarga varios archivos encadenando las solicitudes: se envían hasta VENTANA_SOLICITUDES
+    // sin esperar respuesta y las respuestas se leen en el mismo orden, así que la latencia de
+    // la red se paga una vez por ventana y no una vez por archivo. La ventana limitada evita que
+    // ambos extremos se bloqueen escribiendo a la vez. El progreso se informa por archivo.
+    // Devuelve los nombres descargados.
+    public List<String> descargarArchivos(List<String> nombres, ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            List<String> descargados = new ArrayList<>();
+            Iterator<String> pendientes = new LinkedHashSet<>(nombres).iterator();
+            if (!binario) {
+                while (pendientes.hasNext()) {
+                    String nombre = pendientes.next();
+                    if (descargarArchivo(nombre, progreso)) descargados.add(nombre);
+                }
+                return descargados;
+            }
+
+            Queue<DescargaReanudable> enVuelo = new ArrayDeque<>();
+            List<String> reintentos = new ArrayList<>();
+            while (pendientes.hasNext() || !enVuelo.isEmpty()) {
+                while (pendientes.hasNext() && enVuelo.size() < VENTANA_SOLICITUDES) {
+                    DescargaReanudable descarga = new DescargaReanudable(pendientes.next());
+                    escribirTrama(descarga.solicitud());
+                    enVuelo.add(descarga);
+                }
+                vaciarSalida();
+                DescargaReanudable descarga = enVuelo.poll();
+                if (descarga.recibir(progreso)) {
+                    descargados.add(descarga.nombre);
+                } else if (descarga.descartada) {
+                    reintentos.add(descarga.nombre);
+                }
+            }
+            for (String nombre : reintentos) {
+                if (descargarArchivo(nombre, progreso)) descargados.add(nombre);
+            }
+            return descargados;
+        }
+    }
+
+    // Descarga con una sola solicitud todos los archivos indicados; cada elemento puede ser un
+    // nombre o un patrón glob ("*.png"). El servidor los envía uno tras otro en la misma
+    // respuesta. El progreso se informa sobre el total del lote. Con un servidor antiguo los
+    // patrones se resuelven aquí con el listado y los archivos se piden de uno en uno.
+    // Devuelve los nombres descargados.
+    public List<String> descargarLote(List<String> nombresOPatrones, ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario) {
+                return descargarArchivos(expandirPatrones(nombresOPatrones), progreso);
+            }
+            Protocolo.ConstructorTrama solicitud = new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_LOTE).varint(nombresOPatrones.size());
+            for (String nombre : nombresOPatrones) {
+                solicitud.cadena(nombre);
+            }
+            enviarTrama(solicitud.varint(compresionesAceptadas()).terminar());
+
+            ByteBuffer lote = leerRespuesta(Protocolo.LOTE).getCarga();
+            long archivos = Protocolo.leerVarint(lote);
+            long total = Protocolo.leerVarint(lote);
+            // Los nombres que el servidor no encontró ('faltantes') no generan más tramas.
+
+            List<String> descargados = new ArrayList<>();
+            long[] base = { 0 };
+            progreso.actualizar(0, total);
+            for (long i = 0; i < archivos; i++) {
+                Protocolo.Trama respuesta = leerRespuesta(Protocolo.ARCHIVO, Protocolo.ERROR);
+                if (respuesta.getTipo() == Protocolo.ERROR) {
+                    continue; // Desapareció después de que el servidor armara el lote
+                }
+                EncabezadoArchivo encabezado = new EncabezadoArchivo(respuesta);
+                File archivoParcial = prepararParcial(encabezado.nombre);
+                try (FileChannel destino = FileChannel.open(archivoParcial.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    recibirBloques(destino, encabezado,
+                            (recibidos, tamano) -> progreso.actualizar(base[0] + recibidos, Math.max(total, base[0] + tamano)));
+                }
+                base[0] += encabezado.longitud;
+                completarParcial(archivoParcial, encabezado.nombre);
+                descargados.add(encabezado.nombre);
+            }
+            return descargados;
+        }
+    }
+
+    // Resuelve los patrones glob contra el listado del servidor (para servidores sin SOLICITAR_LOTE).
+    private List<String> expandirPatrones(List<String> nombresOPatrones) throws IOException, ClassNotFoundException {
+        List<String> nombres = new ArrayList<>();
+        List<EntradaArchivo> entradas = null;
+        for (String nombre : nombresOPatrones) {
+            if (!Protocolo.esPatronGlob(nombre)) {
+                nombres.add(nombre);
+                continue;
+            }
+            if (entradas == null) entradas = listarEntradas();
+            PathMatcher coincide = Protocolo.patronGlob(nombre);
+            for (EntradaArchivo entrada : entradas) {
+                if (coincide.matches(Path.of(entrada.getNombre()))) nombres.add(entrada.getNombre());
+            }
+        }
+        return nombres;
+    }
+
+    // Sube un archivo al directorio compartido del servidor. Primero se anuncia su hash: si el
+    // servidor ya tiene ese contenido no se envía nada. Si no, el archivo se lee y se envía por
+    // bloques, así que la memoria usada no depende de su tamaño. Devuelve 'true' si el contenido
+    // viajó por la red y 'false' si el servidor ya lo tenía.
+    public boolean subirArchivo(File archivo, ProgresoDescarga progreso) throws IOException {
+        return subirArchivo(archivo, archivo.getName(), progreso);
+    }
+
+    // Igual, pero con otro nombre en el servidor; puede ser una ruta dentro de un subdirectorio
+    // que ya exista allí ("fotos/playa.jpg").
+    public boolean subirArchivo(File archivo, String nombreDestino, ProgresoDescarga progreso) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirBinario();
+            if (versionProtocolo < 3) {
+                throw new IOException("El servidor no admite subidas de archivos.");
+            }
+            long tamano = archivo.length();
+            String hash = ManifiestoHashes.calcular(archivo);
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SUBIR)
+                    .cadena(nombreDestino).varint(tamano).cadena(hash).terminar());
+            if (leerRespuesta(Protocolo.CONTINUAR, Protocolo.SUBIDO).getTipo() == Protocolo.SUBIDO) {
+                progreso.actualizar(tamano, tamano);
+                return false;
+            }
+
+            // El servidor no contesta hasta el FIN, así que los bloques se envían sin esperar.
+            byte[] buffer = new byte[TAMANO_BLOQUE];
+            long enviados = 0;
+            progreso.actualizar(0, tamano);
+            try (InputStream entradaArchivo = Files.newInputStream(archivo.toPath())) {
+                int leidos;
+                while (enviados < tamano
+                        && (leidos = entradaArchivo.read(buffer, 0, (int) Math.min(buffer.length, tamano - enviados))) > 0) {
+                    escribirBloque(buffer, leidos);
+                    enviados += leidos;
+                    progreso.actualizar(enviados, tamano);
+                }
+            }
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.FIN).terminar());
+            leerRespuesta(Protocolo.SUBIDO); // Un ERROR (por ejemplo, si el archivo cambió mientras se leía) lanza IOException
+            return true;
+        }
+    }
+
+    // --- Sincronización por bloques (v9) ---
+
+    // Deja en 'destino' la versión del servidor de 'nombreArchivo' pidiendo solo lo que cambió
+    // respecto a la copia que ya hay allí (ver 'DeltaBloques'). Si 'destino' no existe, todo el
+    // contenido viaja. Se reconstruye en un '.parcial' junto a 'destino', se comprueba su hash y
+    // se renombra; la copia queda con la fecha de modificación del servidor.
+    public DeltaBloques.Resultado descargarDelta(String nombreArchivo, File destino, ProgresoDescarga progreso) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirDelta();
+            DeltaBloques.Resultado resultado = recibirDelta(nombreArchivo, destino.isFile() ? destino : null, destino, progreso);
+            // Si la reconstrucción no cuadra (la copia local cambió mientras tanto), se pide entero.
+            return resultado != null ? resultado : recibirDelta(nombreArchivo, null, destino, progreso);
+        }
+    }
+
+    private DeltaBloques.Resultado recibirDelta(String nombreArchivo, File base, File destino, ProgresoDescarga progreso) throws IOException {
+        DeltaBloques.Firma firma = DeltaBloques.firmar(base);
+        enviarTrama(firma.escribir(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_DELTA)
+                .cadena(nombreArchivo).cadena(firma.getHash())).terminar());
+        Protocolo.Trama respuesta = leerRespuesta(Protocolo.DELTA, Protocolo.NO_MODIFICADO);
+        ByteBuffer carga = respuesta.getCarga();
+        Protocolo.leerCadena(carga);
+        long tamano = Protocolo.leerVarint(carga);
+        long modificado = Protocolo.leerVarint(carga);
+        String hash = Protocolo.leerCadena(carga);
+        EntradaArchivo version = new EntradaArchivo(nombreArchivo, tamano, modificado, hash);
+        if (respuesta.getTipo() == Protocolo.NO_MODIFICADO) {
+            progreso.actualizar(tamano, tamano);
+            return new DeltaBloques.Resultado(version, 0);
+        }
+
+        destino.getParentFile().mkdirs();
+        File parcial = new File(destino.getPath() + ".parcial");
+        MessageDigest digest = ManifiestoHashes.nuevoDigest();
+        long nuevos = 0;
+        long escritos;
+        try (FileChannel salidaArchivo = FileChannel.open(parcial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                FileChannel canalBase = base != null ? DeltaBloques.abrir(base) : null) {
+            DeltaBloques.Destino escritor = datos -> {
+                digest.update(datos.duplicate());
+                while (datos.hasRemaining()) {
+                    salidaArchivo.write(datos);
+                }
+            };
+            progreso.actualizar(0, tamano);
+            while (true) {
+                Protocolo.Trama trama = siguienteTrama();
+                if (trama.getTipo() == Protocolo.FIN) {
+                    break;
+                }
+                if (trama.getTipo() == Protocolo.BLOQUE) {
+                    nuevos += trama.getCarga().remaining();
+                    escritor.escribir(trama.getCarga());
+                } else if (trama.getTipo() == Protocolo.COPIAR_BLOQUES && canalBase != null) {
+                    ByteBuffer copia = trama.getCarga();
+                    DeltaBloques.copiar(canalBase, firma.getTamanoBloque(), Protocolo.leerVarint(copia), Protocolo.leerVarint(copia), escritor);
+                } else {
+                    throw new StreamCorruptedException("Trama inesperada durante la descarga: " + trama.getTipo());
+                }
+                if (salidaArchivo.position() > tamano) {
+                    throw new StreamCorruptedException("El contenido excede la longitud anunciada.");
+                }
+                progreso.actualizar(salidaArchivo.position(), tamano);
+            }
+            escritos = salidaArchivo.position();
+        } catch (IOException e) {
+            parcial.delete();
+            throw e;
+        }
+        if (escritos != tamano || !HexFormat.of().formatHex(digest.digest()).equals(hash)) {
+            parcial.delete();
+            return null;
+        }
+        Files.move(parcial.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        destino.setLastModified(modificado);
+        return new DeltaBloques.Resultado(version, nuevos);
+    }
+
+    // Sube 'archivo' como 'nombreDestino' enviando solo lo que cambió respecto a la versión que
+    // ya tiene el servidor: primero se piden sus FIRMAS y después viajan las instrucciones para
+    // reconstruirlo. Si el servidor no lo tiene, todo el contenido viaja. Se crean en el servidor
+    // los directorios que falten.
+    public DeltaBloques.Resultado subirDelta(File archivo, String nombreDestino, ProgresoDescarga progreso) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirDelta();
+            DeltaBloques.Resultado resultado = enviarDelta(archivo, nombreDestino, true, progreso);
+            // La versión del servidor cambió desde que se pidieron sus firmas: se sube sin base.
+            return resultado != null ? resultado : enviarDelta(archivo, nombreDestino, false, progreso);
+        }
+    }
+
+    private DeltaBloques.Resultado enviarDelta(File archivo, String nombreDestino, boolean conBase, ProgresoDescarga progreso) throws IOException {
+        long tamano = archivo.length();
+        String hash = ManifiestoHashes.calcular(archivo);
+        EntradaArchivo version = new EntradaArchivo(nombreDestino, tamano, archivo.lastModified(), hash);
+        DeltaBloques.Firma firma = DeltaBloques.firmar(null);
+        String hashBase = "";
+        if (conBase) {
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_FIRMAS).cadena(nombreDestino).terminar());
+            Protocolo.Trama respuesta = leerRespuesta(Protocolo.FIRMAS, Protocolo.ERROR); // ERROR: aún no lo tiene
+            if (respuesta.getTipo() == Protocolo.FIRMAS) {
+                ByteBuffer carga = respuesta.getCarga();
+                Protocolo.leerCadena(carga);
+                hashBase = Protocolo.leerCadena(carga);
+                firma = DeltaBloques.Firma.leer(carga);
+            }
+            if (hashBase.equals(hash)) {
+                progreso.actualizar(tamano, tamano);
+                return new DeltaBloques.Resultado(version, 0);
+            }
+        }
+        enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SUBIR_DELTA).cadena(nombreDestino).varint(tamano)
+                .cadena(hash).cadena(hashBase).varint(firma.getTamanoBloque()).terminar());
+        Protocolo.Trama respuesta = leerRespuesta(Protocolo.CONTINUAR, Protocolo.SUBIDO, Protocolo.ERROR);
+        if (respuesta.getTipo() == Protocolo.ERROR && conBase) {
+            return null;
+        } else if (respuesta.getTipo() != Protocolo.CONTINUAR) {
+            comprobarRespuesta(respuesta, Protocolo.SUBIDO);
+            progreso.actualizar(tamano, tamano);
+            return new DeltaBloques.Resultado(version, 0);
+        }
+
+        // Como en 'subirArchivo', el servidor no contesta hasta el FIN.
+        int tamanoBloque = firma.getTamanoBloque();
+        long[] avance = new long[1];
+        progreso.actualizar(0, tamano);
+        long nuevos = DeltaBloques.generar(archivo, firma, new DeltaBloques.Receptor() {
+            @Override
+            public void copiar(long primero, long cantidad) throws IOException {
+                escribirTrama(new Protocolo.ConstructorTrama(Protocolo.COPIAR_BLOQUES).varint(primero).varint(cantidad).terminar());
+                avance[0] = Math.min(tamano, avance[0] + cantidad * tamanoBloque);
+                progreso.actualizar(avance[0], tamano);
+            }
+
+            @Override
+            public void literal(byte[] datos, int desde, int longitud) throws IOException {
+                escribirBloque(datos, desde, longitud);
+                avance[0] += longitud;
+                progreso.actualizar(avance[0], tamano);
+            }
+        });
+        enviarTrama(new Protocolo.ConstructorTrama(Protocolo.FIN).terminar());
+        Protocolo.Trama confirmacion = leerRespuesta(Protocolo.SUBIDO, Protocolo.ERROR);
+        if (confirmacion.getTipo() == Protocolo.ERROR && !hashBase.isEmpty()) {
+            return null; // Por ejemplo, si la base no era la que se firmó
+        }
+        comprobarRespuesta(confirmacion, Protocolo.SUBIDO);
+        return new DeltaBloques.Resultado(version, nuevos);
+    }
+
+    private void exigirDelta() throws IOException {
+        exigirBinario();
+        if (versionProtocolo < 9) {
+            throw new IOException("El servidor no admite sincronización por bloques.");
+        }
+    }
+
+    // Miniatura de una imagen del servidor cuyo lado mayor mide como mucho 'tamanoMaximo' (el
+    // servidor la redondea hacia arriba a un tamaño estándar, así que puede venir algo mayor).
+    // Devuelve null si no es una imagen o el servidor no genera miniaturas; en ese caso hay que
+    // descargar el archivo completo.
+    public BufferedImage obtenerMiniatura(String nombreArchivo, int tamanoMaximo) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario || versionProtocolo < 4) {
+                return null;
+            }
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_MINIATURA).cadena(nombreArchivo).varint(tamanoMaximo).terminar());
+            Protocolo.Trama respuesta = leerRespuesta(Protocolo.MINIATURA, Protocolo.ERROR);
+            ByteBuffer carga = respuesta.getCarga();
+            if (respuesta.getTipo() == Protocolo.ERROR) {
+                if (Protocolo.leerVarint(carga) == Protocolo.ERROR_SIN_MINIATURA) return null;
+                throw new IOException("Error del servidor: " + Protocolo.leerCadena(carga));
+            }
+            Protocolo.leerCadena(carga); // nombre
+            Protocolo.leerCadena(carga); // hash del original
+            Protocolo.leerCadena(carga); // formato; ImageIO lo reconoce por el contenido
+            return ImageIO.read(new ByteArrayInputStream(carga.array(), carga.arrayOffset() + carga.position(), carga.remaining()));
+        }
+    }
+
+    // Contadores y latencias del servidor (ver 'MetricasServidor'), en el orden en que los envía.
+    public Map<String, Long> obtenerEstadisticas() throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario || versionProtocolo < 6) {
+                throw new IOException("El servidor no ofrece estadísticas.");
+            }
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_ESTADISTICAS).terminar());
+            ByteBuffer carga = leerRespuesta(Protocolo.ESTADISTICAS).getCarga();
+            long cantidad = Protocolo.leerVarint(carga);
+            Map<String, Long> valores = new LinkedHashMap<>();
+            for (long i = 0; i < cantidad; i++) {
+                valores.put(Protocolo.leerCadena(carga), Protocolo.leerVarint(carga));
+            }
+            return valores;
+        }
+    }
+
+    // Los nodos del cluster al que pertenece el servidor (ver 'AnilloNodos'). Si el servidor no
+    // forma parte de ninguno, o es anterior a la versión 10, el anillo está vacío.
+    public AnilloNodos obtenerAnillo() throws IOException {
+        return obtenerAnillo("");
+    }
+
+    // Igual, presentándose como el nodo 'nodoPropio' del cluster: así se descubren los nodos
+    // entre sí, y el servidor sabe que lo que se suba por esta conexión es una réplica.
+    public AnilloNodos obtenerAnillo(String nodoPropio) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            if (!binario || versionProtocolo < 10) {
+                return new AnilloNodos(List.of(), 1, List.of());
+            }
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_ANILLO).cadena(nodoPropio).terminar());
+            return AnilloNodos.leer(leerRespuesta(Protocolo.ANILLO).getCarga());
+        }
+    }
+
+    // Envía una solicitud ya codificada cuya respuesta es una sola trama y devuelve esa trama
+    // completa y sin interpretar, también si es un ERROR. La usa 'ProxyCache' para pasar al
+    // servidor de origen los listados, búsquedas y miniaturas que le piden sus clientes.
+    public ByteBuffer reenviar(ByteBuffer solicitud) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirBinario();
+            enviarTrama(solicitud);
+            Protocolo.Trama respuesta = siguienteTrama();
+            comprobarOcupado(respuesta);
+            ByteBuffer carga = respuesta.getCarga();
+            ByteBuffer encabezado = Protocolo.encabezado(respuesta.getTipo(), carga.remaining());
+            return ByteBuffer.allocate(encabezado.remaining() + carga.remaining()).put(encabezado).put(carga).flip();
+        }
+    }
+
+    // Una tabla "nombre valor" alineada, para la consola.
+    public static void imprimirEstadisticas(Map<String, Long> valores) {
+        int ancho = 0;
+        for (String nombre : valores.keySet()) {
+            ancho = Math.max(ancho, nombre.length());
+        }
+        for (Map.Entry<String, Long> valor : valores.entrySet()) {
+            System.out.printf("%-" + ancho + "s  %,d%n", valor.getKey(), valor.getValue());
+        }
+    }
+
+    // Una descarga de archivo completo que continúa el '.parcial' si lo hay. Separa el envío de
+    // la solicitud de la lectura de la respuesta para poder encadenar varias.
+    private final class DescargaReanudable {
+        final String nombre;
+        final File archivoParcial;
+        final File archivoInfo;
+        final long[] info;
+        final long desde;
+        final String hashLocal; // Hash de la copia ya descargada, "" si no hay o no se puede usar
+        // El servidor rechazó el rango: el '.parcial' no servía y se borró; hay que pedirlo de nuevo.
+        boolean descartada;
+
+        DescargaReanudable(String nombre) throws IOException {
+            this.nombre = nombre;
+            this.archivoParcial = prepararParcial(nombre);
+            this.archivoInfo = new File(archivoParcial.getPath() + ".info");
+            this.info = leerInfoParcial(archivoParcial, archivoInfo);
+            this.desde = info == null ? 0 : archivoParcial.length();
+            this.hashLocal = info == null ? hashCopiaLocal(nombre) : "";
+        }
+
+        ByteBuffer solicitud() {
+            Protocolo.ConstructorTrama solicitud = new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_RANGO).cadena(nombre)
+                    .varint(desde).varint(0).varint(info == null ? 0 : info[0]).varint(info == null ? 0 : info[1])
+                    .varint(compresionesAceptadas());
+            if (versionProtocolo >= 2) {
+                solicitud.cadena(hashLocal);
+            }
+            return solicitud.terminar();
+        }
+
+        boolean recibir(ProgresoDescarga progreso) throws IOException {
+            Protocolo.Trama respuesta = leerRespuesta(Protocolo.ARCHIVO, Protocolo.NO_MODIFICADO, Protocolo.ERROR);
+            if (respuesta.getTipo() == Protocolo.NO_MODIFICADO) {
+                ByteBuffer carga = respuesta.getCarga();
+                Protocolo.leerCadena(carga);
+                long tamano = Protocolo.leerVarint(carga);
+                progreso.actualizar(tamano, tamano);
+                return true;
+            }
+            if (respuesta.getTipo() == Protocolo.ERROR) {
+                if (Protocolo.leerVarint(respuesta.getCarga()) == Protocolo.ERROR_RANGO_NO_VALIDO && desde > 0) {
+                    // El '.parcial' es más largo que el original: no sirve y se empieza de cero.
+                    archivoInfo.delete();
+                    archivoParcial.delete();
+                    descartada = true;
+                }
+                return false;
+            }
+            EncabezadoArchivo encabezado = new EncabezadoArchivo(respuesta);
+
+            try (FileChannel destino = FileChannel.open(archivoParcial.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (encabezado.desde == 0) {
+                    destino.truncate(0);
+                    guardarInfoParcial(archivoInfo, encabezado.tamano, encabezado.modificado);
+                }
+                recibirBloques(destino, encabezado, progreso);
+            }
+            archivoInfo.delete();
+            completarParcial(archivoParcial, encabezado.nombre);
+            return true;
+        }
+    }
+
+    // Descarga 'longitud' bytes a partir de 'desde' y los escribe en la misma posición de
+    // 'destino'. El rango se pide condicionado a que el archivo siga teniendo el tamaño y la
+    // fecha dados; si cambió, el servidor lo enviaría entero y se lanza una IOException.
+    // El progreso se informa relativo al rango: (bytes del rango recibidos, longitud).
+    public void descargarRango(String nombreArchivo, long desde, long longitud, long tamano, long modificado,
+            FileChannel destino, ProgresoDescarga progreso) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirBinario();
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_RANGO).cadena(nombreArchivo)
+                    .varint(desde).varint(longitud).varint(tamano).varint(modificado).varint(compresionesAceptadas()).terminar());
+            Protocolo.Trama respuesta = leerRespuesta(Protocolo.ARCHIVO, Protocolo.ERROR);
+            if (respuesta.getTipo() == Protocolo.ERROR) {
+                throw new FileNotFoundException("El servidor no tiene el archivo '" + nombreArchivo + "'.");
+            }
+            EncabezadoArchivo encabezado = new EncabezadoArchivo(respuesta);
+            if (encabezado.desde != desde || encabezado.longitud != longitud) {
+                throw new IOException("El archivo '" + nombreArchivo + "' cambió en el servidor durante la descarga.");
+            }
+            recibirBloques(destino, encabezado, (recibidos, total) -> progreso.actualizar(recibidos - desde, longitud));
+        }
+    }
+
+    // Versión del servidor de 'nombreArchivo' sin descargarlo: se pide un solo byte con el hash
+    // de la copia local. Si es el mismo, el servidor contesta NO_MODIFICADO y la entrada lleva
+    // ese hash; si no, la entrada llega sin hash (la trama ARCHIVO no lo incluye). Si el archivo
+    // no existe se lanza FileNotFoundException.
+    public EntradaArchivo comprobarVersion(String nombreArchivo, String hashLocal) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirBinario();
+            enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_RANGO).cadena(nombreArchivo).varint(0).varint(1)
+                    .varint(0).varint(0).varint(Protocolo.COMPRESION_NINGUNA).cadena(hashLocal).terminar());
+            Protocolo.Trama respuesta = leerRespuesta(Protocolo.ARCHIVO, Protocolo.NO_MODIFICADO);
+            ByteBuffer carga = respuesta.getCarga();
+            Protocolo.leerCadena(carga);
+            long tamano = Protocolo.leerVarint(carga);
+            long modificado = Protocolo.leerVarint(carga);
+            if (respuesta.getTipo() == Protocolo.NO_MODIFICADO) {
+                return new EntradaArchivo(nombreArchivo, tamano, modificado, Protocolo.leerCadena(carga));
+            }
+            while (siguienteTrama().getTipo() != Protocolo.FIN) {
+                // El byte pedido no interesa
+            }
+            return new EntradaArchivo(nombreArchivo, tamano, modificado);
+        }
+    }
+
+    // Reparte la descarga en segmentos de 'tamanoSegmento' bytes que se piden en paralelo por
+    // 'conexiones' conexiones distintas (ver 'DescargaSegmentada'). Los archivos que caben en
+    // un solo segmento, o los servidores sin protocolo binario, usan la descarga normal.
+    public boolean descargarArchivoSegmentado(String nombreArchivo, int conexiones, long tamanoSegmento,
+            ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        if (!binario) {
+            return descargarArchivo(nombreArchivo, progreso);
+        }
+        EntradaArchivo entrada = buscarEntrada(nombreArchivo);
+        if (entrada == null) {
+            return false;
+        }
+        if (entrada.getTamano() <= tamanoSegmento || conexiones == 1) {
+            return descargarArchivo(nombreArchivo, progreso);
+        }
+        DescargaSegmentada descarga = new DescargaSegmentada(host, puerto, directorioDescargas);
+        descarga.setConexiones(conexiones);
+        descarga.setTamanoSegmento(tamanoSegmento);
+        descarga.descargar(entrada, progreso);
+        return true;
+    }
+
+    // Entrada del listado de un archivo del servidor, o null si no existe. Se buscan las páginas
+    // del directorio que lo contiene; se devuelve con su ruta completa como nombre.
+    private EntradaArchivo buscarEntrada(String nombreArchivo) throws IOException, ClassNotFoundException {
+        int barra = nombreArchivo.lastIndexOf('/');
+        String directorio = barra < 0 ? "" : nombreArchivo.substring(0, barra);
+        String nombre = nombreArchivo.substring(barra + 1);
+        String cursor = "";
+        do {
+            PaginaListado pagina = listarPagina(directorio, cursor, Protocolo.ORDEN_NOMBRE, false, 0);
+            for (EntradaArchivo candidata : pagina.getEntradas()) {
+                if (!candidata.esDirectorio() && candidata.getNombre().equals(nombre)) return candidata.conNombre(nombreArchivo);
+            }
+            cursor = pagina.getSiguiente();
+        } while (!cursor.isEmpty());
+        return null;
+    }
+
+    // Datos de la trama ARCHIVO que precede a los BLOQUEs.
+    private static final class EncabezadoArchivo {
+        final String nombre;
+        final long tamano;
+        final long modificado;
+        final long desde;
+        final long longitud;
+        final int compresion;
+
+        EncabezadoArchivo(Protocolo.Trama trama) throws IOException {
+            ByteBuffer carga = trama.getCarga();
+            nombre = Protocolo.leerCadena(carga);
+            tamano = Protocolo.leerVarint(carga);
+            modificado = Protocolo.leerVarint(carga);
+            desde = Protocolo.leerVarint(carga);
+            longitud = Protocolo.leerVarint(carga);
+            compresion = carga.hasRemaining() ? (int) Protocolo.leerVarint(carga) : Protocolo.COMPRESION_NINGUNA;
+        }
+    }
+
+    // Escribe los BLOQUEs que siguen a una trama ARCHIVO, a partir de la posición 'desde' del
+    // destino, hasta la trama FIN. Cada BLOQUE se lee directamente en el mismo búfer; si llegan
+    // comprimidos, se descomprimen en un segundo búfer antes de escribirlos. El progreso se
+    // informa en bytes del archivo, no en bytes recibidos por la red.
+    private void recibirBloques(FileChannel destino, EncabezadoArchivo encabezado, ProgresoDescarga progreso) throws IOException {
+        byte[] buffer = new byte[Protocolo.TAMANO_BLOQUE];
+        Inflater descompresor = null;
+        byte[] descomprimidos = null;
+        if (encabezado.compresion == Protocolo.COMPRESION_DEFLATE) {
+            descompresor = new Inflater();
+            descomprimidos = new byte[Protocolo.TAMANO_BLOQUE];
+        } else if (encabezado.compresion != Protocolo.COMPRESION_NINGUNA) {
+            throw new StreamCorruptedException("Compresión desconocida: " + encabezado.compresion);
+        }
+        long posicion = encabezado.desde;
+        long recibidos = 0;
+        progreso.actualizar(posicion, encabezado.tamano);
+        try {
+            while (true) {
+                int bloque = leerBloque(buffer);
+                if (bloque < 0) {
+                    break;
+                }
+                if (descompresor == null) {
+                    escribirEn(destino, buffer, bloque, posicion + recibidos);
+                    recibidos += bloque;
+                } else {
+                    descompresor.setInput(buffer, 0, bloque);
+                    while (!descompresor.needsInput() && !descompresor.finished()) {
+                        int n = descompresor.inflate(descomprimidos);
+                        if (recibidos + n > encabezado.longitud) {
+                            throw new StreamCorruptedException("El contenido descomprimido excede la longitud anunciada.");
+                        }
+                        escribirEn(destino, descomprimidos, n, posicion + recibidos);
+                        recibidos += n;
+                    }
+                }
+                progreso.actualizar(posicion + recibidos, encabezado.tamano);
+            }
+            if (descompresor != null && !descompresor.finished()) {
+                throw new StreamCorruptedException("El flujo comprimido terminó antes de tiempo.");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Contenido comprimido no válido: " + e.getMessage());
+        } finally {
+            if (descompresor != null) descompresor.end();
+        }
+        if (recibidos != encabezado.longitud) {
+            throw new IOException("Descarga incompleta: " + recibidos + " de " + encabezado.longitud + " bytes.");
+        }
+    }
+
+    // Lee el contenido de la siguiente trama de una descarga en 'buffer' y devuelve su longitud,
+    // o -1 si es el FIN. Sin canales se lee directamente del socket al búfer, sin copias.
+    private int leerBloque(byte[] buffer) throws IOException {
+        Canal canal = canalActual.get();
+        if (canal != null) {
+            Protocolo.Trama trama = canal.siguiente();
+            int bloque = trama.getCarga().remaining();
+            if (trama.getTipo() == Protocolo.FIN) {
+                return -1;
+            }
+            if (trama.getTipo() != Protocolo.BLOQUE || bloque > buffer.length) {
+                throw new StreamCorruptedException("Trama inesperada durante la descarga: " + trama.getTipo());
+            }
+            trama.getCarga().get(buffer, 0, bloque);
+            return bloque;
+        }
+        byte tipo = entradaDatos.readByte();
+        long bloque = Protocolo.leerVarint(entradaDatos);
+        if (tipo == Protocolo.FIN) {
+            entradaDatos.skipNBytes(bloque);
+            return -1;
+        }
+        if (tipo != Protocolo.BLOQUE || bloque > buffer.length) {
+            throw new StreamCorruptedException("Trama inesperada durante la descarga: " + tipo);
+        }
+        entradaDatos.readFully(buffer, 0, (int) bloque);
+        return (int) bloque;
+    }
+
+    private static void escribirEn(FileChannel destino, byte[] datos, int longitud, long posicion) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(datos, 0, longitud);
+        while (buffer.hasRemaining()) {
+            destino.write(buffer, posicion + buffer.position());
+        }
+    }
+
+    // Devuelve {tamaño, modificado} del original si hay un '.parcial' que se pueda continuar.
+    private static long[] leerInfoParcial(File archivoParcial, File archivoInfo) {
+        if (!archivoParcial.isFile() || !archivoInfo.isFile()) {
+            return null;
+        }
+        try {
+            String[] campos = Files.readString(archivoInfo.toPath()).trim().split(" ");
+            return new long[] { Long.parseLong(campos[0]), Long.parseLong(campos[1]) };
+        } catch (IOException | RuntimeException e) {
+            return null; // '.info' ilegible: se descarga de nuevo
+        }
+    }
+
+    private static void guardarInfoParcial(File archivoInfo, long tamano, long modificado) throws IOException {
+        Files.writeString(archivoInfo.toPath(), tamano + " " + modificado);
+    }
+
+    // Transferencia directa del protocolo serializado: el servidor responde con un encabezado
+    // binario (estado, nombre, longitud) seguido del contenido sin serializar.
+    public boolean descargarArchivoDirecto(String nombreArchivo, ProgresoDescarga progreso) throws IOException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirSerializado();
+            enviarSolicitud("SOLICITAR_ARCHIVO_DIRECTO:" + nombreArchivo);
+            if (entradaDatos.readByte() == 0) {
+                return false;
+            }
+            String nombre = entradaDatos.readUTF();
+            long longitud = entradaDatos.readLong();
+
+            File archivoParcial = prepararParcial(nombre);
+            try (FileOutputStream fos = new FileOutputStream(archivoParcial)) {
+                byte[] buffer = new byte[TAMANO_BLOQUE];
+                long recibidos = 0;
+                progreso.actualizar(0, longitud);
+                while (recibidos < longitud) {
+                    int leidos = entradaDatos.read(buffer, 0, (int) Math.min(buffer.length, longitud - recibidos));
+                    if (leidos < 0) throw new EOFException("La conexión se cerró durante la descarga.");
+                    fos.write(buffer, 0, leidos);
+                    recibidos += leidos;
+                    progreso.actualizar(recibidos, longitud);
+                }
+            }
+            completarParcial(archivoParcial, nombre);
+            return true;
+        }
+    }
+
+    // Descarga con el protocolo original, que envía el archivo completo dentro de un objeto 'Archivo'.
+    public boolean descargarArchivoSerializado(String nombreArchivo) throws IOException, ClassNotFoundException {
+        try (Operacion operacion = empezarOperacion()) {
+            exigirSerializado();
+            enviarSolicitud("SOLICITAR_ARCHIVO:" + nombreArchivo);
+            Object respuesta = entrada.readObject();
+
+            if (respuesta instanceof String && ((String) respuesta).equals("ARCHIVO_ENCONTRADO")) {
+                Archivo archivoRecibido = (Archivo) entrada.readObject();
+                guardarArchivo(archivoRecibido);
+                return true;
+            }
+            if (respuesta instanceof String && ((String) respuesta).startsWith("SERVIDOR_OCUPADO:")) {
+                long reintento = Long.parseLong(((String) respuesta).substring(17));
+                throw new ServidorOcupadoException("Servidor ocupado: vuelva a intentarlo en " + (reintento + 999) / 1000 + " s.", reintento);
+            }
+            return false;
+        }
+    }
+    
+    public void desconectar() {
+        try {
+            if (clienteSocket != null && !clienteSocket.isClosed()) {
+                if (binario) {
+                    enviarTrama(new Protocolo.ConstructorTrama(Protocolo.SALIR).terminar());
+                } else {
+                    enviarSolicitud("SALIR");
+                }
+            }
+        } catch (IOException e) {
+            // Ignorar
+        } finally {
+            cerrarSocket();
+        }
+    }
+
+    private void cerrarSocket() {
+        try {
+            if (salida != null) salida.close();
+            if (entrada != null) entrada.close();
+            if (clienteSocket != null) clienteSocket.close();
+        } catch (IOException e) {
+            // Ignorar
+        }
+        salida = null;
+        entrada = null;
+    }
+    
+    public File getDirectorioDescargas() {
+        return directorioDescargas;
+    }
+
+    public void setDirectorioDescargas(File directorioDescargas) {
+        this.directorioDescargas = directorioDescargas;
+    }
+
+    public boolean isCompresion() {
+        return compresion;
+    }
+
+    public void setCompresion(boolean compresion) {
+        this.compresion = compresion;
+    }
+
+    // Hash de la copia ya descargada de 'nombre', o "" si no existe o el servidor no admite
+    // descargas condicionales. Solo se calcula si la copia cambió de tamaño o de fecha desde la
+    // última vez (el mismo criterio que 'ManifiestoHashes').
+    private String hashCopiaLocal(String nombre) {
+        try {
+            File local = destinoLocal(directorioDescargas, nombre);
+            if (versionProtocolo < 2 || !local.isFile()) {
+                return "";
+            }
+            EntradaArchivo actual = new EntradaArchivo(nombre, local.length(), local.lastModified());
+            EntradaArchivo calculada = hashesLocales.get(local);
+            if (calculada != null && calculada.mismaVersion(actual)) {
+                return calculada.getHash();
+            }
+            String hash = ManifiestoHashes.calcular(local);
+            hashesLocales.put(local, actual.conHash(hash));
+            return hash;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private int compresionesAceptadas() {
+        return compresion ? Protocolo.COMPRESION_DEFLATE : Protocolo.COMPRESION_NINGUNA;
+    }
+
+    // Los archivos de subdirectorios del servidor se guardan en los mismos subdirectorios.
+    private File prepararParcial(String nombre) throws IOException {
+        File archivoDestino = destinoLocal(directorioDescargas, nombre);
+        archivoDestino.getParentFile().mkdirs();
+        return new File(archivoDestino.getPath() + ".parcial");
+    }
+
+    private void completarParcial(File archivoParcial, String nombre) throws IOException {
+        File archivoDestino = destinoLocal(directorioDescargas, nombre);
+        Files.move(archivoParcial.toPath(), archivoDestino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Dónde se guarda localmente el archivo 'nombre' del servidor. El nombre lo pone el
+    // servidor, así que se rechaza cualquiera que acabe fuera de 'directorio' ("../.bashrc").
+    static File destinoLocal(File directorio, String nombre) throws IOException {
+        Path base = directorio.toPath().toAbsolutePath().normalize();
+        Path destino = base.resolve(nombre).normalize();
+        if (nombre.isEmpty() || !destino.startsWith(base) || destino.equals(base)) {
+            throw new IOException("Nombre de archivo no válido: '" + nombre + "'.");
+        }
+        return destino.toFile();
+    }
+
+    private void guardarArchivo(Archivo archivo) throws IOException {
+        File archivoDestino = destinoLocal(directorioDescargas, archivo.getNombre());
+        archivoDestino.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(archivoDestino)) {
+            fos.write(archivo.getDatos());
+        }
+    }
+
+    private void exigirBinario() {
+        if (!binario) {
+            throw new IllegalStateException("El servidor no soporta el protocolo binario.");
+        }
+    }
+
+    private void exigirSerializado() {
+        if (binario) {
+            throw new IllegalStateException("La conexión usa el protocolo binario; use descargarArchivo.");
+        }
+    }
+
+    private void enviarSolicitud(String solicitud) throws IOException {
+        salida.writeObject(solicitud);
+        salida.flush();
+    }
+
+    private void enviarTrama(ByteBuffer trama) throws IOException {
+        escribirTrama(trama);
+        vaciarSalida();
+    }
+
+    private void vaciarSalida() throws IOException {
+        cerrojoEscritura.lock();
+        try {
+            salidaDatos.flush();
+        } finally {
+            cerrojoEscritura.unlock();
+        }
+    }
+
+    // Dentro de una operación con canal, la trama se envuelve con su id.
+    private void escribirTrama(ByteBuffer trama) throws IOException {
+        Canal canal = canalActual.get();
+        if (canal != null) {
+            trama = Protocolo.envolver(Protocolo.CANAL, canal.id, trama);
+        }
+        cerrojoEscritura.lock();
+        try {
+            salidaDatos.write(trama.array(), trama.arrayOffset() + trama.position(), trama.remaining());
+        } finally {
+            cerrojoEscritura.unlock();
+        }
+    }
+
+    // Un BLOQUE de subida, sin copiar 'datos' a una trama intermedia.
+    private void escribirBloque(byte[] datos, int longitud) throws IOException {
+        escribirBloque(datos, 0, longitud);
+    }
+
+    private void escribirBloque(byte[] datos, int desde, int longitud) throws IOException {
+        Canal canal = canalActual.get();
+        ByteBuffer encabezado = canal == null ? Protocolo.encabezado(Protocolo.BLOQUE, longitud)
+                : Protocolo.encabezadoCanal(Protocolo.CANAL, canal.id, Protocolo.BLOQUE, longitud);
+        cerrojoEscritura.lock();
+        try {
+            salidaDatos.write(encabezado.array(), encabezado.position(), encabezado.remaining());
+            salidaDatos.write(datos, desde, longitud);
+        } finally {
+            cerrojoEscritura.unlock();
+        }
+    }
+
+    // Siguiente trama de respuesta para la operación en curso: la que el lector dejó en su canal,
+    // o la siguiente de la conexión si no hay canales.
+    private Protocolo.Trama siguienteTrama() throws IOException {
+        Canal canal = canalActual.get();
+        if (canal != null) {
+            return canal.siguiente();
+        }
+        Protocolo.Trama trama = Protocolo.leerTrama(entradaDatos, Protocolo.MAXIMO_RESPUESTA);
+        if (trama == null) {
+            throw new EOFException("El servidor cerró la conexión.");
+        }
+        return trama;
+    }
+
+    // Lee la siguiente trama y comprueba que sea de alguno de los tipos esperados. Un ERROR
+    // no esperado se convierte en excepción con el mensaje que envió el servidor (una
+    // FileNotFoundException si lo pedido no existe).
+    // Un ERROR_OCUPADO siempre se convierte en ServidorOcupadoException, aunque se espere un ERROR.
+    private Protocolo.Trama leerRespuesta(byte... tiposEsperados) throws IOException {
+        return comprobarRespuesta(siguienteTrama(), tiposEsperados);
+    }
+
+    private Protocolo.Trama comprobarRespuesta(Protocolo.Trama trama, byte... tiposEsperados) throws IOException {
+        comprobarOcupado(trama);
+        for (byte tipo : tiposEsperados) {
+            if (trama.getTipo() == tipo) return trama;
+        }
+        if (trama.getTipo() == Protocolo.ERROR) {
+            long codigo = Protocolo.leerVarint(trama.getCarga());
+            String mensaje = "Error del servidor: " + Protocolo.leerCadena(trama.getCarga());
+            throw codigo == Protocolo.ERROR_NO_ENCONTRADO ? new FileNotFoundException(mensaje) : new IOException(mensaje);
+        }
+        throw new StreamCorruptedException("Respuesta inesperada del servidor: " + trama.getTipo());
+    }
+    
+    private static void comprobarOcupado(Protocolo.Trama trama) throws IOException {
+        ByteBuffer carga = trama.getCarga().duplicate();
+        if (trama.getTipo() == Protocolo.ERROR && carga.hasRemaining() && Protocolo.leerVarint(carga) == Protocolo.ERROR_OCUPADO) {
+            String mensaje = Protocolo.leerCadena(carga);
+            throw new ServidorOcupadoException(mensaje, carga.hasRemaining() ? Protocolo.leerVarint(carga) : 0);
+        }
+    }
+
+    // --- OPERACIONES CONCURRENTES ---
+
+    // Una operación completa (solicitud y respuesta). Con canales recibe un id propio, que se
+    // asocia al hilo que la ejecuta; sin ellos, se queda con la conexión hasta terminar. Las
+    // operaciones que llaman a otras (por ejemplo 'descargarArchivos') las incluyen en la suya.
+    private final class Operacion implements AutoCloseable {
+        private final Canal canal; // null si no usa canal o si está dentro de otra operación
+        private final boolean exclusiva;
+
+        Operacion(Canal canal, boolean exclusiva) {
+            this.canal = canal;
+            this.exclusiva = exclusiva;
+        }
+
+        @Override
+        public void close() {
+            if (canal != null) {
+                canalActual.remove();
+                canales.remove(canal.id);
+                canal.abandonar();
+                canalesLibres.release();
+            }
+            if (exclusiva) {
+                turnoExclusivo.unlock();
+            }
+        }
+    }
+
+    private Operacion empezarOperacion() throws IOException {
+        if (!multiplexado) {
+            turnoExclusivo.lock();
+            return new Operacion(null, true);
+        }
+        if (canalActual.get() != null) {
+            return new Operacion(null, false);
+        }
+        // Si ya hay MAXIMO_CANALES operaciones en curso, esta espera a que termine alguna.
+        try {
+            canalesLibres.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Operación interrumpida.");
+        }
+        Canal canal = new Canal(ultimoCanal.incrementAndGet());
+        canales.put(canal.id, canal);
+        IOException error = errorConexion;
+        if (error != null) {
+            canales.remove(canal.id);
+            canalesLibres.release();
+            throw new IOException("Se perdió la conexión con el servidor: " + error.getMessage(), error);
+        }
+        canalActual.set(canal);
+        return new Operacion(canal, false);
+    }
+
+    // Respuestas pendientes de leer de un canal.
+    private static final class Canal {
+        final long id;
+        final BlockingQueue<Protocolo.Trama> tramas = new ArrayBlockingQueue<>(MAXIMO_TRAMAS_EN_COLA);
+        volatile IOException error;
+
+        Canal(long id) {
+            this.id = id;
+        }
+
+        void entregar(Protocolo.Trama trama) throws InterruptedException {
+            tramas.put(trama);
+        }
+
+        Protocolo.Trama siguiente() throws IOException {
+            Protocolo.Trama trama;
+            try {
+                trama = tramas.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Operación interrumpida.");
+            }
+            if (trama == CONEXION_PERDIDA) {
+                tramas.offer(trama); // Por si la operación vuelve a leer
+                throw new IOException("Se perdió la conexión con el servidor: " + error.getMessage(), error);
+            }
+            return trama;
+        }
+
+        // La operación terminó (quizá con un error local a mitad de la respuesta): se vacía la
+        // cola para que el lector no quede esperando hueco; el resto de su respuesta se descarta.
+        void abandonar() {
+            tramas.clear();
+        }
+
+        void cortar(IOException causa) {
+            error = causa;
+            tramas.clear();
+            tramas.offer(CONEXION_PERDIDA);
+        }
+    }
+
+    // Hilo lector de una conexión con canales: entrega cada respuesta al canal de su id.
+    private void leerCanales(DataInputStream entradaCanales) {
+        IOException causa;
+        try {
+            while (true) {
+                // Se admite el tamaño máximo de una respuesta más lo que añade el sobre del canal.
+                Protocolo.Trama trama = Protocolo.leerTrama(entradaCanales, Protocolo.MAXIMO_RESPUESTA + 32);
+                if (trama == null) {
+                    throw new EOFException("El servidor cerró la conexión.");
+                }
+                if (trama.getTipo() != Protocolo.RESPUESTA_CANAL) {
+                    throw new StreamCorruptedException("Respuesta fuera de un canal: " + trama.getTipo());
+                }
+                ByteBuffer carga = trama.getCarga();
+                Canal canal = canales.get(Protocolo.leerVarint(carga));
+                if (canal != null) {
+                    canal.entregar(Protocolo.desenvolver(carga));
+                }
+                // Sin canal: su operación ya terminó y el resto de la respuesta no le interesa.
+            }
+        } catch (IOException e) {
+            causa = e;
+        } catch (InterruptedException e) {
+            causa = new InterruptedIOException("Lector interrumpido.");
+        }
+        if (Thread.currentThread() != lector) {
+            return; // Conexión anterior a una reconexión
+        }
+        errorConexion = causa;
+        for (Canal canal : canales.values()) {
+            canal.cortar(causa);
+        }
+    }
+
+    // --- API ASÍNCRONA ---
+    // Cada operación se ejecuta en su propio hilo virtual y el resultado llega en un futuro.
+
+    private interface Tarea<T> {
+        T ejecutar() throws Exception;
+    }
+
+    private static <T> CompletableFuture<T> enSegundoPlano(Tarea<T> tarea) {
+        CompletableFuture<T> futuro = new CompletableFuture<>();
+        Thread.ofVirtual().name("cliente-operacion").start(() -> {
+            try {
+                futuro.complete(tarea.ejecutar());
+            } catch (Throwable e) {
+                futuro.completeExceptionally(e);
+            }
+        });
+        return futuro;
+    }
+
+    public CompletableFuture<List<EntradaArchivo>> listarEntradasAsync() {
+        return enSegundoPlano(this::listarEntradas);
+    }
+
+    public CompletableFuture<Boolean> descargarArchivoAsync(String nombreArchivo, ProgresoDescarga progreso) {
+        return enSegundoPlano(() -> descargarArchivo(nombreArchivo, progreso));
+    }
+
+    public CompletableFuture<List<String>> descargarLoteAsync(List<String> nombresOPatrones, ProgresoDescarga progreso) {
+        return enSegundoPlano(() -> descargarLote(nombresOPatrones, progreso));
+    }
+
+    public CompletableFuture<Boolean> subirArchivoAsync(File archivo, ProgresoDescarga progreso) {
+        return enSegundoPlano(() -> subirArchivo(archivo, progreso));
+    }
+
+    public CompletableFuture<BufferedImage> obtenerMiniaturaAsync(String nombreArchivo, int tamanoMaximo) {
+        return enSegundoPlano(() -> obtenerMiniatura(nombreArchivo, tamanoMaximo));
+    }
+
+    // Muestra el porcentaje descargado en una sola línea de la terminal.
+    public static ProgresoDescarga progresoEnConsola() {
+        return progresoEnConsola("Descargando");
+    }
+
+    public static ProgresoDescarga progresoEnConsola(String accion) {
+        int[] ultimoPorcentaje = { -1 };
+        return (recibidos, total) -> {
+            int porcentaje = total == 0 ? 100 : (int) (recibidos * 100 / total);
+            if (porcentaje != ultimoPorcentaje[0]) {
+                ultimoPorcentaje[0] = porcentaje;
+                System.out.print("\r" + accion + "... " + porcentaje + "% (" + recibidos + " de " + total + " bytes)");
+                if (recibidos == total) System.out.println();
+            }
+        };
+    }
+
+    // --- PUNTO DE ENTRADA PRINCIPAL ---
+    
+    public static void main(String[] args) {
+        // Por defecto, se ejecuta la GUI.
+        // Si se pasa cualquier argumento (como --console o -c), se ejecuta en modo consola.
+        if (args.length > 0) {
+            System.out.println("Iniciando cliente en modo consola...");
+            ejecutarModoConsola();
+        } else {
+            System.out.println("Iniciando cliente en modo GUI...");
+            SwingUtilities.invokeLater(() -> new ClienteGUI().setVisible(true));
+        }
+    }
+    
+    // --- LÓGICA DEL MODO CONSOLA ---
+    
+    public static void ejecutarModoConsola() {
+        Scanner scanner = new Scanner(System.in);
+        System.out.print("Ingrese el host del servidor (ej. localhost): ");
+        String host = scanner.nextLine();
+        
+        Cliente cliente = new Cliente();
+        
+        if (!cliente.conectar(host)) {
+            System.err.println("No se pudo conectar al servidor. Terminando.");
+            return;
+        }
+        
+        System.out.println("¡Conexión exitosa!");
+
+        try {
+            while (true) {
+                System.out.println("\n--- MENÚ DE CONSOLA ---");
+                System.out.println("1. Listar archivos");
+                System.out.println("2. Descargar archivo");
+                System.out.println("3. Descargar varios archivos");
+                System.out.println("4. Subir archivo");
+                System.out.println("5. Estadísticas del servidor");
+                System.out.println("6. Buscar archivos");
+                System.out.println("7. Sincronizar carpeta");
+                System.out.println("8. Salir");
+                System.out.print("Opción: ");
+                String opcion = scanner.nextLine();
+
+                if ("1".equals(opcion)) {
+                    System.out.print("Directorio (Enter = raíz): ");
+                    String directorio = scanner.nextLine().trim();
+                    System.out.println("--- Archivos Disponibles ---");
+                    // Cada página se muestra en cuanto llega, sin esperar al resto del listado.
+                    int[] mostradas = { 0 };
+                    cliente.listarDirectorio(directorio, Protocolo.ORDEN_NOMBRE, false, pagina -> {
+                        pagina.getEntradas().forEach(System.out::println);
+                        mostradas[0] += pagina.getEntradas().size();
+                    });
+                    if (mostradas[0] == 0) {
+                        System.out.println("No hay archivos en ese directorio.");
+                    }
+                } else if ("2".equals(opcion)) {
+                    System.out.print("Nombre del archivo a descargar: ");
+                    String nombreArchivo = scanner.nextLine();
+                    if (cliente.descargarArchivo(nombreArchivo, progresoEnConsola())) {
+                        System.out.println("¡Archivo descargado con éxito en 'descargas_cliente'!");
+                    } else {
+                        System.out.println("Error: No se pudo descargar el archivo.");
+                    }
+                } else if ("3".equals(opcion)) {
+                    System.out.print("Nombres o patrones separados por comas (ej. *.png, informe.pdf): ");
+                    List<String> seleccion = new ArrayList<>();
+                    for (String nombre : scanner.nextLine().split(",")) {
+                        if (!nombre.isBlank()) seleccion.add(nombre.trim());
+                    }
+                    List<String> descargados = cliente.descargarLote(seleccion, progresoEnConsola());
+                    System.out.println(descargados.size() + " archivo(s) descargado(s) en 'descargas_cliente'.");
+                } else if ("4".equals(opcion)) {
+                    System.out.print("Ruta del archivo a subir: ");
+                    File archivo = new File(scanner.nextLine().trim());
+                    if (!archivo.isFile()) {
+                        System.out.println("Error: No existe el archivo '" + archivo + "'.");
+                    } else if (cliente.subirArchivo(archivo, progresoEnConsola("Subiendo"))) {
+                        System.out.println("¡Archivo subido con éxito!");
+                    } else {
+                        System.out.println("El servidor ya tenía ese contenido; no fue necesario enviarlo.");
+                    }
+                } else if ("5".equals(opcion)) {
+                    System.out.println("--- Estadísticas del Servidor ---");
+                    imprimirEstadisticas(cliente.obtenerEstadisticas());
+                } else if ("6".equals(opcion)) {
+                    System.out.print("Buscar (ej. informe, 3c*, *.pdf, >10M, dias:7): ");
+                    ConsultaBusqueda consulta;
+                    try {
+                        consulta = ConsultaBusqueda.analizar(scanner.nextLine());
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error: " + e.getMessage());
+                        continue;
+                    }
+                    if (consulta.esVacia()) {
+                        System.out.println("Indique algún criterio de búsqueda.");
+                        continue;
+                    }
+                    ConsultaBusqueda.Resultado resultado = cliente.buscar(consulta);
+                    resultado.getEntradas().forEach(System.out::println);
+                    System.out.println(resultado.getEntradas().size() + " archivo(s) encontrado(s)"
+                            + (resultado.hayMas() ? "; hay más, concrete la búsqueda." : "."));
+                } else if ("7".equals(opcion)) {
+                    System.out.print("Carpeta local: ");
+                    File carpeta = new File(scanner.nextLine().trim());
+                    System.out.print("Directorio del servidor (Enter = raíz): ");
+                    String directorio = scanner.nextLine().trim();
+                    System.out.print("¿Traer del servidor (t) o enviar al servidor (e)? ");
+                    boolean traer = !scanner.nextLine().trim().equalsIgnoreCase("e");
+                    SincronizadorCarpeta sincronizador = new SincronizadorCarpeta(cliente, carpeta, directorio);
+                    if (traer) {
+                        System.out.print("¿Borrar los archivos locales que ya no están en el servidor? (s/N) ");
+                        sincronizador.setBorrarSobrantes(scanner.nextLine().trim().equalsIgnoreCase("s"));
+                    }
+                    sincronizador.setAvisos(System.out::println);
+                    SincronizadorCarpeta.Resumen resumen = traer
+                            ? sincronizador.traer(progresoEnConsola())
+                            : sincronizador.enviar(progresoEnConsola("Enviando"));
+                    System.out.println("Sincronización terminada. " + resumen);
+                } else if ("8".equals(opcion)) {
+                    break;
+                } else {
+                    System.out.println("Opción no válida.");
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error durante la comunicación: " + e.getMessage());
+        } finally {
+            cliente.desconectar();
+            System.out.println("Conexión cerrada. Adiós.");
+            scanner.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,352 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Cliente de un cluster de servidores (ver 'ClusterNodos'). Pide el anillo a cualquier nodo y
+// envía cada operación sobre un archivo directamente a sus responsables, con una conexión
+// ('Cliente') por nodo que se abre la primera vez que hace falta:
+//  - Las lecturas van al primer responsable que responde. Si uno no responde, está ocupado o
+//    aún no tiene el archivo (la copia se hace en segundo plano), se pasa al siguiente, y si
+//    ninguno lo tiene se pregunta al resto de nodos (por si el anillo cambió hace poco).
+//  - Las subidas van al primer responsable que responde, que se encarga de copiarlas a los
+//    demás. Viajan por bloques (SUBIR_DELTA), que además crean los directorios que falten.
+//  - Los listados y las búsquedas se piden a todos los nodos a la vez y se juntan.
+// Un nodo que falla no se vuelve a intentar durante ESPERA_TRAS_FALLO, salvo si no queda otro.
+// Con un servidor que no forma parte de un cluster se comporta como un cliente normal.
+public class ClienteCluster {
+    private static final long ESPERA_TRAS_FALLO = 5000;
+
+    private final Map<String, Cliente> conexiones = new ConcurrentHashMap<>();
+    private final Map<String, Long> fallos = new ConcurrentHashMap<>(); // Nodo -> System.nanoTime() del último fallo
+    private volatile AnilloNodos anillo = new AnilloNodos(List.of(), 1, List.of());
+    private File directorioDescargas = new File("descargas_cliente");
+
+    // Operación sobre un nodo. Devuelve null o lanza FileNotFoundException si el nodo no tiene
+    // lo pedido.
+    private interface Intento<T> {
+        T ejecutar(Cliente cliente) throws IOException, ClassNotFoundException;
+    }
+
+    // 'semilla' es cualquier nodo del cluster ("host:puerto", o solo "host" con el puerto por
+    // defecto).
+    public AnilloNodos conectar(String semilla) throws IOException {
+        String nodo = semilla.indexOf(':') < 0 ? semilla + ":" + ConfiguracionServidor.PUERTO_POR_DEFECTO : semilla;
+        AnilloNodos recibido = conexion(nodo).obtenerAnillo();
+        anillo = recibido.isVacio() ? new AnilloNodos(List.of(nodo), 1, List.of()) : recibido;
+        return anillo;
+    }
+
+    // Vuelve a pedir el anillo, al primer nodo conocido que responda.
+    public AnilloNodos actualizarAnillo() throws IOException {
+        IOException ultimo = null;
+        for (String nodo : porDisponibilidad(anillo.getNodos())) {
+            try {
+                AnilloNodos recibido = conexion(nodo).obtenerAnillo();
+                if (!recibido.isVacio()) anillo = recibido;
+                return anillo;
+            } catch (IOException e) {
+                fallo(nodo);
+                ultimo = e;
+            }
+        }
+        throw new IOException("Ningún nodo del cluster responde.", ultimo);
+    }
+
+    public AnilloNodos getAnillo() {
+        return anillo;
+    }
+
+    // --- Archivos ---
+
+    // Descarga 'ruta' (al directorio de descargas, como 'Cliente.descargarArchivo') del primer
+    // nodo que la tenga. Devuelve 'false' si no la tiene ninguno.
+    public boolean descargarArchivo(String ruta, ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        Boolean descargado = leer(ruta, cliente -> cliente.descargarArchivo(ruta, progreso) ? Boolean.TRUE : null);
+        return descargado != null;
+    }
+
+    // Como 'Cliente.descargarDelta': deja en 'destino' la versión de 'ruta' pidiendo solo lo que
+    // cambió respecto a lo que ya hay allí.
+    public DeltaBloques.Resultado descargarDelta(String ruta, File destino, ProgresoDescarga progreso) throws IOException {
+        try {
+            DeltaBloques.Resultado resultado = leer(ruta, cliente -> cliente.descargarDelta(ruta, destino, progreso));
+            if (resultado == null) {
+                throw new FileNotFoundException("Ningún nodo tiene '" + ruta + "'.");
+            }
+            return resultado;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Sube 'archivo' como 'ruta' al primer responsable que responda; él lo copia a los demás.
+    public DeltaBloques.Resultado subirArchivo(File archivo, String ruta, ProgresoDescarga progreso) throws IOException {
+        IOException ultimo = null;
+        for (String nodo : porDisponibilidad(anillo.duenosPorDisponibilidad(ruta))) {
+            try {
+                return conexion(nodo).subirDelta(archivo, ruta, progreso);
+            } catch (ServidorOcupadoException e) {
+                ultimo = e;
+            } catch (IOException e) {
+                fallo(nodo);
+                ultimo = e;
+            }
+        }
+        throw new IOException("No se pudo subir '" + ruta + "' a ninguno de sus nodos: "
+                + (ultimo != null ? ultimo.getMessage() : "no hay nodos"), ultimo);
+    }
+
+    // Los nodos que guardan 'ruta', empezando por el principal.
+    public List<String> responsables(String ruta) {
+        return anillo.duenos(ruta);
+    }
+
+    // Prueba los responsables de 'ruta' y, si ninguno la tiene, el resto de nodos. Devuelve null
+    // si ningún nodo que responde la tiene; si no responde ninguno, lanza IOException.
+    private <T> T leer(String ruta, Intento<T> intento) throws IOException, ClassNotFoundException {
+        Set<String> candidatos = new LinkedHashSet<>(porDisponibilidad(anillo.duenosPorDisponibilidad(ruta)));
+        candidatos.addAll(porDisponibilidad(anillo.getNodos()));
+        boolean respondio = false;
+        IOException ultimo = null;
+        for (String nodo : candidatos) {
+            try {
+                T resultado = intento.ejecutar(conexion(nodo));
+                respondio = true;
+                if (resultado != null) return resultado;
+            } catch (FileNotFoundException e) {
+                respondio = true;
+            } catch (ServidorOcupadoException e) {
+                ultimo = e; // Otra réplica puede atender sin esperar
+            } catch (IOException e) {
+                fallo(nodo);
+                ultimo = e;
+            }
+        }
+        if (!respondio && ultimo != null) {
+            throw new IOException("Ningún nodo con '" + ruta + "' responde: " + ultimo.getMessage(), ultimo);
+        }
+        return null;
+    }
+
+    // --- Listados y búsquedas ---
+
+    // Todo el contenido del directorio 'directorio' ("" = raíz) en el cluster: subdirectorios
+    // y archivos de todos los nodos, por nombre. Si un archivo está en varios nodos con
+    // versiones distintas, se muestra la modificada más tarde.
+    public List<EntradaArchivo> listarDirectorio(String directorio) throws IOException {
+        Map<String, List<EntradaArchivo>> porNodo = enTodos(cliente -> {
+            List<EntradaArchivo> entradas = new ArrayList<>();
+            cliente.listarDirectorio(directorio, Protocolo.ORDEN_NOMBRE, false, pagina -> entradas.addAll(pagina.getEntradas()));
+            return entradas;
+        });
+        if (porNodo.isEmpty()) {
+            throw new FileNotFoundException("No existe el directorio '" + directorio + "'.");
+        }
+        Map<String, EntradaArchivo> juntas = new TreeMap<>();
+        for (List<EntradaArchivo> entradas : porNodo.values()) {
+            for (EntradaArchivo entrada : entradas) {
+                juntas.merge(entrada.getNombre(), entrada, ClienteCluster::masReciente);
+            }
+        }
+        List<EntradaArchivo> listado = new ArrayList<>(juntas.values());
+        listado.sort(PaginaListado.comparador(Protocolo.ORDEN_NOMBRE, false));
+        return listado;
+    }
+
+    // Los resultados de todos los nodos juntos, en ConsultaBusqueda.ORDEN y sin repetidos.
+    public ConsultaBusqueda.Resultado buscar(ConsultaBusqueda consulta) throws IOException {
+        Map<String, ConsultaBusqueda.Resultado> porNodo = enTodos(cliente -> cliente.buscar(consulta));
+        if (porNodo.isEmpty()) {
+            throw new FileNotFoundException("No existe el directorio '" + consulta.getDirectorio() + "'.");
+        }
+        Map<String, EntradaArchivo> juntas = new LinkedHashMap<>();
+        boolean hayMas = false;
+        for (ConsultaBusqueda.Resultado resultado : porNodo.values()) {
+            hayMas |= resultado.hayMas();
+            for (EntradaArchivo entrada : resultado.getEntradas()) {
+                juntas.merge(entrada.getNombre(), entrada, ClienteCluster::masReciente);
+            }
+        }
+        List<EntradaArchivo> encontradas = new ArrayList<>(juntas.values());
+        encontradas.sort(ConsultaBusqueda.ORDEN);
+        int maximo = consulta.getMaximo() == 0 ? Protocolo.TAMANO_PAGINA : consulta.getMaximo();
+        return encontradas.size() > maximo
+                ? new ConsultaBusqueda.Resultado(new ArrayList<>(encontradas.subList(0, maximo)), true)
+                : new ConsultaBusqueda.Resultado(encontradas, hayMas);
+    }
+
+    private static EntradaArchivo masReciente(EntradaArchivo una, EntradaArchivo otra) {
+        return otra.getModificado() > una.getModificado() && !otra.esDirectorio() ? otra : una;
+    }
+
+    // Ejecuta la operación en todos los nodos que responden, a la vez, y devuelve el resultado de
+    // cada uno de los que tenían lo pedido. Si no responde ninguno, lanza IOException.
+    private <T> Map<String, T> enTodos(Intento<T> intento) throws IOException {
+        Map<String, Future<T>> pendientes = new LinkedHashMap<>();
+        Map<String, T> resultados = new LinkedHashMap<>();
+        IOException ultimo = null;
+        int respondieron = 0;
+        try (ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String nodo : anillo.getNodos()) {
+                if (!recienFallado(nodo) || anillo.getNodos().size() == 1) {
+                    pendientes.put(nodo, hilos.submit(() -> intento.ejecutar(conexion(nodo))));
+                }
+            }
+            for (Map.Entry<String, Future<T>> pendiente : pendientes.entrySet()) {
+                try {
+                    T resultado = pendiente.getValue().get();
+                    respondieron++;
+                    if (resultado != null) resultados.put(pendiente.getKey(), resultado);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof FileNotFoundException) {
+                        respondieron++;
+                    } else {
+                        fallo(pendiente.getKey());
+                        ultimo = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Operación interrumpida.", e);
+                }
+            }
+        }
+        if (respondieron == 0) {
+            throw new IOException("Ningún nodo del cluster responde" + (ultimo != null ? ": " + ultimo.getMessage() : "."), ultimo);
+        }
+        return resultados;
+    }
+
+    // --- Conexiones ---
+
+    private Cliente conexion(String nodo) throws IOException {
+        Cliente cliente = conexiones.get(nodo);
+        if (cliente != null) {
+            return cliente;
+        }
+        cliente = new Cliente();
+        cliente.setDirectorioDescargas(directorioDescargas);
+        if (!cliente.conectar(AnilloNodos.host(nodo), AnilloNodos.puerto(nodo))) {
+            fallos.put(nodo, System.nanoTime());
+            throw new IOException("No se pudo conectar con el nodo " + nodo + ".");
+        }
+        fallos.remove(nodo);
+        Cliente anterior = conexiones.putIfAbsent(nodo, cliente);
+        if (anterior != null) {
+            cliente.desconectar(); // Otro hilo conectó a la vez
+            return anterior;
+        }
+        return cliente;
+    }
+
+    private void fallo(String nodo) {
+        fallos.put(nodo, System.nanoTime());
+        Cliente cliente = conexiones.remove(nodo);
+        if (cliente != null) cliente.desconectar();
+    }
+
+    private boolean recienFallado(String nodo) {
+        Long momento = fallos.get(nodo);
+        return momento != null && System.nanoTime() - momento < TimeUnit.MILLISECONDS.toNanos(ESPERA_TRAS_FALLO);
+    }
+
+    // Los nodos en el mismo orden, pero con los que fallaron hace poco al final.
+    private List<String> porDisponibilidad(List<String> nodos) {
+        List<String> orden = new ArrayList<>(nodos);
+        orden.sort(Comparator.comparing(this::recienFallado));
+        return orden;
+    }
+
+    public void desconectar() {
+        for (String nodo : conexiones.keySet()) {
+            Cliente cliente = conexiones.remove(nodo);
+            if (cliente != null) cliente.desconectar();
+        }
+    }
+
+    public File getDirectorioDescargas() {
+        return directorioDescargas;
+    }
+
+    public void setDirectorioDescargas(File directorioDescargas) {
+        this.directorioDescargas = directorioDescargas;
+        for (Cliente cliente : conexiones.values()) {
+            cliente.setDirectorioDescargas(directorioDescargas);
+        }
+    }
+
+    // --- Línea de comandos ---
+
+    // Uso: java ClienteCluster host:puerto anillo
+    //      java ClienteCluster host:puerto listar [directorio]
+    //      java ClienteCluster host:puerto buscar texto...
+    //      java ClienteCluster host:puerto descargar ruta...
+    //      java ClienteCluster host:puerto subir archivo [ruta]
+    //      java ClienteCluster host:puerto responsables ruta
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Uso: java ClienteCluster host:puerto anillo|listar|buscar|descargar|subir|responsables [argumentos]");
+            System.exit(2);
+        }
+        ClienteCluster cluster = new ClienteCluster();
+        try {
+            System.out.println("Anillo: " + cluster.conectar(args[0]));
+            ejecutar(cluster, args[1], List.of(args).subList(2, args.length));
+        } catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            cluster.desconectar();
+        }
+    }
+
+    private static void ejecutar(ClienteCluster cluster, String orden, List<String> argumentos) throws IOException, ClassNotFoundException {
+        switch (orden) {
+            case "anillo":
+                break;
+            case "listar":
+                for (EntradaArchivo entrada : cluster.listarDirectorio(argumentos.isEmpty() ? "" : argumentos.get(0))) {
+                    System.out.println("  " + entrada);
+                }
+                break;
+            case "buscar":
+                ConsultaBusqueda.Resultado resultado = cluster.buscar(ConsultaBusqueda.analizar(String.join(" ", argumentos)));
+                for (EntradaArchivo entrada : resultado.getEntradas()) {
+                    System.out.println("  " + entrada.getNombre() + " (" + entrada.getTamano() + " bytes)");
+                }
+                if (resultado.hayMas()) System.out.println("  ...");
+                break;
+            case "descargar":
+                for (String ruta : argumentos) {
+                    boolean descargado = cluster.descargarArchivo(ruta, Cliente.progresoEnConsola());
+                    System.out.println(descargado ? "Descargado '" + ruta + "'." : "Ningún nodo tiene '" + ruta + "'.");
+                }
+                break;
+            case "subir":
+                File archivo = new File(argumentos.get(0));
+                String ruta = argumentos.size() > 1 ? argumentos.get(1) : archivo.getName();
+                DeltaBloques.Resultado subido = cluster.subirArchivo(archivo, ruta, Cliente.progresoEnConsola("Subiendo"));
+                System.out.println("Subido '" + ruta + "' (" + subido.getTransferidos() + " bytes por la red); nodos: "
+                        + cluster.responsables(ruta) + ".");
+                break;
+            case "responsables":
+                System.out.println(cluster.responsables(argumentos.get(0)));
+                break;
+            default:
+                throw new IllegalArgumentException("Orden desconocida: " + orden);
+        }
+    }
+}
@@ -1,11 +1,16 @@
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException; // <<--- 1. SE AÑADE LA IMPORTACIÓN FALTANTE
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import javax.imageio.ImageIO;
 
 public class ClienteGUI extends JFrame {
@@ -16,12 +21,24 @@ public class ClienteGUI extends JFrame {
     private JButton conectarButton, desconectarButton;
     private JList<String> listaArchivosServidor;
     private DefaultListModel<String> modelArchivosServidor;
-    private JButton refrescarButton, descargarButton, abrirButton;
+    private JButton refrescarButton, descargarButton, descargarSeleccionButton, abrirButton, subirButton, sincronizarButton;
+    // Navegación por los directorios del servidor. La lista guarda la ruta completa de cada
+    // entrada ("fotos/playa.jpg (N bytes)" o "fotos/2024/" si es un directorio).
+    private String directorioActual = "";
+    private JButton arribaButton;
+    private JLabel rutaLabel;
+    private JComboBox<String> ordenCombo;
+    private JCheckBox descendenteCheck;
+    private JTextField busquedaField;
+    private Timer temporizadorBusqueda; // Espera a que se deje de escribir para enviar la búsqueda
+    private SwingWorker<?, ?> listado; // Listado o búsqueda en curso, para cancelarlo al pedir otro
     private JTextArea logTextArea;
     private JPanel previewPanel;
     private JLabel imagePreviewLabel;
     private JLabel infoPreviewLabel;
     private CardLayout cardLayout;
+    private JProgressBar barraProgreso;
+    private CargadorMiniaturas cargadorMiniaturas; // Miniaturas de las baldosas, en segundo plano
 
     public ClienteGUI() {
         super("Explorador de Archivos Remotos");
@@ -52,21 +69,53 @@ public class ClienteGUI extends JFrame {
         JPanel panelIzquierdo = new JPanel(new BorderLayout(10, 10));
         modelArchivosServidor = new DefaultListModel<>();
         listaArchivosServidor = new JList<>(modelArchivosServidor);
-        listaArchivosServidor.setLayoutOrientation(JList.HORIZONTAL_WRAP);
-        listaArchivosServidor.setVisibleRowCount(-1);
-        listaArchivosServidor.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        listaArchivosServidor.setCellRenderer(new FileCellRenderer());
+        listaArchivosServidor.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        cargadorMiniaturas = new CargadorMiniaturas(64, listaArchivosServidor::repaint);
+        new FileCellRenderer(cargadorMiniaturas).configurar(listaArchivosServidor);
         JScrollPane scrollServidor = new JScrollPane(listaArchivosServidor);
         scrollServidor.setBorder(new TitledBorder("Archivos en el Servidor"));
         panelIzquierdo.add(scrollServidor, BorderLayout.CENTER);
 
-        JPanel panelAcciones = new JPanel(new GridLayout(3, 1, 5, 5));
+        JPanel panelNavegacion = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        arribaButton = new JButton("↑");
+        arribaButton.setToolTipText("Subir un nivel");
+        rutaLabel = new JLabel("/");
+        ordenCombo = new JComboBox<>(new String[] { "Nombre", "Tamaño", "Fecha" }); // Índices = Protocolo.ORDEN_*
+        descendenteCheck = new JCheckBox("Descendente");
+        panelNavegacion.add(arribaButton);
+        panelNavegacion.add(rutaLabel);
+        panelNavegacion.add(new JLabel("Ordenar por:"));
+        panelNavegacion.add(ordenCombo);
+        panelNavegacion.add(descendenteCheck);
+        JPanel panelBusqueda = new JPanel(new BorderLayout(5, 0));
+        busquedaField = new JTextField();
+        busquedaField.setToolTipText("<html>informe: nombres que contienen \"informe\" &nbsp; 3c*: que empiezan por \"3c\"<br>"
+                + "*.pdf o ext:pdf: por extensión &nbsp; &gt;10M, &lt;500K: por tamaño &nbsp; dias:7: modificados hace poco</html>");
+        busquedaField.setEnabled(false);
+        panelBusqueda.add(new JLabel("Buscar:"), BorderLayout.WEST);
+        panelBusqueda.add(busquedaField, BorderLayout.CENTER);
+        JPanel panelSuperior = new JPanel(new BorderLayout());
+        panelSuperior.add(panelNavegacion, BorderLayout.NORTH);
+        panelSuperior.add(panelBusqueda, BorderLayout.SOUTH);
+        panelIzquierdo.add(panelSuperior, BorderLayout.NORTH);
+
+        JPanel panelAcciones = new JPanel(new GridLayout(7, 1, 5, 5));
         refrescarButton = new JButton("Refrescar");
         descargarButton = new JButton("Descargar");
+        descargarSeleccionButton = new JButton("Descargar Selección");
         abrirButton = new JButton("Abrir Archivo");
+        subirButton = new JButton("Subir Archivo");
+        sincronizarButton = new JButton("Sincronizar Carpeta…");
         panelAcciones.add(refrescarButton);
         panelAcciones.add(descargarButton);
+        panelAcciones.add(descargarSeleccionButton);
         panelAcciones.add(abrirButton);
+        panelAcciones.add(subirButton);
+        panelAcciones.add(sincronizarButton);
+        barraProgreso = new JProgressBar(0, 100);
+        barraProgreso.setStringPainted(true);
+        barraProgreso.setString("Sin descargas en curso");
+        panelAcciones.add(barraProgreso);
         panelIzquierdo.add(panelAcciones, BorderLayout.SOUTH);
         splitPane.setLeftComponent(panelIzquierdo);
 
@@ -81,9 +130,13 @@ public class ClienteGUI extends JFrame {
         previewPanel.add(imageScrollPane, "image");
         splitPane.setRightComponent(previewPanel);
         
+        arribaButton.setEnabled(false);
         refrescarButton.setEnabled(false);
         descargarButton.setEnabled(false);
+        descargarSeleccionButton.setEnabled(false);
         abrirButton.setEnabled(false);
+        subirButton.setEnabled(false);
+        sincronizarButton.setEnabled(false);
         
         logTextArea = new JTextArea(8, 0);
         logTextArea.setEditable(false);
@@ -106,8 +159,10 @@ public class ClienteGUI extends JFrame {
                     try {
                         if (get()) {
                             log("Conexión exitosa.");
+                            cargadorMiniaturas.iniciar(cliente, host);
                             conectarButton.setEnabled(false); hostTextField.setEnabled(false); desconectarButton.setEnabled(true);
-                            refrescarButton.setEnabled(true); descargarButton.setEnabled(true); abrirButton.setEnabled(true);
+                            refrescarButton.setEnabled(true); descargarButton.setEnabled(true); descargarSeleccionButton.setEnabled(true); abrirButton.setEnabled(true); subirButton.setEnabled(true); sincronizarButton.setEnabled(true);
+                            busquedaField.setEnabled(true);
                             refrescarListaArchivos();
                         } else { log("Fallo en la conexión. Revise el host o si el servidor está activo."); }
                     } catch (Exception ex) { log("Error durante la conexión: " + ex.getMessage()); }
@@ -116,30 +171,135 @@ public class ClienteGUI extends JFrame {
         });
 
         desconectarButton.addActionListener(e -> {
+            cargadorMiniaturas.detener();
+            if (listado != null) listado.cancel(false);
             cliente.desconectar();
             log("Desconectado del servidor.");
+            directorioActual = "";
+            rutaLabel.setText("/");
+            arribaButton.setEnabled(false);
             conectarButton.setEnabled(true); hostTextField.setEnabled(true); desconectarButton.setEnabled(false);
-            refrescarButton.setEnabled(false); descargarButton.setEnabled(false); abrirButton.setEnabled(false);
+            refrescarButton.setEnabled(false); descargarButton.setEnabled(false); descargarSeleccionButton.setEnabled(false); abrirButton.setEnabled(false); subirButton.setEnabled(false); sincronizarButton.setEnabled(false);
+            busquedaField.setEnabled(false);
+            busquedaField.setText("");
             modelArchivosServidor.clear();
         });
 
         refrescarButton.addActionListener(e -> refrescarListaArchivos());
+        arribaButton.addActionListener(e -> {
+            int barra = directorioActual.lastIndexOf('/');
+            abrirDirectorio(barra < 0 ? "" : directorioActual.substring(0, barra));
+        });
+        ordenCombo.addActionListener(e -> { if (refrescarButton.isEnabled()) refrescarListaArchivos(); });
+        descendenteCheck.addActionListener(e -> { if (refrescarButton.isEnabled()) refrescarListaArchivos(); });
+        // La búsqueda se envía mientras se escribe, pero solo tras una pausa de 250 ms: así no
+        // sale una consulta por letra y la lista no parpadea con resultados intermedios.
+        temporizadorBusqueda = new Timer(250, e -> { if (refrescarButton.isEnabled()) refrescarListaArchivos(); });
+        temporizadorBusqueda.setRepeats(false);
+        busquedaField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e) { temporizadorBusqueda.restart(); }
+            @Override public void removeUpdate(DocumentEvent e) { temporizadorBusqueda.restart(); }
+            @Override public void changedUpdate(DocumentEvent e) { temporizadorBusqueda.restart(); }
+        });
+        busquedaField.addActionListener(e -> { temporizadorBusqueda.stop(); if (refrescarButton.isEnabled()) refrescarListaArchivos(); });
 
         descargarButton.addActionListener(e -> {
             String archivoSeleccionado = listaArchivosServidor.getSelectedValue();
             if (archivoSeleccionado == null) { log("Por favor, seleccione un archivo de la lista."); return; }
+            if (esDirectorio(archivoSeleccionado)) { descargarSeleccionButton.doClick(); return; }
             String nombreArchivo = archivoSeleccionado.split(" \\(")[0];
             
             new SwingWorker<Boolean, Void>() {
                 @Override protected Boolean doInBackground() throws Exception {
                     log("Descargando: " + nombreArchivo + "...");
-                    return cliente.descargarArchivo(nombreArchivo);
+                    return cliente.descargarArchivo(nombreArchivo, progresoEnBarra(nombreArchivo));
                 }
                 @Override protected void done() {
                     try {
                         if (get()) { log("¡Éxito! Archivo '" + nombreArchivo + "' guardado en 'descargas_cliente'."); }
                         else { log("Error: No se pudo descargar el archivo '" + nombreArchivo + "'."); }
-                    } catch (Exception ex) { log("Error crítico durante la descarga: " + ex.getMessage()); }
+                    } catch (Exception ex) { logErrorDescarga(ex); }
+                }
+            }.execute();
+        });
+
+        // Descarga todos los archivos seleccionados (Ctrl/Mayús + clic) con una sola solicitud.
+        descargarSeleccionButton.addActionListener(e -> {
+            List<String> seleccionados = listaArchivosServidor.getSelectedValuesList();
+            if (seleccionados.isEmpty()) { log("Por favor, seleccione uno o más archivos de la lista."); return; }
+            List<String> nombres = new ArrayList<>();
+            // Un directorio se descarga entero, con sus subdirectorios: "fotos/**".
+            for (String archivoSeleccionado : seleccionados) {
+                nombres.add(esDirectorio(archivoSeleccionado) ? archivoSeleccionado + "**" : archivoSeleccionado.split(" \\(")[0]);
+            }
+
+            new SwingWorker<List<String>, Void>() {
+                @Override protected List<String> doInBackground() throws Exception {
+                    log("Descargando " + nombres.size() + " archivo(s)...");
+                    return cliente.descargarLote(nombres, progresoEnBarra(nombres.size() + " archivo(s)"));
+                }
+                @Override protected void done() {
+                    try {
+                        List<String> descargados = get();
+                        log("¡Éxito! " + descargados.size() + " de " + nombres.size() + " archivo(s) guardados en 'descargas_cliente'.");
+                    } catch (Exception ex) { logErrorDescarga(ex); }
+                }
+            }.execute();
+        });
+
+        // Sube un archivo local al directorio que se está viendo; si el servidor ya tiene el
+        // mismo contenido no se envía nada.
+        subirButton.addActionListener(e -> {
+            JFileChooser selector = new JFileChooser();
+            if (selector.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            File archivo = selector.getSelectedFile();
+            String destino = PaginaListado.ruta(directorioActual, archivo.getName());
+
+            new SwingWorker<Boolean, Void>() {
+                @Override protected Boolean doInBackground() throws Exception {
+                    log("Subiendo: " + destino + "...");
+                    return cliente.subirArchivo(archivo, destino, progresoEnBarra(archivo.getName()));
+                }
+                @Override protected void done() {
+                    try {
+                        if (get()) { log("¡Éxito! Archivo '" + archivo.getName() + "' subido al servidor."); }
+                        else { log("El servidor ya tenía el contenido de '" + archivo.getName() + "'; no fue necesario enviarlo."); }
+                        refrescarListaArchivos();
+                    } catch (Exception ex) { log("Error durante la subida: " + ex.getMessage()); }
+                }
+            }.execute();
+        });
+
+        // Sincroniza una carpeta local con el directorio que se está viendo, en el sentido que se
+        // elija. Solo viajan los archivos que cambiaron y, de ellos, los bloques que cambiaron.
+        sincronizarButton.addActionListener(e -> {
+            JFileChooser selector = new JFileChooser();
+            selector.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (selector.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            File carpeta = selector.getSelectedFile();
+            String directorio = directorioActual;
+            JCheckBox borrarCheck = new JCheckBox("Al traer, borrar los archivos locales que ya no están en el servidor");
+            Object[] mensaje = { "Sincronizar '" + carpeta + "' con '/" + directorio + "':", borrarCheck };
+            String[] opciones = { "Traer del servidor", "Enviar al servidor", "Cancelar" };
+            int eleccion = JOptionPane.showOptionDialog(this, mensaje, "Sincronizar Carpeta", JOptionPane.DEFAULT_OPTION,
+                    JOptionPane.QUESTION_MESSAGE, null, opciones, opciones[0]);
+            if (eleccion != 0 && eleccion != 1) return;
+            boolean traer = eleccion == 0;
+            SincronizadorCarpeta sincronizador = new SincronizadorCarpeta(cliente, carpeta, directorio);
+            sincronizador.setBorrarSobrantes(traer && borrarCheck.isSelected());
+            sincronizador.setAvisos(this::log);
+
+            new SwingWorker<SincronizadorCarpeta.Resumen, Void>() {
+                @Override protected SincronizadorCarpeta.Resumen doInBackground() throws Exception {
+                    log((traer ? "Trayendo '/" : "Enviando a '/") + directorio + "'...");
+                    return traer ? sincronizador.traer(progresoEnBarra(carpeta.getName()))
+                            : sincronizador.enviar(progresoEnBarra(carpeta.getName()));
+                }
+                @Override protected void done() {
+                    try {
+                        log("Sincronización terminada. " + get());
+                        if (!traer) refrescarListaArchivos();
+                    } catch (Exception ex) { logErrorDescarga(ex); }
                 }
             }.execute();
         });
@@ -147,17 +307,19 @@ public class ClienteGUI extends JFrame {
         abrirButton.addActionListener(e -> {
             String archivoSeleccionado = listaArchivosServidor.getSelectedValue();
             if (archivoSeleccionado == null) { log("Por favor, seleccione un archivo para abrir."); return; }
+            if (esDirectorio(archivoSeleccionado)) { abrirDirectorio(nombreDirectorio(archivoSeleccionado)); return; }
             String nombreArchivo = archivoSeleccionado.split(" \\(")[0];
             
             new SwingWorker<File, Void>() {
                 @Override
                 protected File doInBackground() throws Exception {
+                    // La descarga es condicional: si la copia local ya está al día no se transfiere nada.
                     File archivoLocal = new File("descargas_cliente", nombreArchivo);
                     if (!archivoLocal.exists()) {
                         log("El archivo no está descargado. Descargando primero...");
-                        if (!cliente.descargarArchivo(nombreArchivo)) {
-                            throw new Exception("No se pudo descargar el archivo para abrirlo.");
-                        }
+                    }
+                    if (!cliente.descargarArchivo(nombreArchivo, progresoEnBarra(nombreArchivo))) {
+                        throw new Exception("No se pudo descargar el archivo para abrirlo.");
                     }
                     return archivoLocal;
                 }
@@ -186,49 +348,139 @@ public class ClienteGUI extends JFrame {
             public void mouseClicked(MouseEvent e) {
                 JList<String> list = (JList<String>) e.getSource();
                 
-                // Acción para un solo clic: seleccionar y mostrar información
+                // Acción para un solo clic: mostrar información (la JList ya gestiona la selección,
+                // incluida la múltiple con Ctrl/Mayús)
                 if (e.getClickCount() == 1) {
                     int index = list.locationToIndex(e.getPoint());
                     if (index >= 0) {
-                        list.setSelectedIndex(index);
                         String archivoSeleccionado = list.getModel().getElementAt(index);
                         actualizarPreviewInfo(archivoSeleccionado);
                     }
                 }
                 
-                // Acción para doble clic: previsualizar imagen
+                // Acción para doble clic: entrar en un directorio o previsualizar una imagen
                 if (e.getClickCount() == 2) {
                     int index = list.locationToIndex(e.getPoint());
                     if (index >= 0) {
                         String archivoSeleccionado = list.getModel().getElementAt(index);
-                        previsualizarImagen(archivoSeleccionado);
+                        if (esDirectorio(archivoSeleccionado)) {
+                            abrirDirectorio(nombreDirectorio(archivoSeleccionado));
+                        } else {
+                            previsualizarImagen(archivoSeleccionado);
+                        }
                     }
                 }
             }
         });
     }
 
+    private void abrirDirectorio(String directorio) {
+        directorioActual = directorio;
+        rutaLabel.setText("/" + directorio);
+        arribaButton.setEnabled(!directorio.isEmpty());
+        refrescarListaArchivos();
+    }
+
+    // Muestra el directorio actual o, si hay algo escrito en la caja de búsqueda, los archivos
+    // del directorio actual y sus subdirectorios que coinciden. Lo que estuviera en curso se
+    // cancela.
     private void refrescarListaArchivos() {
-        new SwingWorker<List<String>, Void>() {
-            @Override protected List<String> doInBackground() throws Exception {
-                log("Solicitando lista de archivos...");
-                return cliente.listarArchivos();
+        if (listado != null) listado.cancel(false);
+        modelArchivosServidor.clear();
+        String texto = busquedaField.getText();
+        if (texto.isBlank()) {
+            listarDirectorioActual();
+            return;
+        }
+        try {
+            ConsultaBusqueda consulta = ConsultaBusqueda.analizar(texto);
+            if (consulta.esVacia()) {
+                listarDirectorioActual();
+            } else {
+                buscarArchivos(consulta.enDirectorio(directorioActual));
+            }
+        } catch (IllegalArgumentException ex) {
+            log("Búsqueda no válida: " + ex.getMessage());
+        }
+    }
+
+    // El servidor busca en sus índices y solo envía los archivos que coinciden, así que la
+    // respuesta es igual de rápida aunque el directorio tenga cientos de miles de archivos.
+    private void buscarArchivos(ConsultaBusqueda consulta) {
+        listado = new SwingWorker<ConsultaBusqueda.Resultado, Void>() {
+            @Override protected ConsultaBusqueda.Resultado doInBackground() throws Exception {
+                return cliente.buscar(consulta);
+            }
+            @Override protected void done() {
+                if (isCancelled()) return;
+                try {
+                    ConsultaBusqueda.Resultado resultado = get();
+                    for (EntradaArchivo entrada : resultado.getEntradas()) modelArchivosServidor.addElement(entrada.toString());
+                    log("Búsqueda: " + resultado.getEntradas().size() + " archivo(s)"
+                            + (resultado.hayMas() ? "; hay más, concrete la búsqueda." : "."));
+                } catch (Exception ex) { log("Error al buscar: " + ex.getMessage()); }
+            }
+        };
+        listado.execute();
+    }
+
+    // El listado llega por páginas y cada una se añade a la lista en cuanto llega, así que en
+    // un directorio enorme las primeras entradas aparecen enseguida. Si mientras tanto se pide
+    // otro listado (otro directorio u otro orden), el anterior se cancela y deja de pedir páginas.
+    private void listarDirectorioActual() {
+        String directorio = directorioActual;
+        int orden = ordenCombo.getSelectedIndex();
+        boolean descendente = descendenteCheck.isSelected();
+        listado = new SwingWorker<Void, List<String>>() {
+            private int total;
+
+            @Override protected Void doInBackground() throws Exception {
+                log("Solicitando lista de archivos" + (directorio.isEmpty() ? "" : " de '" + directorio + "'") + "...");
+                cliente.listarDirectorio(directorio, orden, descendente, pagina -> {
+                    if (isCancelled()) throw new CancellationException();
+                    List<String> elementos = new ArrayList<>();
+                    for (EntradaArchivo entrada : pagina.getEntradas()) {
+                        elementos.add(entrada.conNombre(PaginaListado.ruta(directorio, entrada.getNombre())).toString());
+                    }
+                    total = pagina.getTotal();
+                    publish(elementos);
+                });
+                return null;
+            }
+            @Override protected void process(List<List<String>> paginas) {
+                if (isCancelled()) return;
+                for (List<String> elementos : paginas) elementos.forEach(modelArchivosServidor::addElement);
             }
             @Override protected void done() {
+                if (isCancelled()) return;
                 try {
-                    List<String> archivos = get();
-                    modelArchivosServidor.clear();
-                    if (archivos.isEmpty()) { log("El servidor no tiene archivos disponibles."); }
-                    else { archivos.forEach(modelArchivosServidor::addElement); log("Lista de archivos actualizada."); }
+                    get();
+                    if (total == 0) { log("El directorio no tiene archivos disponibles."); }
+                    else { log("Lista de archivos actualizada (" + total + " entradas)."); }
                 } catch (Exception ex) { log("Error al obtener la lista de archivos: " + ex.getMessage()); }
             }
-        }.execute();
+        };
+        listado.execute();
+    }
+
+    // Los directorios se muestran como "ruta/".
+    private static boolean esDirectorio(String elemento) {
+        return elemento.endsWith("/");
+    }
+
+    private static String nombreDirectorio(String elemento) {
+        return elemento.substring(0, elemento.length() - 1);
     }
     
     // 3. <<--- SE AÑADEN MÉTODOS AUXILIARES PARA LA NUEVA LÓGICA DE CLICS
     
     // Este método solo muestra información, no descarga nada.
     private void actualizarPreviewInfo(String archivoSeleccionado) {
+        if (esDirectorio(archivoSeleccionado)) {
+            infoPreviewLabel.setText("<html><b>Directorio:</b> " + archivoSeleccionado + "<br><br><i>Doble clic para abrirlo.</i></html>");
+            cardLayout.show(previewPanel, "info");
+            return;
+        }
         String nombreArchivo = archivoSeleccionado.split(" \\(")[0];
         String extension = getFileExtension(nombreArchivo);
         
@@ -252,18 +504,25 @@ public class ClienteGUI extends JFrame {
             new SwingWorker<ImageIcon, Void>() {
                 @Override
                 protected ImageIcon doInBackground() throws Exception {
-                    File archivoLocal = new File("descargas_cliente", nombreArchivo);
-                    if (!archivoLocal.exists()) {
-                        log("Descargando imagen para la vista previa...");
+                    int previewWidth = Math.max(1, previewPanel.getWidth() - 20);
+                    int previewHeight = Math.max(1, previewPanel.getHeight() - 40);
+                    // El servidor envía una miniatura de pocos KB; solo si no puede (servidor antiguo
+                    // o formato que no sabe decodificar) se descarga la imagen completa.
+                    BufferedImage img = cliente.obtenerMiniatura(nombreArchivo, Math.max(previewWidth, previewHeight));
+                    if (img == null) {
+                        File archivoLocal = new File("descargas_cliente", nombreArchivo);
+                        if (!archivoLocal.exists()) {
+                            log("Descargando imagen para la vista previa...");
+                        }
+                        // Si la copia local coincide con la del servidor, solo se confirma por su hash.
                         if (!cliente.descargarArchivo(nombreArchivo)) {
                             // Aquí es donde se necesitaba el 'import java.io.IOException;'
                             throw new IOException("No se pudo descargar la imagen.");
                         }
+                        img = ImageIO.read(archivoLocal);
                     }
-                    Image img = ImageIO.read(archivoLocal);
-                    int previewWidth = Math.max(1, previewPanel.getWidth() - 20);
-                    int previewHeight = Math.max(1, previewPanel.getHeight() - 40);
-                    Image scaledImg = img.getScaledInstance(previewWidth, previewHeight, Image.SCALE_SMOOTH);
+                    if (img == null) throw new IOException("Formato de imagen no soportado.");
+                    Image scaledImg = ajustar(img, previewWidth, previewHeight);
                     return new ImageIcon(scaledImg);
                 }
 
@@ -283,11 +542,50 @@ public class ClienteGUI extends JFrame {
         }
     }
     
+    // Escala la imagen para que quepa en el área indicada sin deformarla. Con interpolación
+    // bilineal sobre una imagen ya pequeña es mucho más rápido que SCALE_SMOOTH.
+    static BufferedImage ajustar(BufferedImage imagen, int ancho, int alto) {
+        double escala = Math.min((double) ancho / imagen.getWidth(), (double) alto / imagen.getHeight());
+        int anchoFinal = Math.max(1, (int) Math.round(imagen.getWidth() * escala));
+        int altoFinal = Math.max(1, (int) Math.round(imagen.getHeight() * escala));
+        BufferedImage ajustada = new BufferedImage(anchoFinal, altoFinal, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = ajustada.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(imagen, 0, 0, anchoFinal, altoFinal, null);
+        g.dispose();
+        return ajustada;
+    }
+
+    // Traduce el avance de una descarga a la barra de progreso. La barra solo se actualiza cuando
+    // cambia el porcentaje, para no encolar en el EDT un evento por cada bloque recibido.
+    private ProgresoDescarga progresoEnBarra(String nombreArchivo) {
+        int[] ultimoPorcentaje = { -1 };
+        return (recibidos, total) -> {
+            int porcentaje = total == 0 ? 100 : (int) (recibidos * 100 / total);
+            if (porcentaje != ultimoPorcentaje[0]) {
+                ultimoPorcentaje[0] = porcentaje;
+                SwingUtilities.invokeLater(() -> {
+                    barraProgreso.setValue(porcentaje);
+                    barraProgreso.setString(nombreArchivo + " - " + porcentaje + "%");
+                });
+            }
+        };
+    }
+
     private String getFileExtension(String fileName) {
         int dotIndex = fileName.lastIndexOf('.');
         return (dotIndex > 0) ? fileName.substring(dotIndex + 1).toLowerCase() : "";
     }
 
+    // Un rechazo por saturación del servidor no es un fallo: se indica cuándo reintentar.
+    private void logErrorDescarga(Exception ex) {
+        if (ex.getCause() instanceof ServidorOcupadoException) {
+            log(ex.getCause().getMessage());
+        } else {
+            log("Error crítico durante la descarga: " + ex.getMessage());
+        }
+    }
+
     private void log(String mensaje) {
         SwingUtilities.invokeLater(() -> logTextArea.append(mensaje + "\n"));
     }
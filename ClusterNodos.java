@@ -0,0 +1,265 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// El servidor como nodo de un cluster (opciones --nodo, --cluster y --replicas). Cada nodo
+// guarda los archivos que le tocan según el anillo ('AnilloNodos') y conoce a los demás:
+//  - Cada INTERVALO_LATIDO pide el anillo a cada uno presentándose como nodo. Así se sabe quién
+//    responde, y basta con indicar a un nodo nuevo uno de los que ya están (--cluster): los
+//    demás lo conocen al recibir su latido, y él a ellos en la respuesta.
+//  - Lo que sube un cliente se copia por bloques (SUBIR_DELTA) a los demás responsables del
+//    archivo, en segundo plano. Las subidas que llegan de otro nodo no se vuelven a copiar.
+//  - Cuando un nodo vuelve a responder (o aparece por primera vez) se compara su listado con el
+//    de este y se le copia lo que le falta o tiene con una versión anterior: así se recupera lo
+//    que se subió mientras estaba caído y los archivos que pasan a ser suyos al entrar.
+// Si dos nodos tienen versiones distintas de un archivo, gana la modificada más tarde. Los
+// borrados no se propagan, porque el protocolo no tiene una orden de borrado.
+public class ClusterNodos implements Closeable {
+    private static final long INTERVALO_LATIDO = 2000;
+    // Sin respuesta durante este tiempo, un nodo se da por caído aunque su conexión siga abierta.
+    private static final long ESPERA_MAXIMA = 3 * INTERVALO_LATIDO;
+
+    private final String yo;
+    private final int replicas;
+    private final IndiceArchivos indice;
+    private final Map<String, Nodo> nodos = new ConcurrentHashMap<>(); // Los demás, por dirección
+    private final ScheduledExecutorService latidos;
+    private volatile AnilloNodos anillo;
+
+    public ClusterNodos(String yo, Collection<String> semillas, int replicas, IndiceArchivos indice) {
+        AnilloNodos.puerto(yo); // Valida la dirección
+        this.yo = yo;
+        this.replicas = replicas;
+        this.indice = indice;
+        for (String semilla : semillas) {
+            if (!semilla.equals(yo)) nodos.putIfAbsent(semilla, new Nodo(semilla));
+        }
+        this.anillo = construirAnillo();
+        this.latidos = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "cluster-latidos");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+    }
+
+    public void iniciar() {
+        log("Nodo " + yo + " del cluster; anillo: " + anillo + ".");
+        latidos.scheduleWithFixedDelay(this::latido, 0, INTERVALO_LATIDO, TimeUnit.MILLISECONDS);
+    }
+
+    public String getNodo() {
+        return yo;
+    }
+
+    public AnilloNodos getAnillo() {
+        return anillo;
+    }
+
+    // Un nodo se ha presentado (SOLICITAR_ANILLO) o aparece en el anillo de otro. Si es nuevo
+    // se incorpora al anillo; se le contacta en el siguiente latido.
+    public void conocer(String nodo) {
+        AnilloNodos.puerto(nodo);
+        if (nodo.equals(yo) || nodos.putIfAbsent(nodo, new Nodo(nodo)) != null) {
+            return;
+        }
+        log("Nodo " + nodo + " incorporado al cluster.");
+        anillo = construirAnillo();
+    }
+
+    // Copia 'ruta', recién subida a este nodo, a los demás responsables que responden. Los que
+    // no responden la recibirán al volver.
+    public void replicar(String ruta) {
+        for (String dueno : anillo.duenos(ruta)) {
+            Nodo nodo = nodos.get(dueno);
+            if (nodo != null && nodo.vivo) {
+                nodo.encolar(ruta);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        latidos.shutdownNow();
+        for (Nodo nodo : nodos.values()) {
+            nodo.desconectar();
+        }
+    }
+
+    // Todos los nodos, con los que no responden marcados como caídos.
+    private AnilloNodos construirAnillo() {
+        List<String> todos = new ArrayList<>(nodos.keySet());
+        todos.add(yo);
+        List<String> caidos = new ArrayList<>();
+        for (Nodo nodo : nodos.values()) {
+            if (!nodo.vivo) caidos.add(nodo.direccion);
+        }
+        return new AnilloNodos(todos, replicas, caidos);
+    }
+
+    // Cada nodo se contacta en su propio hilo virtual, para que uno que tarda en contestar (o
+    // en rechazar la conexión) no retrase a los demás; si el latido anterior aún no terminó,
+    // se salta.
+    private void latido() {
+        long ahora = System.nanoTime();
+        for (Nodo nodo : nodos.values()) {
+            if (nodo.vivo && ahora - nodo.ultimaRespuesta > TimeUnit.MILLISECONDS.toNanos(ESPERA_MAXIMA)) {
+                caer(nodo, "no responde desde hace " + ESPERA_MAXIMA / 1000 + " s");
+            }
+            if (nodo.contactando.compareAndSet(false, true)) {
+                Thread.ofVirtual().name("cluster-" + nodo.direccion).start(() -> contactar(nodo));
+            }
+        }
+    }
+
+    private void contactar(Nodo nodo) {
+        try {
+            Cliente cliente = nodo.cliente;
+            if (cliente == null) {
+                cliente = new Cliente();
+                if (!cliente.conectar(AnilloNodos.host(nodo.direccion), AnilloNodos.puerto(nodo.direccion))) {
+                    throw new IOException("no se pudo conectar");
+                }
+                nodo.cliente = cliente;
+            }
+            AnilloNodos suyo = cliente.obtenerAnillo(yo);
+            nodo.ultimaRespuesta = System.nanoTime();
+            for (String otro : suyo.getNodos()) {
+                conocer(otro);
+            }
+            if (!nodo.vivo) {
+                nodo.vivo = true;
+                anillo = construirAnillo();
+                log("Nodo " + nodo.direccion + " disponible.");
+                Thread.ofVirtual().name("cluster-reparar-" + nodo.direccion).start(() -> reparar(nodo));
+            }
+        } catch (IOException | RuntimeException e) {
+            caer(nodo, e.getMessage());
+        } finally {
+            nodo.contactando.set(false);
+        }
+    }
+
+    private void caer(Nodo nodo, String motivo) {
+        nodo.desconectar();
+        if (nodo.vivo) {
+            nodo.vivo = false;
+            anillo = construirAnillo();
+            log("Nodo " + nodo.direccion + " caído (" + motivo + ").");
+        }
+    }
+
+    // Copia al nodo los archivos de este que le corresponden y que no tiene o tiene con una
+    // versión anterior. Solo se compara el listado: lo que ya coincide no cuesta más.
+    private void reparar(Nodo nodo) {
+        try {
+            Cliente cliente = nodo.cliente;
+            if (cliente == null) return;
+            Map<String, EntradaArchivo> suyos = listarTodo(cliente);
+            AnilloNodos actual = anillo;
+            int enviados = 0;
+            for (EntradaArchivo mio : indice.instantanea().getEntradas()) {
+                String ruta = mio.getNombre();
+                EntradaArchivo suyo = suyos.get(ruta);
+                boolean igual = suyo != null && mio.getHash() != null && mio.getHash().equals(suyo.getHash());
+                boolean anterior = suyo == null || suyo.getModificado() < mio.getModificado();
+                if (!igual && anterior && actual.esDueno(nodo.direccion, ruta)) {
+                    nodo.encolar(ruta);
+                    enviados++;
+                }
+            }
+            if (enviados > 0) {
+                log("Reparación de " + nodo.direccion + ": " + enviados + " archivos por copiar.");
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            log("No se pudo comparar el contenido de " + nodo.direccion + ": " + e.getMessage());
+        }
+    }
+
+    // Archivos de todos los directorios de un nodo, por ruta.
+    private static Map<String, EntradaArchivo> listarTodo(Cliente cliente) throws IOException, ClassNotFoundException {
+        Map<String, EntradaArchivo> archivos = new HashMap<>();
+        for (EntradaArchivo entrada : cliente.listarArbol()) {
+            archivos.put(entrada.getNombre(), entrada);
+        }
+        return archivos;
+    }
+
+    private static void log(String mensaje) {
+        System.out.println("[cluster] " + mensaje);
+    }
+
+    // Otro nodo del cluster: su conexión y las copias pendientes de enviarle. Las copias las
+    // envía de una en una un hilo virtual que solo existe mientras queda alguna.
+    private final class Nodo {
+        final String direccion;
+        final AtomicBoolean contactando = new AtomicBoolean();
+        final Set<String> pendientes = new LinkedHashSet<>(); // Protegido por sí mismo
+        boolean copiando;                                      // Protegido por 'pendientes'
+        volatile Cliente cliente;
+        volatile boolean vivo;
+        volatile long ultimaRespuesta;
+
+        Nodo(String direccion) {
+            AnilloNodos.puerto(direccion);
+            this.direccion = direccion;
+        }
+
+        // Una ruta que ya esperaba no se encola dos veces: se copiará su contenido más reciente.
+        void encolar(String ruta) {
+            synchronized (pendientes) {
+                if (!pendientes.add(ruta) || copiando) return;
+                copiando = true;
+            }
+            Thread.ofVirtual().name("cluster-copias-" + direccion).start(this::copiarPendientes);
+        }
+
+        private void copiarPendientes() {
+            while (true) {
+                String ruta;
+                synchronized (pendientes) {
+                    if (pendientes.isEmpty() || !vivo) {
+                        pendientes.clear(); // Si cayó, lo que falte se le copiará al volver
+                        copiando = false;
+                        return;
+                    }
+                    ruta = pendientes.iterator().next();
+                    pendientes.remove(ruta);
+                }
+                copiar(ruta);
+            }
+        }
+
+        private void copiar(String ruta) {
+            File archivo = new File(indice.getDirectorio(), ruta);
+            Cliente conexion = cliente;
+            if (!archivo.isFile() || conexion == null) {
+                return;
+            }
+            try {
+                DeltaBloques.Resultado resultado = conexion.subirDelta(archivo, ruta, ProgresoDescarga.NINGUNO);
+                log("'" + ruta + "' copiado en " + direccion + " (" + resultado.getTransferidos() + " de "
+                        + resultado.getVersion().getTamano() + " bytes por la red).");
+            } catch (IOException e) {
+                log("No se pudo copiar '" + ruta + "' en " + direccion + ": " + e.getMessage());
+            }
+        }
+
+        void desconectar() {
+            Cliente conexion = cliente;
+            cliente = null;
+            if (conexion != null) conexion.desconectar();
+        }
+    }
+}
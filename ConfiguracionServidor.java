@@ -0,0 +1,280 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// Agrupa las opciones de arranque del servidor. Se construye a partir de los
+// argumentos de la línea de comandos para que 'Servidor' no tenga que conocerlos.
+public class ConfiguracionServidor {
+    public static final int PUERTO_POR_DEFECTO = 11000;
+
+    private int puerto = PUERTO_POR_DEFECTO;
+    private File directorioArchivos = new File("archivos_servidor");
+    // 0 = un hilo virtual por cliente; N > 0 = pool fijo de N hilos de plataforma.
+    private int hilosPlataforma = 0;
+    // "hilos" = un hilo por conexión (Servidor); "nio" = bucles de eventos con Selector (ServidorNIO).
+    private String motor = "hilos";
+    private int buclesEventos = Runtime.getRuntime().availableProcessors();
+    // Presupuesto de la caché de archivos en memoria; 0 la desactiva.
+    private long cacheBytes = 64L * 1024 * 1024;
+    // Límites de caudal del contenido de las descargas, en bytes por segundo; 0 = sin límite.
+    private long limiteConexionBytes = 0;
+    private long limiteGlobalBytes = 0;
+    // Descargas simultáneas (0 = sin límite) y cuántas más pueden esperar turno, y cuánto.
+    private int maximoTransferencias = 0;
+    private int maximoEnEspera = 32;
+    private long esperaMaximaMillis = 10_000;
+    // Cluster: dirección "host:puerto" con que los demás nodos y los clientes alcanzan a este
+    // ("" = localhost y el puerto de escucha), otros nodos del cluster (basta con uno que ya esté
+    // en marcha; puede incluir al propio nodo; vacío = sin cluster) y copias de cada archivo.
+    private String nodo = "";
+    private List<String> cluster = new ArrayList<>();
+    private int replicas = 2;
+    // Proxy con caché: servidor de origen ("host:puerto"; vacío = no es un proxy), presupuesto
+    // en disco de la caché (el directorio de archivos; 0 = sin límite) y cuánto se sirve una
+    // copia sin volver a comprobarla con el origen.
+    private String origen = "";
+    private long cacheDiscoBytes = 1024L * 1024 * 1024;
+    private long vigenciaMillis = 5000;
+
+    public static ConfiguracionServidor desdeArgumentos(String[] args) {
+        ConfiguracionServidor config = new ConfiguracionServidor();
+        for (int i = 0; i < args.length; i++) {
+            String opcion = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Falta el valor de la opción " + opcion);
+            }
+            String valor = args[++i];
+            switch (opcion) {
+                case "--puerto": config.setPuerto(Integer.parseInt(valor)); break;
+                case "--directorio": config.setDirectorioArchivos(new File(valor)); break;
+                case "--hilos-plataforma": config.setHilosPlataforma(Integer.parseInt(valor)); break;
+                case "--motor": config.setMotor(valor); break;
+                case "--bucles": config.setBuclesEventos(Integer.parseInt(valor)); break;
+                case "--cache-mb": config.setCacheBytes(Long.parseLong(valor) * 1024 * 1024); break;
+                case "--limite-conexion-kb": config.setLimiteConexionBytes(Long.parseLong(valor) * 1024); break;
+                case "--limite-global-kb": config.setLimiteGlobalBytes(Long.parseLong(valor) * 1024); break;
+                case "--max-transferencias": config.setMaximoTransferencias(Integer.parseInt(valor)); break;
+                case "--max-en-espera": config.setMaximoEnEspera(Integer.parseInt(valor)); break;
+                case "--espera-maxima-s": config.setEsperaMaximaMillis(Long.parseLong(valor) * 1000); break;
+                case "--nodo": config.setNodo(valor); break;
+                case "--cluster": config.setCluster(List.of(valor.split(","))); break;
+                case "--replicas": config.setReplicas(Integer.parseInt(valor)); break;
+                case "--origen": config.setOrigen(valor); break;
+                case "--cache-disco-mb": config.setCacheDiscoBytes(Long.parseLong(valor) * 1024 * 1024); break;
+                case "--vigencia-s": config.setVigenciaMillis(Long.parseLong(valor) * 1000); break;
+                default: throw new IllegalArgumentException("Opción desconocida: " + opcion);
+            }
+        }
+        if (!config.origen.isEmpty() && !config.cluster.isEmpty()) {
+            throw new IllegalArgumentException("Un proxy (--origen) no puede ser a la vez nodo de un cluster (--cluster).");
+        }
+        return config;
+    }
+
+    public MotorServidor crearMotor() {
+        return motor.equals("nio") ? new ServidorNIO(this) : new Servidor(this);
+    }
+
+    // El nodo de cluster de este servidor, o null si no forma parte de ninguno. Se crea una vez
+    // abierto el puerto, que hace falta para la dirección por defecto.
+    public ClusterNodos crearCluster(IndiceArchivos indice, int puertoReal) {
+        if (cluster.isEmpty()) {
+            return null;
+        }
+        return new ClusterNodos(nodo.isEmpty() ? "localhost:" + puertoReal : nodo, cluster, replicas, indice);
+    }
+
+    // El proxy hacia el servidor de origen, o null si este servidor no es un proxy.
+    public ProxyCache crearProxy(IndiceArchivos indice, MetricasServidor metricas) {
+        if (origen.isEmpty()) {
+            return null;
+        }
+        return new ProxyCache(origen, indice, cacheDiscoBytes, vigenciaMillis, metricas);
+    }
+
+    // Crea el directorio compartido si todavía no existe y lo devuelve.
+    public File prepararDirectorioArchivos() {
+        if (!directorioArchivos.exists()) {
+            directorioArchivos.mkdirs();
+            System.out.println("Directorio '" + directorioArchivos.getName() + "' creado.");
+        }
+        return directorioArchivos;
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public void setPuerto(int puerto) {
+        this.puerto = puerto;
+    }
+
+    public File getDirectorioArchivos() {
+        return directorioArchivos;
+    }
+
+    public void setDirectorioArchivos(File directorioArchivos) {
+        this.directorioArchivos = directorioArchivos;
+    }
+
+    public int getHilosPlataforma() {
+        return hilosPlataforma;
+    }
+
+    public void setHilosPlataforma(int hilosPlataforma) {
+        if (hilosPlataforma < 0) {
+            throw new IllegalArgumentException("El número de hilos no puede ser negativo.");
+        }
+        this.hilosPlataforma = hilosPlataforma;
+    }
+
+    public String getMotor() {
+        return motor;
+    }
+
+    public void setMotor(String motor) {
+        if (!motor.equals("hilos") && !motor.equals("nio")) {
+            throw new IllegalArgumentException("Motor desconocido: " + motor + " (use 'hilos' o 'nio').");
+        }
+        this.motor = motor;
+    }
+
+    public int getBuclesEventos() {
+        return buclesEventos;
+    }
+
+    public void setBuclesEventos(int buclesEventos) {
+        if (buclesEventos < 1) {
+            throw new IllegalArgumentException("Se necesita al menos un bucle de eventos.");
+        }
+        this.buclesEventos = buclesEventos;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public void setCacheBytes(long cacheBytes) {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("El tamaño de la caché no puede ser negativo.");
+        }
+        this.cacheBytes = cacheBytes;
+    }
+
+    public long getLimiteConexionBytes() {
+        return limiteConexionBytes;
+    }
+
+    public void setLimiteConexionBytes(long limiteConexionBytes) {
+        if (limiteConexionBytes < 0) {
+            throw new IllegalArgumentException("El límite de caudal no puede ser negativo.");
+        }
+        this.limiteConexionBytes = limiteConexionBytes;
+    }
+
+    public long getLimiteGlobalBytes() {
+        return limiteGlobalBytes;
+    }
+
+    public void setLimiteGlobalBytes(long limiteGlobalBytes) {
+        if (limiteGlobalBytes < 0) {
+            throw new IllegalArgumentException("El límite de caudal no puede ser negativo.");
+        }
+        this.limiteGlobalBytes = limiteGlobalBytes;
+    }
+
+    public int getMaximoTransferencias() {
+        return maximoTransferencias;
+    }
+
+    public void setMaximoTransferencias(int maximoTransferencias) {
+        if (maximoTransferencias < 0) {
+            throw new IllegalArgumentException("El máximo de descargas no puede ser negativo.");
+        }
+        this.maximoTransferencias = maximoTransferencias;
+    }
+
+    public int getMaximoEnEspera() {
+        return maximoEnEspera;
+    }
+
+    public void setMaximoEnEspera(int maximoEnEspera) {
+        if (maximoEnEspera < 0) {
+            throw new IllegalArgumentException("La cola de espera no puede ser negativa.");
+        }
+        this.maximoEnEspera = maximoEnEspera;
+    }
+
+    public long getEsperaMaximaMillis() {
+        return esperaMaximaMillis;
+    }
+
+    public void setEsperaMaximaMillis(long esperaMaximaMillis) {
+        if (esperaMaximaMillis < 0) {
+            throw new IllegalArgumentException("La espera máxima no puede ser negativa.");
+        }
+        this.esperaMaximaMillis = esperaMaximaMillis;
+    }
+
+    public String getNodo() {
+        return nodo;
+    }
+
+    public void setNodo(String nodo) {
+        if (!nodo.isEmpty()) AnilloNodos.puerto(nodo); // Valida la dirección
+        this.nodo = nodo;
+    }
+
+    public List<String> getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(List<String> cluster) {
+        for (String otro : cluster) {
+            AnilloNodos.puerto(otro);
+        }
+        this.cluster = new ArrayList<>(cluster);
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public void setReplicas(int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Se necesita al menos una copia de cada archivo.");
+        }
+        this.replicas = replicas;
+    }
+
+    public String getOrigen() {
+        return origen;
+    }
+
+    public void setOrigen(String origen) {
+        if (!origen.isEmpty()) AnilloNodos.puerto(origen); // Valida la dirección
+        this.origen = origen;
+    }
+
+    public long getCacheDiscoBytes() {
+        return cacheDiscoBytes;
+    }
+
+    public void setCacheDiscoBytes(long cacheDiscoBytes) {
+        if (cacheDiscoBytes < 0) {
+            throw new IllegalArgumentException("El tamaño de la caché no puede ser negativo.");
+        }
+        this.cacheDiscoBytes = cacheDiscoBytes;
+    }
+
+    public long getVigenciaMillis() {
+        return vigenciaMillis;
+    }
+
+    public void setVigenciaMillis(long vigenciaMillis) {
+        if (vigenciaMillis < 0) {
+            throw new IllegalArgumentException("La vigencia no puede ser negativa.");
+        }
+        this.vigenciaMillis = vigenciaMillis;
+    }
+}
@@ -0,0 +1,213 @@
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Criterios de una búsqueda de archivos (trama BUSCAR). Se cumplen todos a la vez; los que no
+// se indican no filtran. El texto y la extensión no distinguen mayúsculas y se comparan con el
+// nombre del archivo (el último componente de su ruta). Solo se buscan archivos, no carpetas.
+public class ConsultaBusqueda {
+    // Orden de los resultados: por nombre del archivo en minúsculas y, a igualdad, por ruta.
+    public static final Comparator<EntradaArchivo> ORDEN = Comparator
+            .comparing((EntradaArchivo e) -> clave(e.getNombre()))
+            .thenComparing(EntradaArchivo::getNombre);
+
+    private String texto = "";
+    private int modo = Protocolo.BUSQUEDA_CONTIENE;
+    private String extension = "";
+    private String directorio = "";
+    private long tamanoMinimo;
+    private long tamanoMaximo;     // Exclusivo; 0 = sin límite
+    private long modificadoDesde;
+    private long modificadoHasta;  // Exclusivo; 0 = sin límite
+    private int maximo;            // 0 = el que decida el servidor
+
+    public ConsultaBusqueda contiene(String texto) {
+        this.texto = texto.toLowerCase(Locale.ROOT);
+        this.modo = Protocolo.BUSQUEDA_CONTIENE;
+        return this;
+    }
+
+    public ConsultaBusqueda prefijo(String texto) {
+        this.texto = texto.toLowerCase(Locale.ROOT);
+        this.modo = Protocolo.BUSQUEDA_PREFIJO;
+        return this;
+    }
+
+    // Sin el punto: "pdf". Se admiten también ".pdf" y "*.pdf".
+    public ConsultaBusqueda extension(String extension) {
+        String limpia = extension.startsWith("*") ? extension.substring(1) : extension;
+        this.extension = (limpia.startsWith(".") ? limpia.substring(1) : limpia).toLowerCase(Locale.ROOT);
+        return this;
+    }
+
+    // Solo archivos de 'directorio' ("" = raíz) y de sus subdirectorios.
+    public ConsultaBusqueda enDirectorio(String directorio) {
+        this.directorio = directorio;
+        return this;
+    }
+
+    // Tamaño en [minimo, maximo); 'maximo' 0 = sin límite.
+    public ConsultaBusqueda tamano(long minimo, long maximo) {
+        this.tamanoMinimo = minimo;
+        this.tamanoMaximo = maximo;
+        return this;
+    }
+
+    // Fecha de modificación (milisegundos) en [desde, hasta); 'hasta' 0 = sin límite.
+    public ConsultaBusqueda modificado(long desde, long hasta) {
+        this.modificadoDesde = desde;
+        this.modificadoHasta = hasta;
+        return this;
+    }
+
+    public ConsultaBusqueda maximo(int maximo) {
+        this.maximo = maximo;
+        return this;
+    }
+
+    // Interpreta lo que se escribe en la caja de búsqueda: palabras separadas por espacios.
+    //   informe        nombres que contienen "informe"      3c*      nombres que empiezan por "3c"
+    //   *.pdf, ext:pdf archivos con esa extensión           >10M     más de 10 MB (también K y G)
+    //   <500K          menos de 500 KB                      dias:7   modificados en los últimos 7 días
+    // Las palabras de texto se juntan con un espacio. Lanza IllegalArgumentException si un
+    // tamaño o un número de días no se entiende.
+    public static ConsultaBusqueda analizar(String entrada) {
+        ConsultaBusqueda consulta = new ConsultaBusqueda();
+        StringBuilder texto = new StringBuilder();
+        for (String palabra : entrada.trim().split("\\s+")) {
+            if (palabra.isEmpty()) {
+                continue;
+            }
+            String minusculas = palabra.toLowerCase(Locale.ROOT);
+            if (minusculas.startsWith("ext:")) {
+                consulta.extension(palabra.substring(4));
+            } else if (palabra.startsWith("*.") && palabra.indexOf('*', 1) < 0) {
+                consulta.extension(palabra);
+            } else if (palabra.startsWith(">") && palabra.length() > 1) {
+                consulta.tamanoMinimo = leerTamano(palabra.substring(1)) + 1;
+            } else if (palabra.startsWith("<") && palabra.length() > 1) {
+                consulta.tamanoMaximo = leerTamano(palabra.substring(1));
+            } else if (minusculas.startsWith("dias:")) {
+                consulta.modificadoDesde = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(leerNumero(palabra.substring(5), palabra));
+            } else {
+                if (texto.length() > 0) texto.append(' ');
+                texto.append(palabra);
+            }
+        }
+        if (texto.length() > 1 && texto.charAt(texto.length() - 1) == '*') {
+            consulta.prefijo(texto.substring(0, texto.length() - 1));
+        } else {
+            consulta.contiene(texto.toString());
+        }
+        return consulta;
+    }
+
+    private static long leerTamano(String valor) {
+        long multiplicador = 1;
+        String numero = valor.toUpperCase(Locale.ROOT);
+        if (numero.endsWith("B")) numero = numero.substring(0, numero.length() - 1);
+        if (numero.endsWith("K")) multiplicador = 1024;
+        else if (numero.endsWith("M")) multiplicador = 1024 * 1024;
+        else if (numero.endsWith("G")) multiplicador = 1024 * 1024 * 1024;
+        if (multiplicador > 1) numero = numero.substring(0, numero.length() - 1);
+        return leerNumero(numero, valor) * multiplicador;
+    }
+
+    private static long leerNumero(String numero, String palabra) {
+        try {
+            long valor = Long.parseLong(numero);
+            if (valor >= 0) return valor;
+        } catch (NumberFormatException e) {
+            // Se informa abajo
+        }
+        throw new IllegalArgumentException("No se entiende '" + palabra + "'.");
+    }
+
+    // Nombre del archivo en minúsculas: lo que se compara con el texto y la extensión.
+    public static String clave(String ruta) {
+        return ruta.substring(ruta.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    // Extensión de una clave ("informe.pdf" -> "pdf"), o "" si no tiene.
+    public static String extensionDe(String clave) {
+        int punto = clave.lastIndexOf('.');
+        return punto > 0 ? clave.substring(punto + 1) : "";
+    }
+
+    // Comprueba todos los criterios sobre una entrada cuyo nombre es su ruta relativa.
+    public boolean coincide(EntradaArchivo entrada) {
+        return coincide(entrada, clave(entrada.getNombre()));
+    }
+
+    // Igual, con la clave ya calculada.
+    public boolean coincide(EntradaArchivo entrada, String clave) {
+        if (modo == Protocolo.BUSQUEDA_PREFIJO ? !clave.startsWith(texto) : !clave.contains(texto)) return false;
+        if (!extension.isEmpty() && !extension.equals(extensionDe(clave))) return false;
+        if (!directorio.isEmpty() && !entrada.getNombre().startsWith(directorio + "/")) return false;
+        if (entrada.getTamano() < tamanoMinimo || (tamanoMaximo > 0 && entrada.getTamano() >= tamanoMaximo)) return false;
+        return entrada.getModificado() >= modificadoDesde && (modificadoHasta == 0 || entrada.getModificado() < modificadoHasta);
+    }
+
+    // Algún criterio además del directorio; una consulta vacía no se envía.
+    public boolean esVacia() {
+        return texto.isEmpty() && extension.isEmpty() && tamanoMinimo == 0 && tamanoMaximo == 0
+                && modificadoDesde == 0 && modificadoHasta == 0;
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+
+    public int getModo() {
+        return modo;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getDirectorio() {
+        return directorio;
+    }
+
+    public long getTamanoMinimo() {
+        return tamanoMinimo;
+    }
+
+    public long getTamanoMaximo() {
+        return tamanoMaximo;
+    }
+
+    public long getModificadoDesde() {
+        return modificadoDesde;
+    }
+
+    public long getModificadoHasta() {
+        return modificadoHasta;
+    }
+
+    public int getMaximo() {
+        return maximo;
+    }
+
+    // Los primeros resultados de una búsqueda, en ORDEN.
+    public static final class Resultado {
+        private final List<EntradaArchivo> entradas;
+        private final boolean hayMas;
+
+        public Resultado(List<EntradaArchivo> entradas, boolean hayMas) {
+            this.entradas = entradas;
+            this.hayMas = hayMas;
+        }
+
+        public List<EntradaArchivo> getEntradas() {
+            return entradas;
+        }
+
+        // Si hay más coincidencias que las devueltas (se alcanzó el máximo).
+        public boolean hayMas() {
+            return hayMas;
+        }
+    }
+}
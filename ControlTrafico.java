@@ -0,0 +1,113 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reparto del ancho de banda de subida del servidor entre las descargas. Tiene dos partes:
+//  - Límites de caudal con cubos de tokens, uno por conexión y uno global. Solo se aplican al
+//    contenido de los archivos: listados, miniaturas y demás respuestas cortas nunca esperan,
+//    así que la latencia interactiva no depende de cuántas descargas haya en curso.
+//  - Control de admisión: como mucho 'maximoTransferencias' descargas a la vez y una cola de
+//    espera acotada. Si la cola está llena, o la espera se alarga demasiado, la descarga se
+//    rechaza con una sugerencia de cuándo reintentar en lugar de dejar al cliente colgado.
+// Las descargas de un solo bloque no pasan por la admisión: son tan cortas como una miniatura.
+public class ControlTrafico {
+    // Un cliente nuevo puede enviar de golpe hasta este tiempo de su caudal (o un bloque, si es más).
+    private static final long RAFAGA_MILLIS = 250;
+    private static final long REINTENTO_MINIMO_MILLIS = 1_000;
+    private static final long REINTENTO_MAXIMO_MILLIS = 60_000;
+
+    private final long limiteConexion; // Bytes por segundo de cada conexión; 0 = sin límite
+    private final CuboTokens limiteGlobal; // null = sin límite
+    private final Semaphore transferencias; // null = sin límite de descargas simultáneas
+    private final int maximoTransferencias;
+    private final int maximoEnEspera;
+    private final long esperaMaximaMillis;
+    private final AtomicInteger enEspera = new AtomicInteger();
+    // Media móvil de la duración de las descargas admitidas, para sugerir cuándo reintentar.
+    private final AtomicLong duracionMediaNanos = new AtomicLong();
+    private final MetricasServidor metricas;
+
+    public ControlTrafico(ConfiguracionServidor config, MetricasServidor metricas) {
+        this.limiteConexion = config.getLimiteConexionBytes();
+        this.limiteGlobal = config.getLimiteGlobalBytes() > 0 ? nuevoCubo(config.getLimiteGlobalBytes()) : null;
+        this.maximoTransferencias = config.getMaximoTransferencias();
+        this.transferencias = maximoTransferencias > 0 ? new Semaphore(maximoTransferencias, true) : null;
+        this.maximoEnEspera = config.getMaximoEnEspera();
+        this.esperaMaximaMillis = config.getEsperaMaximaMillis();
+        this.metricas = metricas;
+    }
+
+    private static CuboTokens nuevoCubo(long bytesPorSegundo) {
+        return new CuboTokens(bytesPorSegundo, Math.max(Protocolo.TAMANO_BLOQUE, bytesPorSegundo * RAFAGA_MILLIS / 1000));
+    }
+
+    // Cubo propio de una conexión (lo comparten todos sus canales), o null si no hay límite.
+    public CuboTokens nuevoLimiteConexion() {
+        return limiteConexion > 0 ? nuevoCubo(limiteConexion) : null;
+    }
+
+    // Espera hasta que se puedan enviar 'bytes' de contenido sin superar ninguno de los dos
+    // límites. Se reserva en ambos cubos a la vez y se espera lo que pida el más restrictivo.
+    public void limitar(CuboTokens conexion, long bytes) throws InterruptedIOException {
+        long espera = conexion != null ? conexion.reservar(bytes) : 0;
+        if (limiteGlobal != null) {
+            espera = Math.max(espera, limiteGlobal.reservar(bytes));
+        }
+        CuboTokens.esperar(espera);
+    }
+
+    // Pide turno para una descarga. Devuelve el permiso, que hay que cerrar al terminar, o null
+    // si se rechaza; en ese caso 'sugerenciaReintentoMillis' indica cuándo volver a intentarlo.
+    public Permiso admitir() throws InterruptedIOException {
+        if (transferencias != null && !transferencias.tryAcquire()) {
+            if (enEspera.incrementAndGet() > maximoEnEspera) {
+                enEspera.decrementAndGet();
+                metricas.transferenciaRechazada();
+                return null;
+            }
+            metricas.transferenciaEnEspera(1);
+            try {
+                if (!transferencias.tryAcquire(esperaMaximaMillis, TimeUnit.MILLISECONDS)) {
+                    metricas.transferenciaRechazada();
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Espera de turno de descarga interrumpida.");
+            } finally {
+                enEspera.decrementAndGet();
+                metricas.transferenciaEnEspera(-1);
+            }
+        }
+        metricas.transferenciaIniciada();
+        return new Permiso();
+    }
+
+    // Lo que tardaría en quedar libre un turno si se atiende la cola actual, entre 1 s y 1 min.
+    public long sugerenciaReintentoMillis() {
+        long media = TimeUnit.NANOSECONDS.toMillis(duracionMediaNanos.get());
+        if (media == 0 || maximoTransferencias == 0) {
+            return Math.max(REINTENTO_MINIMO_MILLIS, esperaMaximaMillis);
+        }
+        long estimada = media * (enEspera.get() + 1) / maximoTransferencias;
+        return Math.min(REINTENTO_MAXIMO_MILLIS, Math.max(REINTENTO_MINIMO_MILLIS, estimada));
+    }
+
+    public final class Permiso implements AutoCloseable {
+        private final long inicio = System.nanoTime();
+        private boolean cerrado;
+
+        @Override
+        public void close() {
+            if (cerrado) return;
+            cerrado = true;
+            long duracion = System.nanoTime() - inicio;
+            // Media exponencial con peso 1/8 para la última descarga.
+            duracionMediaNanos.accumulateAndGet(duracion, (media, ultima) -> media == 0 ? ultima : media + (ultima - media) / 8);
+            metricas.transferenciaTerminada();
+            if (transferencias != null) transferencias.release();
+        }
+    }
+}
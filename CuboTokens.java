@@ -0,0 +1,47 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cubo de tokens para limitar el caudal: se llena a 'bytesPorSegundo' hasta 'rafagaBytes', y
+// enviar N bytes gasta N tokens. Se implementa como GCRA (algoritmo de la tasa genérica de
+// celdas): en lugar de contar tokens guarda el instante teórico en que el cubo volvería a estar
+// lleno, así que reservar es una sola operación atómica, sin bloqueos ni hilo de recarga.
+// Quien reserva más de lo disponible no falla: recibe cuánto debe esperar antes de enviar.
+public class CuboTokens {
+    private final double nanosPorByte;
+    private final long rafagaNanos;
+    private final AtomicLong llenoEn; // Instante (System.nanoTime) en que el cubo vuelve a estar lleno
+
+    public CuboTokens(long bytesPorSegundo, long rafagaBytes) {
+        if (bytesPorSegundo <= 0 || rafagaBytes <= 0) {
+            throw new IllegalArgumentException("El caudal y la ráfaga deben ser positivos.");
+        }
+        this.nanosPorByte = 1e9 / bytesPorSegundo;
+        this.rafagaNanos = (long) (rafagaBytes * nanosPorByte);
+        this.llenoEn = new AtomicLong(System.nanoTime());
+    }
+
+    // Reserva 'bytes' y devuelve los nanosegundos que hay que esperar antes de enviarlos (0 si
+    // caben en la ráfaga disponible). La reserva cuenta desde ya, aunque aún no se haya esperado.
+    public long reservar(long bytes) {
+        long coste = (long) (bytes * nanosPorByte);
+        while (true) {
+            long ahora = System.nanoTime();
+            long anterior = llenoEn.get();
+            long nuevo = Math.max(anterior, ahora) + coste;
+            if (llenoEn.compareAndSet(anterior, nuevo)) {
+                return Math.max(0, nuevo - ahora - rafagaNanos);
+            }
+        }
+    }
+
+    public static void esperar(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Espera del límite de caudal interrumpida.");
+        }
+    }
+}
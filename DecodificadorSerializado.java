@@ -0,0 +1,79 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Decodifica, de forma incremental, las cadenas que un 'Cliente' envía con ObjectOutputStream.
+// ObjectInputStream necesita un flujo bloqueante; el motor NIO recibe los bytes en trozos
+// arbitrarios, así que aquí se interpreta solo el subconjunto del formato que usan las
+// solicitudes: encabezado del stream, TC_STRING, TC_REFERENCE y TC_RESET.
+public class DecodificadorSerializado {
+    private static final short STREAM_MAGIC = (short) 0xACED;
+    private static final short STREAM_VERSION = 5;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_RESET = 0x79;
+    private static final int BASE_WIRE_HANDLE = 0x7E0000;
+
+    private boolean encabezadoLeido;
+    // ObjectOutputStream envía una referencia, no la cadena, cuando repite el mismo objeto
+    // (por ejemplo, el literal "LISTAR_ARCHIVOS"), así que hay que recordar cada cadena recibida.
+    private final List<String> referencias = new ArrayList<>();
+
+    // Devuelve la siguiente solicitud completa del búfer (en modo lectura) o null si
+    // todavía faltan bytes; en ese caso la posición del búfer no avanza.
+    public String siguiente(ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.mark();
+            if (!encabezadoLeido) {
+                if (buffer.remaining() < 4) return null;
+                if (buffer.getShort() != STREAM_MAGIC || buffer.getShort() != STREAM_VERSION) {
+                    throw new StreamCorruptedException("Encabezado de serialización no válido.");
+                }
+                encabezadoLeido = true;
+                continue;
+            }
+            if (!buffer.hasRemaining()) return null;
+
+            byte tipo = buffer.get();
+            if (tipo == TC_RESET) {
+                referencias.clear();
+                continue;
+            }
+            if (tipo == TC_REFERENCE) {
+                if (buffer.remaining() < 4) {
+                    buffer.reset();
+                    return null;
+                }
+                int indice = buffer.getInt() - BASE_WIRE_HANDLE;
+                if (indice < 0 || indice >= referencias.size()) {
+                    throw new StreamCorruptedException("Referencia de objeto no válida.");
+                }
+                return referencias.get(indice);
+            }
+            if (tipo != TC_STRING) {
+                throw new StreamCorruptedException("Tipo de solicitud no soportado: " + tipo);
+            }
+            if (buffer.remaining() < 2) {
+                buffer.reset();
+                return null;
+            }
+            int longitud = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < longitud) {
+                buffer.reset();
+                return null;
+            }
+            // Las cadenas viajan en UTF-8 modificado con la longitud delante, igual que readUTF.
+            byte[] utf = new byte[longitud + 2];
+            utf[0] = (byte) (longitud >>> 8);
+            utf[1] = (byte) longitud;
+            buffer.get(utf, 2, longitud);
+            String cadena = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+            referencias.add(cadena);
+            return cadena;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+// Transferencia por bloques al estilo de rsync. Quien tiene la versión anterior de un archivo
+// (la "base") la parte en bloques de tamaño fijo y envía su Firma: una suma débil rodante por
+// bloque (la de rsync, derivada de Adler-32) y los 8 primeros bytes del SHA-256 del bloque.
+// Quien tiene la versión nueva la recorre con una ventana de un bloque que avanza byte a byte:
+// la suma débil se actualiza en tiempo constante en cada paso, y solo cuando coincide con la
+// de algún bloque de la base se calcula la fuerte. Si también coincide se emite "copia ese
+// bloque" y la ventana salta un bloque entero; lo que no coincide con nada viaja tal cual.
+// Quien reconstruye comprueba al final el SHA-256 del archivo completo, así que una colisión
+// de las sumas no puede dejar un archivo corrupto sin que se note.
+public final class DeltaBloques {
+    private static final int BLOQUE_MINIMO = 2048;
+    // Con este máximo de bloques la firma de cualquier archivo cabe en una sola solicitud.
+    private static final int MAXIMO_BLOQUES = 32 * 1024;
+
+    private DeltaBloques() {
+    }
+
+    // Como en rsync, el bloque crece con la raíz cuadrada del tamaño: bloques pequeños encuentran
+    // más coincidencias, pero cada uno añade 12 bytes a la firma.
+    public static int tamanoBloque(long tamanoBase) {
+        long bloque = Math.max(BLOQUE_MINIMO, Long.highestOneBit((long) Math.sqrt(tamanoBase)));
+        while ((tamanoBase + bloque - 1) / bloque > MAXIMO_BLOQUES) {
+            bloque *= 2;
+        }
+        return (int) bloque;
+    }
+
+    // Firma de 'base', o una firma vacía (todo el contenido viajará tal cual) si es null. En la
+    // misma lectura se calcula el SHA-256 de la base entera.
+    public static Firma firmar(File base) throws IOException {
+        if (base == null) {
+            return new Firma(BLOQUE_MINIMO, 0, new int[0], new long[0], "");
+        }
+        long longitud = base.length();
+        int tamanoBloque = tamanoBloque(longitud);
+        int cantidad = (int) ((longitud + tamanoBloque - 1) / tamanoBloque);
+        int[] debiles = new int[cantidad];
+        long[] fuertes = new long[cantidad];
+        MessageDigest digest = ManifiestoHashes.nuevoDigest();
+        MessageDigest completo = ManifiestoHashes.nuevoDigest();
+        byte[] bloque = new byte[tamanoBloque];
+        try (InputStream entrada = Files.newInputStream(base.toPath())) {
+            for (int i = 0; i < cantidad; i++) {
+                int leidos = entrada.readNBytes(bloque, 0, (int) Math.min(tamanoBloque, longitud - (long) i * tamanoBloque));
+                debiles[i] = sumaDebil(bloque, 0, leidos);
+                fuertes[i] = sumaFuerte(digest, bloque, 0, leidos);
+                completo.update(bloque, 0, leidos);
+            }
+        }
+        return new Firma(tamanoBloque, longitud, debiles, fuertes, HexFormat.of().formatHex(completo.digest()));
+    }
+
+    // Recorre 'nuevo' comparándolo con la firma de la base y entrega a 'receptor' las
+    // instrucciones para reconstruirlo: tramos de bloques de la base (los consecutivos se juntan
+    // en uno) y trozos de contenido nuevo de como mucho TAMANO_BLOQUE bytes. Devuelve los bytes
+    // de contenido nuevo.
+    public static long generar(File nuevo, Firma base, Receptor receptor) throws IOException {
+        return new Generador(base, receptor).recorrer(nuevo);
+    }
+
+    // Copia los bloques [primero, primero + cantidad) de 'base' en 'destino'. El último bloque
+    // de la base puede ser más corto que los demás.
+    public static long copiar(FileChannel base, int tamanoBloque, long primero, long cantidad, Destino destino) throws IOException {
+        long longitud = base.size();
+        long bloques = (longitud + tamanoBloque - 1) / tamanoBloque;
+        if (primero < 0 || cantidad <= 0 || primero >= bloques || cantidad > bloques - primero) {
+            throw new StreamCorruptedException("Referencia a bloques inexistentes: " + primero + "+" + cantidad + ".");
+        }
+        long desde = primero * tamanoBloque;
+        long hasta = Math.min(longitud, (primero + cantidad) * tamanoBloque);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Protocolo.TAMANO_BLOQUE, hasta - desde));
+        for (long posicion = desde; posicion < hasta; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), hasta - posicion));
+            while (buffer.hasRemaining()) {
+                if (base.read(buffer, posicion + buffer.position()) < 0) {
+                    throw new IOException("La base terminó antes de lo esperado.");
+                }
+            }
+            posicion += buffer.flip().remaining();
+            destino.escribir(buffer);
+        }
+        return hasta - desde;
+    }
+
+    public static FileChannel abrir(File base) throws IOException {
+        return FileChannel.open(base.toPath(), StandardOpenOption.READ);
+    }
+
+    // La suma de rsync: a = suma de los bytes, b = suma de las sumas parciales (ambas módulo
+    // 2^16). Desplazar la ventana un byte solo requiere restar el que sale y sumar el que entra.
+    static int sumaDebil(byte[] datos, int desde, int longitud) {
+        int a = 0;
+        int b = 0;
+        for (int i = desde; i < desde + longitud; i++) {
+            a += datos[i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static long sumaFuerte(MessageDigest digest, byte[] datos, int desde, int longitud) {
+        digest.update(datos, desde, longitud);
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    // Instrucciones para reconstruir la versión nueva, en orden.
+    public interface Receptor {
+        void copiar(long primero, long cantidad) throws IOException;
+
+        void literal(byte[] datos, int desde, int longitud) throws IOException;
+    }
+
+    public interface Destino {
+        void escribir(ByteBuffer datos) throws IOException;
+    }
+
+    // Suma débil y fuerte de cada bloque de una base. El último bloque puede ser más corto.
+    public static final class Firma {
+        private final int tamanoBloque;
+        private final long longitud;
+        private final int[] debiles;
+        private final long[] fuertes;
+        private final String hash; // De la base entera; "" si no hay base o la firma llegó por la red
+
+        private Firma(int tamanoBloque, long longitud, int[] debiles, long[] fuertes, String hash) {
+            this.tamanoBloque = tamanoBloque;
+            this.longitud = longitud;
+            this.debiles = debiles;
+            this.fuertes = fuertes;
+            this.hash = hash;
+        }
+
+        // Tamaño de bloque, longitud de la base, n y n x (suma débil, suma fuerte en 8 bytes).
+        public Protocolo.ConstructorTrama escribir(Protocolo.ConstructorTrama trama) {
+            trama.varint(tamanoBloque).varint(longitud).varint(debiles.length);
+            ByteBuffer fuerte = ByteBuffer.allocate(8);
+            for (int i = 0; i < debiles.length; i++) {
+                trama.varint(debiles[i] & 0xFFFFFFFFL).bytes(fuerte.clear().putLong(fuertes[i]).array());
+            }
+            return trama;
+        }
+
+        public static Firma leer(ByteBuffer carga) throws StreamCorruptedException {
+            long tamanoBloque = Protocolo.leerVarint(carga);
+            long longitud = Protocolo.leerVarint(carga);
+            long cantidad = Protocolo.leerVarint(carga);
+            if (tamanoBloque < 1 || tamanoBloque > Integer.MAX_VALUE || longitud < 0 || cantidad < 0
+                    || cantidad > carga.remaining() / 9 || cantidad != (longitud + tamanoBloque - 1) / tamanoBloque) {
+                throw new StreamCorruptedException("Firma de bloques no válida.");
+            }
+            int[] debiles = new int[(int) cantidad];
+            long[] fuertes = new long[(int) cantidad];
+            for (int i = 0; i < cantidad; i++) {
+                debiles[i] = (int) Protocolo.leerVarint(carga);
+                fuertes[i] = carga.getLong();
+            }
+            return new Firma((int) tamanoBloque, longitud, debiles, fuertes, "");
+        }
+
+        public int getTamanoBloque() {
+            return tamanoBloque;
+        }
+
+        public long getLongitud() {
+            return longitud;
+        }
+
+        public int getBloques() {
+            return debiles.length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    // Versión que quedó en el destino de una transferencia por bloques (con su ruta, fecha y
+    // hash) y los bytes de contenido que viajaron por la red; el resto salió de la base.
+    public static final class Resultado {
+        private final EntradaArchivo version;
+        private final long transferidos;
+
+        public Resultado(EntradaArchivo version, long transferidos) {
+            this.version = version;
+            this.transferidos = transferidos;
+        }
+
+        public EntradaArchivo getVersion() {
+            return version;
+        }
+
+        public long getTransferidos() {
+            return transferidos;
+        }
+    }
+
+    // Recorrido de la versión nueva. Se lee por trozos en un búfer que guarda el contenido nuevo
+    // aún no entregado (como mucho TAMANO_BLOQUE bytes), la ventana y lo que se lee por delante.
+    private static final class Generador {
+        private final Firma base;
+        private final Receptor receptor;
+        private final int tamanoBloque;
+        private final Map<Integer, int[]> porDebil = new HashMap<>();
+        // Un bit por cada valor de 'mezcla(suma débil)': casi todas las ventanas que no coinciden
+        // se descartan aquí, sin crear un Integer para buscar en el mapa.
+        private final long[] filtro;
+        private final int bitsFiltro;
+        private final int ultimoCorto; // Longitud del último bloque si es más corto, o 0
+        private final int completos;   // Bloques de longitud completa
+        private final MessageDigest digest = ManifiestoHashes.nuevoDigest();
+        private long tramoPrimero = -1;
+        private long tramoCantidad;
+        private long literales;
+
+        Generador(Firma base, Receptor receptor) {
+            this.base = base;
+            this.receptor = receptor;
+            this.tamanoBloque = base.tamanoBloque;
+            int resto = (int) (base.longitud % tamanoBloque);
+            this.ultimoCorto = resto;
+            this.completos = resto == 0 ? base.debiles.length : base.debiles.length - 1;
+            this.bitsFiltro = Math.max(16, 38 - Integer.numberOfLeadingZeros(Math.max(1, completos)));
+            this.filtro = new long[1 << (bitsFiltro - 6)];
+            for (int i = 0; i < completos; i++) {
+                int posicion = mezcla(base.debiles[i]);
+                filtro[posicion >>> 6] |= 1L << posicion;
+                int[] previos = porDebil.get(base.debiles[i]);
+                int[] bloques = previos == null ? new int[1] : Arrays.copyOf(previos, previos.length + 1);
+                bloques[bloques.length - 1] = i;
+                porDebil.put(base.debiles[i], bloques);
+            }
+        }
+
+        long recorrer(File nuevo) throws IOException {
+            byte[] buffer = new byte[Protocolo.TAMANO_BLOQUE + 2 * tamanoBloque + 64 * 1024];
+            int pendiente = 0; // Inicio del contenido nuevo aún no entregado
+            int ventana = 0;   // Inicio de la ventana
+            int fin = 0;       // Bytes válidos en el búfer
+            boolean agotado = false;
+            int a = 0;
+            int b = 0;
+            boolean sumaValida = false;
+            try (InputStream entrada = Files.newInputStream(nuevo.toPath())) {
+                while (true) {
+                    if (fin - ventana <= tamanoBloque && !agotado) {
+                        // Se descarta lo ya entregado y se rellena por detrás.
+                        System.arraycopy(buffer, pendiente, buffer, 0, fin - pendiente);
+                        ventana -= pendiente;
+                        fin -= pendiente;
+                        pendiente = 0;
+                        int leidos = entrada.readNBytes(buffer, fin, buffer.length - fin);
+                        fin += leidos;
+                        agotado = fin < buffer.length;
+                    }
+                    int disponibles = fin - ventana;
+                    if (!agotado && porDebil.isEmpty()) {
+                        // Ningún bloque completo con el que comparar: se entrega según se lee.
+                        ventana = Math.max(ventana, fin - ultimoCorto);
+                        if (ventana - pendiente >= Protocolo.TAMANO_BLOQUE) {
+                            entregarLiteral(buffer, pendiente, ventana - pendiente);
+                            pendiente = ventana;
+                        }
+                        continue;
+                    }
+                    if (disponibles < tamanoBloque || porDebil.isEmpty()) {
+                        // Cola del archivo: solo puede coincidir con el último bloque, si es corto.
+                        int cola = fin - ultimoCorto;
+                        if (ultimoCorto > 0 && cola >= pendiente && coincide(base.debiles.length - 1, buffer, cola, ultimoCorto)) {
+                            entregarLiteral(buffer, pendiente, cola - pendiente);
+                            copiar(base.debiles.length - 1);
+                            pendiente = fin;
+                        }
+                        break;
+                    }
+                    if (!sumaValida) {
+                        int suma = sumaDebil(buffer, ventana, tamanoBloque);
+                        a = suma & 0xFFFF;
+                        b = suma >>> 16;
+                        sumaValida = true;
+                    }
+                    int hasta = Math.min(fin - tamanoBloque, pendiente + Protocolo.TAMANO_BLOQUE);
+                    if (ventana < hasta && !posible(a | (b << 16))) {
+                        // Lo habitual en contenido nuevo: la ventana rueda sin más comprobaciones
+                        // mientras su suma no pueda ser la de ningún bloque, hasta que haga falta
+                        // leer más o entregar lo acumulado.
+                        do {
+                            int sale = buffer[ventana] & 0xFF;
+                            int entra = buffer[ventana + tamanoBloque] & 0xFF;
+                            a = (a - sale + entra) & 0xFFFF;
+                            b = (b - tamanoBloque * sale + a) & 0xFFFF;
+                            ventana++;
+                        } while (ventana < hasta && !posible(a | (b << 16)));
+                        if (ventana - pendiente >= Protocolo.TAMANO_BLOQUE) {
+                            entregarLiteral(buffer, pendiente, ventana - pendiente);
+                            pendiente = ventana;
+                        }
+                        continue;
+                    }
+                    int bloque = buscar(a | (b << 16), buffer, ventana);
+                    if (bloque >= 0) {
+                        entregarLiteral(buffer, pendiente, ventana - pendiente);
+                        copiar(bloque);
+                        ventana += tamanoBloque;
+                        pendiente = ventana;
+                        sumaValida = false;
+                        continue;
+                    }
+                    if (disponibles > tamanoBloque) {
+                        int sale = buffer[ventana] & 0xFF;
+                        int entra = buffer[ventana + tamanoBloque] & 0xFF;
+                        a = (a - sale + entra) & 0xFFFF;
+                        b = (b - tamanoBloque * sale + a) & 0xFFFF;
+                    } else {
+                        sumaValida = false; // Ya no queda una ventana completa
+                    }
+                    ventana++;
+                    if (ventana - pendiente >= Protocolo.TAMANO_BLOQUE) {
+                        entregarLiteral(buffer, pendiente, ventana - pendiente);
+                        pendiente = ventana;
+                    }
+                }
+            }
+            entregarLiteral(buffer, pendiente, fin - pendiente);
+            cerrarTramo();
+            return literales;
+        }
+
+        // Bloque completo de la base igual a la ventana, o -1. Se prefiere el que continúa el
+        // tramo en curso, para que los archivos sin cambios sean un único tramo.
+        private int buscar(int debil, byte[] datos, int desde) {
+            if (!posible(debil)) {
+                return -1;
+            }
+            int[] candidatos = porDebil.get(debil);
+            if (candidatos == null) {
+                return -1;
+            }
+            long fuerte = sumaFuerte(digest, datos, desde, tamanoBloque);
+            long siguiente = tramoPrimero + tramoCantidad;
+            if (tramoPrimero >= 0 && siguiente < completos && base.debiles[(int) siguiente] == debil
+                    && base.fuertes[(int) siguiente] == fuerte) {
+                return (int) siguiente;
+            }
+            for (int candidato : candidatos) {
+                if (base.fuertes[candidato] == fuerte) return candidato;
+            }
+            return -1;
+        }
+
+        // Si algún bloque de la base tiene una suma débil que cae en el mismo bit del filtro.
+        private boolean posible(int debil) {
+            int posicion = mezcla(debil);
+            return (filtro[posicion >>> 6] & (1L << posicion)) != 0;
+        }
+
+        private int mezcla(int debil) {
+            return (debil * 0x9E3779B9) >>> (32 - bitsFiltro);
+        }
+
+        private boolean coincide(int bloque, byte[] datos, int desde, int longitud) {
+            return base.debiles[bloque] == sumaDebil(datos, desde, longitud)
+                    && base.fuertes[bloque] == sumaFuerte(digest, datos, desde, longitud);
+        }
+
+        private void copiar(long bloque) throws IOException {
+            if (tramoPrimero >= 0 && bloque == tramoPrimero + tramoCantidad) {
+                tramoCantidad++;
+                return;
+            }
+            cerrarTramo();
+            tramoPrimero = bloque;
+            tramoCantidad = 1;
+        }
+
+        private void cerrarTramo() throws IOException {
+            if (tramoPrimero >= 0) {
+                receptor.copiar(tramoPrimero, tramoCantidad);
+                tramoPrimero = -1;
+            }
+        }
+
+        private void entregarLiteral(byte[] datos, int desde, int longitud) throws IOException {
+            if (longitud == 0) {
+                return;
+            }
+            cerrarTramo();
+            for (int i = 0; i < longitud; i += Protocolo.TAMANO_BLOQUE) {
+                receptor.literal(datos, desde + i, Math.min(Protocolo.TAMANO_BLOQUE, longitud - i));
+            }
+            literales += longitud;
+        }
+    }
+}
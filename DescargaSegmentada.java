@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Descarga un archivo repartido en segmentos de bytes que se piden en paralelo, cada conexión
+// por su cuenta. Con mucha latencia una sola conexión TCP no llena el enlace (su ventana limita
+// los bytes en vuelo); varias a la vez se acercan a la capacidad real de la red.
+//
+// El '.parcial' se reserva con el tamaño final y cada segmento se escribe en su posición, así
+// que no importa el orden en que lleguen. Todas las peticiones van condicionadas al tamaño y la
+// fecha del listado: si el archivo cambia a mitad de la descarga, esta falla en vez de mezclar
+// dos versiones.
+public class DescargaSegmentada {
+    public static final int CONEXIONES_POR_DEFECTO = 4;
+    public static final long TAMANO_SEGMENTO_POR_DEFECTO = 8 * 1024 * 1024;
+
+    private final String host;
+    private final int puerto;
+    private final File directorioDescargas;
+    private int conexiones = CONEXIONES_POR_DEFECTO;
+    private long tamanoSegmento = TAMANO_SEGMENTO_POR_DEFECTO;
+
+    public DescargaSegmentada(String host, int puerto, File directorioDescargas) {
+        this.host = host;
+        this.puerto = puerto;
+        this.directorioDescargas = directorioDescargas;
+    }
+
+    public void descargar(EntradaArchivo entrada, ProgresoDescarga progreso) throws IOException {
+        File archivoDestino = Cliente.destinoLocal(directorioDescargas, entrada.getNombre());
+        archivoDestino.getParentFile().mkdirs();
+        File archivoParcial = new File(archivoDestino.getPath() + ".parcial");
+        // Un '.parcial' segmentado tiene huecos, así que no se puede reanudar como uno secuencial.
+        new File(archivoDestino.getPath() + ".parcial.info").delete();
+
+        Queue<long[]> segmentos = new ConcurrentLinkedQueue<>();
+        for (long desde = 0; desde < entrada.getTamano(); desde += tamanoSegmento) {
+            segmentos.add(new long[] { desde, Math.min(tamanoSegmento, entrada.getTamano() - desde) });
+        }
+        ProgresoTotal total = new ProgresoTotal(entrada.getTamano(), progreso);
+
+        boolean completa = false;
+        try (RandomAccessFile archivo = new RandomAccessFile(archivoParcial, "rw")) {
+            archivo.setLength(entrada.getTamano());
+            FileChannel destino = archivo.getChannel();
+            int hilos = Math.min(conexiones, segmentos.size());
+            ExecutorService ejecutor = Executors.newVirtualThreadPerTaskExecutor();
+            try {
+                List<Future<?>> tareas = new ArrayList<>();
+                for (int i = 0; i < hilos; i++) {
+                    tareas.add(ejecutor.submit(() -> {
+                        descargarSegmentos(entrada, segmentos, destino, total);
+                        return null;
+                    }));
+                }
+                for (Future<?> tarea : tareas) {
+                    esperar(tarea);
+                }
+            } finally {
+                ejecutor.shutdownNow();
+            }
+            // Comprobación final: cada segmento ya verificó su longitud, pero se confirma que
+            // no falte ninguno y que el archivo tenga exactamente el tamaño anunciado.
+            if (total.recibidos() != entrada.getTamano() || destino.size() != entrada.getTamano()) {
+                throw new IOException("Descarga segmentada incompleta: " + total.recibidos()
+                        + " de " + entrada.getTamano() + " bytes.");
+            }
+            completa = true;
+        } finally {
+            if (!completa) archivoParcial.delete();
+        }
+        Files.move(archivoParcial.toPath(), archivoDestino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Cada conexión va tomando segmentos de la cola común hasta vaciarla, de modo que una
+    // conexión más rápida descarga más segmentos que una lenta.
+    private void descargarSegmentos(EntradaArchivo entrada, Queue<long[]> segmentos, FileChannel destino,
+            ProgresoTotal total) throws IOException {
+        Cliente conexion = new Cliente();
+        if (!conexion.conectar(host, puerto)) {
+            throw new IOException("No se pudo abrir una conexión adicional con " + host + ":" + puerto);
+        }
+        try {
+            long[] segmento;
+            while ((segmento = segmentos.poll()) != null) {
+                long[] anterior = { 0 };
+                conexion.descargarRango(entrada.getNombre(), segmento[0], segmento[1], entrada.getTamano(),
+                        entrada.getModificado(), destino, (recibidos, longitud) -> {
+                            total.sumar(recibidos - anterior[0]);
+                            anterior[0] = recibidos;
+                        });
+            }
+        } finally {
+            conexion.desconectar();
+        }
+    }
+
+    private static void esperar(Future<?> tarea) throws IOException {
+        try {
+            tarea.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Descarga segmentada interrumpida.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error en un segmento: " + e.getCause(), e.getCause());
+        }
+    }
+
+    // Suma el avance de todas las conexiones y lo entrega en orden a un único 'ProgresoDescarga'.
+    private static final class ProgresoTotal {
+        private final long tamano;
+        private final ProgresoDescarga progreso;
+        private long recibidos;
+
+        ProgresoTotal(long tamano, ProgresoDescarga progreso) {
+            this.tamano = tamano;
+            this.progreso = progreso;
+            progreso.actualizar(0, tamano);
+        }
+
+        synchronized void sumar(long bytes) {
+            recibidos += bytes;
+            progreso.actualizar(recibidos, tamano);
+        }
+
+        synchronized long recibidos() {
+            return recibidos;
+        }
+    }
+
+    public int getConexiones() {
+        return conexiones;
+    }
+
+    public void setConexiones(int conexiones) {
+        if (conexiones < 1) {
+            throw new IllegalArgumentException("Se necesita al menos una conexión.");
+        }
+        this.conexiones = conexiones;
+    }
+
+    public long getTamanoSegmento() {
+        return tamanoSegmento;
+    }
+
+    public void setTamanoSegmento(long tamanoSegmento) {
+        if (tamanoSegmento < 1) {
+            throw new IllegalArgumentException("El tamaño de segmento debe ser positivo.");
+        }
+        this.tamanoSegmento = tamanoSegmento;
+    }
+}
@@ -0,0 +1,85 @@
+// Una entrada del listado de archivos del servidor: un archivo o, en los listados por páginas,
+// también un subdirectorio.
+public class EntradaArchivo {
+    private final String nombre;
+    private final long tamano;
+    private final long modificado; // Milisegundos desde la época; 0 si el servidor no lo informa
+    private final TipoArchivo tipo;
+    private final String hash; // SHA-256 del contenido en hexadecimal; null si aún no se conoce
+    private final boolean directorio;
+
+    public EntradaArchivo(String nombre, long tamano, long modificado) {
+        this(nombre, tamano, modificado, null);
+    }
+
+    public EntradaArchivo(String nombre, long tamano, long modificado, String hash) {
+        this(nombre, tamano, modificado, hash, false);
+    }
+
+    private EntradaArchivo(String nombre, long tamano, long modificado, String hash, boolean directorio) {
+        this.nombre = nombre;
+        this.tamano = tamano;
+        this.modificado = modificado;
+        this.tipo = directorio ? TipoArchivo.OTRO : TipoArchivo.desdeNombre(nombre);
+        this.hash = hash;
+        this.directorio = directorio;
+    }
+
+    // Un subdirectorio; su tamaño es siempre 0.
+    public static EntradaArchivo directorio(String nombre, long modificado) {
+        return new EntradaArchivo(nombre, 0, modificado, null, true);
+    }
+
+    // Misma entrada con el hash ya calculado.
+    public EntradaArchivo conHash(String hash) {
+        return new EntradaArchivo(nombre, tamano, modificado, hash, directorio);
+    }
+
+    // Misma entrada con otro nombre (por ejemplo, el último componente de su ruta).
+    public EntradaArchivo conNombre(String nombre) {
+        return new EntradaArchivo(nombre, tamano, modificado, hash, directorio);
+    }
+
+    // Indica si ambas entradas describen la misma versión del archivo (mismo tamaño y fecha).
+    public boolean mismaVersion(EntradaArchivo otra) {
+        return otra != null && tamano == otra.tamano && modificado == otra.modificado;
+    }
+
+    // Interpreta una línea "nombre (N bytes)" del listado del protocolo serializado.
+    public static EntradaArchivo desdeLinea(String linea) {
+        int parentesis = linea.lastIndexOf(" (");
+        String nombre = linea.substring(0, parentesis);
+        long tamano = Long.parseLong(linea.substring(parentesis + 2, linea.indexOf(' ', parentesis + 2)));
+        return new EntradaArchivo(nombre, tamano, 0);
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    public long getTamano() {
+        return tamano;
+    }
+
+    public long getModificado() {
+        return modificado;
+    }
+
+    public TipoArchivo getTipo() {
+        return tipo;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public boolean esDirectorio() {
+        return directorio;
+    }
+
+    // Los directorios se muestran como "nombre/", sin tamaño.
+    @Override
+    public String toString() {
+        return directorio ? nombre + "/" : nombre + " (" + tamano + " bytes)";
+    }
+}
@@ -1,39 +1,47 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
 
+// Pinta cada archivo como una baldosa: miniatura (o ícono del tipo) y nombre debajo. El tamaño
+// de la celda es fijo y se fija en la JList (ver 'configurar'), así que la lista no necesita
+// preguntar el tamaño de cada celda ni pintar las que no se ven.
 public class FileCellRenderer extends DefaultListCellRenderer {
-    private final Map<String, ImageIcon> iconMap = new HashMap<>();
+    public static final int TAMANO_CELDA = 100;
     private static final int ICON_SIZE = 64;
+    private static final int MAXIMO_NOMBRE = 20;
 
-    public FileCellRenderer() {
-        // Carga y escala los íconos de forma más robusta
-        ImageIcon imgIcon = loadAndScaleIcon("icons/image.png", "Imagen");
-        ImageIcon pdfIcon = loadAndScaleIcon("icons/pdf.png", "PDF");
-        ImageIcon wordIcon = loadAndScaleIcon("icons/word.png", "Word");
-        ImageIcon videoIcon = loadAndScaleIcon("icons/video.png", "Video"); // Ícono nuevo
-        ImageIcon fileIcon = loadAndScaleIcon("icons/file.png", "Archivo");
+    private final Map<TipoArchivo, ImageIcon> iconMap = new EnumMap<>(TipoArchivo.class);
+    private final ImageIcon iconoCarpeta = dibujarCarpeta();
+    private final CargadorMiniaturas miniaturas; // null = solo íconos de tipo
 
-        // Mapeo de extensiones de imagen
-        iconMap.put("jpg", imgIcon);
-        iconMap.put("jpeg", imgIcon);
-        iconMap.put("png", imgIcon);
-        iconMap.put("gif", imgIcon);
+    public FileCellRenderer() {
+        this(null);
+    }
 
-        // Mapeo de extensiones de documentos
-        iconMap.put("pdf", pdfIcon);
-        iconMap.put("doc", wordIcon);
-        iconMap.put("docx", wordIcon);
+    public FileCellRenderer(CargadorMiniaturas miniaturas) {
+        this.miniaturas = miniaturas;
+        // Carga y escala los íconos de forma más robusta. Las extensiones de cada tipo
+        // están en 'TipoArchivo'.
+        iconMap.put(TipoArchivo.IMAGEN, loadAndScaleIcon("icons/image.png", "Imagen"));
+        iconMap.put(TipoArchivo.PDF, loadAndScaleIcon("icons/pdf.png", "PDF"));
+        iconMap.put(TipoArchivo.WORD, loadAndScaleIcon("icons/word.png", "Word"));
+        iconMap.put(TipoArchivo.VIDEO, loadAndScaleIcon("icons/video.png", "Video"));
+        iconMap.put(TipoArchivo.OTRO, loadAndScaleIcon("icons/file.png", "Archivo"));
+        setHorizontalTextPosition(JLabel.CENTER);
+        setVerticalTextPosition(JLabel.BOTTOM);
+        setHorizontalAlignment(JLabel.CENTER);
+    }
 
-        // Mapeo de extensiones de video (NUEVO)
-        iconMap.put("mp4", videoIcon);
-        iconMap.put("webm", videoIcon);
-        iconMap.put("mkv", videoIcon);
-        iconMap.put("avi", videoIcon);
-        
-        iconMap.put("other", fileIcon);
+    // Prepara la lista para mostrar baldosas de tamaño fijo con este renderer.
+    public void configurar(JList<String> lista) {
+        lista.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        lista.setVisibleRowCount(-1);
+        lista.setFixedCellWidth(TAMANO_CELDA);
+        lista.setFixedCellHeight(TAMANO_CELDA);
+        lista.setCellRenderer(this);
     }
 
     private ImageIcon loadAndScaleIcon(String path, String description) {
@@ -49,41 +57,50 @@ public class FileCellRenderer extends DefaultListCellRenderer {
         return new ImageIcon(scaledImg);
     }
 
+    // El ícono de los directorios se dibuja aquí en lugar de cargarse de 'icons'.
+    private static ImageIcon dibujarCarpeta() {
+        BufferedImage imagen = new BufferedImage(ICON_SIZE, ICON_SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = imagen.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(new Color(0xE0A526));
+        g.fillRoundRect(4, 12, 26, 12, 6, 6);   // Pestaña
+        g.setColor(new Color(0xF4C04E));
+        g.fillRoundRect(4, 18, 56, 38, 8, 8);   // Cuerpo
+        g.dispose();
+        return new ImageIcon(imagen);
+    }
+
+    // Se llama en cada repintado, así que no hace nada costoso: el texto es plano (sin HTML,
+    // que obligaría a analizarlo cada vez) y la miniatura sale de la caché o se pide en segundo plano.
+    // Los valores son rutas completas ("fotos/playa.jpg (N bytes)", o "fotos/2024/" si es un
+    // directorio) pero solo se muestra el último componente.
     @Override
     public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
         JLabel label = (JLabel) super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
         
         String fileName = (String) value;
-        String extension = getFileExtension(fileName);
+        boolean directorio = fileName.endsWith("/");
+        String ruta = directorio ? fileName.substring(0, fileName.length() - 1) : fileName.split(" \\(")[0];
+        String visible = fileName.substring(ruta.lastIndexOf('/') + 1);
+        TipoArchivo tipo = TipoArchivo.desdeNombre(ruta);
         
-        ImageIcon icon = iconMap.getOrDefault(extension, iconMap.get("other"));
+        ImageIcon icon = directorio ? iconoCarpeta
+                : tipo == TipoArchivo.IMAGEN && miniaturas != null ? miniaturas.obtener(fileName) : null;
+        if (icon == null) icon = iconMap.get(tipo);
         if (icon == null) {
             // Si un ícono falló al cargar, usa el de 'otro' como respaldo.
-            icon = iconMap.get("other");
+            icon = iconMap.get(TipoArchivo.OTRO);
         }
         label.setIcon(icon);
-        
-        label.setHorizontalTextPosition(JLabel.CENTER);
-        label.setVerticalTextPosition(JLabel.BOTTOM);
-        label.setText("<html><center>" + getShortenedFileName(fileName) + "</center></html>");
-        label.setHorizontalAlignment(JLabel.CENTER);
-        label.setPreferredSize(new Dimension(100, 100));
+        label.setText(getShortenedFileName(visible));
         
         return label;
     }
     
     private String getShortenedFileName(String fileName) {
-        if (fileName.length() > 20) {
-            return fileName.substring(0, 17) + "...";
+        if (fileName.length() > MAXIMO_NOMBRE) {
+            return fileName.substring(0, MAXIMO_NOMBRE - 3) + "...";
         }
         return fileName;
     }
-
-    private String getFileExtension(String fileName) {
-        int dotIndex = fileName.lastIndexOf('.');
-        if (dotIndex > 0 && dotIndex < fileName.length() - 1) {
-            return fileName.substring(dotIndex + 1).toLowerCase();
-        }
-        return "";
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,508 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Generador de carga sin interfaz: N clientes simulados, cada uno con su propia conexión
+// ('Cliente'), ejecutan contra un servidor una mezcla configurable de listados, descargas de
+// archivos pequeños y grandes y miniaturas. Cada intervalo informa del caudal, los errores y
+// los percentiles de latencia, en texto y opcionalmente en CSV; al final, un resumen por tipo.
+//
+// Hay dos modos de llegada:
+//  - Bucle cerrado (por defecto): cada cliente pide la siguiente operación cuando termina la
+//    anterior (más una pausa opcional). Mide cuánto aguanta el servidor con N usuarios activos.
+//  - Bucle abierto (--tasa R): llegan R operaciones por segundo, repartidas entre los clientes,
+//    aunque el servidor vaya con retraso. La latencia se mide desde el instante en que debía
+//    empezar cada operación, así que las esperas en cola cuentan (no hay omisión coordinada).
+//
+// Uso: java GeneradorCarga [--host H] [--puerto P] [--clientes N] [--duracion S]
+//          [--calentamiento S] [--intervalo S] [--mezcla listar=40,pequeno=40,grande=10,miniatura=10]
+//          [--tasa R | --pausa MS] [--umbral-grande-kb KB] [--sin-compresion] [--csv archivo]
+//          [--servidor directorio [--motor hilos|nio]]
+// Con --servidor se arranca un servidor en este mismo proceso (cómodo para pruebas rápidas,
+// aunque comparte CPU con los clientes; para dimensionar conviene un servidor aparte).
+public class GeneradorCarga {
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final int TAMANO_MINIATURA = 128;
+
+    enum TipoOperacion {
+        LISTAR("listar"), PEQUENO("pequeno"), GRANDE("grande"), MINIATURA("miniatura");
+
+        final String nombre;
+
+        TipoOperacion(String nombre) {
+            this.nombre = nombre;
+        }
+
+        static TipoOperacion desdeNombre(String nombre) {
+            for (TipoOperacion tipo : values()) {
+                if (tipo.nombre.equals(nombre)) return tipo;
+            }
+            throw new IllegalArgumentException("Operación desconocida en la mezcla: " + nombre);
+        }
+    }
+
+    // --- Opciones ---
+    private String host = "localhost";
+    private int puerto = ConfiguracionServidor.PUERTO_POR_DEFECTO;
+    private int clientes = 16;
+    private int duracionSegundos = 60;
+    private int calentamientoSegundos = 0;
+    private int intervaloSegundos = 1;
+    private final Map<TipoOperacion, Integer> mezcla = new EnumMap<>(TipoOperacion.class);
+    private double tasa; // Operaciones por segundo en bucle abierto; 0 = bucle cerrado
+    private long pausaMillis; // Tiempo de reflexión entre operaciones en bucle cerrado
+    private long umbralGrande = 1024 * 1024;
+    private boolean compresion = true;
+    private File csv;
+    private File directorioServidor;
+    private String motor = "hilos";
+
+    // --- Catálogo de archivos del servidor, por tipo de operación ---
+    private final List<EntradaArchivo> pequenos = new ArrayList<>();
+    private final List<EntradaArchivo> grandes = new ArrayList<>();
+    private final List<EntradaArchivo> imagenes = new ArrayList<>();
+    private int pesoTotal;
+
+    // --- Medición ---
+    private final AtomicReference<Ventana> ventana = new AtomicReference<>(new Ventana());
+    private final Map<TipoOperacion, Acumulado> totales = new EnumMap<>(TipoOperacion.class);
+    private final AtomicInteger enCurso = new AtomicInteger();
+    private volatile boolean midiendo;
+    private volatile boolean activo = true;
+
+    public GeneradorCarga() {
+        mezcla.put(TipoOperacion.LISTAR, 40);
+        mezcla.put(TipoOperacion.PEQUENO, 40);
+        mezcla.put(TipoOperacion.GRANDE, 10);
+        mezcla.put(TipoOperacion.MINIATURA, 10);
+        for (TipoOperacion tipo : TipoOperacion.values()) {
+            totales.put(tipo, new Acumulado());
+        }
+    }
+
+    // Lo que ocurre en un intervalo del informe. Se sustituye entera al final de cada uno.
+    private static final class Ventana {
+        final HistogramaLatencias latencias = new HistogramaLatencias();
+        final LongAdder errores = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    // Lo que ocurre en toda la medición para un tipo de operación.
+    private static final class Acumulado {
+        final HistogramaLatencias latencias = new HistogramaLatencias();
+        final LongAdder errores = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        volatile String ultimoError;
+    }
+
+    public static void main(String[] args) {
+        GeneradorCarga generador = new GeneradorCarga();
+        try {
+            generador.leerArgumentos(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        System.exit(generador.ejecutar() ? 0 : 1);
+    }
+
+    private void leerArgumentos(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String opcion = args[i];
+            if (opcion.equals("--sin-compresion")) {
+                compresion = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Falta el valor de la opción " + opcion);
+            }
+            String valor = args[++i];
+            switch (opcion) {
+                case "--host": host = valor; break;
+                case "--puerto": puerto = Integer.parseInt(valor); break;
+                case "--clientes": clientes = positivo(opcion, Integer.parseInt(valor)); break;
+                case "--duracion": duracionSegundos = positivo(opcion, Integer.parseInt(valor)); break;
+                case "--calentamiento": calentamientoSegundos = Integer.parseInt(valor); break;
+                case "--intervalo": intervaloSegundos = positivo(opcion, Integer.parseInt(valor)); break;
+                case "--mezcla": leerMezcla(valor); break;
+                case "--tasa": tasa = Double.parseDouble(valor); break;
+                case "--pausa": pausaMillis = Long.parseLong(valor); break;
+                case "--umbral-grande-kb": umbralGrande = Long.parseLong(valor) * 1024; break;
+                case "--csv": csv = new File(valor); break;
+                case "--servidor": directorioServidor = new File(valor); break;
+                case "--motor": motor = valor; break;
+                default: throw new IllegalArgumentException("Opción desconocida: " + opcion);
+            }
+        }
+    }
+
+    private static int positivo(String opcion, int valor) {
+        if (valor < 1) {
+            throw new IllegalArgumentException("El valor de " + opcion + " debe ser al menos 1.");
+        }
+        return valor;
+    }
+
+    // "listar=40,pequeno=40,grande=10,miniatura=10"; los tipos que no aparecen no se ejecutan.
+    private void leerMezcla(String valor) {
+        for (TipoOperacion tipo : TipoOperacion.values()) {
+            mezcla.put(tipo, 0);
+        }
+        for (String parte : valor.split(",")) {
+            String[] claveValor = parte.trim().split("=");
+            if (claveValor.length != 2) {
+                throw new IllegalArgumentException("Mezcla mal formada: " + valor);
+            }
+            mezcla.put(TipoOperacion.desdeNombre(claveValor[0].trim()), Integer.parseInt(claveValor[1].trim()));
+        }
+    }
+
+    private boolean ejecutar() {
+        MotorServidor servidor = null;
+        List<ClienteSimulado> simulados = new ArrayList<>();
+        try (PrintWriter salidaCsv = csv == null ? null : new PrintWriter(Files.newBufferedWriter(csv.toPath()))) {
+            if (directorioServidor != null) {
+                servidor = iniciarServidor();
+                puerto = servidor.getPuerto();
+            }
+            if (!prepararCatalogo()) {
+                return false;
+            }
+            for (int i = 0; i < clientes; i++) {
+                simulados.add(new ClienteSimulado(i + 1));
+            }
+            System.out.printf("%d clientes contra %s:%d durante %d s (%s).%n", clientes, host, puerto, duracionSegundos,
+                    tasa > 0 ? String.format(Locale.ROOT, "bucle abierto, %.1f op/s", tasa) : "bucle cerrado");
+            if (salidaCsv != null) {
+                salidaCsv.println("segundo,operaciones,ops_s,errores,mb_s,en_curso,p50_us,p90_us,p99_us,p999_us,max_us");
+            }
+
+            ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor();
+            if (tasa > 0) {
+                hilos.execute(() -> generarLlegadas(simulados, hilos));
+            } else {
+                for (ClienteSimulado simulado : simulados) {
+                    hilos.execute(() -> bucleCerrado(simulado));
+                }
+            }
+            informarPeriodicamente(salidaCsv);
+            activo = false;
+            hilos.shutdown();
+            if (!hilos.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("Algunas operaciones seguían en curso al terminar.");
+            }
+            return imprimirResumen();
+        } catch (IOException e) {
+            System.err.println("Error en la prueba de carga: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            for (ClienteSimulado simulado : simulados) {
+                simulado.cerrar();
+            }
+            if (servidor != null) servidor.detener();
+        }
+    }
+
+    private MotorServidor iniciarServidor() throws IOException {
+        ConfiguracionServidor config = new ConfiguracionServidor();
+        config.setPuerto(0);
+        config.setDirectorioArchivos(directorioServidor);
+        config.setMotor(motor);
+        MotorServidor servidor = config.crearMotor();
+        servidor.iniciar();
+        Thread aceptador = new Thread(servidor::aceptarConexiones, "carga-servidor");
+        aceptador.setDaemon(true);
+        aceptador.start();
+        return servidor;
+    }
+
+    // Lista el servidor una vez y reparte sus archivos entre las operaciones. Los tipos sin
+    // archivos con los que trabajar se quitan de la mezcla.
+    private boolean prepararCatalogo() {
+        Cliente sonda = new Cliente();
+        if (!sonda.conectar(host, puerto)) {
+            System.err.println("No se pudo conectar con " + host + ":" + puerto + ".");
+            return false;
+        }
+        try {
+            for (EntradaArchivo entrada : sonda.listarEntradas()) {
+                if (entrada.getTamano() == 0) continue;
+                (entrada.getTamano() < umbralGrande ? pequenos : grandes).add(entrada);
+                if (entrada.getTipo() == TipoArchivo.IMAGEN) imagenes.add(entrada);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("No se pudo listar el servidor: " + e.getMessage());
+            return false;
+        } finally {
+            sonda.desconectar();
+        }
+        quitarSiVacio(TipoOperacion.PEQUENO, pequenos, "archivos de menos de " + umbralGrande / 1024 + " KB");
+        quitarSiVacio(TipoOperacion.GRANDE, grandes, "archivos de " + umbralGrande / 1024 + " KB o más");
+        quitarSiVacio(TipoOperacion.MINIATURA, imagenes, "imágenes");
+        for (int peso : mezcla.values()) {
+            pesoTotal += peso;
+        }
+        if (pesoTotal == 0) {
+            System.err.println("La mezcla no tiene ninguna operación que ejecutar.");
+            return false;
+        }
+        return true;
+    }
+
+    private void quitarSiVacio(TipoOperacion tipo, List<EntradaArchivo> archivos, String descripcion) {
+        if (archivos.isEmpty() && mezcla.get(tipo) > 0) {
+            System.err.println("El servidor no tiene " + descripcion + ": se omite '" + tipo.nombre + "' de la mezcla.");
+            mezcla.put(tipo, 0);
+        }
+    }
+
+    private TipoOperacion elegirOperacion() {
+        int valor = ThreadLocalRandom.current().nextInt(pesoTotal);
+        for (Map.Entry<TipoOperacion, Integer> entrada : mezcla.entrySet()) {
+            valor -= entrada.getValue();
+            if (valor < 0) return entrada.getKey();
+        }
+        throw new IllegalStateException(); // No se alcanza: los pesos suman pesoTotal
+    }
+
+    private static EntradaArchivo elegirArchivo(List<EntradaArchivo> archivos) {
+        return archivos.get(ThreadLocalRandom.current().nextInt(archivos.size()));
+    }
+
+    // --- Generación de la carga ---
+
+    private void bucleCerrado(ClienteSimulado simulado) {
+        while (activo) {
+            long inicio = System.nanoTime();
+            enCurso.incrementAndGet();
+            simulado.ejecutar(elegirOperacion(), inicio);
+            if (pausaMillis > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pausaMillis));
+            }
+        }
+    }
+
+    // Cada llegada tiene su instante programado. Si el generador se retrasa (pausa del GC, por
+    // ejemplo) las pendientes salen de golpe, como llegarían clientes reales. Para no acumular
+    // hilos sin límite con un servidor saturado, por encima de lo que caben en los canales de
+    // todas las conexiones las llegadas se cuentan como error.
+    private void generarLlegadas(List<ClienteSimulado> simulados, ExecutorService hilos) {
+        long periodo = (long) (1e9 / tasa);
+        long maximoEnCurso = (long) simulados.size() * Protocolo.MAXIMO_CANALES;
+        long programada = System.nanoTime();
+        for (long n = 0; activo; n++) {
+            long espera = programada - System.nanoTime();
+            if (espera > 0) {
+                LockSupport.parkNanos(espera);
+                continue;
+            }
+            TipoOperacion tipo = elegirOperacion();
+            if (enCurso.incrementAndGet() > maximoEnCurso) {
+                enCurso.decrementAndGet();
+                registrarError(tipo, "Demasiadas operaciones en curso (el servidor no da abasto).");
+            } else {
+                ClienteSimulado simulado = simulados.get((int) (n % simulados.size()));
+                long inicio = programada;
+                hilos.execute(() -> simulado.ejecutar(tipo, inicio));
+            }
+            programada += periodo;
+        }
+    }
+
+    private void registrar(TipoOperacion tipo, long nanos, long bytes) {
+        if (!midiendo) return;
+        Ventana actual = ventana.get();
+        actual.latencias.registrarNanos(nanos);
+        actual.bytes.add(bytes);
+        Acumulado total = totales.get(tipo);
+        total.latencias.registrarNanos(nanos);
+        total.bytes.add(bytes);
+    }
+
+    private void registrarError(TipoOperacion tipo, String mensaje) {
+        if (!midiendo) return;
+        ventana.get().errores.increment();
+        Acumulado total = totales.get(tipo);
+        total.errores.increment();
+        total.ultimoError = mensaje;
+    }
+
+    // Un usuario simulado con su propia conexión. Si la conexión se cae, la siguiente
+    // operación vuelve a conectar. Las descargas se escriben sobre un temporal que se reutiliza.
+    private final class ClienteSimulado {
+        private final int id;
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final File temporal;
+        private final FileChannel destino;
+        private Cliente cliente;
+        private boolean roto = true;
+
+        ClienteSimulado(int id) throws IOException {
+            this.id = id;
+            this.temporal = File.createTempFile("carga-" + id + "-", ".bin");
+            temporal.deleteOnExit();
+            this.destino = FileChannel.open(temporal.toPath(), StandardOpenOption.WRITE);
+        }
+
+        void ejecutar(TipoOperacion tipo, long inicio) {
+            Cliente actual = null;
+            try {
+                actual = conexion();
+                long bytes = operar(actual, tipo);
+                registrar(tipo, System.nanoTime() - inicio, bytes);
+            } catch (FileNotFoundException e) {
+                registrarError(tipo, e.getMessage()); // El archivo desapareció; la conexión sigue bien
+            } catch (Exception e) {
+                registrarError(tipo, e.getClass().getSimpleName() + ": " + e.getMessage());
+                marcarRoto(actual);
+            } finally {
+                enCurso.decrementAndGet();
+            }
+        }
+
+        private long operar(Cliente actual, TipoOperacion tipo) throws IOException, ClassNotFoundException {
+            switch (tipo) {
+                case LISTAR:
+                    actual.listarEntradas();
+                    return 0;
+                case PEQUENO:
+                case GRANDE: {
+                    // Se pide el archivo entero como rango: siempre se transfiere, mientras que
+                    // una descarga normal acabaría respondiéndose con "no modificado".
+                    EntradaArchivo archivo = elegirArchivo(tipo == TipoOperacion.PEQUENO ? pequenos : grandes);
+                    actual.descargarRango(archivo.getNombre(), 0, archivo.getTamano(), archivo.getTamano(),
+                            archivo.getModificado(), destino, ProgresoDescarga.NINGUNO);
+                    return archivo.getTamano();
+                }
+                default: {
+                    EntradaArchivo imagen = elegirArchivo(imagenes);
+                    actual.obtenerMiniatura(imagen.getNombre(), TAMANO_MINIATURA);
+                    return 0;
+                }
+            }
+        }
+
+        private Cliente conexion() throws IOException {
+            cerrojo.lock();
+            try {
+                if (roto) {
+                    if (cliente != null) cliente.desconectar();
+                    cliente = new Cliente();
+                    cliente.setCompresion(compresion);
+                    if (!cliente.conectar(host, puerto)) {
+                        cliente = null;
+                        throw new IOException("El cliente " + id + " no pudo conectar con " + host + ":" + puerto + ".");
+                    }
+                    roto = false;
+                }
+                return cliente;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        // Solo se reconecta una vez aunque fallen a la vez varias operaciones de la misma conexión.
+        private void marcarRoto(Cliente fallido) {
+            cerrojo.lock();
+            try {
+                if (fallido == null || fallido == cliente) roto = true;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        void cerrar() {
+            if (cliente != null) cliente.desconectar();
+            try {
+                destino.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+            temporal.delete();
+        }
+    }
+
+    // --- Informes ---
+
+    // Espera el calentamiento y luego imprime una línea por intervalo hasta agotar la duración.
+    private void informarPeriodicamente(PrintWriter salidaCsv) throws InterruptedException {
+        if (calentamientoSegundos > 0) {
+            System.out.println("Calentando durante " + calentamientoSegundos + " s...");
+            Thread.sleep(calentamientoSegundos * 1000L);
+        }
+        ventana.set(new Ventana());
+        midiendo = true;
+        System.out.printf("%7s %9s %8s %9s %8s %9s %9s %9s %9s %9s%n",
+                "t(s)", "op/s", "errores", "MB/s", "en curso", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "máx ms");
+        long inicio = System.nanoTime();
+        long siguiente = inicio;
+        long fin = inicio + TimeUnit.SECONDS.toNanos(duracionSegundos);
+        while (siguiente < fin) {
+            siguiente = Math.min(fin, siguiente + TimeUnit.SECONDS.toNanos(intervaloSegundos));
+            TimeUnit.NANOSECONDS.sleep(siguiente - System.nanoTime());
+            Ventana terminada = ventana.getAndSet(new Ventana());
+            imprimirIntervalo(terminada, (siguiente - inicio) / 1e9, intervaloSegundos, salidaCsv);
+        }
+        midiendo = false;
+    }
+
+    private void imprimirIntervalo(Ventana terminada, double segundo, double duracion, PrintWriter salidaCsv) {
+        long operaciones = terminada.latencias.getCuenta();
+        long errores = terminada.errores.sum();
+        double megabytes = terminada.bytes.sum() / 1e6 / duracion;
+        long[] p = terminada.latencias.percentiles(PERCENTILES);
+        long maximo = terminada.latencias.getMaximoMicros();
+        System.out.printf(Locale.ROOT, "%7.0f %9.1f %8d %9.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", segundo,
+                operaciones / duracion, errores, megabytes, enCurso.get(),
+                p[0] / 1e3, p[1] / 1e3, p[2] / 1e3, p[3] / 1e3, maximo / 1e3);
+        if (salidaCsv != null) {
+            salidaCsv.printf(Locale.ROOT, "%.0f,%d,%.3f,%d,%.3f,%d,%d,%d,%d,%d,%d%n", segundo, operaciones,
+                    operaciones / duracion, errores, megabytes, enCurso.get(), p[0], p[1], p[2], p[3], maximo);
+            salidaCsv.flush();
+        }
+    }
+
+    // Devuelve false si hubo errores, para poder usar el generador en scripts.
+    private boolean imprimirResumen() {
+        System.out.println("\n--- Resumen (" + duracionSegundos + " s medidos) ---");
+        System.out.printf("%-10s %10s %8s %9s %9s %9s %9s %9s %9s%n",
+                "operación", "total", "errores", "MB/s", "media ms", "p50 ms", "p99 ms", "p99.9 ms", "máx ms");
+        long erroresTotales = 0;
+        for (Map.Entry<TipoOperacion, Acumulado> entrada : totales.entrySet()) {
+            Acumulado total = entrada.getValue();
+            long errores = total.errores.sum();
+            if (total.latencias.getCuenta() == 0 && errores == 0) continue;
+            erroresTotales += errores;
+            long[] p = total.latencias.percentiles(PERCENTILES);
+            System.out.printf(Locale.ROOT, "%-10s %10d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entrada.getKey().nombre,
+                    total.latencias.getCuenta(), errores, total.bytes.sum() / 1e6 / duracionSegundos,
+                    total.latencias.getMediaMicros() / 1e3, p[0] / 1e3, p[2] / 1e3, p[3] / 1e3,
+                    total.latencias.getMaximoMicros() / 1e3);
+            if (total.ultimoError != null) {
+                System.out.println("           último error: " + total.ultimoError);
+            }
+        }
+        return erroresTotales == 0;
+    }
+}
@@ -0,0 +1,545 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Índice en memoria del directorio compartido y de todos sus subdirectorios. Se construye al
+// arrancar el servidor y se mantiene al día con un WatchService (una clave por directorio),
+// así que listar no recorre el disco ni consulta el tamaño de cada archivo en cada solicitud.
+// Cada cambio publica una 'Instantanea' nueva e inmutable, que todas las sesiones comparten
+// sin bloquearse. Los archivos se identifican por su ruta relativa con '/' ("fotos/a.jpg").
+//
+// El índice también lleva el hash de contenido de cada archivo. Los hashes se calculan en
+// paralelo en segundo plano (al arrancar, solo los que el manifiesto no tenga ya) y se
+// incorporan al índice en cuanto están listos; mientras tanto el listado los envía vacíos.
+public class IndiceArchivos implements Closeable {
+    private final File directorio;
+    private final WatchService vigilante;
+    private final Thread hiloVigilante;
+    private final ManifiestoHashes manifiesto;
+    private final ExecutorService calculadores; // Calculan los hashes pendientes
+    // Directorio (ruta relativa, "" para la raíz) de cada clave del vigilante.
+    private final Map<WatchKey, String> vigilados = new ConcurrentHashMap<>();
+    private volatile Instantanea actual;
+    // Si el directorio deja de poder vigilarse, cada consulta vuelve a recorrerlo.
+    private volatile boolean vigilado = true;
+
+    public IndiceArchivos(File directorio) throws IOException {
+        this.directorio = directorio;
+        this.manifiesto = new ManifiestoHashes(new File(directorio.getAbsoluteFile().getParentFile(), directorio.getName() + ".hashes"));
+        // Cada directorio se registra antes de recorrerlo para no perder cambios ocurridos entre ambos.
+        this.vigilante = directorio.toPath().getFileSystem().newWatchService();
+        this.actual = escanear(true);
+        System.out.println("Índice de archivos creado: " + actual.getEntradas().size() + " archivos en "
+                + (actual.carpetas.size() + 1) + " directorios.");
+
+        AtomicInteger contadorHilos = new AtomicInteger();
+        this.calculadores = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread hilo = new Thread(r, "hash-" + contadorHilos.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        calcularHashesPendientes(actual.getEntradas());
+
+        this.hiloVigilante = new Thread(this::vigilar, "indice-archivos");
+        hiloVigilante.setDaemon(true);
+        hiloVigilante.start();
+    }
+
+    public File getDirectorio() {
+        return directorio;
+    }
+
+    public Instantanea instantanea() {
+        return vigilado ? actual : escanear(false);
+    }
+
+    // Hash del contenido actual del archivo. Si el índice aún no lo tiene, o el archivo cambió y
+    // el vigilante todavía no se ha enterado, se calcula en el momento: quien pregunta lo
+    // necesita ya (por ejemplo, para responder a una descarga condicional).
+    public String hashDe(String nombre) throws IOException {
+        File archivo = new File(directorio, nombre);
+        if (!archivo.isFile()) {
+            return null;
+        }
+        EntradaArchivo entrada = instantanea().buscar(nombre);
+        if (entrada != null && entrada.getHash() != null
+                && entrada.mismaVersion(new EntradaArchivo(nombre, archivo.length(), archivo.lastModified()))) {
+            return entrada.getHash();
+        }
+        return ManifiestoHashes.calcular(archivo);
+    }
+
+    // Publica de inmediato un archivo recién escrito cuyo hash ya se conoce (una subida), sin
+    // esperar al vigilante ni volver a leer el contenido para calcularlo. 'nombre' es su ruta
+    // relativa. Si la subida acaba de crear su directorio (SUBIR_DELTA), ese directorio se recorre
+    // y se vigila aquí mismo, como hace el vigilante con los directorios nuevos.
+    public void incorporar(String nombre, File archivo, String hash) {
+        Instantanea nueva;
+        synchronized (this) {
+            TreeMap<String, EntradaArchivo> entradas = new TreeMap<>(actual.porNombre);
+            TreeMap<String, EntradaArchivo> carpetas = actual.carpetas;
+            String nuevaCarpeta = null; // La más alta de las que faltan en el índice
+            for (int barra = nombre.lastIndexOf('/'); barra > 0; barra = nombre.lastIndexOf('/', barra - 1)) {
+                String ruta = nombre.substring(0, barra);
+                if (carpetas.containsKey(ruta)) break;
+                nuevaCarpeta = ruta;
+            }
+            if (nuevaCarpeta != null) {
+                carpetas = new TreeMap<>(carpetas);
+                recorrer(new File(directorio, nuevaCarpeta).toPath(), entradas, carpetas, vigilado);
+            }
+            entradas.put(nombre, new EntradaArchivo(nombre, archivo.length(), archivo.lastModified(), hash));
+            nueva = new Instantanea(entradas, carpetas);
+            actual = nueva;
+        }
+        guardarManifiesto(nueva);
+    }
+
+    @Override
+    public void close() throws IOException {
+        calculadores.shutdownNow();
+        vigilante.close();
+    }
+
+    // Hilo del vigilante: agrupa todos los eventos pendientes y publica una sola instantanea
+    // por tanda, de modo que copiar un archivo grande (muchos ENTRY_MODIFY) no crea una
+    // instantanea por evento.
+    private void vigilar() {
+        try {
+            while (true) {
+                WatchKey clave = vigilante.take();
+                Set<String> cambiados = new HashSet<>();
+                boolean completo = false;
+                do {
+                    String base = vigilados.get(clave);
+                    for (WatchEvent<?> evento : clave.pollEvents()) {
+                        if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            completo = true; // Se perdieron eventos: hay que recorrer todo
+                        } else if (base != null) {
+                            String nombre = evento.context().toString();
+                            cambiados.add(base.isEmpty() ? nombre : base + "/" + nombre);
+                        }
+                    }
+                    if (!clave.reset()) {
+                        vigilados.remove(clave);
+                        if ("".equals(base)) {
+                            System.err.println("El directorio '" + directorio + "' dejó de estar vigilado; se recorrerá en cada listado.");
+                            vigilado = false;
+                            return;
+                        }
+                        // Un subdirectorio borrado: su evento ENTRY_DELETE lo quita del índice.
+                    }
+                } while ((clave = vigilante.poll()) != null);
+
+                List<EntradaArchivo> sinHash = new ArrayList<>();
+                synchronized (this) {
+                    Instantanea anterior = actual;
+                    actual = completo ? escanear(true) : actualizar(anterior, cambiados);
+                    // Los archivos nuevos o cambiados (incluidos los de un directorio recién
+                    // creado) son entradas distintas de las de la instantanea anterior.
+                    for (EntradaArchivo entrada : actual.getEntradas()) {
+                        if (entrada.getHash() == null && (completo || entrada != anterior.buscar(entrada.getNombre()))) {
+                            sinHash.add(entrada);
+                        }
+                    }
+                }
+                calcularHashesPendientes(sinHash);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // El servidor se está deteniendo
+        }
+    }
+
+    private Instantanea escanear(boolean vigilar) {
+        TreeMap<String, EntradaArchivo> archivos = new TreeMap<>();
+        TreeMap<String, EntradaArchivo> carpetas = new TreeMap<>();
+        recorrer(directorio.toPath(), archivos, carpetas, vigilar);
+        return new Instantanea(archivos, carpetas);
+    }
+
+    // Añade a los mapas todo lo que hay bajo 'inicio' y, si se pide, vigila cada directorio
+    // antes de leerlo. No se siguen los enlaces simbólicos a directorios (podrían formar
+    // ciclos), pero sí los enlaces a archivos, como en el listado de un solo nivel.
+    private void recorrer(Path inicio, Map<String, EntradaArchivo> archivos, Map<String, EntradaArchivo> carpetas, boolean vigilar) {
+        Path raiz = directorio.toPath();
+        try {
+            Files.walkFileTree(inicio, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path carpeta, BasicFileAttributes atributos) {
+                    String ruta = rutaRelativa(raiz, carpeta);
+                    if (vigilar) {
+                        try {
+                            vigilados.put(carpeta.register(vigilante, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), ruta);
+                        } catch (IOException e) {
+                            // Se sigue indexando; sin la raíz vigilada, cada consulta vuelve a recorrerla.
+                            System.err.println("No se puede vigilar '" + carpeta + "': " + e.getMessage());
+                            if (ruta.isEmpty()) vigilado = false;
+                        }
+                    }
+                    if (!ruta.isEmpty()) {
+                        carpetas.put(ruta, EntradaArchivo.directorio(ruta, atributos.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path archivo, BasicFileAttributes atributos) {
+                    if (atributos.isRegularFile() || (atributos.isSymbolicLink() && Files.isRegularFile(archivo))) {
+                        String ruta = rutaRelativa(raiz, archivo);
+                        archivos.put(ruta, leerEntrada(ruta, archivo.toFile()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path archivo, IOException e) {
+                    return FileVisitResult.CONTINUE; // Desapareció o no se puede leer
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("No se pudo recorrer '" + inicio + "': " + e.getMessage());
+        }
+    }
+
+    private static String rutaRelativa(Path raiz, Path ruta) {
+        return raiz.relativize(ruta).toString().replace(File.separatorChar, '/');
+    }
+
+    // Solo se consultan en disco las rutas mencionadas en los eventos. Un directorio nuevo se
+    // recorre entero (pudo llenarse antes de empezar a vigilarlo) y uno borrado se lleva todo
+    // lo que había debajo.
+    private Instantanea actualizar(Instantanea anterior, Set<String> cambiados) {
+        TreeMap<String, EntradaArchivo> archivos = new TreeMap<>(anterior.porNombre);
+        TreeMap<String, EntradaArchivo> carpetas = new TreeMap<>(anterior.carpetas);
+        for (String ruta : cambiados) {
+            File f = new File(directorio, ruta);
+            if (f.isFile()) {
+                quitarContenido(carpetas, ruta);
+                EntradaArchivo entrada = leerEntrada(ruta, f);
+                EntradaArchivo previa = anterior.buscar(ruta);
+                // Un evento sin cambio real (por ejemplo, un 'touch' con la misma fecha) conserva el hash.
+                archivos.put(ruta, entrada.mismaVersion(previa) && previa.getHash() != null ? previa : entrada);
+            } else if (f.isDirectory() && !carpetas.containsKey(ruta)) {
+                archivos.remove(ruta);
+                recorrer(f.toPath(), archivos, carpetas, true);
+            } else if (f.isDirectory()) {
+                carpetas.put(ruta, EntradaArchivo.directorio(ruta, f.lastModified()));
+            } else {
+                archivos.remove(ruta);
+                carpetas.remove(ruta);
+                quitarContenido(archivos, ruta);
+                quitarContenido(carpetas, ruta);
+            }
+        }
+        return new Instantanea(archivos, carpetas);
+    }
+
+    // Quita del mapa todo lo que está dentro del directorio 'ruta'. Las claves que empiezan por
+    // "ruta/" son consecutivas: '0' es el carácter que sigue a '/'.
+    private static void quitarContenido(NavigableMap<String, EntradaArchivo> mapa, String ruta) {
+        mapa.subMap(ruta + "/", ruta + "0").clear();
+    }
+
+    private EntradaArchivo leerEntrada(String ruta, File f) {
+        EntradaArchivo entrada = new EntradaArchivo(ruta, f.length(), f.lastModified());
+        String hash = manifiesto.buscar(entrada);
+        return hash != null ? entrada.conHash(hash) : entrada;
+    }
+
+    // Calcula en paralelo los hashes que faltan y los incorpora al índice todos a la vez, con
+    // una sola instantanea nueva y una sola escritura del manifiesto por tanda.
+    private void calcularHashesPendientes(Collection<EntradaArchivo> entradas) {
+        if (entradas.isEmpty() || calculadores.isShutdown()) {
+            return;
+        }
+        Thread.ofVirtual().name("hashes-pendientes").start(() -> {
+            List<Future<EntradaArchivo>> tareas = new ArrayList<>();
+            for (EntradaArchivo entrada : entradas) {
+                tareas.add(calculadores.submit(() -> entrada.conHash(ManifiestoHashes.calcular(new File(directorio, entrada.getNombre())))));
+            }
+            List<EntradaArchivo> calculadas = new ArrayList<>();
+            for (Future<EntradaArchivo> tarea : tareas) {
+                try {
+                    calculadas.add(tarea.get());
+                } catch (ExecutionException e) {
+                    // El archivo desapareció o no se puede leer; se ignora hasta el próximo cambio.
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            incorporarHashes(calculadas);
+        });
+    }
+
+    private void incorporarHashes(List<EntradaArchivo> calculadas) {
+        Instantanea nueva;
+        synchronized (this) {
+            TreeMap<String, EntradaArchivo> entradas = new TreeMap<>(actual.porNombre);
+            for (EntradaArchivo calculada : calculadas) {
+                // Si el archivo cambió mientras se calculaba, el hash ya no sirve.
+                if (calculada.mismaVersion(entradas.get(calculada.getNombre()))) {
+                    entradas.put(calculada.getNombre(), calculada);
+                }
+            }
+            nueva = new Instantanea(entradas, actual.carpetas);
+            actual = nueva;
+        }
+        guardarManifiesto(nueva);
+    }
+
+    private void guardarManifiesto(Instantanea instantanea) {
+        try {
+            manifiesto.guardar(instantanea.getEntradas());
+        } catch (IOException e) {
+            System.err.println("No se pudo guardar el manifiesto de hashes: " + e.getMessage());
+        }
+    }
+
+    // Estado del directorio en un momento dado. Los listados no se preparan al publicarla sino
+    // la primera vez que alguien los pide, y se guardan para las siguientes: si el directorio
+    // cambia a menudo, cada cambio no paga codificar listados que quizá nadie llegue a pedir.
+    public static final class Instantanea {
+        private final TreeMap<String, EntradaArchivo> porNombre; // Archivos, por ruta relativa
+        private final TreeMap<String, EntradaArchivo> carpetas;  // Subdirectorios, por ruta relativa
+        private final Map<String, EntradaArchivo> porHash;
+        private final List<EntradaArchivo> entradas;
+        private final Map<String, Carpeta> contenidos = new ConcurrentHashMap<>();
+        private volatile ListasRaiz listasRaiz;
+        private volatile IndiceBusqueda busqueda;
+
+        private Instantanea(TreeMap<String, EntradaArchivo> porNombre, TreeMap<String, EntradaArchivo> carpetas) {
+            this.porNombre = porNombre;
+            this.carpetas = carpetas;
+            this.entradas = Collections.unmodifiableList(new ArrayList<>(porNombre.values()));
+            this.porHash = new HashMap<>();
+            for (EntradaArchivo entrada : entradas) {
+                if (entrada.getHash() != null) porHash.putIfAbsent(entrada.getHash(), entrada);
+            }
+        }
+
+        // Instantanea de un listado que no sale de este directorio: los archivos del nivel
+        // superior de otro servidor ('ProxyCache'), para codificar sus listados.
+        public static Instantanea deArchivos(Collection<EntradaArchivo> archivos) {
+            TreeMap<String, EntradaArchivo> porNombre = new TreeMap<>();
+            for (EntradaArchivo entrada : archivos) {
+                porNombre.put(entrada.getNombre(), entrada);
+            }
+            return new Instantanea(porNombre, new TreeMap<>());
+        }
+
+        // Todos los archivos, de todos los directorios, ordenados por ruta.
+        public List<EntradaArchivo> getEntradas() {
+            return entradas;
+        }
+
+        public EntradaArchivo buscar(String nombre) {
+            return porNombre.get(nombre);
+        }
+
+        // Algún archivo con ese contenido, o null si no hay ninguno (o aún no se calculó su hash).
+        public EntradaArchivo buscarPorHash(String hash) {
+            return porHash.get(hash);
+        }
+
+        // Trama LISTA completa para la versión de protocolo acordada; cada llamada devuelve
+        // una vista con su propia posición. Solo incluye los archivos del nivel superior.
+        public ByteBuffer getListaBinaria(int version) {
+            ListasRaiz listas = listasRaiz();
+            return (version >= 2 ? listas.binaria : listas.binariaV1).duplicate();
+        }
+
+        // Mensaje de LISTAR_ARCHIVOS del protocolo serializado (también solo el nivel superior).
+        public String getListaSerializada() {
+            return listasRaiz().serializada;
+        }
+
+        // Hasta 'maximo' entradas del directorio 'ruta' ("" = raíz) a partir de la que sigue al
+        // 'cursor' ("" = desde el principio), en el orden pedido. Devuelve null si el directorio
+        // no existe; un cursor mal formado lanza IllegalArgumentException.
+        public PaginaListado pagina(String ruta, int orden, boolean descendente, String cursor, int maximo) {
+            if (!ruta.isEmpty() && !carpetas.containsKey(ruta)) {
+                return null;
+            }
+            EntradaArchivo[] ordenadas = contenido(ruta).ordenadas(orden, descendente);
+            Comparator<EntradaArchivo> comparador = PaginaListado.comparador(orden, descendente);
+            int desde = cursor.isEmpty() ? 0 : siguienteA(ordenadas, Cursor.leer(cursor, orden), comparador);
+            int hasta = (int) Math.min(ordenadas.length, (long) desde + maximo);
+            List<EntradaArchivo> pagina = Arrays.asList(ordenadas).subList(desde, hasta);
+            String siguiente = hasta < ordenadas.length ? Cursor.de(ordenadas[hasta - 1], orden) : "";
+            return new PaginaListado(ruta, pagina, ordenadas.length, siguiente);
+        }
+
+        // Primera posición cuya entrada va después de 'ultima' (búsqueda binaria).
+        private static int siguienteA(EntradaArchivo[] ordenadas, EntradaArchivo ultima, Comparator<EntradaArchivo> comparador) {
+            int bajo = 0;
+            int alto = ordenadas.length;
+            while (bajo < alto) {
+                int medio = (bajo + alto) >>> 1;
+                if (comparador.compare(ordenadas[medio], ultima) <= 0) {
+                    bajo = medio + 1;
+                } else {
+                    alto = medio;
+                }
+            }
+            return bajo;
+        }
+
+        // Los primeros 'maximo' archivos que cumplen la consulta, o null si el directorio de la
+        // consulta no existe. Los índices de búsqueda se construyen la primera vez que se piden.
+        public ConsultaBusqueda.Resultado buscar(ConsultaBusqueda consulta, int maximo) {
+            String directorio = consulta.getDirectorio();
+            if (!directorio.isEmpty() && !carpetas.containsKey(directorio)) {
+                return null;
+            }
+            IndiceBusqueda indice = busqueda;
+            if (indice == null) {
+                // Como con 'listasRaiz', dos búsquedas simultáneas pueden construirlo las dos.
+                indice = new IndiceBusqueda(porNombre.values());
+                busqueda = indice;
+            }
+            return indice.buscar(consulta, maximo);
+        }
+
+        private Carpeta contenido(String ruta) {
+            Carpeta carpeta = contenidos.get(ruta);
+            return carpeta != null ? carpeta : contenidos.computeIfAbsent(ruta, r -> new Carpeta(porNombre, carpetas, r));
+        }
+
+        private ListasRaiz listasRaiz() {
+            ListasRaiz listas = listasRaiz;
+            if (listas == null) {
+                // Si dos sesiones lo piden a la vez ambas lo calculan; da igual cuál se quede.
+                listas = new ListasRaiz(contenido("").archivos());
+                listasRaiz = listas;
+            }
+            return listas;
+        }
+    }
+
+    // Listado del nivel superior codificado para cada versión del protocolo binario y para el
+    // protocolo serializado.
+    private static final class ListasRaiz {
+        final ByteBuffer binariaV1;
+        final ByteBuffer binaria;
+        final String serializada;
+
+        ListasRaiz(List<EntradaArchivo> archivos) {
+            Protocolo.ConstructorTrama listaV1 = new Protocolo.ConstructorTrama(Protocolo.LISTA).varint(archivos.size());
+            Protocolo.ConstructorTrama lista = new Protocolo.ConstructorTrama(Protocolo.LISTA).varint(archivos.size());
+            StringBuilder texto = new StringBuilder("--- Archivos Disponibles ---\n");
+            for (EntradaArchivo entrada : archivos) {
+                listaV1.cadena(entrada.getNombre()).varint(entrada.getTamano()).varint(entrada.getModificado());
+                lista.cadena(entrada.getNombre()).varint(entrada.getTamano()).varint(entrada.getModificado())
+                        .cadena(entrada.getHash() != null ? entrada.getHash() : "");
+                texto.append("- ").append(entrada.getNombre()).append(" (" + entrada.getTamano() + " bytes)\n");
+            }
+            this.binariaV1 = listaV1.terminar().asReadOnlyBuffer();
+            this.binaria = lista.terminar().asReadOnlyBuffer();
+            this.serializada = archivos.isEmpty() ? "No hay archivos disponibles en el servidor." : texto.toString();
+        }
+    }
+
+    // Contenido inmediato de un directorio: primero sus subdirectorios y después sus archivos,
+    // cada grupo por nombre, con el nombre reducido al último componente de la ruta. Cada orden
+    // se calcula una sola vez por instantanea, la primera vez que se pide.
+    private static final class Carpeta {
+        final EntradaArchivo[] porNombre;
+        final int subdirectorios;
+        final Map<Integer, EntradaArchivo[]> ordenes = new ConcurrentHashMap<>();
+
+        Carpeta(NavigableMap<String, EntradaArchivo> archivos, NavigableMap<String, EntradaArchivo> carpetas, String ruta) {
+            String prefijo = ruta.isEmpty() ? "" : ruta + "/";
+            List<EntradaArchivo> hijos = new ArrayList<>();
+            agregarHijos(carpetas, prefijo, hijos);
+            this.subdirectorios = hijos.size();
+            agregarHijos(archivos, prefijo, hijos);
+            this.porNombre = hijos.toArray(new EntradaArchivo[0]);
+        }
+
+        // Las entradas que cuelgan directamente de 'prefijo'. Al encontrar una más profunda se
+        // salta de golpe todo su subdirectorio, así que el coste depende del número de hijos y
+        // no del de descendientes.
+        private static void agregarHijos(NavigableMap<String, EntradaArchivo> mapa, String prefijo, List<EntradaArchivo> hijos) {
+            String clave = mapa.ceilingKey(prefijo);
+            while (clave != null && clave.startsWith(prefijo)) {
+                int barra = clave.indexOf('/', prefijo.length());
+                if (barra < 0) {
+                    hijos.add(mapa.get(clave).conNombre(clave.substring(prefijo.length())));
+                    clave = mapa.higherKey(clave);
+                } else {
+                    clave = mapa.ceilingKey(clave.substring(0, barra) + "0");
+                }
+            }
+        }
+
+        List<EntradaArchivo> archivos() {
+            return Arrays.asList(porNombre).subList(subdirectorios, porNombre.length);
+        }
+
+        EntradaArchivo[] ordenadas(int orden, boolean descendente) {
+            if (orden == Protocolo.ORDEN_NOMBRE && !descendente) {
+                return porNombre;
+            }
+            return ordenes.computeIfAbsent(orden * 2 + (descendente ? 1 : 0), clave -> {
+                EntradaArchivo[] copia = porNombre.clone();
+                Arrays.sort(copia, PaginaListado.comparador(orden, descendente));
+                return copia;
+            });
+        }
+    }
+
+    // Posición de un listado para el cursor de LISTAR_DIRECTORIO.
+    private static final class Cursor {
+        // El cursor es "<d|a><valor>:<nombre>": si la última entrada es un directorio o un
+        // archivo, el valor por el que se ordena (0 si es por nombre) y su nombre.
+        static String de(EntradaArchivo ultima, int orden) {
+            long valor = orden == Protocolo.ORDEN_TAMANO ? ultima.getTamano()
+                    : orden == Protocolo.ORDEN_FECHA ? ultima.getModificado() : 0;
+            return (ultima.esDirectorio() ? "d" : "a") + valor + ":" + ultima.getNombre();
+        }
+
+        static EntradaArchivo leer(String cursor, int orden) {
+            int separador = cursor.indexOf(':');
+            char tipo = cursor.charAt(0);
+            if (separador < 2 || (tipo != 'd' && tipo != 'a')) {
+                throw new IllegalArgumentException("Cursor no válido: " + cursor);
+            }
+            long valor = Long.parseLong(cursor.substring(1, separador));
+            String nombre = cursor.substring(separador + 1);
+            if (tipo == 'd') {
+                return EntradaArchivo.directorio(nombre, orden == Protocolo.ORDEN_FECHA ? valor : 0);
+            }
+            return new EntradaArchivo(nombre, orden == Protocolo.ORDEN_TAMANO ? valor : 0, orden == Protocolo.ORDEN_FECHA ? valor : 0);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+// Índices de búsqueda sobre los archivos de una instantanea del índice:
+//  - los nombres (en minúsculas) ordenados, para buscar por prefijo con una búsqueda binaria;
+//  - los trigramas de cada nombre, para buscar texto en cualquier posición;
+//  - los archivos de cada extensión;
+//  - las posiciones ordenadas por tamaño, por fecha de modificación y por ruta, para los rangos
+//    de tamaño y fecha y para limitar la búsqueda a un directorio.
+// Cada consulta recorre solo los candidatos del criterio más selectivo y comprueba el resto
+// sobre ellos, así que su coste depende de cuántos archivos coinciden y no de cuántos hay.
+// Las posiciones de los archivos son las de la lista ordenada por nombre, de modo que los
+// candidatos que salen ya en ese orden pueden dejar de recorrerse al llenar el resultado.
+public class IndiceBusqueda {
+    private final EntradaArchivo[] entradas; // En ConsultaBusqueda.ORDEN
+    private final String[] claves;           // Nombre en minúsculas de cada una
+    private final Map<String, int[]> trigramas = new HashMap<>();
+    private final Map<String, int[]> porExtension = new HashMap<>();
+    private final Rango porTamano;
+    private final Rango porFecha;
+    private final int[] porRuta;
+    private final String[] rutas;
+
+    public IndiceBusqueda(Collection<EntradaArchivo> archivos) {
+        int cantidad = archivos.size();
+        String[] clavesPorRuta = new String[cantidad];
+        Integer[] orden = new Integer[cantidad];
+        EntradaArchivo[] originales = archivos.toArray(new EntradaArchivo[0]);
+        for (int i = 0; i < cantidad; i++) {
+            clavesPorRuta[i] = ConsultaBusqueda.clave(originales[i].getNombre());
+            orden[i] = i;
+        }
+        Arrays.sort(orden, Comparator.comparing((Integer i) -> clavesPorRuta[i])
+                .thenComparing(i -> originales[i].getNombre()));
+
+        this.entradas = new EntradaArchivo[cantidad];
+        this.claves = new String[cantidad];
+        this.porRuta = new int[cantidad];
+        this.rutas = new String[cantidad];
+        Map<String, Posiciones> trigramasPendientes = new HashMap<>();
+        Map<String, Posiciones> extensionesPendientes = new HashMap<>();
+        for (int posicion = 0; posicion < cantidad; posicion++) {
+            int original = orden[posicion];
+            entradas[posicion] = originales[original];
+            claves[posicion] = clavesPorRuta[original];
+            // Si 'archivos' ya venía por ruta (como el TreeMap del índice), esto queda ordenado.
+            porRuta[original] = posicion;
+            rutas[original] = originales[original].getNombre();
+            String clave = claves[posicion];
+            for (int i = 0; i + 3 <= clave.length(); i++) {
+                trigramasPendientes.computeIfAbsent(clave.substring(i, i + 3), t -> new Posiciones()).agregar(posicion);
+            }
+            extensionesPendientes.computeIfAbsent(ConsultaBusqueda.extensionDe(clave), e -> new Posiciones()).agregar(posicion);
+        }
+        ordenarPorRuta();
+        trigramasPendientes.forEach((trigrama, posiciones) -> trigramas.put(trigrama, posiciones.terminar()));
+        extensionesPendientes.forEach((extension, posiciones) -> porExtension.put(extension, posiciones.terminar()));
+        this.porTamano = new Rango(entradas, EntradaArchivo::getTamano);
+        this.porFecha = new Rango(entradas, EntradaArchivo::getModificado);
+    }
+
+    // 'porRuta' y 'rutas' se rellenaron en el orden de la colección recibida; se reordenan por
+    // si no venía ordenada por ruta.
+    private void ordenarPorRuta() {
+        for (int i = 1; i < rutas.length; i++) {
+            if (rutas[i - 1].compareTo(rutas[i]) > 0) {
+                Integer[] orden = new Integer[rutas.length];
+                for (int j = 0; j < orden.length; j++) orden[j] = j;
+                Arrays.sort(orden, Comparator.comparing((Integer j) -> rutas[j]));
+                int[] posiciones = porRuta.clone();
+                String[] copia = rutas.clone();
+                for (int j = 0; j < orden.length; j++) {
+                    porRuta[j] = posiciones[orden[j]];
+                    rutas[j] = copia[orden[j]];
+                }
+                return;
+            }
+        }
+    }
+
+    // Los primeros 'maximo' archivos que cumplen la consulta, en ConsultaBusqueda.ORDEN.
+    public ConsultaBusqueda.Resultado buscar(ConsultaBusqueda consulta, int maximo) {
+        Candidatos candidatos = candidatos(consulta);
+        List<EntradaArchivo> encontradas = new ArrayList<>();
+        if (candidatos.ordenados) {
+            // Salen en orden de nombre: basta con encontrar uno más que el máximo.
+            for (int i = candidatos.desde; i < candidatos.hasta; i++) {
+                int posicion = candidatos.posicion(i);
+                if (consulta.coincide(entradas[posicion], claves[posicion])) {
+                    if (encontradas.size() == maximo) {
+                        return new ConsultaBusqueda.Resultado(encontradas, true);
+                    }
+                    encontradas.add(entradas[posicion]);
+                }
+            }
+            return new ConsultaBusqueda.Resultado(encontradas, false);
+        }
+        // Salen en otro orden: se recogen todos los que cumplen y se ordenan por posición.
+        Posiciones validas = new Posiciones();
+        for (int i = candidatos.desde; i < candidatos.hasta; i++) {
+            int posicion = candidatos.posicion(i);
+            if (consulta.coincide(entradas[posicion], claves[posicion])) validas.agregar(posicion);
+        }
+        int[] posiciones = validas.terminar();
+        Arrays.sort(posiciones);
+        for (int i = 0; i < Math.min(maximo, posiciones.length); i++) {
+            encontradas.add(entradas[posiciones[i]]);
+        }
+        return new ConsultaBusqueda.Resultado(encontradas, posiciones.length > maximo);
+    }
+
+    // El criterio con menos candidatos. Sin ninguno indexable, se recorren todos por nombre.
+    private Candidatos candidatos(ConsultaBusqueda consulta) {
+        Candidatos mejor = new Candidatos(null, 0, entradas.length, true);
+        String texto = consulta.getTexto();
+        if (consulta.getModo() == Protocolo.BUSQUEDA_PREFIJO && !texto.isEmpty()) {
+            mejor = mejor.o(new Candidatos(null, primeraConPrefijo(texto), finDelPrefijo(texto), true));
+        } else if (texto.length() >= 3) {
+            // Cada coincidencia contiene todos los trigramas del texto: vale la lista más corta.
+            for (int i = 0; i + 3 <= texto.length(); i++) {
+                int[] posiciones = trigramas.getOrDefault(texto.substring(i, i + 3), new int[0]);
+                mejor = mejor.o(new Candidatos(posiciones, 0, posiciones.length, true));
+            }
+        }
+        if (!consulta.getExtension().isEmpty()) {
+            int[] posiciones = porExtension.getOrDefault(consulta.getExtension(), new int[0]);
+            mejor = mejor.o(new Candidatos(posiciones, 0, posiciones.length, true));
+        }
+        if (consulta.getTamanoMinimo() > 0 || consulta.getTamanoMaximo() > 0) {
+            mejor = mejor.o(porTamano.entre(consulta.getTamanoMinimo(), consulta.getTamanoMaximo()));
+        }
+        if (consulta.getModificadoDesde() > 0 || consulta.getModificadoHasta() > 0) {
+            mejor = mejor.o(porFecha.entre(consulta.getModificadoDesde(), consulta.getModificadoHasta()));
+        }
+        if (!consulta.getDirectorio().isEmpty()) {
+            String prefijo = consulta.getDirectorio() + "/";
+            mejor = mejor.o(new Candidatos(porRuta, primera(rutas, prefijo), primera(rutas, prefijo.substring(0, prefijo.length() - 1) + '0'), false));
+        }
+        return mejor;
+    }
+
+    private int primeraConPrefijo(String prefijo) {
+        return primera(claves, prefijo);
+    }
+
+    // Las claves que empiezan por 'prefijo' son un bloque contiguo a partir de la primera >= él.
+    private int finDelPrefijo(String prefijo) {
+        int bajo = primeraConPrefijo(prefijo);
+        int alto = claves.length;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (claves[medio].startsWith(prefijo)) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    // Primera posición de 'ordenadas' con un valor >= 'valor' (búsqueda binaria).
+    private static int primera(String[] ordenadas, String valor) {
+        int bajo = 0;
+        int alto = ordenadas.length;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (ordenadas[medio].compareTo(valor) < 0) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    // Un tramo [desde, hasta) de una lista de posiciones ('posiciones' null = las propias
+    // posiciones). 'ordenados' indica si las posiciones del tramo van en orden creciente.
+    private static final class Candidatos {
+        final int[] posiciones;
+        final int desde;
+        final int hasta;
+        final boolean ordenados;
+
+        Candidatos(int[] posiciones, int desde, int hasta, boolean ordenados) {
+            this.posiciones = posiciones;
+            this.desde = desde;
+            this.hasta = hasta;
+            this.ordenados = ordenados;
+        }
+
+        int posicion(int i) {
+            return posiciones != null ? posiciones[i] : i;
+        }
+
+        Candidatos o(Candidatos otros) {
+            return otros.hasta - otros.desde < hasta - desde ? otros : this;
+        }
+    }
+
+    // Posiciones de los archivos ordenadas por un valor numérico, para buscar un rango.
+    private static final class Rango {
+        final int[] posiciones;
+        final long[] valores;
+
+        Rango(EntradaArchivo[] entradas, ToLongFunction<EntradaArchivo> valor) {
+            Integer[] orden = new Integer[entradas.length];
+            for (int i = 0; i < orden.length; i++) orden[i] = i;
+            Arrays.sort(orden, Comparator.comparingLong(i -> valor.applyAsLong(entradas[i])));
+            this.posiciones = new int[orden.length];
+            this.valores = new long[orden.length];
+            for (int i = 0; i < orden.length; i++) {
+                posiciones[i] = orden[i];
+                valores[i] = valor.applyAsLong(entradas[orden[i]]);
+            }
+        }
+
+        // Valores en [minimo, maximo); 'maximo' 0 = sin límite.
+        Candidatos entre(long minimo, long maximo) {
+            int desde = primera(minimo);
+            int hasta = maximo > 0 ? Math.max(desde, primera(maximo)) : valores.length;
+            return new Candidatos(posiciones, desde, hasta, false);
+        }
+
+        private int primera(long valor) {
+            int bajo = 0;
+            int alto = valores.length;
+            while (bajo < alto) {
+                int medio = (bajo + alto) >>> 1;
+                if (valores[medio] < valor) {
+                    bajo = medio + 1;
+                } else {
+                    alto = medio;
+                }
+            }
+            return bajo;
+        }
+    }
+
+    // Lista creciente de enteros sin repetidos consecutivos (un nombre con el mismo trigrama dos
+    // veces solo se apunta una).
+    private static final class Posiciones {
+        int[] datos = new int[4];
+        int cantidad;
+
+        void agregar(int posicion) {
+            if (cantidad > 0 && datos[cantidad - 1] == posicion) return;
+            if (cantidad == datos.length) datos = Arrays.copyOf(datos, cantidad * 2);
+            datos[cantidad++] = posicion;
+        }
+
+        int[] terminar() {
+            return Arrays.copyOf(datos, cantidad);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 // Lanzador.java
 import javax.swing.SwingUtilities;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.List;
 
@@ -38,28 +40,92 @@ public class Lanzador {
                 System.out.println("\n--- MENÚ DE CONSOLA ---");
                 System.out.println("1. Listar archivos");
                 System.out.println("2. Descargar archivo");
-                System.out.println("3. Salir");
+                System.out.println("3. Descargar varios archivos");
+                System.out.println("4. Subir archivo");
+                System.out.println("5. Estadísticas del servidor");
+                System.out.println("6. Buscar archivos");
+                System.out.println("7. Sincronizar carpeta");
+                System.out.println("8. Salir");
                 System.out.print("Opción: ");
                 String opcion = scanner.nextLine();
 
                 if ("1".equals(opcion)) {
-                    System.out.println("Obteniendo lista de archivos...");
-                    List<String> archivos = cliente.listarArchivos();
-                    if (archivos.isEmpty()) {
-                        System.out.println("No hay archivos en el servidor.");
-                    } else {
-                        System.out.println("--- Archivos Disponibles ---");
-                        archivos.forEach(System.out::println);
+                    System.out.print("Directorio (Enter = raíz): ");
+                    String directorio = scanner.nextLine().trim();
+                    System.out.println("--- Archivos Disponibles ---");
+                    // Cada página se muestra en cuanto llega, sin esperar al resto del listado.
+                    int[] mostradas = { 0 };
+                    cliente.listarDirectorio(directorio, Protocolo.ORDEN_NOMBRE, false, pagina -> {
+                        pagina.getEntradas().forEach(System.out::println);
+                        mostradas[0] += pagina.getEntradas().size();
+                    });
+                    if (mostradas[0] == 0) {
+                        System.out.println("No hay archivos en ese directorio.");
                     }
                 } else if ("2".equals(opcion)) {
                     System.out.print("Nombre del archivo a descargar: ");
                     String nombreArchivo = scanner.nextLine();
-                    if (cliente.descargarArchivo(nombreArchivo)) {
+                    if (cliente.descargarArchivo(nombreArchivo, Cliente.progresoEnConsola())) {
                         System.out.println("¡Archivo descargado con éxito en 'descargas_cliente'!");
                     } else {
                         System.out.println("Error: No se pudo descargar el archivo.");
                     }
                 } else if ("3".equals(opcion)) {
+                    System.out.print("Nombres o patrones separados por comas (ej. *.png, informe.pdf): ");
+                    List<String> seleccion = new ArrayList<>();
+                    for (String nombre : scanner.nextLine().split(",")) {
+                        if (!nombre.isBlank()) seleccion.add(nombre.trim());
+                    }
+                    List<String> descargados = cliente.descargarLote(seleccion, Cliente.progresoEnConsola());
+                    System.out.println(descargados.size() + " archivo(s) descargado(s) en 'descargas_cliente'.");
+                } else if ("4".equals(opcion)) {
+                    System.out.print("Ruta del archivo a subir: ");
+                    File archivo = new File(scanner.nextLine().trim());
+                    if (!archivo.isFile()) {
+                        System.out.println("Error: No existe el archivo '" + archivo + "'.");
+                    } else if (cliente.subirArchivo(archivo, Cliente.progresoEnConsola("Subiendo"))) {
+                        System.out.println("¡Archivo subido con éxito!");
+                    } else {
+                        System.out.println("El servidor ya tenía ese contenido; no fue necesario enviarlo.");
+                    }
+                } else if ("5".equals(opcion)) {
+                    System.out.println("--- Estadísticas del Servidor ---");
+                    Cliente.imprimirEstadisticas(cliente.obtenerEstadisticas());
+                } else if ("6".equals(opcion)) {
+                    System.out.print("Buscar (ej. informe, 3c*, *.pdf, >10M, dias:7): ");
+                    ConsultaBusqueda consulta;
+                    try {
+                        consulta = ConsultaBusqueda.analizar(scanner.nextLine());
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error: " + e.getMessage());
+                        continue;
+                    }
+                    if (consulta.esVacia()) {
+                        System.out.println("Indique algún criterio de búsqueda.");
+                        continue;
+                    }
+                    ConsultaBusqueda.Resultado resultado = cliente.buscar(consulta);
+                    resultado.getEntradas().forEach(System.out::println);
+                    System.out.println(resultado.getEntradas().size() + " archivo(s) encontrado(s)"
+                            + (resultado.hayMas() ? "; hay más, concrete la búsqueda." : "."));
+                } else if ("7".equals(opcion)) {
+                    System.out.print("Carpeta local: ");
+                    File carpeta = new File(scanner.nextLine().trim());
+                    System.out.print("Directorio del servidor (Enter = raíz): ");
+                    String directorio = scanner.nextLine().trim();
+                    System.out.print("¿Traer del servidor (t) o enviar al servidor (e)? ");
+                    boolean traer = !scanner.nextLine().trim().equalsIgnoreCase("e");
+                    SincronizadorCarpeta sincronizador = new SincronizadorCarpeta(cliente, carpeta, directorio);
+                    if (traer) {
+                        System.out.print("¿Borrar los archivos locales que ya no están en el servidor? (s/N) ");
+                        sincronizador.setBorrarSobrantes(scanner.nextLine().trim().equalsIgnoreCase("s"));
+                    }
+                    sincronizador.setAvisos(System.out::println);
+                    SincronizadorCarpeta.Resumen resumen = traer
+                            ? sincronizador.traer(Cliente.progresoEnConsola())
+                            : sincronizador.enviar(Cliente.progresoEnConsola("Enviando"));
+                    System.out.println("Sincronización terminada. " + resumen);
+                } else if ("8".equals(opcion)) {
                     break;
                 } else {
                     System.out.println("Opción no válida.");
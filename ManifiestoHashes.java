@@ -0,0 +1,89 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+// Hashes de contenido (SHA-256) de los archivos compartidos, guardados en disco para no tener
+// que recalcularlos en cada arranque. Cada línea del manifiesto es "hash tamaño fecha nombre";
+// un hash solo se reutiliza si el tamaño y la fecha del archivo siguen siendo los mismos.
+public class ManifiestoHashes {
+    private static final int TAMANO_LECTURA = 64 * 1024;
+
+    private final File archivo;
+    private final Map<String, EntradaArchivo> guardadas = new HashMap<>();
+
+    public ManifiestoHashes(File archivo) {
+        this.archivo = archivo;
+        cargar();
+    }
+
+    // Hash guardado para esa versión del archivo, o null si no hay o ya no coincide.
+    public String buscar(EntradaArchivo entrada) {
+        EntradaArchivo guardada = guardadas.get(entrada.getNombre());
+        return guardada != null && guardada.mismaVersion(entrada) ? guardada.getHash() : null;
+    }
+
+    // Reescribe el manifiesto con las entradas que ya tienen hash. Se escribe en un temporal y
+    // se renombra, para que un corte a mitad no deje un manifiesto truncado.
+    public synchronized void guardar(Collection<EntradaArchivo> entradas) throws IOException {
+        File temporal = new File(archivo.getPath() + ".tmp");
+        try (PrintWriter salida = new PrintWriter(temporal, StandardCharsets.UTF_8)) {
+            for (EntradaArchivo entrada : entradas) {
+                if (entrada.getHash() != null) {
+                    salida.println(entrada.getHash() + " " + entrada.getTamano() + " " + entrada.getModificado() + " " + entrada.getNombre());
+                }
+            }
+        }
+        Files.move(temporal.toPath(), archivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void cargar() {
+        if (!archivo.isFile()) {
+            return;
+        }
+        try (BufferedReader lector = Files.newBufferedReader(archivo.toPath(), StandardCharsets.UTF_8)) {
+            String linea;
+            while ((linea = lector.readLine()) != null) {
+                String[] campos = linea.split(" ", 4);
+                if (campos.length == 4) {
+                    guardadas.put(campos[3], new EntradaArchivo(campos[3], Long.parseLong(campos[1]), Long.parseLong(campos[2]), campos[0]));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("No se pudo leer el manifiesto de hashes '" + archivo + "'; se recalcularán: " + e.getMessage());
+            guardadas.clear();
+        }
+    }
+
+    // SHA-256 del contenido en hexadecimal. Se lee por trozos: la memoria no depende del tamaño.
+    public static String calcular(File archivo) throws IOException {
+        MessageDigest digest = nuevoDigest();
+        byte[] buffer = new byte[TAMANO_LECTURA];
+        try (InputStream entrada = Files.newInputStream(archivo.toPath())) {
+            int leidos;
+            while ((leidos = entrada.read(buffer)) > 0) {
+                digest.update(buffer, 0, leidos);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Para quien calcula el hash a medida que recibe el contenido (ver 'SubidaArchivo').
+    public static MessageDigest nuevoDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("La JVM no ofrece SHA-256.", e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Instrumentación del servidor: conexiones, solicitudes por comando, bytes enviados, velocidad
+// de las transferencias y latencias de listados, búsquedas y archivos. Todos los contadores son LongAdder
+// (un contador por núcleo que se suma al leerlo), así que registrar no compite entre sesiones.
+// Se consulta por JMX o con el comando ESTADISTICAS del protocolo binario.
+public class MetricasServidor implements MetricasServidorMXBean {
+    private static final double[] PERCENTILES = { 50, 99, 99.9 };
+
+    private final long inicio = System.nanoTime();
+    private final LongAdder conexionesActivas = new LongAdder();
+    private final LongAdder conexionesTotales = new LongAdder();
+    private final LongAdder bytesEnviados = new LongAdder();
+    // Contenido de archivos enviado y tiempo dedicado a enviarlo, sumando todas las transferencias.
+    private final LongAdder bytesTransferidos = new LongAdder();
+    private final LongAdder nanosTransfiriendo = new LongAdder();
+    // Admisión de descargas (ver 'ControlTrafico').
+    private final LongAdder transferenciasEnCurso = new LongAdder();
+    private final LongAdder transferenciasEnEspera = new LongAdder();
+    private final LongAdder transferenciasRechazadas = new LongAdder();
+    // Proxy con caché (ver 'ProxyCache'): archivos servidos sin preguntar al origen, confirmados
+    // por el origen sin cambios, traídos o actualizados, y bytes de contenido que llegaron del
+    // origen; listados y búsquedas respondidos desde la caché o pedidos al origen.
+    private final LongAdder proxyDesdeCache = new LongAdder();
+    private final LongAdder proxyRevalidados = new LongAdder();
+    private final LongAdder proxyTraidos = new LongAdder();
+    private final LongAdder proxyBytesOrigen = new LongAdder();
+    private final LongAdder proxyConsultasDesdeCache = new LongAdder();
+    private final LongAdder proxyConsultasAlOrigen = new LongAdder();
+    private final Map<String, LongAdder> solicitudes = new ConcurrentHashMap<>();
+    private final HistogramaLatencias latenciaListado = new HistogramaLatencias();
+    private final HistogramaLatencias latenciaArchivo = new HistogramaLatencias();
+    private final HistogramaLatencias latenciaBusqueda = new HistogramaLatencias();
+    private ObjectName nombreJmx;
+
+    // --- Registro (desde las sesiones y los motores) ---
+
+    public void conexionAbierta() {
+        conexionesActivas.increment();
+        conexionesTotales.increment();
+    }
+
+    public void conexionCerrada() {
+        conexionesActivas.decrement();
+    }
+
+    public void solicitud(String comando) {
+        LongAdder contador = solicitudes.get(comando);
+        if (contador == null) {
+            contador = solicitudes.computeIfAbsent(comando, c -> new LongAdder());
+        }
+        contador.increment();
+    }
+
+    public void bytesEnviados(long bytes) {
+        bytesEnviados.add(bytes);
+    }
+
+    public void listado(long nanos) {
+        latenciaListado.registrarNanos(nanos);
+    }
+
+    public void archivo(long nanos) {
+        latenciaArchivo.registrarNanos(nanos);
+    }
+
+    public void busqueda(long nanos) {
+        latenciaBusqueda.registrarNanos(nanos);
+    }
+
+    public void transferencia(long bytes, long nanos) {
+        bytesTransferidos.add(bytes);
+        nanosTransfiriendo.add(nanos);
+    }
+
+    public void transferenciaIniciada() {
+        transferenciasEnCurso.increment();
+    }
+
+    public void transferenciaTerminada() {
+        transferenciasEnCurso.decrement();
+    }
+
+    public void transferenciaEnEspera(int cambio) {
+        transferenciasEnEspera.add(cambio);
+    }
+
+    public void transferenciaRechazada() {
+        transferenciasRechazadas.increment();
+    }
+
+    public void proxyDesdeCache() {
+        proxyDesdeCache.increment();
+    }
+
+    public void proxyRevalidado() {
+        proxyRevalidados.increment();
+    }
+
+    public void proxyTraido(long bytesOrigen) {
+        proxyTraidos.increment();
+        proxyBytesOrigen.add(bytesOrigen);
+    }
+
+    public void proxyConsulta(boolean desdeCache) {
+        (desdeCache ? proxyConsultasDesdeCache : proxyConsultasAlOrigen).increment();
+    }
+
+    // --- JMX ---
+
+    // Publica las métricas con el puerto en el nombre, para distinguir varios servidores en la misma JVM.
+    public void registrarJmx(int puerto) {
+        try {
+            MBeanServer servidorJmx = ManagementFactory.getPlatformMBeanServer();
+            nombreJmx = new ObjectName("ServidorNubeJava:type=Metricas,puerto=" + puerto);
+            servidorJmx.registerMBean(this, nombreJmx);
+        } catch (JMException e) {
+            System.err.println("No se pudieron publicar las métricas por JMX: " + e.getMessage());
+            nombreJmx = null;
+        }
+    }
+
+    public void anularRegistroJmx() {
+        if (nombreJmx == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(nombreJmx);
+        } catch (JMException e) {
+            // Ya no estaba registrado
+        }
+        nombreJmx = null;
+    }
+
+    // --- Consulta ---
+
+    @Override
+    public int getConexionesActivas() {
+        return (int) conexionesActivas.sum();
+    }
+
+    @Override
+    public long getConexionesTotales() {
+        return conexionesTotales.sum();
+    }
+
+    @Override
+    public long getBytesEnviados() {
+        return bytesEnviados.sum();
+    }
+
+    @Override
+    public long getBytesEnviadosPorSegundo() {
+        long segundos = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - inicio));
+        return bytesEnviados.sum() / segundos;
+    }
+
+    // Velocidad media de una transferencia: el contenido enviado entre el tiempo que se tardó
+    // en enviarlo (varias transferencias simultáneas suman sus tiempos).
+    @Override
+    public long getTransferenciaBytesPorSegundo() {
+        long nanos = nanosTransfiriendo.sum();
+        return nanos == 0 ? 0 : (long) (bytesTransferidos.sum() * 1e9 / nanos);
+    }
+
+    @Override
+    public int getTransferenciasEnCurso() {
+        return (int) transferenciasEnCurso.sum();
+    }
+
+    @Override
+    public int getTransferenciasEnEspera() {
+        return (int) transferenciasEnEspera.sum();
+    }
+
+    @Override
+    public long getTransferenciasRechazadas() {
+        return transferenciasRechazadas.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSolicitudesPorComando() {
+        Map<String, Long> valores = new TreeMap<>();
+        solicitudes.forEach((comando, contador) -> valores.put(comando, contador.sum()));
+        return valores;
+    }
+
+    @Override
+    public Map<String, Long> getLatenciaListado() {
+        return resumen(latenciaListado);
+    }
+
+    @Override
+    public Map<String, Long> getLatenciaArchivo() {
+        return resumen(latenciaArchivo);
+    }
+
+    @Override
+    public Map<String, Long> getLatenciaBusqueda() {
+        return resumen(latenciaBusqueda);
+    }
+
+    @Override
+    public Map<String, Long> getProxy() {
+        Map<String, Long> valores = new LinkedHashMap<>();
+        valores.put("desdeCache", proxyDesdeCache.sum());
+        valores.put("revalidados", proxyRevalidados.sum());
+        valores.put("traidos", proxyTraidos.sum());
+        valores.put("bytesOrigen", proxyBytesOrigen.sum());
+        valores.put("consultasDesdeCache", proxyConsultasDesdeCache.sum());
+        valores.put("consultasAlOrigen", proxyConsultasAlOrigen.sum());
+        return valores;
+    }
+
+    @Override
+    public Map<String, Long> getValores() {
+        Map<String, Long> valores = new LinkedHashMap<>();
+        valores.put("segundos.activo", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - inicio));
+        valores.put("conexiones.activas", (long) getConexionesActivas());
+        valores.put("conexiones.totales", getConexionesTotales());
+        valores.put("bytes.enviados", getBytesEnviados());
+        valores.put("bytes.enviadosPorSegundo", getBytesEnviadosPorSegundo());
+        valores.put("transferencia.bytesPorSegundo", getTransferenciaBytesPorSegundo());
+        valores.put("transferencias.enCurso", (long) getTransferenciasEnCurso());
+        valores.put("transferencias.enEspera", (long) getTransferenciasEnEspera());
+        valores.put("transferencias.rechazadas", getTransferenciasRechazadas());
+        getSolicitudesPorComando().forEach((comando, cuenta) -> valores.put("solicitudes." + comando, cuenta));
+        getLatenciaListado().forEach((clave, valor) -> valores.put("listado." + clave, valor));
+        getLatenciaArchivo().forEach((clave, valor) -> valores.put("archivo." + clave, valor));
+        getLatenciaBusqueda().forEach((clave, valor) -> valores.put("busqueda." + clave, valor));
+        getProxy().forEach((clave, valor) -> valores.put("proxy." + clave, valor));
+        return valores;
+    }
+
+    private static Map<String, Long> resumen(HistogramaLatencias histograma) {
+        long[] percentiles = histograma.percentiles(PERCENTILES);
+        Map<String, Long> valores = new LinkedHashMap<>();
+        valores.put("cuenta", histograma.getCuenta());
+        valores.put("mediaMicros", histograma.getMediaMicros());
+        valores.put("p50Micros", percentiles[0]);
+        valores.put("p99Micros", percentiles[1]);
+        valores.put("p999Micros", percentiles[2]);
+        valores.put("maximoMicros", histograma.getMaximoMicros());
+        return valores;
+    }
+}
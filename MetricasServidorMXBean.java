@@ -0,0 +1,35 @@
+import java.util.Map;
+
+// Atributos que el servidor publica por JMX (jconsole, VisualVM...). Las latencias están en
+// microsegundos.
+public interface MetricasServidorMXBean {
+    int getConexionesActivas();
+
+    long getConexionesTotales();
+
+    long getBytesEnviados();
+
+    long getBytesEnviadosPorSegundo();
+
+    long getTransferenciaBytesPorSegundo();
+
+    int getTransferenciasEnCurso();
+
+    int getTransferenciasEnEspera();
+
+    long getTransferenciasRechazadas();
+
+    Map<String, Long> getSolicitudesPorComando();
+
+    Map<String, Long> getLatenciaListado();
+
+    Map<String, Long> getLatenciaArchivo();
+
+    Map<String, Long> getLatenciaBusqueda();
+
+    // Solo cambia si el servidor hace de proxy con caché de otro (opción --origen).
+    Map<String, Long> getProxy();
+
+    // Todos los valores anteriores en una sola tabla, igual que los devuelve el comando ESTADISTICAS.
+    Map<String, Long> getValores();
+}
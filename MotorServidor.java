@@ -0,0 +1,28 @@
+// Motor de transporte del servidor. Existen dos implementaciones que atienden el mismo
+// protocolo: 'Servidor' (un hilo por conexión) y 'ServidorNIO' (bucles de eventos con Selector).
+public interface MotorServidor {
+
+    // Abre el socket de escucha sin empezar todavía a atender clientes.
+    void iniciar() throws java.io.IOException;
+
+    // Atiende conexiones en el hilo actual hasta que se llame a 'detener'.
+    void aceptarConexiones();
+
+    void detener();
+
+    int getPuerto();
+
+    // Contadores y latencias del servidor; también se publican por JMX.
+    MetricasServidor getMetricas();
+
+    default void ejecutarServidor() {
+        try {
+            iniciar();
+            aceptarConexiones();
+        } catch (java.io.IOException e) {
+            System.err.println("Error fatal al iniciar el servidor: " + e.getMessage());
+        } finally {
+            detener();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.Comparator;
+import java.util.List;
+
+// Una página del listado de un directorio (trama PAGINA) y el cursor para pedir la siguiente.
+// Los nombres de las entradas son relativos al directorio, no rutas completas.
+public class PaginaListado {
+    private final String directorio;
+    private final List<EntradaArchivo> entradas;
+    private final int total;
+    private final String siguiente;
+
+    public PaginaListado(String directorio, List<EntradaArchivo> entradas, int total, String siguiente) {
+        this.directorio = directorio;
+        this.entradas = entradas;
+        this.total = total;
+        this.siguiente = siguiente;
+    }
+
+    // Orden de los listados por páginas: subdirectorios primero y, dentro de cada grupo, por el
+    // criterio pedido (Protocolo.ORDEN_*) y, a igualdad, por nombre. Es un orden total (no hay
+    // dos hijos con el mismo nombre), así que la última entrada de una página basta para saber
+    // dónde empieza la siguiente.
+    public static Comparator<EntradaArchivo> comparador(int orden, boolean descendente) {
+        Comparator<EntradaArchivo> criterio;
+        switch (orden) {
+            case Protocolo.ORDEN_TAMANO: criterio = Comparator.comparingLong(EntradaArchivo::getTamano); break;
+            case Protocolo.ORDEN_FECHA: criterio = Comparator.comparingLong(EntradaArchivo::getModificado); break;
+            case Protocolo.ORDEN_NOMBRE: criterio = (a, b) -> 0; break;
+            default: throw new IllegalArgumentException("Orden desconocido: " + orden);
+        }
+        criterio = criterio.thenComparing(EntradaArchivo::getNombre);
+        if (descendente) criterio = criterio.reversed();
+        return Comparator.comparing((EntradaArchivo e) -> !e.esDirectorio()).thenComparing(criterio);
+    }
+
+    // Ruta de 'nombre' dentro de 'directorio' ("" = raíz).
+    public static String ruta(String directorio, String nombre) {
+        return directorio.isEmpty() ? nombre : directorio + "/" + nombre;
+    }
+
+    public String getDirectorio() {
+        return directorio;
+    }
+
+    public List<EntradaArchivo> getEntradas() {
+        return entradas;
+    }
+
+    // Entradas del directorio entero, no solo de esta página.
+    public int getTotal() {
+        return total;
+    }
+
+    // Cursor de la página siguiente, o "" si esta es la última.
+    public String getSiguiente() {
+        return siguiente;
+    }
+
+    public boolean esUltima() {
+        return siguiente.isEmpty();
+    }
+}
@@ -0,0 +1,8 @@
+// Recibe el avance de una descarga en curso. Se invoca desde el hilo que descarga
+// (nunca desde el EDT), una vez por bloque recibido.
+@FunctionalInterface
+public interface ProgresoDescarga {
+    ProgresoDescarga NINGUNO = (recibidos, total) -> { };
+
+    void actualizar(long recibidos, long total);
+}
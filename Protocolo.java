@@ -0,0 +1,445 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.Arrays;
+import java.util.regex.PatternSyntaxException;
+
+// Códec del protocolo binario, compartido por 'Servidor', 'ServidorNIO' y 'Cliente'.
+//
+// Saludo: el cliente abre la conexión enviando "NUBE" seguido de la versión más alta que
+// entiende (un byte); el servidor contesta "NUBE" y la versión elegida. Un cliente antiguo
+// empieza con el encabezado de ObjectOutputStream (0xACED), así que el servidor sabe en los
+// dos primeros bytes qué protocolo usar.
+//
+// Después, cada mensaje es una trama: [tipo: 1 byte][longitud: varint][carga]. Los enteros
+// de la carga van como varint (LEB128 sin signo) y las cadenas como varint + UTF-8.
+//
+// Versión 2: LISTA incluye el hash de contenido de cada archivo, y SOLICITAR_RANGO puede
+// llevar el hash de la copia local para recibir NO_MODIFICADO en lugar del contenido.
+// Versión 3: subida de archivos (SUBIR).
+// Versión 4: miniaturas de imágenes generadas en el servidor (SOLICITAR_MINIATURA).
+// Versión 5: canales. Cada solicitud puede ir dentro de una trama CANAL con un id elegido por
+// el cliente; el servidor atiende los canales a la vez y devuelve cada trama de la respuesta
+// dentro de una RESPUESTA_CANAL con el mismo id, intercaladas con las de otros canales.
+// Versión 6: estadísticas del servidor (SOLICITAR_ESTADISTICAS).
+// Versión 7: subdirectorios y listados por páginas (LISTAR_DIRECTORIO). Los nombres de archivo
+// de todas las solicitudes pueden ser rutas relativas con '/' ("fotos/2024/playa.jpg"). LISTAR
+// sigue devolviendo solo los archivos del nivel superior, como con las versiones anteriores.
+// Versión 8: búsqueda de archivos en el servidor (BUSCAR).
+// Versión 9: sincronización por bloques (SOLICITAR_DELTA, SOLICITAR_FIRMAS, SUBIR_DELTA): solo
+// viajan los bloques que cambiaron respecto a la copia que ya tiene el otro extremo. Ver
+// 'DeltaBloques' para la firma y el algoritmo.
+// Versión 10: cluster de varios servidores (SOLICITAR_ANILLO). Cada nodo guarda los archivos que
+// le tocan según 'AnilloNodos'; el cliente pide la lista de nodos a cualquiera de ellos y envía
+// cada solicitud directamente a los responsables del archivo (ver 'ClienteCluster').
+public final class Protocolo {
+    public static final byte[] MAGIA = { 'N', 'U', 'B', 'E' };
+    public static final int VERSION = 10;
+
+    // --- Solicitudes (cliente -> servidor) ---
+    public static final byte LISTAR = 0x01;
+    public static final byte SOLICITAR_ARCHIVO = 0x02;   // nombre
+    // nombre, desde, longitud (0 = hasta el final), tamaño y modificado esperados (0 = cualquiera)
+    // y, opcionalmente, compresiones aceptadas y el hash de la copia local (v2, "" = ninguna).
+    // Si el archivo ya no coincide con lo esperado, se envía completo desde el byte 0; si desde
+    // es 0 y el hash coincide con el del servidor, se contesta NO_MODIFICADO.
+    public static final byte SOLICITAR_RANGO = 0x03;
+    // n, n x (nombre o patrón glob) y, opcionalmente, compresiones aceptadas
+    public static final byte SOLICITAR_LOTE = 0x04;
+    // nombre, tamaño, hash del contenido (v3). Si el servidor contesta CONTINUAR, el cliente
+    // envía el contenido en BLOQUEs y un FIN, con los mismos tipos que en las descargas.
+    public static final byte SUBIR = 0x05;
+    // nombre, tamaño máximo en píxeles del lado mayor (v4)
+    public static final byte SOLICITAR_MINIATURA = 0x06;
+    public static final byte SOLICITAR_ESTADISTICAS = 0x07; // sin carga (v6)
+    // directorio ("" = raíz), cursor ("" = desde el principio), orden (ORDEN_*), 1 si es
+    // descendente, máximo de entradas (0 = TAMANO_PAGINA) (v7). Se contesta con una PAGINA.
+    public static final byte LISTAR_DIRECTORIO = 0x08;
+    // texto, modo (BUSQUEDA_*), extensión, directorio (todos "" = cualquiera), tamaño mínimo,
+    // tamaño máximo (exclusivo), modificado desde, modificado hasta (exclusivo) (0 = sin límite
+    // los dos máximos) y máximo de resultados (0 = TAMANO_PAGINA) (v8). Se contesta con RESULTADOS.
+    public static final byte BUSCAR = 0x09;
+    // nombre, hash de la copia local ("" = ninguna) y la firma de bloques de esa copia (v9). Se
+    // contesta con NO_MODIFICADO si el hash coincide o con DELTA, seguido de COPIAR_BLOQUES y
+    // BLOQUEs (en el orden del archivo) y FIN.
+    public static final byte SOLICITAR_DELTA = 0x0A;
+    // nombre (v9). Se contesta con FIRMAS.
+    public static final byte SOLICITAR_FIRMAS = 0x0B;
+    // nombre, tamaño, hash del contenido, hash de la versión del servidor cuyas FIRMAS se usan
+    // ("" = ninguna) y tamaño de bloque (v9). Como SUBIR, pero tras CONTINUAR el cliente envía
+    // COPIAR_BLOQUES y BLOQUEs y un FIN. Crea los directorios que falten. Si el archivo cambió en
+    // el servidor desde que se pidieron las firmas, se contesta con un ERROR.
+    public static final byte SUBIR_DELTA = 0x0C;
+    // opcionalmente, la dirección ("host:puerto") del nodo del cluster que pregunta; vacía o
+    // ausente si es un cliente (v10). Se contesta con ANILLO. Un nodo que se presenta así queda
+    // incorporado al cluster, y lo que suba por esa conexión se toma como una réplica.
+    public static final byte SOLICITAR_ANILLO = 0x0D;
+    public static final byte SALIR = 0x0F;
+    // id del canal y una trama de solicitud completa (v5). Las tramas de un mismo canal se
+    // atienden en orden; las de canales distintos, a la vez.
+    public static final byte CANAL = 0x10;
+    // Canales que un cliente puede tener en curso a la vez en una conexión. El servidor admite
+    // el doble antes de rechazar, porque olvida cada canal un poco después de su última trama.
+    public static final int MAXIMO_CANALES = 32;
+
+    // --- Respuestas (servidor -> cliente) ---
+    // n, n x (nombre, tamaño, modificado) y, en v2, el hash de cada uno ("" si aún no se conoce)
+    public static final byte LISTA = (byte) 0x81;
+    // nombre, tamaño total, modificado, desde, longitud enviada, compresión usada; le siguen
+    // BLOQUEs y FIN. 'longitud' cuenta siempre los bytes del archivo, no los comprimidos.
+    public static final byte ARCHIVO = (byte) 0x82;
+    public static final byte BLOQUE = (byte) 0x83;       // bytes del contenido (comprimidos, si procede)
+    public static final byte FIN = (byte) 0x84;          // sin carga
+    // n archivos, bytes totales, m, m x nombre no encontrado; le siguen n x (ARCHIVO, BLOQUEs,
+    // FIN), o un ERROR en lugar de alguno que haya desaparecido mientras tanto
+    public static final byte LOTE = (byte) 0x85;
+    public static final byte NO_MODIFICADO = (byte) 0x86; // nombre, tamaño, modificado, hash (v2)
+    public static final byte CONTINUAR = (byte) 0x87;     // sin carga: el servidor espera el contenido
+    // nombre, tamaño, hash, 1 si el contenido viajó por la red o 0 si el servidor ya lo tenía
+    public static final byte SUBIDO = (byte) 0x88;
+    // nombre, hash del original, formato ("jpg" o "png") y, hasta el final, la imagen codificada
+    public static final byte MINIATURA = (byte) 0x89;
+    // n, n x (nombre de la métrica, valor); ver 'MetricasServidor.getValores'
+    public static final byte ESTADISTICAS = (byte) 0x8A;
+    // directorio, total de entradas del directorio, n, n x (nombre, 1 si es un subdirectorio,
+    // tamaño, modificado, hash) y el cursor de la página siguiente ("" si es la última). Los
+    // subdirectorios van siempre antes que los archivos. El cursor identifica la última entrada
+    // enviada, no una posición: si el directorio cambia entre páginas no se repite ni se salta
+    // ninguna entrada que siga allí.
+    public static final byte PAGINA = (byte) 0x8B;
+    // n, n x (ruta, tamaño, modificado, hash) y 1 si hay más coincidencias que las enviadas.
+    // Los resultados van ordenados por el nombre del archivo sin distinguir mayúsculas.
+    public static final byte RESULTADOS = (byte) 0x8C;
+    // nombre, tamaño, modificado y hash de la versión del servidor; le siguen COPIAR_BLOQUES y
+    // BLOQUEs y un FIN
+    public static final byte DELTA = (byte) 0x8D;
+    // código, mensaje y, con ERROR_OCUPADO, los milisegundos sugeridos antes de reintentar
+    public static final byte ERROR = (byte) 0x8E;
+    // primer bloque y cantidad de bloques consecutivos de la base que se repiten tal cual en la
+    // versión nueva. Va en ambos sentidos, entre los BLOQUEs de una DELTA o de una SUBIR_DELTA.
+    public static final byte COPIAR_BLOQUES = (byte) 0x8F;
+    public static final byte RESPUESTA_CANAL = (byte) 0x90; // id del canal y una trama de respuesta completa (v5)
+    public static final byte FIRMAS = (byte) 0x91; // nombre, hash y la firma de bloques de la versión del servidor
+    // copias de cada archivo, n, n x (nodo, 1 si responde). Con n = 0 el servidor no forma parte
+    // de un cluster.
+    public static final byte ANILLO = (byte) 0x92;
+
+    // --- Códigos de ERROR ---
+    public static final int ERROR_NO_ENCONTRADO = 1;
+    public static final int ERROR_SOLICITUD_INVALIDA = 2;
+    public static final int ERROR_RANGO_NO_VALIDO = 3;
+    public static final int ERROR_SUBIDA_FALLIDA = 4;
+    public static final int ERROR_SIN_MINIATURA = 5;   // No es una imagen o no se pudo decodificar
+    public static final int ERROR_OCUPADO = 6;         // Demasiadas descargas en curso; reintentar más tarde
+    public static final int ERROR_ORIGEN = 7;          // Proxy: el servidor de origen no responde y no hay copia
+
+    // --- Compresión del contenido ---
+    // En las solicitudes se envía la suma de las aceptadas; en ARCHIVO, la elegida. Con DEFLATE,
+    // todos los BLOQUEs de un archivo forman un único flujo zlib (java.util.zip.Deflater).
+    public static final int COMPRESION_NINGUNA = 0;
+    public static final int COMPRESION_DEFLATE = 1;
+
+    // --- Orden de las PAGINAs ---
+    public static final int ORDEN_NOMBRE = 0;
+    public static final int ORDEN_TAMANO = 1;
+    public static final int ORDEN_FECHA = 2;
+    // Entradas por PAGINA si el cliente no indica otra cosa, y máximo que el servidor acepta.
+    public static final int TAMANO_PAGINA = 500;
+    public static final int MAXIMO_PAGINA = 5000;
+
+    // --- Modos de BUSCAR ---
+    // El texto se compara, sin distinguir mayúsculas, con el nombre del archivo (el último
+    // componente de su ruta): en cualquier posición o solo al principio.
+    public static final int BUSQUEDA_CONTIENE = 0;
+    public static final int BUSQUEDA_PREFIJO = 1;
+
+    // Tamaño de los BLOQUEs en que se trocea el contenido de un archivo.
+    public static final int TAMANO_BLOQUE = 256 * 1024;
+    // Límites para la carga de una trama: protegen contra longitudes corruptas o maliciosas.
+    public static final int MAXIMO_SOLICITUD = 1024 * 1024;
+    public static final int MAXIMO_RESPUESTA = 64 * 1024 * 1024;
+
+    private Protocolo() {
+    }
+
+    // --- Saludo ---
+
+    public static byte[] saludo(int version) {
+        byte[] saludo = Arrays.copyOf(MAGIA, MAGIA.length + 1);
+        saludo[MAGIA.length] = (byte) version;
+        return saludo;
+    }
+
+    // Indica, sin consumirlos, si los primeros bytes de un flujo con soporte para mark
+    // corresponden a un saludo binario (y no al encabezado de ObjectOutputStream).
+    public static boolean empiezaConSaludo(InputStream entrada) throws IOException {
+        entrada.mark(2);
+        int b0 = entrada.read();
+        int b1 = entrada.read();
+        entrada.reset();
+        if (b0 < 0 || b1 < 0) throw new EOFException("La conexión se cerró antes del saludo.");
+        return b0 == MAGIA[0] && b1 == MAGIA[1];
+    }
+
+    // Lee un saludo completo y devuelve la versión anunciada.
+    public static int leerSaludo(DataInputStream entrada) throws IOException {
+        byte[] saludo = new byte[MAGIA.length + 1];
+        entrada.readFully(saludo);
+        return versionDeSaludo(saludo);
+    }
+
+    public static int versionDeSaludo(byte[] saludo) throws StreamCorruptedException {
+        for (int i = 0; i < MAGIA.length; i++) {
+            if (saludo[i] != MAGIA[i]) throw new StreamCorruptedException("Saludo de protocolo no válido.");
+        }
+        return saludo[MAGIA.length] & 0xFF;
+    }
+
+    // --- Tramas ---
+
+    public static final class Trama {
+        private final byte tipo;
+        private final ByteBuffer carga;
+
+        public Trama(byte tipo, ByteBuffer carga) {
+            this.tipo = tipo;
+            this.carga = carga;
+        }
+
+        public byte getTipo() {
+            return tipo;
+        }
+
+        // Búfer en modo lectura; los métodos 'leer*' de Protocolo lo van consumiendo.
+        public ByteBuffer getCarga() {
+            return carga;
+        }
+    }
+
+    // Extrae la siguiente trama completa de un búfer en modo lectura. Devuelve null si aún
+    // no ha llegado entera, y en ese caso no mueve la posición del búfer.
+    public static Trama siguienteTrama(ByteBuffer buffer, int maximoCarga) throws IOException {
+        buffer.mark();
+        try {
+            byte tipo = buffer.get();
+            long longitud = longitudCarga(leerVarint(buffer), maximoCarga);
+            if (buffer.remaining() < longitud) {
+                buffer.reset();
+                return null;
+            }
+            byte[] carga = new byte[(int) longitud];
+            buffer.get(carga);
+            return new Trama(tipo, ByteBuffer.wrap(carga));
+        } catch (BufferUnderflowException e) {
+            buffer.reset();
+            return null;
+        }
+    }
+
+    // Versión bloqueante para quien lee de un flujo. Devuelve null si el otro extremo
+    // cerró la conexión justo entre dos tramas.
+    public static Trama leerTrama(DataInputStream entrada, int maximoCarga) throws IOException {
+        int tipo = entrada.read();
+        if (tipo < 0) return null;
+        long longitud = longitudCarga(leerVarint(entrada), maximoCarga);
+        byte[] carga = new byte[(int) longitud];
+        entrada.readFully(carga);
+        return new Trama((byte) tipo, ByteBuffer.wrap(carga));
+    }
+
+    // La longitud de la carga es un varint sin signo: uno de 10 bytes puede pasar de
+    // Long.MAX_VALUE y leerse como negativo, así que también se rechazan los negativos.
+    private static long longitudCarga(long longitud, int maximoCarga) throws StreamCorruptedException {
+        if (longitud < 0 || longitud > maximoCarga) {
+            throw new StreamCorruptedException("Longitud de trama no válida: " + Long.toUnsignedString(longitud) + " bytes.");
+        }
+        return longitud;
+    }
+
+    // Encabezado de una trama cuya carga se enviará aparte (por ejemplo, con transferTo).
+    public static ByteBuffer encabezado(byte tipo, long longitudCarga) {
+        ByteBuffer encabezado = ByteBuffer.allocate(1 + tamanoVarint(longitudCarga));
+        encabezado.put(tipo);
+        escribirVarint(encabezado, longitudCarga);
+        return encabezado.flip();
+    }
+
+    // Construye la carga de una trama; 'terminar' devuelve la trama completa lista para enviar.
+    public static final class ConstructorTrama {
+        private final byte tipo;
+        private ByteBuffer carga = ByteBuffer.allocate(64);
+
+        public ConstructorTrama(byte tipo) {
+            this.tipo = tipo;
+        }
+
+        public ConstructorTrama varint(long valor) {
+            asegurar(10);
+            escribirVarint(carga, valor);
+            return this;
+        }
+
+        public ConstructorTrama cadena(String valor) {
+            byte[] utf8 = valor.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            return bytes(utf8);
+        }
+
+        public ConstructorTrama bytes(byte[] valor) {
+            asegurar(valor.length);
+            carga.put(valor);
+            return this;
+        }
+
+        public ByteBuffer terminar() {
+            carga.flip();
+            ByteBuffer trama = ByteBuffer.allocate(1 + tamanoVarint(carga.remaining()) + carga.remaining());
+            trama.put(tipo);
+            escribirVarint(trama, carga.remaining());
+            trama.put(carga);
+            return trama.flip();
+        }
+
+        private void asegurar(int adicional) {
+            if (carga.remaining() < adicional) {
+                ByteBuffer mayor = ByteBuffer.allocate(Math.max(carga.capacity() * 2, carga.position() + adicional));
+                carga.flip();
+                mayor.put(carga);
+                carga = mayor;
+            }
+        }
+    }
+
+    // --- Canales ---
+
+    // Encabezado de una trama envuelta en un canal ('tipoCanal' es CANAL o RESPUESTA_CANAL)
+    // cuya carga interior se enviará aparte.
+    public static ByteBuffer encabezadoCanal(byte tipoCanal, long canal, byte tipo, long longitudCarga) {
+        long longitudInterior = 1 + tamanoVarint(longitudCarga) + longitudCarga;
+        long longitudExterior = tamanoVarint(canal) + longitudInterior;
+        ByteBuffer encabezado = ByteBuffer.allocate(1 + tamanoVarint(longitudExterior) + tamanoVarint(canal) + 1 + tamanoVarint(longitudCarga));
+        encabezado.put(tipoCanal);
+        escribirVarint(encabezado, longitudExterior);
+        escribirVarint(encabezado, canal);
+        encabezado.put(tipo);
+        escribirVarint(encabezado, longitudCarga);
+        return encabezado.flip();
+    }
+
+    // Envuelve una trama completa en un canal.
+    public static ByteBuffer envolver(byte tipoCanal, long canal, ByteBuffer trama) {
+        ByteBuffer original = trama.duplicate();
+        byte tipo = original.get();
+        long longitud;
+        try {
+            longitud = leerVarint(original);
+        } catch (StreamCorruptedException e) {
+            throw new IllegalArgumentException("Trama mal formada.", e);
+        }
+        ByteBuffer encabezado = encabezadoCanal(tipoCanal, canal, tipo, longitud);
+        return ByteBuffer.allocate(encabezado.remaining() + original.remaining()).put(encabezado).put(original).flip();
+    }
+
+    // Trama interior de la carga de un CANAL o RESPUESTA_CANAL, una vez leído el id. Su carga
+    // es una vista de la original, sin copiarla.
+    public static Trama desenvolver(ByteBuffer carga) throws StreamCorruptedException {
+        byte tipo = carga.get();
+        long longitud = leerVarint(carga);
+        if (longitud != carga.remaining()) {
+            throw new StreamCorruptedException("Longitud de la trama interior no válida.");
+        }
+        return new Trama(tipo, carga.slice());
+    }
+
+    // Nombre de un tipo de solicitud, para las métricas y los registros.
+    public static String nombreDeTipo(byte tipo) {
+        switch (tipo) {
+            case LISTAR: return "LISTAR";
+            case SOLICITAR_ARCHIVO: return "SOLICITAR_ARCHIVO";
+            case SOLICITAR_RANGO: return "SOLICITAR_RANGO";
+            case SOLICITAR_LOTE: return "SOLICITAR_LOTE";
+            case SUBIR: return "SUBIR";
+            case SOLICITAR_MINIATURA: return "SOLICITAR_MINIATURA";
+            case SOLICITAR_ESTADISTICAS: return "SOLICITAR_ESTADISTICAS";
+            case LISTAR_DIRECTORIO: return "LISTAR_DIRECTORIO";
+            case BUSCAR: return "BUSCAR";
+            case SOLICITAR_DELTA: return "SOLICITAR_DELTA";
+            case SOLICITAR_FIRMAS: return "SOLICITAR_FIRMAS";
+            case SUBIR_DELTA: return "SUBIR_DELTA";
+            case SOLICITAR_ANILLO: return "SOLICITAR_ANILLO";
+            case SALIR: return "SALIR";
+            default: return "DESCONOCIDO";
+        }
+    }
+
+    // --- Lotes ---
+
+    // Un elemento de SOLICITAR_LOTE se trata como patrón glob si contiene alguno de sus comodines.
+    public static boolean esPatronGlob(String nombre) {
+        return nombre.indexOf('*') >= 0 || nombre.indexOf('?') >= 0
+                || nombre.indexOf('[') >= 0 || nombre.indexOf('{') >= 0;
+    }
+
+    // Un patrón mal formado no coincide con ningún nombre.
+    public static PathMatcher patronGlob(String patron) {
+        try {
+            return FileSystems.getDefault().getPathMatcher("glob:" + patron);
+        } catch (PatternSyntaxException e) {
+            return ruta -> false;
+        }
+    }
+
+    // --- Tipos básicos ---
+
+    public static int tamanoVarint(long valor) {
+        int bytes = 1;
+        while ((valor & ~0x7FL) != 0) {
+            valor >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    public static void escribirVarint(ByteBuffer buffer, long valor) {
+        while ((valor & ~0x7FL) != 0) {
+            buffer.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        buffer.put((byte) valor);
+    }
+
+    public static long leerVarint(ByteBuffer buffer) throws StreamCorruptedException {
+        long valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            byte b = buffer.get();
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) return valor;
+        }
+        throw new StreamCorruptedException("Varint demasiado largo.");
+    }
+
+    public static long leerVarint(DataInputStream entrada) throws IOException {
+        long valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            byte b = entrada.readByte();
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) return valor;
+        }
+        throw new StreamCorruptedException("Varint demasiado largo.");
+    }
+
+    public static String leerCadena(ByteBuffer buffer) throws StreamCorruptedException {
+        long longitud = leerVarint(buffer);
+        if (longitud < 0 || longitud > buffer.remaining()) throw new StreamCorruptedException("Cadena truncada o de longitud no válida.");
+        String cadena = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) longitud, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) longitud);
+        return cadena;
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// El servidor como proxy con caché de otro, el de origen (opción --origen). Con los clientes
+// habla el mismo protocolo que cualquier servidor, y al origen solo le pide lo que no tiene o
+// puede haber cambiado. Pensado para una sede remota: sus clientes se conectan al proxy de su
+// red local y cada archivo cruza el enlace lento una sola vez, por muchos que lo pidan.
+//  - Los archivos se guardan en el directorio del servidor, que hace de caché en disco con un
+//    presupuesto (--cache-disco-mb); al pasarlo se borran los usados hace más tiempo. Los más
+//    pedidos se sirven además desde memoria, como en cualquier servidor ('CacheArchivos').
+//  - Una copia comprobada hace menos de --vigencia-s segundos se sirve sin preguntar. Pasado ese
+//    tiempo se revalida con su hash: si no cambió, el origen solo contesta NO_MODIFICADO, y si
+//    cambió se traen por bloques las diferencias (SOLICITAR_DELTA).
+//  - Si varios clientes piden a la vez un archivo que hay que traer, se trae una sola vez y
+//    todos esperan a esa descarga. Igual con los listados.
+//  - Listados, búsquedas y miniaturas se piden al origen y su respuesta se guarda en memoria
+//    (como mucho MAXIMO_CONSULTAS bytes) durante el mismo tiempo de vigencia: el protocolo no
+//    tiene un listado condicional con el que revalidarlos.
+//  - Lo que suben los clientes se guarda en la caché y se sube al origen antes de confirmarlo.
+// Si el origen no responde se sirve lo que haya en caché, aunque no se haya podido comprobar.
+public class ProxyCache implements Closeable {
+    private static final long MAXIMO_CONSULTAS = 16L * 1024 * 1024;
+    // Lo que se calcula que ocupa en memoria cada entrada de un listado guardado.
+    private static final long BYTES_POR_ENTRADA = 128;
+    private static final String RAIZ = "LISTAR";
+    private static final String ARBOL = "ARBOL";
+
+    private final String origen;
+    private final IndiceArchivos indice;
+    private final File directorio;
+    private final long limiteDisco;   // 0 = sin límite
+    private final long vigenciaNanos;
+    private final MetricasServidor metricas;
+    private Cliente cliente;          // Conexión con el origen, compartida por todas las sesiones
+    private int versionOrigen;
+    // Cuándo se comprobó por última vez cada archivo de la caché con el origen (System.nanoTime).
+    private final Map<String, Long> comprobados = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> trayendo = new ConcurrentHashMap<>();
+    // Tamaño de cada archivo de la caché, del usado hace más tiempo al más reciente.
+    private final LinkedHashMap<String, Long> enDisco = new LinkedHashMap<>(16, 0.75f, true);
+    private long usoDisco;            // Protegido por 'enDisco'
+    // Respuestas del origen a listados y búsquedas, de la usada hace más tiempo a la más reciente.
+    private final LinkedHashMap<Object, Guardada> consultas = new LinkedHashMap<>(16, 0.75f, true);
+    private long usoConsultas;        // Protegido por 'consultas'
+    private final Map<Object, CompletableFuture<Guardada>> consultando = new ConcurrentHashMap<>();
+
+    public ProxyCache(String origen, IndiceArchivos indice, long limiteDisco, long vigenciaMillis, MetricasServidor metricas) {
+        AnilloNodos.puerto(origen); // Valida la dirección
+        this.origen = origen;
+        this.indice = indice;
+        this.directorio = indice.getDirectorio();
+        this.limiteDisco = limiteDisco;
+        this.vigenciaNanos = TimeUnit.MILLISECONDS.toNanos(vigenciaMillis);
+        this.metricas = metricas;
+    }
+
+    // Conecta con el origen (sin él no se sabe qué versión del protocolo ofrecer a los clientes)
+    // y da por usados los archivos que ya había en la caché, los más antiguos primero.
+    public void iniciar() throws IOException {
+        versionOrigen = conexion().getVersionProtocolo();
+        List<EntradaArchivo> guardados = new ArrayList<>(indice.instantanea().getEntradas());
+        guardados.sort(Comparator.comparingLong(EntradaArchivo::getModificado));
+        for (EntradaArchivo entrada : guardados) {
+            anotarEnDisco(entrada.getNombre(), entrada.getTamano());
+        }
+        log("Proxy con caché de " + origen + " (versión " + versionOrigen + " del protocolo); " + guardados.size()
+                + " archivos en caché (" + usoDisco / (1024 * 1024) + " MB"
+                + (limiteDisco > 0 ? " de " + limiteDisco / (1024 * 1024) : "") + "), vigencia "
+                + TimeUnit.NANOSECONDS.toMillis(vigenciaNanos) / 1000.0 + " s.");
+    }
+
+    // Los clientes no pueden acordar una versión que el origen no entienda.
+    public int getVersionOrigen() {
+        return versionOrigen;
+    }
+
+    // Solicitudes que se pasan al origen tal cual (ver 'reenviar').
+    public static boolean seReenvia(byte tipo) {
+        return tipo == Protocolo.LISTAR_DIRECTORIO || tipo == Protocolo.BUSCAR || tipo == Protocolo.SOLICITAR_MINIATURA;
+    }
+
+    // --- Archivos ---
+
+    // Deja en la caché la versión actual de 'ruta' antes de servirla. Si el origen ya no la
+    // tiene se borra la copia, y el archivo se sirve como inexistente. Si el origen no responde
+    // se sirve la copia que haya sin comprobarla; si no hay ninguna, se lanza la IOException.
+    public void preparar(String ruta) throws IOException {
+        File local = new File(directorio, ruta);
+        Long comprobado = comprobados.get(ruta);
+        if (comprobado != null && vigente(comprobado) && local.isFile()) {
+            usado(ruta);
+            metricas.proxyDesdeCache();
+            return;
+        }
+        try {
+            enExclusiva(trayendo, ruta, true, () -> traer(ruta, local));
+        } catch (FileNotFoundException e) {
+            // 'traer' ya la quitó de la caché
+        } catch (IOException e) {
+            if (!local.isFile()) throw e;
+            log("El origen no responde (" + e.getMessage() + "); se sirve la copia de '" + ruta + "' sin comprobar.");
+        }
+    }
+
+    // Sube al origen un archivo que un cliente acaba de subir a la caché. Si falla, la copia
+    // queda pendiente de comprobar: la próxima vez que se pida se sustituye por la del origen.
+    public void publicar(String ruta) throws IOException {
+        File local = new File(directorio, ruta);
+        comprobados.remove(ruta);
+        enExclusiva(trayendo, ruta, false, () -> {
+            DeltaBloques.Resultado resultado = conexion().subirDelta(local, ruta, ProgresoDescarga.NINGUNO);
+            log("'" + ruta + "' subido al origen (" + resultado.getTransferidos() + " de "
+                    + resultado.getVersion().getTamano() + " bytes por la red).");
+            return traer(ruta, local); // El origen le pone su propia fecha
+        });
+        olvidarConsultas();
+    }
+
+    // Con la copia local se pregunta primero solo si cambió; si no hay copia o cambió, se pide
+    // por bloques lo que falta.
+    private Boolean traer(String ruta, File local) throws IOException {
+        try {
+            Cliente conexion = conexion();
+            String hash = local.isFile() ? indice.hashDe(ruta) : null;
+            if (hash != null) {
+                EntradaArchivo version = conexion.comprobarVersion(ruta, hash);
+                if (version.getHash() != null) {
+                    if (local.lastModified() != version.getModificado()) {
+                        local.setLastModified(version.getModificado());
+                        indice.incorporar(ruta, local, hash);
+                    }
+                    comprobados.put(ruta, System.nanoTime());
+                    usado(ruta);
+                    metricas.proxyRevalidado();
+                    return Boolean.TRUE;
+                }
+            }
+            DeltaBloques.Resultado resultado = conexion.descargarDelta(ruta, local, ProgresoDescarga.NINGUNO);
+            EntradaArchivo version = resultado.getVersion();
+            local.setLastModified(version.getModificado()); // Con NO_MODIFICADO no se toca la copia
+            indice.incorporar(ruta, local, version.getHash());
+            comprobados.put(ruta, System.nanoTime());
+            metricas.proxyTraido(resultado.getTransferidos());
+            log("'" + ruta + "' traído del origen (" + resultado.getTransferidos() + " de " + version.getTamano()
+                    + " bytes por la red).");
+            anotarEnDisco(ruta, local.length());
+            return Boolean.TRUE;
+        } catch (FileNotFoundException e) {
+            olvidar(ruta, local);
+            throw e;
+        }
+    }
+
+    private void olvidar(String ruta, File local) {
+        comprobados.remove(ruta);
+        synchronized (enDisco) {
+            Long tamano = enDisco.remove(ruta);
+            if (tamano != null) usoDisco -= tamano;
+        }
+        if (local.delete()) {
+            log("'" + ruta + "' ya no existe en el origen; se borra de la caché.");
+        }
+    }
+
+    private void usado(String ruta) {
+        synchronized (enDisco) {
+            enDisco.get(ruta);
+        }
+    }
+
+    // Anota un archivo recién guardado y, si la caché se pasa del presupuesto, borra los usados
+    // hace más tiempo (salvo los que se están trayendo). El último que quede no se borra aunque
+    // él solo supere el presupuesto: es el que se acaba de pedir.
+    private void anotarEnDisco(String ruta, long tamano) {
+        List<String> expulsados = new ArrayList<>();
+        synchronized (enDisco) {
+            Long anterior = enDisco.put(ruta, tamano);
+            usoDisco += tamano - (anterior != null ? anterior : 0);
+            Iterator<Map.Entry<String, Long>> entradas = enDisco.entrySet().iterator();
+            while (limiteDisco > 0 && usoDisco > limiteDisco && entradas.hasNext()) {
+                Map.Entry<String, Long> entrada = entradas.next();
+                if (entrada.getKey().equals(ruta) || trayendo.containsKey(entrada.getKey())) continue;
+                usoDisco -= entrada.getValue();
+                expulsados.add(entrada.getKey());
+                entradas.remove();
+            }
+        }
+        for (String expulsado : expulsados) {
+            comprobados.remove(expulsado);
+            new File(directorio, expulsado).delete();
+        }
+        if (!expulsados.isEmpty()) {
+            log(expulsados.size() + " archivos borrados de la caché para no pasar de "
+                    + limiteDisco / (1024 * 1024) + " MB (el primero, '" + expulsados.get(0) + "').");
+        }
+    }
+
+    // --- Listados y búsquedas ---
+
+    // Respuesta del origen a una solicitud de 'seReenvia', completa y lista para enviar.
+    public ByteBuffer reenviar(ByteBuffer solicitud) throws IOException {
+        ByteBuffer respuesta = consultar(solicitud, () -> {
+            ByteBuffer trama = conexion().reenviar(solicitud.duplicate());
+            return new Guardada(trama, trama.remaining());
+        });
+        return respuesta.duplicate();
+    }
+
+    // Los archivos del nivel superior del origen, para LISTAR y el protocolo serializado. Si el
+    // origen no responde y no hay ningún listado guardado, se lista lo que hay en la caché.
+    public IndiceArchivos.Instantanea raiz() {
+        try {
+            return consultar(RAIZ, () -> {
+                List<EntradaArchivo> archivos = listar(false);
+                return new Guardada(IndiceArchivos.Instantanea.deArchivos(archivos), archivos.size() * BYTES_POR_ENTRADA);
+            });
+        } catch (IOException e) {
+            log("El origen no responde (" + e.getMessage() + "); se lista el contenido de la caché.");
+            return indice.instantanea();
+        }
+    }
+
+    // Todos los archivos del origen, para resolver los patrones de un lote; igual que 'raiz' si
+    // el origen no responde.
+    public List<EntradaArchivo> arbol() {
+        try {
+            return consultar(ARBOL, () -> {
+                List<EntradaArchivo> archivos = listar(true);
+                return new Guardada(archivos, archivos.size() * BYTES_POR_ENTRADA);
+            });
+        } catch (IOException e) {
+            log("El origen no responde (" + e.getMessage() + "); los patrones se resuelven con la caché.");
+            return indice.instantanea().getEntradas();
+        }
+    }
+
+    private List<EntradaArchivo> listar(boolean todos) throws IOException {
+        try {
+            return todos ? conexion().listarArbol() : conexion().listarEntradas();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Respuesta no válida del origen.", e); // Solo en el protocolo serializado
+        }
+    }
+
+    // Respuesta guardada hace menos de la vigencia o, si no la hay, la que dé el origen (pedida
+    // una sola vez aunque la pidan varios a la vez). Si el origen no responde se devuelve la
+    // última guardada, aunque haya vencido; si no hay ninguna, se lanza la IOException.
+    @SuppressWarnings("unchecked")
+    private <T> T consultar(Object clave, Tarea<Guardada> pedir) throws IOException {
+        Guardada guardada;
+        synchronized (consultas) {
+            guardada = consultas.get(clave);
+        }
+        if (guardada != null && vigente(guardada.obtenida)) {
+            metricas.proxyConsulta(true);
+            return (T) guardada.valor;
+        }
+        try {
+            return (T) enExclusiva(consultando, clave, true, () -> {
+                Guardada nueva = pedir.ejecutar();
+                metricas.proxyConsulta(false);
+                guardar(clave, nueva);
+                return nueva;
+            }).valor;
+        } catch (IOException e) {
+            if (guardada == null) throw e;
+            return (T) guardada.valor;
+        }
+    }
+
+    private void guardar(Object clave, Guardada guardada) {
+        synchronized (consultas) {
+            Guardada anterior = consultas.put(clave, guardada);
+            usoConsultas += guardada.bytes - (anterior != null ? anterior.bytes : 0);
+            Iterator<Guardada> guardadas = consultas.values().iterator();
+            while (usoConsultas > MAXIMO_CONSULTAS && guardadas.hasNext()) {
+                usoConsultas -= guardadas.next().bytes;
+                guardadas.remove();
+            }
+        }
+    }
+
+    // Tras una subida los listados guardados ya no valen.
+    private void olvidarConsultas() {
+        synchronized (consultas) {
+            consultas.clear();
+            usoConsultas = 0;
+        }
+    }
+
+    // --- Auxiliares ---
+
+    private boolean vigente(long desde) {
+        return System.nanoTime() - desde < vigenciaNanos;
+    }
+
+    // La conexión con el origen; si se perdió, se abre otra.
+    private synchronized Cliente conexion() throws IOException {
+        if (cliente != null && cliente.isConectado()) {
+            return cliente;
+        }
+        if (cliente != null) cliente.desconectar();
+        cliente = null;
+        Cliente nuevo = new Cliente();
+        if (!nuevo.conectar(AnilloNodos.host(origen), AnilloNodos.puerto(origen))) {
+            throw new IOException("No se pudo conectar con el servidor de origen " + origen + ".");
+        }
+        if (nuevo.getVersionProtocolo() < 9) {
+            nuevo.desconectar();
+            throw new IOException("El servidor de origen " + origen + " es demasiado antiguo: se necesita la versión 9 del protocolo.");
+        }
+        cliente = nuevo;
+        return cliente;
+    }
+
+    // Ejecuta 'tarea' como la única en curso para 'clave'. Si ya hay otra y 'compartir' es true
+    // se espera a que termine y se devuelve su resultado (o su excepción) en lugar de repetirla;
+    // si es false, se espera a que termine y después se ejecuta 'tarea'.
+    private static <K, V> V enExclusiva(Map<K, CompletableFuture<V>> enCurso, K clave, boolean compartir, Tarea<V> tarea)
+            throws IOException {
+        CompletableFuture<V> propia = new CompletableFuture<>();
+        CompletableFuture<V> otra;
+        while ((otra = enCurso.putIfAbsent(clave, propia)) != null) {
+            try {
+                V resultado = esperar(otra);
+                if (compartir) return resultado;
+            } catch (IOException e) {
+                if (compartir) throw e;
+            }
+        }
+        try {
+            V resultado = tarea.ejecutar();
+            propia.complete(resultado);
+            return resultado;
+        } catch (Throwable e) {
+            propia.completeExceptionally(e);
+            throw e;
+        } finally {
+            enCurso.remove(clave, propia);
+        }
+    }
+
+    private static <V> V esperar(CompletableFuture<V> otra) throws IOException {
+        try {
+            return otra.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Espera interrumpida.");
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof IOException) throw (IOException) causa;
+            if (causa instanceof RuntimeException) throw (RuntimeException) causa;
+            throw new IOException(causa);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (cliente != null) cliente.desconectar();
+        cliente = null;
+    }
+
+    private static void log(String mensaje) {
+        System.out.println("[proxy] " + mensaje);
+    }
+
+    private interface Tarea<V> {
+        V ejecutar() throws IOException;
+    }
+
+    // Respuesta del origen, cuándo se obtuvo y lo que se calcula que ocupa.
+    private static final class Guardada {
+        final Object valor;
+        final long bytes;
+        final long obtenida = System.nanoTime();
+
+        Guardada(Object valor, long bytes) {
+            this.valor = valor;
+            this.bytes = bytes;
+        }
+    }
+}
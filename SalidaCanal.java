@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// Flujo de salida que escribe por completo sobre un SocketChannel, aunque el canal esté en
+// modo no bloqueante. Cuando el búfer del socket se llena, espera en un Selector propio
+// (un canal puede registrarse en varios selectores) en lugar de girar en vacío.
+// Todo lo que el servidor envía pasa por aquí, así que aquí se cuentan los bytes enviados.
+public class SalidaCanal extends OutputStream {
+    private final SocketChannel canal;
+    private final MetricasServidor metricas;
+    private Selector selectorEscritura; // Se crea solo si alguna escritura llega a bloquearse
+    private ByteBuffer bloqueCopia;     // Búfer directo (fuera del heap) para 'copiarBloque'
+
+    public SalidaCanal(SocketChannel canal, MetricasServidor metricas) {
+        this.canal = canal;
+        this.metricas = metricas;
+    }
+
+    // Para salidas que no escriben en un socket propio sino a través de otra (ver 'SalidaCompartida').
+    protected SalidaCanal() {
+        this.canal = null;
+        this.metricas = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] datos, int desde, int longitud) throws IOException {
+        escribirCompleto(ByteBuffer.wrap(datos, desde, longitud));
+    }
+
+    public void escribirCompleto(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int escritos = canal.write(buffer);
+            if (escritos == 0) {
+                esperarEscritura();
+            } else {
+                metricas.bytesEnviados(escritos);
+            }
+        }
+    }
+
+    // Envía 'longitud' bytes del archivo a partir de 'posicion'. Sobre un SocketChannel,
+    // transferTo usa sendfile: el contenido va del caché de páginas al socket sin copiarse al heap.
+    public void transferirDesde(FileChannel archivo, long posicion, long longitud) throws IOException {
+        long fin = posicion + longitud;
+        while (posicion < fin) {
+            long enviados = archivo.transferTo(posicion, fin - posicion, canal);
+            if (enviados > 0) {
+                posicion += enviados;
+                metricas.bytesEnviados(enviados);
+            } else if (posicion >= archivo.size()) {
+                throw new EOFException("El archivo se truncó durante la transferencia.");
+            } else if (canal.isBlocking()) {
+                // Desde un hilo virtual el descriptor es no bloqueante por debajo, así que sendfile
+                // puede devolver 0 aunque el canal sea bloqueante. Como no se puede registrar en un
+                // selector, se envía un bloque con una escritura normal, que sí espera al socket.
+                posicion += copiarBloque(archivo, posicion, fin - posicion);
+            } else {
+                esperarEscritura();
+            }
+        }
+    }
+
+    private int copiarBloque(FileChannel archivo, long posicion, long restantes) throws IOException {
+        if (bloqueCopia == null) {
+            bloqueCopia = ByteBuffer.allocateDirect(64 * 1024);
+        }
+        bloqueCopia.clear();
+        if (restantes < bloqueCopia.capacity()) {
+            bloqueCopia.limit((int) restantes);
+        }
+        int leidos = archivo.read(bloqueCopia, posicion);
+        if (leidos < 0) {
+            throw new EOFException("El archivo se truncó durante la transferencia.");
+        }
+        bloqueCopia.flip();
+        escribirCompleto(bloqueCopia);
+        return leidos;
+    }
+
+    private void esperarEscritura() throws IOException {
+        if (selectorEscritura == null) {
+            selectorEscritura = Selector.open();
+            canal.register(selectorEscritura, SelectionKey.OP_WRITE);
+        }
+        selectorEscritura.select();
+        selectorEscritura.selectedKeys().clear();
+    }
+
+    // Corta la conexión. Se usa cuando una respuesta quedó a medias y el otro extremo ya no
+    // podría distinguir dónde empieza la siguiente trama.
+    public void cortar() throws IOException {
+        canal.close();
+    }
+
+    // Libera el selector auxiliar; el canal lo cierra quien lo creó.
+    @Override
+    public void close() throws IOException {
+        if (selectorEscritura != null) {
+            selectorEscritura.close();
+        }
+    }
+}
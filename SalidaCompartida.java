@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Salida que comparten las solicitudes en curso de una misma conexión (protocolo v5). Cada
+// trama se escribe entera mientras se tiene el turno, así que las respuestas de canales
+// distintos se intercalan trama a trama sin mezclarse. El turno es equitativo (FIFO): una
+// descarga grande no acapara la conexión y una vista previa espera como mucho un BLOQUE.
+// Si la solicitud llegó dentro de un CANAL, cada trama se envuelve con su id.
+//
+// La sesión escribe igual que sin canales: una trama completa, o su encabezado seguido de la
+// carga en una o varias escrituras. Esta clase sabe dónde empieza cada trama leyendo el
+// encabezado, que siempre llega entero en una sola escritura.
+public class SalidaCompartida extends SalidaCanal {
+    public static final long SIN_CANAL = -1;
+
+    private final SalidaCanal salida;
+    private final ReentrantLock turno;
+    private final long canal;
+    private long cargaPendiente; // Bytes de la trama actual que aún no se han escrito
+
+    public SalidaCompartida(SalidaCanal salida, ReentrantLock turno, long canal) {
+        this.salida = salida;
+        this.turno = turno;
+        this.canal = canal;
+    }
+
+    @Override
+    public void escribirCompleto(ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                if (!turno.isHeldByCurrentThread()) {
+                    empezarTrama(buffer);
+                }
+                int trozo = (int) Math.min(buffer.remaining(), cargaPendiente);
+                salida.escribirCompleto(buffer.slice(buffer.position(), trozo));
+                buffer.position(buffer.position() + trozo);
+                cargaPendiente -= trozo;
+                soltarSiTerminada();
+            }
+        } catch (IOException | RuntimeException e) {
+            soltar();
+            throw e;
+        }
+    }
+
+    @Override
+    public void transferirDesde(FileChannel archivo, long posicion, long longitud) throws IOException {
+        if (!turno.isHeldByCurrentThread() || longitud > cargaPendiente) {
+            throw new IllegalStateException("Transferencia fuera de la carga de una trama.");
+        }
+        try {
+            salida.transferirDesde(archivo, posicion, longitud);
+            cargaPendiente -= longitud;
+            soltarSiTerminada();
+        } catch (IOException | RuntimeException e) {
+            soltar();
+            throw e;
+        }
+    }
+
+    // Si se corta a mitad de una trama, el turno se suelta después de cerrar: los que esperan
+    // para escribir fallan en vez de quedarse bloqueados.
+    @Override
+    public void cortar() throws IOException {
+        try {
+            salida.cortar();
+        } finally {
+            soltar();
+        }
+    }
+
+    // La salida subyacente la cierra quien la creó.
+    @Override
+    public void close() {
+    }
+
+    private void empezarTrama(ByteBuffer buffer) throws IOException {
+        byte tipo = buffer.get();
+        long longitud = Protocolo.leerVarint(buffer);
+        turno.lock();
+        cargaPendiente = longitud;
+        salida.escribirCompleto(canal == SIN_CANAL ? Protocolo.encabezado(tipo, longitud)
+                : Protocolo.encabezadoCanal(Protocolo.RESPUESTA_CANAL, canal, tipo, longitud));
+        soltarSiTerminada(); // Una trama sin carga (FIN) ya está completa
+    }
+
+    private void soltarSiTerminada() {
+        if (cargaPendiente == 0) soltar();
+    }
+
+    private void soltar() {
+        if (turno.isHeldByCurrentThread()) turno.unlock();
+    }
+}
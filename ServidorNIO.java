@@ -0,0 +1,402 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Motor no bloqueante: unos pocos bucles de eventos (uno por núcleo, por defecto) vigilan
+// todas las conexiones con un Selector. Una conexión inactiva solo ocupa su registro en el
+// selector y un búfer pequeño; únicamente cuando llega una solicitud completa se atiende en
+// un hilo virtual, que reutiliza la misma 'SesionCliente' que el motor de hilos.
+public class ServidorNIO implements MotorServidor {
+    private static final int TAMANO_INICIAL_ENTRADA = 512;
+
+    private final ConfiguracionServidor config;
+    private final File directorioArchivos;
+    private IndiceArchivos indice; // Listado en memoria del directorio compartido
+    private CacheArchivos cache;    // Archivos más pedidos, servidos desde memoria
+    private Miniaturas miniaturas;  // Vistas previas de las imágenes, en caché en disco
+    private ControlTrafico trafico; // Límites de caudal y admisión de las descargas
+    private ClusterNodos cluster;   // Los demás nodos, si el servidor forma parte de un cluster
+    private ProxyCache proxy;       // El servidor de origen, si este hace de proxy con caché
+    private final MetricasServidor metricas = new MetricasServidor();
+    private final AtomicInteger contadorClientes = new AtomicInteger();
+    private ServerSocketChannel servidorCanal;
+    private BucleEventos[] bucles;
+    private ExecutorService trabajadores; // Generan las respuestas fuera de los bucles
+    private volatile boolean activo;
+    private int siguienteBucle;
+
+    public ServidorNIO(ConfiguracionServidor config) {
+        this.config = config;
+        this.directorioArchivos = config.prepararDirectorioArchivos();
+    }
+
+    @Override
+    public void iniciar() throws IOException {
+        servidorCanal = ServerSocketChannel.open();
+        servidorCanal.bind(new InetSocketAddress(config.getPuerto()), 1024);
+        servidorCanal.configureBlocking(false);
+        SubidaArchivo.limpiarTemporales(directorioArchivos);
+        indice = new IndiceArchivos(directorioArchivos);
+        cache = new CacheArchivos(config.getCacheBytes());
+        miniaturas = new Miniaturas(directorioArchivos);
+        trafico = new ControlTrafico(config, metricas);
+        cluster = config.crearCluster(indice, getPuerto());
+        proxy = config.crearProxy(indice, metricas);
+        if (proxy != null) proxy.iniciar();
+
+        bucles = new BucleEventos[config.getBuclesEventos()];
+        for (int i = 0; i < bucles.length; i++) {
+            bucles[i] = new BucleEventos();
+        }
+        // El primer bucle también acepta conexiones y las reparte entre todos.
+        servidorCanal.register(bucles[0].selector, SelectionKey.OP_ACCEPT);
+        trabajadores = Executors.newVirtualThreadPerTaskExecutor();
+        metricas.registrarJmx(getPuerto());
+        activo = true;
+
+        for (int i = 1; i < bucles.length; i++) {
+            Thread hilo = new Thread(bucles[i], "bucle-nio-" + i);
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+        System.out.println("Servidor NIO iniciado y escuchando en el puerto " + getPuerto()
+                + " con " + bucles.length + " bucles de eventos.");
+        System.out.println("Directorio de archivos: " + directorioArchivos.getAbsolutePath());
+        if (cluster != null) cluster.iniciar();
+    }
+
+    @Override
+    public void aceptarConexiones() {
+        bucles[0].run();
+    }
+
+    @Override
+    public void detener() {
+        activo = false;
+        if (bucles != null) {
+            for (BucleEventos bucle : bucles) {
+                bucle.selector.wakeup();
+            }
+        }
+        try {
+            if (servidorCanal != null) servidorCanal.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el canal del servidor: " + e.getMessage());
+        }
+        if (cluster != null) cluster.close();
+        if (proxy != null) proxy.close();
+        try {
+            if (indice != null) indice.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el índice de archivos: " + e.getMessage());
+        }
+        if (cache != null) System.out.println(cache);
+        if (miniaturas != null) miniaturas.close();
+        metricas.anularRegistroJmx();
+        if (trabajadores != null) {
+            trabajadores.shutdown();
+            try {
+                trabajadores.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public int getPuerto() {
+        return servidorCanal.socket().getLocalPort();
+    }
+
+    @Override
+    public MetricasServidor getMetricas() {
+        return metricas;
+    }
+
+    // Un error al aceptar (por ejemplo, sin descriptores libres) solo pierde esa conexión: el
+    // bucle 0 sigue atendiendo a las demás y vuelve a intentarlo en la siguiente vuelta.
+    private void aceptar() {
+        while (true) {
+            SocketChannel canal;
+            try {
+                canal = servidorCanal.accept();
+            } catch (IOException e) {
+                System.err.println("Error al aceptar una conexión: " + e.getMessage());
+                return;
+            }
+            if (canal == null) return;
+            int id = contadorClientes.incrementAndGet();
+            BucleEventos destino = bucles[siguienteBucle];
+            siguienteBucle = (siguienteBucle + 1) % bucles.length;
+            try {
+                ConexionNIO conexion = new ConexionNIO(id, canal, destino);
+                destino.ejecutar(conexion::registrar);
+            } catch (RuntimeException e) {
+                System.err.println("[cliente " + id + "] Error inesperado al aceptar la conexión: " + e);
+                try {
+                    canal.close();
+                } catch (IOException ignorada) {
+                    // Ya estaba cerrada
+                }
+            }
+        }
+    }
+
+    private final class BucleEventos implements Runnable {
+        private final Selector selector;
+        // Tareas que otros hilos piden ejecutar dentro del bucle (registrar, reanudar lectura).
+        private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+
+        BucleEventos() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void ejecutar(Runnable tarea) {
+            tareas.add(tarea);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (activo) {
+                    selector.select();
+                    Runnable tarea;
+                    while ((tarea = tareas.poll()) != null) {
+                        try {
+                            tarea.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("Error inesperado en una tarea del bucle de eventos: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+                    while (claves.hasNext()) {
+                        SelectionKey clave = claves.next();
+                        claves.remove();
+                        atender(clave);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (activo) {
+                    System.err.println("Error en el bucle de eventos: " + e.getMessage());
+                }
+            } finally {
+                cerrarTodo();
+            }
+        }
+
+        // Un fallo con una clave (también que otro hilo la cancele al cerrar su conexión entre
+        // select() y este punto) no debe terminar el bucle ni cerrar las demás conexiones.
+        private void atender(SelectionKey clave) {
+            try {
+                if (!clave.isValid()) return;
+                if (clave.isAcceptable()) {
+                    aceptar();
+                } else if (clave.isReadable()) {
+                    ((ConexionNIO) clave.attachment()).leer();
+                }
+            } catch (CancelledKeyException e) {
+                // La conexión ya está cerrada
+            } catch (RuntimeException e) {
+                System.err.println("Error inesperado en el bucle de eventos: " + e);
+            }
+        }
+
+        private void cerrarTodo() {
+            try {
+                for (SelectionKey clave : selector.keys()) {
+                    clave.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                // Ignorar
+            }
+        }
+    }
+
+    // Una solicitud ya decodificada, lista para que la atienda la sesión. Devuelve 'false'
+    // cuando el cliente pide cerrar la conexión.
+    private interface SolicitudPendiente {
+        boolean atender() throws IOException;
+    }
+
+    private final class ConexionNIO {
+        private final int id;
+        private final SocketChannel canal;
+        private final BucleEventos bucle;
+        private final SesionCliente sesion;
+        private final SalidaCanal salida;
+        // El protocolo se decide con los primeros bytes; hasta entonces ambos son null/false.
+        private DecodificadorSerializado decodificador; // Solo para clientes del protocolo serializado
+        private boolean binario;
+        // Solicitudes ya decodificadas; mientras haya alguna pendiente, el bucle no lee más.
+        private final Queue<SolicitudPendiente> pendientes = new ArrayDeque<>();
+        private ByteBuffer entrada = ByteBuffer.allocate(TAMANO_INICIAL_ENTRADA);
+        private SelectionKey clave;
+        private boolean cerrada;
+
+        ConexionNIO(int id, SocketChannel canal, BucleEventos bucle) {
+            this.id = id;
+            this.canal = canal;
+            this.bucle = bucle;
+            this.sesion = new SesionCliente(id, indice, cache, miniaturas, trafico, metricas, cluster, proxy);
+            // Una respuesta que queda a medias en un canal corta la conexión desde otro hilo: se
+            // cierra como las demás, porque el bucle no ve cerrarse un canal por su cuenta.
+            this.salida = new SalidaCanal(canal, metricas) {
+                @Override
+                public void cortar() {
+                    cerrar();
+                }
+            };
+            metricas.conexionAbierta();
+        }
+
+        // Se ejecuta en el bucle destino. No se envía nada hasta saber qué protocolo habla el cliente.
+        void registrar() {
+            try {
+                canal.configureBlocking(false);
+                canal.socket().setTcpNoDelay(true);
+                System.out.println("Conexión " + id + " establecida con: " + canal.getRemoteAddress());
+                clave = canal.register(bucle.selector, SelectionKey.OP_READ, this);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[cliente " + id + "] Error al registrar la conexión: " + e);
+                cerrar();
+            }
+        }
+
+        // Un error con esta conexión (también uno inesperado al decodificar, que no debe terminar el
+        // bucle de eventos y con él las demás conexiones) solo cierra esta.
+        void leer() {
+            try {
+                int leidos = canal.read(entrada);
+                if (leidos < 0) {
+                    System.out.println("[cliente " + id + "] El cliente cerró la conexión de forma inesperada.");
+                    cerrar();
+                    return;
+                }
+                entrada.flip();
+                if (decodificador != null || binario || detectarProtocolo()) {
+                    decodificar();
+                }
+                entrada.compact();
+                if (!entrada.hasRemaining()) {
+                    // Solicitud más grande que el búfer: se duplica su capacidad.
+                    ByteBuffer mayor = ByteBuffer.allocate(entrada.capacity() * 2);
+                    entrada.flip();
+                    mayor.put(entrada);
+                    entrada = mayor;
+                }
+                if (!pendientes.isEmpty()) {
+                    clave.interestOps(0);
+                    trabajadores.execute(this::procesar);
+                }
+            } catch (RejectedExecutionException e) {
+                cerrar(); // El servidor se está deteniendo
+            } catch (IOException e) {
+                System.err.println("[cliente " + id + "] Error al leer la solicitud: " + e.getMessage());
+                cerrar();
+            } catch (RuntimeException e) {
+                System.err.println("[cliente " + id + "] Error inesperado al leer la solicitud: " + e);
+                cerrar();
+            }
+        }
+
+        // Responde al saludo binario o a la apertura de un cliente serializado. Ambas respuestas
+        // son pequeñas y caben en el búfer del socket, así que escribirlas aquí no detiene el bucle.
+        private boolean detectarProtocolo() throws IOException {
+            if (entrada.remaining() < 2) return false;
+            int inicio = entrada.position();
+            if (entrada.get(inicio) == Protocolo.MAGIA[0] && entrada.get(inicio + 1) == Protocolo.MAGIA[1]) {
+                byte[] saludo = new byte[Protocolo.MAGIA.length + 1];
+                if (entrada.remaining() < saludo.length) return false;
+                entrada.get(saludo);
+                sesion.abrirBinario(salida, Protocolo.versionDeSaludo(saludo));
+                binario = true;
+            } else {
+                sesion.abrir(salida);
+                decodificador = new DecodificadorSerializado();
+            }
+            return true;
+        }
+
+        private void decodificar() throws IOException {
+            if (binario) {
+                Protocolo.Trama trama;
+                while ((trama = Protocolo.siguienteTrama(entrada, Protocolo.MAXIMO_SOLICITUD)) != null) {
+                    Protocolo.Trama solicitud = trama;
+                    pendientes.add(() -> sesion.atenderTrama(solicitud));
+                }
+            } else {
+                String cadena;
+                while ((cadena = decodificador.siguiente(entrada)) != null) {
+                    String solicitud = cadena;
+                    pendientes.add(() -> sesion.atenderSolicitud(solicitud));
+                }
+            }
+        }
+
+        // Se ejecuta en un hilo trabajador. Atiende en orden todas las solicitudes
+        // pendientes y después devuelve la conexión al bucle de eventos. Si algo falla, la
+        // conexión se cierra: el bucle ya no la vigila, así que de otro modo quedaría abierta.
+        private void procesar() {
+            try {
+                SolicitudPendiente solicitud;
+                while ((solicitud = pendientes.poll()) != null) {
+                    if (!solicitud.atender()) {
+                        cerrar();
+                        return;
+                    }
+                }
+                bucle.ejecutar(this::reanudarLectura);
+            } catch (IOException e) {
+                System.err.println("[cliente " + id + "] Error durante la conexión con el cliente: " + e.getMessage());
+                cerrar();
+            } catch (RuntimeException e) {
+                System.err.println("[cliente " + id + "] Error inesperado al atender al cliente: " + e);
+                cerrar();
+            }
+        }
+
+        // Un trabajador puede cerrar la conexión (y cancelar la clave) en cualquier momento.
+        private void reanudarLectura() {
+            try {
+                clave.interestOps(SelectionKey.OP_READ);
+            } catch (CancelledKeyException e) {
+                // Ya está cerrada
+            }
+        }
+
+        // Puede llamarse desde el bucle y desde un trabajador; solo cuenta la primera vez.
+        private void cerrar() {
+            synchronized (this) {
+                if (cerrada) return;
+                cerrada = true;
+            }
+            metricas.conexionCerrada();
+            sesion.descartarSubida();
+            try {
+                salida.close();
+                canal.close();
+                System.out.println("[cliente " + id + "] Conexión con el cliente cerrada.");
+            } catch (IOException e) {
+                System.err.println("[cliente " + id + "] Error al cerrar la conexión con el cliente: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+// El servidor rechazó una descarga porque tiene demasiadas en curso. Trae el tiempo que el
+// servidor sugiere esperar antes de volver a intentarlo (0 si no lo indicó).
+public class ServidorOcupadoException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long reintentarEnMillis;
+
+    public ServidorOcupadoException(String mensaje, long reintentarEnMillis) {
+        super(mensaje);
+        this.reintentarEnMillis = reintentarEnMillis;
+    }
+
+    public long getReintentarEnMillis() {
+        return reintentarEnMillis;
+    }
+}
@@ -0,0 +1,1358 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+// Estado y lógica de la conversación con un único cliente. Cada conexión aceptada
+// tiene su propia sesión, de modo que el servidor puede atender varias a la vez.
+public class SesionCliente implements Runnable {
+    // Límite práctico de un arreglo en la JVM.
+    private static final long MAXIMO_SERIALIZADO = Integer.MAX_VALUE - 8;
+    // Por debajo de este tamaño la compresión no compensa.
+    private static final int MINIMO_COMPRIMIR = 512;
+    // Se prioriza la velocidad: la compresión va al ritmo de la transferencia.
+    private static final int NIVEL_COMPRESION = Deflater.BEST_SPEED;
+    private static final int MUESTRA_COMPRESION = 1024 * 1024;
+    // Límites de los canales (v5) de una conexión: cuántos puede haber en curso a la vez y
+    // cuántas tramas de cada uno se aceptan antes de dejar de leer del socket.
+    private static final int MAXIMO_CANALES = 2 * Protocolo.MAXIMO_CANALES;
+    private static final int MAXIMO_EN_COLA = 16;
+
+    private final int id;
+    private final SocketChannel clienteCanal;
+    private final IndiceArchivos indice; // Compartidos por todas las sesiones del servidor
+    private final CacheArchivos cache;
+    private final Miniaturas miniaturas;
+    private final ControlTrafico trafico;
+    private final MetricasServidor metricas;
+    private final ClusterNodos cluster;      // null si el servidor no forma parte de un cluster
+    private final ProxyCache proxy;          // null si el servidor no es el proxy de otro
+    private final CuboTokens limiteConexion; // Caudal de esta conexión, común a todos sus canales; null = sin límite
+    private final File directorioArchivos;
+    private SalidaCanal salidaCanal; // Acceso directo al canal para las transferencias sin copia
+    private int versionProtocolo;    // Versión binaria acordada en el saludo
+    private SubidaArchivo subida;    // Subida en curso, entre SUBIR y su FIN
+    private String errorSubida;      // Si la subida en curso falló, se descartan sus bloques hasta el FIN
+    private ControlTrafico.Permiso permiso; // Turno de la descarga en curso (el del lote, si va dentro de uno)
+    // Con la versión 5 todas las respuestas pasan por una 'SalidaCompartida'; 'salidaReal' es la
+    // del socket y 'turno' decide quién escribe la siguiente trama.
+    private SalidaCanal salidaReal;
+    private ReentrantLock turno;
+    private final long canal; // Id del canal que atiende esta sesión, o SIN_CANAL si es la de la conexión
+    private final SesionCliente conexion; // La sesión de la conexión (ella misma si no atiende un canal)
+    private volatile String nodoRemoto;   // Nodo del cluster al otro lado de la conexión; null si es un cliente
+    private final Map<Long, Canal> canales = new ConcurrentHashMap<>();
+    private ObjectOutputStream salida;
+    private ObjectInputStream entrada;
+
+    public SesionCliente(int id, SocketChannel clienteCanal, IndiceArchivos indice, CacheArchivos cache,
+            Miniaturas miniaturas, ControlTrafico trafico, MetricasServidor metricas, ClusterNodos cluster, ProxyCache proxy) {
+        this.id = id;
+        this.clienteCanal = clienteCanal;
+        this.indice = indice;
+        this.cache = cache;
+        this.miniaturas = miniaturas;
+        this.trafico = trafico;
+        this.metricas = metricas;
+        this.cluster = cluster;
+        this.proxy = proxy;
+        this.limiteConexion = trafico.nuevoLimiteConexion();
+        this.directorioArchivos = indice.getDirectorio();
+        this.canal = SalidaCompartida.SIN_CANAL;
+        this.conexion = this;
+    }
+
+    // Sesión que atiende las solicitudes de un canal de 'conexion' y responde por la salida de esta.
+    private SesionCliente(SesionCliente conexion, long canal) {
+        this.id = conexion.id;
+        this.clienteCanal = null;
+        this.indice = conexion.indice;
+        this.cache = conexion.cache;
+        this.miniaturas = conexion.miniaturas;
+        this.trafico = conexion.trafico;
+        this.metricas = conexion.metricas;
+        this.cluster = conexion.cluster;
+        this.proxy = conexion.proxy;
+        this.limiteConexion = conexion.limiteConexion;
+        this.directorioArchivos = conexion.directorioArchivos;
+        this.versionProtocolo = conexion.versionProtocolo;
+        this.canal = canal;
+        this.conexion = conexion;
+        this.salidaCanal = new SalidaCompartida(conexion.salidaReal, conexion.turno, canal);
+    }
+
+    // Sesión sin socket propio: el motor NIO lee y decodifica las solicitudes por su cuenta
+    // y solo delega en 'atenderSolicitud'/'atenderTrama' la generación de las respuestas.
+    public SesionCliente(int id, IndiceArchivos indice, CacheArchivos cache, Miniaturas miniaturas,
+            ControlTrafico trafico, MetricasServidor metricas, ClusterNodos cluster, ProxyCache proxy) {
+        this(id, null, indice, cache, miniaturas, trafico, metricas, cluster, proxy);
+    }
+
+    @Override
+    public void run() {
+        try {
+            // --- ETAPA 3: Obtención de Flujos de Entrada/Salida ---
+            // Los dos primeros bytes indican el protocolo: un saludo binario ("NU...") o el
+            // encabezado de ObjectOutputStream de un cliente antiguo.
+            InputStream entradaCliente = new BufferedInputStream(clienteCanal.socket().getInputStream());
+            SalidaCanal salidaCliente = new SalidaCanal(clienteCanal, metricas);
+            if (Protocolo.empiezaConSaludo(entradaCliente)) {
+                DataInputStream entradaDatos = new DataInputStream(entradaCliente);
+                abrirBinario(salidaCliente, Protocolo.leerSaludo(entradaDatos));
+                procesarConexionBinaria(entradaDatos);
+            } else {
+                // Se obtienen los flujos para enviar y recibir objetos, lo que facilita la comunicación.
+                abrir(salidaCliente);
+                entrada = new ObjectInputStream(entradaCliente);
+                log("Flujos de comunicación creados correctamente.");
+
+                // Inicia el procesamiento de la conexión con el cliente.
+                procesarConexion();
+            }
+
+        } catch (IOException e) {
+            logError("Error durante la conexión con el cliente: " + e.getMessage());
+        } catch (RuntimeException e) {
+            logError("Error inesperado al atender al cliente: " + e);
+        } finally {
+            // --- ETAPA 5: Cierre de la Conexión ---
+            cerrarConexion();
+        }
+    }
+
+    // Crea el flujo de objetos sobre la salida dada y envía el mensaje de bienvenida.
+    // El búfer intermedio hace que cada respuesta salga en una sola escritura al socket: sin él,
+    // ObjectOutputStream la parte en bloques de 1 KB y el algoritmo de Nagle retiene el último
+    // trozo hasta recibir el ACK (retardado) del cliente, unos 40 ms por solicitud.
+    public void abrir(SalidaCanal salidaCliente) throws IOException {
+        salidaCanal = salidaCliente;
+        salida = new ObjectOutputStream(new BufferedOutputStream(salidaCliente, 64 * 1024));
+        salida.flush(); // Asegura que el encabezado del stream se envíe inmediatamente.
+        enviarMensaje("Conexión exitosa. Bienvenido al servidor de archivos.");
+    }
+
+    private void procesarConexion() throws IOException {
+        try {
+            // El servidor se mantiene escuchando las solicitudes del cliente hasta que este decida salir.
+            while (atenderSolicitud((String) entrada.readObject())) {
+                // Cada iteración atiende una solicitud completa.
+            }
+        } catch (ClassNotFoundException e) {
+            logError("Error: Se recibió un objeto de tipo desconocido.");
+        } catch (EOFException e) {
+            log("El cliente cerró la conexión de forma inesperada.");
+        }
+    }
+
+    // Atiende una solicitud y devuelve 'false' cuando el cliente pide terminar la conexión.
+    public boolean atenderSolicitud(String solicitud) throws IOException {
+        log("RECIBIDO: Solicitud del cliente -> " + solicitud);
+
+        long inicio = System.nanoTime();
+        metricas.solicitud(solicitud.split(":", 2)[0]);
+        if (solicitud.equals("LISTAR_ARCHIVOS")) {
+            enviarListaArchivos();
+            metricas.listado(System.nanoTime() - inicio);
+        } else if (solicitud.startsWith("SOLICITAR_ARCHIVO:")) {
+            String nombreArchivo = solicitud.substring(18);
+            enviarArchivo(nombreArchivo);
+            metricas.archivo(System.nanoTime() - inicio);
+        } else if (solicitud.startsWith("SOLICITAR_ARCHIVO_DIRECTO:")) {
+            String nombreArchivo = solicitud.substring(26);
+            enviarArchivoDirecto(nombreArchivo);
+            metricas.archivo(System.nanoTime() - inicio);
+        } else if (solicitud.equals("SALIR")) {
+            log("El cliente ha decidido terminar la conexión.");
+            return false;
+        }
+        return true;
+    }
+
+    // --- PROTOCOLO BINARIO ---
+
+    // Responde al saludo con la versión acordada: la más alta que entienden ambos extremos (y,
+    // en un proxy, también el servidor de origen).
+    public void abrirBinario(SalidaCanal salidaCliente, int versionCliente) throws IOException {
+        salidaCanal = salidaCliente;
+        int version = Math.min(versionCliente, proxy != null ? proxy.getVersionOrigen() : Protocolo.VERSION);
+        versionProtocolo = version;
+        salidaCanal.write(Protocolo.saludo(version));
+        if (version < 1) {
+            throw new StreamCorruptedException("El cliente no soporta ninguna versión conocida del protocolo.");
+        }
+        if (version >= 5) {
+            // Las respuestas de los canales y las de fuera de ellos se intercalan por trama.
+            salidaReal = salidaCliente;
+            turno = new ReentrantLock(true);
+            salidaCanal = new SalidaCompartida(salidaReal, turno, SalidaCompartida.SIN_CANAL);
+        }
+        log("Protocolo binario acordado (versión " + version + ").");
+    }
+
+    private void procesarConexionBinaria(DataInputStream entradaDatos) throws IOException {
+        Protocolo.Trama trama;
+        while ((trama = Protocolo.leerTrama(entradaDatos, Protocolo.MAXIMO_SOLICITUD)) != null) {
+            if (!atenderTrama(trama)) {
+                return;
+            }
+        }
+        log("El cliente cerró la conexión de forma inesperada.");
+    }
+
+    // Equivalente binario de 'atenderSolicitud': devuelve 'false' cuando el cliente pide salir.
+    public boolean atenderTrama(Protocolo.Trama trama) throws IOException {
+        try {
+            return atenderTrama(trama.getTipo(), trama.getCarga());
+        } catch (BufferUnderflowException e) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "Solicitud truncada.");
+            return true;
+        }
+    }
+
+    // Los BLOQUEs, COPIAR_BLOQUES y el FIN de una subida, y los sobres CANAL, no cuentan como
+    // solicitudes.
+    private boolean atenderTrama(byte tipo, ByteBuffer carga) throws IOException {
+        long inicio = System.nanoTime();
+        if (tipo != Protocolo.BLOQUE && tipo != Protocolo.COPIAR_BLOQUES && tipo != Protocolo.FIN && tipo != Protocolo.CANAL) {
+            metricas.solicitud(Protocolo.nombreDeTipo(tipo));
+        }
+        if (proxy != null && ProxyCache.seReenvia(tipo) && reenviarAlOrigen(tipo, carga.duplicate())) {
+            return true;
+        }
+        switch (tipo) {
+            case Protocolo.LISTAR:
+                log("RECIBIDO: LISTAR");
+                enviarListaBinaria();
+                metricas.listado(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.LISTAR_DIRECTORIO:
+                String directorio = Protocolo.leerCadena(carga);
+                String cursor = Protocolo.leerCadena(carga);
+                int orden = (int) Protocolo.leerVarint(carga);
+                boolean descendente = Protocolo.leerVarint(carga) != 0;
+                long maximo = Protocolo.leerVarint(carga);
+                log("RECIBIDO: LISTAR_DIRECTORIO '" + directorio + "'" + (cursor.isEmpty() ? "" : " desde " + cursor));
+                enviarPagina(directorio, cursor, orden, descendente, maximo);
+                metricas.listado(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.BUSCAR:
+                ConsultaBusqueda consulta = leerConsulta(carga);
+                log("RECIBIDO: BUSCAR '" + consulta.getTexto() + "'");
+                enviarResultados(consulta);
+                metricas.busqueda(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.SOLICITAR_ARCHIVO:
+                String nombreArchivo = Protocolo.leerCadena(carga);
+                log("RECIBIDO: SOLICITAR_ARCHIVO " + nombreArchivo);
+                enviarArchivoBinario(nombreArchivo, 0, 0, 0, 0, Protocolo.COMPRESION_NINGUNA, "");
+                metricas.archivo(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.SOLICITAR_RANGO:
+                String nombreRango = Protocolo.leerCadena(carga);
+                long desde = Protocolo.leerVarint(carga);
+                long longitud = Protocolo.leerVarint(carga);
+                long tamanoEsperado = Protocolo.leerVarint(carga);
+                long modificadoEsperado = Protocolo.leerVarint(carga);
+                int compresiones = leerCompresiones(carga);
+                String hashLocal = carga.hasRemaining() ? Protocolo.leerCadena(carga) : "";
+                log("RECIBIDO: SOLICITAR_RANGO " + nombreRango + " desde " + desde + " (" + longitud + " bytes)");
+                enviarArchivoBinario(nombreRango, desde, longitud, tamanoEsperado, modificadoEsperado, compresiones, hashLocal);
+                metricas.archivo(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.SOLICITAR_LOTE:
+                long cantidad = Protocolo.leerVarint(carga);
+                List<String> patrones = new ArrayList<>();
+                for (long i = 0; i < cantidad; i++) {
+                    patrones.add(Protocolo.leerCadena(carga));
+                }
+                log("RECIBIDO: SOLICITAR_LOTE " + patrones);
+                enviarLote(patrones, leerCompresiones(carga));
+                metricas.archivo(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.SUBIR:
+                String nombreSubida = Protocolo.leerCadena(carga);
+                long tamanoSubida = Protocolo.leerVarint(carga);
+                String hashSubida = Protocolo.leerCadena(carga);
+                log("RECIBIDO: SUBIR " + nombreSubida + " (" + tamanoSubida + " bytes)");
+                iniciarSubida(nombreSubida, tamanoSubida, hashSubida);
+                return true;
+            case Protocolo.SOLICITAR_DELTA:
+                String nombreDelta = Protocolo.leerCadena(carga);
+                String hashCopia = Protocolo.leerCadena(carga);
+                DeltaBloques.Firma firma = DeltaBloques.Firma.leer(carga);
+                log("RECIBIDO: SOLICITAR_DELTA " + nombreDelta + " (" + firma.getBloques() + " bloques en el cliente)");
+                enviarDelta(nombreDelta, hashCopia, firma);
+                metricas.archivo(System.nanoTime() - inicio);
+                return true;
+            case Protocolo.SOLICITAR_FIRMAS:
+                String nombreFirmas = Protocolo.leerCadena(carga);
+                log("RECIBIDO: SOLICITAR_FIRMAS " + nombreFirmas);
+                enviarFirmas(nombreFirmas);
+                return true;
+            case Protocolo.SUBIR_DELTA:
+                String nombreSubidaDelta = Protocolo.leerCadena(carga);
+                long tamanoSubidaDelta = Protocolo.leerVarint(carga);
+                String hashSubidaDelta = Protocolo.leerCadena(carga);
+                String hashBase = Protocolo.leerCadena(carga);
+                long tamanoBloque = Protocolo.leerVarint(carga);
+                log("RECIBIDO: SUBIR_DELTA " + nombreSubidaDelta + " (" + tamanoSubidaDelta + " bytes)");
+                iniciarSubidaDelta(nombreSubidaDelta, tamanoSubidaDelta, hashSubidaDelta, hashBase, tamanoBloque);
+                return true;
+            case Protocolo.SOLICITAR_ANILLO:
+                enviarAnillo(carga.hasRemaining() ? Protocolo.leerCadena(carga) : "");
+                return true;
+            case Protocolo.BLOQUE:
+                recibirBloqueSubida(carga);
+                return true;
+            case Protocolo.COPIAR_BLOQUES:
+                recibirCopiaSubida(Protocolo.leerVarint(carga), Protocolo.leerVarint(carga));
+                return true;
+            case Protocolo.FIN:
+                terminarSubida();
+                return true;
+            case Protocolo.SOLICITAR_MINIATURA:
+                String nombreImagen = Protocolo.leerCadena(carga);
+                int tamanoMiniatura = (int) Math.min(Protocolo.leerVarint(carga), Integer.MAX_VALUE);
+                log("RECIBIDO: SOLICITAR_MINIATURA " + nombreImagen + " (" + tamanoMiniatura + " px)");
+                enviarMiniatura(nombreImagen, tamanoMiniatura);
+                return true;
+            case Protocolo.SOLICITAR_ESTADISTICAS:
+                log("RECIBIDO: SOLICITAR_ESTADISTICAS");
+                enviarEstadisticas();
+                return true;
+            case Protocolo.CANAL:
+                if (versionProtocolo < 5 || canal != SalidaCompartida.SIN_CANAL) {
+                    enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "CANAL no admitido aquí.");
+                    return true;
+                }
+                long idCanal = Protocolo.leerVarint(carga);
+                encolarEnCanal(idCanal, Protocolo.desenvolver(carga));
+                return true;
+            case Protocolo.SALIR:
+                if (canal != SalidaCompartida.SIN_CANAL) return true; // Solo se sale de la conexión entera
+                log("El cliente ha decidido terminar la conexión.");
+                return false;
+            default:
+                enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "Tipo de solicitud desconocido: " + tipo);
+                return true;
+        }
+    }
+
+    // Las compresiones aceptadas son un campo opcional al final de la solicitud.
+    private static int leerCompresiones(ByteBuffer carga) throws StreamCorruptedException {
+        return carga.hasRemaining() ? (int) Protocolo.leerVarint(carga) : Protocolo.COMPRESION_NINGUNA;
+    }
+
+    private void enviarEstadisticas() throws IOException {
+        Map<String, Long> valores = metricas.getValores();
+        Protocolo.ConstructorTrama respuesta = new Protocolo.ConstructorTrama(Protocolo.ESTADISTICAS).varint(valores.size());
+        valores.forEach((nombre, valor) -> respuesta.cadena(nombre).varint(valor));
+        salidaCanal.escribirCompleto(respuesta.terminar());
+    }
+
+    // El listado sale del índice ya codificado: no se toca el disco.
+    private void enviarListaBinaria() throws IOException {
+        salidaCanal.escribirCompleto(listado().getListaBinaria(versionProtocolo));
+    }
+
+    // Los archivos que se listan: los del directorio compartido o, en un proxy, los del origen.
+    private IndiceArchivos.Instantanea listado() {
+        return proxy != null ? proxy.raiz() : indice.instantanea();
+    }
+
+    // Cada página sale de la instantanea del momento en que se pide: solo se codifican sus
+    // entradas, así que la primera llega enseguida aunque el directorio tenga cientos de miles.
+    private void enviarPagina(String directorio, String cursor, int orden, boolean descendente, long maximo) throws IOException {
+        if (!directorio.isEmpty() && resolverArchivo(directorio) == null) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el directorio '" + directorio + "'.");
+            return;
+        }
+        int tamano = limitarMaximo(maximo);
+        if (tamano == 0) tamano = Protocolo.TAMANO_PAGINA;
+        PaginaListado pagina;
+        try {
+            pagina = indice.instantanea().pagina(directorio, orden, descendente, cursor, tamano);
+        } catch (IllegalArgumentException e) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, e.getMessage());
+            return;
+        }
+        if (pagina == null) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el directorio '" + directorio + "'.");
+            return;
+        }
+        Protocolo.ConstructorTrama respuesta = new Protocolo.ConstructorTrama(Protocolo.PAGINA)
+                .cadena(directorio).varint(pagina.getTotal()).varint(pagina.getEntradas().size());
+        for (EntradaArchivo entrada : pagina.getEntradas()) {
+            respuesta.cadena(entrada.getNombre()).varint(entrada.esDirectorio() ? 1 : 0).varint(entrada.getTamano())
+                    .varint(entrada.getModificado()).cadena(entrada.getHash() != null ? entrada.getHash() : "");
+        }
+        salidaCanal.escribirCompleto(respuesta.cadena(pagina.getSiguiente()).terminar());
+    }
+
+    private static ConsultaBusqueda leerConsulta(ByteBuffer carga) throws StreamCorruptedException {
+        String texto = Protocolo.leerCadena(carga);
+        ConsultaBusqueda consulta = Protocolo.leerVarint(carga) == Protocolo.BUSQUEDA_PREFIJO
+                ? new ConsultaBusqueda().prefijo(texto) : new ConsultaBusqueda().contiene(texto);
+        return consulta.extension(Protocolo.leerCadena(carga)).enDirectorio(Protocolo.leerCadena(carga))
+                .tamano(Protocolo.leerVarint(carga), Protocolo.leerVarint(carga))
+                .modificado(Protocolo.leerVarint(carga), Protocolo.leerVarint(carga))
+                .maximo(limitarMaximo(Protocolo.leerVarint(carga)));
+    }
+
+    // Máximo de entradas pedido para una página o una búsqueda, entre 0 (el valor por defecto)
+    // y MAXIMO_PAGINA. Un varint de 10 bytes se lee como negativo y no debe quitar el límite.
+    private static int limitarMaximo(long maximo) {
+        return (int) Math.max(0, Math.min(maximo, Protocolo.MAXIMO_PAGINA));
+    }
+
+    // La búsqueda usa los índices de la instantanea, así que solo se recorren y codifican los
+    // archivos candidatos, no el directorio entero.
+    private void enviarResultados(ConsultaBusqueda consulta) throws IOException {
+        String directorio = consulta.getDirectorio();
+        if (!directorio.isEmpty() && resolverArchivo(directorio) == null) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el directorio '" + directorio + "'.");
+            return;
+        }
+        int maximo = consulta.getMaximo() == 0 ? Protocolo.TAMANO_PAGINA : consulta.getMaximo();
+        ConsultaBusqueda.Resultado resultado = indice.instantanea().buscar(consulta, maximo);
+        if (resultado == null) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el directorio '" + directorio + "'.");
+            return;
+        }
+        Protocolo.ConstructorTrama respuesta = new Protocolo.ConstructorTrama(Protocolo.RESULTADOS)
+                .varint(resultado.getEntradas().size());
+        for (EntradaArchivo entrada : resultado.getEntradas()) {
+            respuesta.cadena(entrada.getNombre()).varint(entrada.getTamano()).varint(entrada.getModificado())
+                    .cadena(entrada.getHash() != null ? entrada.getHash() : "");
+        }
+        salidaCanal.escribirCompleto(respuesta.varint(resultado.hayMas() ? 1 : 0).terminar());
+    }
+
+    // Envía la trama ARCHIVO, el rango pedido troceado en BLOQUEs y la trama FIN. Cada BLOQUE se
+    // envía con transferTo, igual que en el modo directo, sin copiar el contenido al heap.
+    // Una 'longitud' 0 significa "hasta el final". Si se indican el tamaño o la fecha esperados y
+    // el archivo ya no coincide (cambió desde que el cliente empezó a descargarlo), se ignora
+    // el rango y se envía completo; el cliente lo sabe por el 'desde' de la trama ARCHIVO.
+    // Si el cliente acepta DEFLATE y el archivo no es de un formato ya comprimido, el contenido
+    // se comprime al vuelo. Si el cliente pide el archivo entero e indica el hash de su copia
+    // local, y coincide con el del servidor, solo se contesta NO_MODIFICADO.
+    private void enviarArchivoBinario(String nombreArchivo, long desde, long longitud,
+            long tamanoEsperado, long modificadoEsperado, int compresiones, String hashLocal) throws IOException {
+        if (desde < 0 || longitud < 0) {
+            enviarError(Protocolo.ERROR_RANGO_NO_VALIDO, "Rango no válido para '" + nombreArchivo + "'.");
+            log("AVISO: Rango no válido para '" + nombreArchivo + "' (desde " + desde + ", " + longitud + " bytes).");
+            return;
+        }
+        if (!traerDelOrigen(nombreArchivo)) {
+            return;
+        }
+        File archivo = resolverArchivo(nombreArchivo);
+        if (archivo == null || !archivo.isFile()) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el archivo '" + nombreArchivo + "'.");
+            log("AVISO: El cliente solicitó un archivo inexistente: '" + nombreArchivo + "'");
+            return;
+        }
+        if (!hashLocal.isEmpty() && desde == 0 && hashLocal.equals(indice.hashDe(nombreArchivo))) {
+            salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.NO_MODIFICADO)
+                    .cadena(nombreArchivo).varint(archivo.length()).varint(archivo.lastModified()).cadena(hashLocal).terminar());
+            log("ÉXITO: '" + nombreArchivo + "' no ha cambiado; el cliente conserva su copia.");
+            return;
+        }
+
+        // Los archivos populares salen de la caché; el resto, del disco con transferTo. Un rango
+        // se envía desde la caché si el archivo ya está, pero no lo carga.
+        CacheArchivos.Contenido contenido = buscarEnCache(nombreArchivo, archivo, desde == 0 && longitud == 0);
+        try (FileChannel canalArchivo = contenido != null ? null : FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+            long tamano = contenido != null ? contenido.getTamano() : canalArchivo.size();
+            long modificado = contenido != null ? contenido.getModificado() : archivo.lastModified();
+            boolean condicionada = tamanoEsperado != 0 || modificadoEsperado != 0;
+            if (condicionada && (tamanoEsperado != tamano || modificadoEsperado != modificado)) {
+                log("AVISO: '" + nombreArchivo + "' cambió desde la descarga anterior; se envía completo.");
+                desde = 0;
+                longitud = 0;
+            }
+            if (desde > tamano) {
+                enviarError(Protocolo.ERROR_RANGO_NO_VALIDO, "El rango empieza después del final de '" + nombreArchivo + "'.");
+                log("AVISO: Rango no válido para '" + nombreArchivo + "' (desde " + desde + ", tamaño " + tamano + ").");
+                return;
+            }
+            long restantes = tamano - desde;
+            longitud = longitud == 0 ? restantes : Math.min(longitud, restantes);
+            boolean comprimir = (compresiones & Protocolo.COMPRESION_DEFLATE) != 0
+                    && longitud >= MINIMO_COMPRIMIR && !TipoArchivo.yaComprimido(nombreArchivo);
+            boolean turnoPropio = permiso == null && longitud > Protocolo.TAMANO_BLOQUE;
+            if (turnoPropio && !pedirTurno()) {
+                return;
+            }
+            try {
+                enviarContenido(nombreArchivo, contenido, canalArchivo, tamano, modificado, desde, longitud, comprimir);
+            } finally {
+                if (turnoPropio) soltarTurno();
+            }
+        }
+    }
+
+    // Cada BLOQUE espera a los límites de caudal antes de empezar, no a mitad: con canales, el
+    // turno de escritura no se toma hasta entonces y las respuestas cortas pasan por delante.
+    private void enviarContenido(String nombreArchivo, CacheArchivos.Contenido contenido, FileChannel canalArchivo,
+            long tamano, long modificado, long desde, long longitud, boolean comprimir) throws IOException {
+        long inicioEnvio = System.nanoTime();
+        salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.ARCHIVO)
+                .cadena(nombreArchivo).varint(tamano).varint(modificado).varint(desde).varint(longitud)
+                .varint(comprimir ? Protocolo.COMPRESION_DEFLATE : Protocolo.COMPRESION_NINGUNA).terminar());
+        long fin = desde + longitud;
+        if (comprimir) {
+            long comprimidos = enviarComprimido(contenido, canalArchivo, desde, fin);
+            salidaCanal.escribirCompleto(Protocolo.encabezado(Protocolo.FIN, 0));
+            metricas.transferencia(longitud, System.nanoTime() - inicioEnvio);
+            log("ÉXITO: '" + nombreArchivo + "' enviado comprimido al cliente (" + longitud + " -> " + comprimidos + " bytes).");
+            return;
+        }
+        for (long posicion = desde; posicion < fin; posicion += Protocolo.TAMANO_BLOQUE) {
+            long bloque = Math.min(Protocolo.TAMANO_BLOQUE, fin - posicion);
+            trafico.limitar(limiteConexion, bloque);
+            salidaCanal.escribirCompleto(Protocolo.encabezado(Protocolo.BLOQUE, bloque));
+            if (contenido != null) {
+                salidaCanal.escribirCompleto(contenido.vista(posicion, bloque));
+            } else {
+                salidaCanal.transferirDesde(canalArchivo, posicion, bloque);
+            }
+        }
+        salidaCanal.escribirCompleto(Protocolo.encabezado(Protocolo.FIN, 0));
+        metricas.transferencia(longitud, System.nanoTime() - inicioEnvio);
+        if (longitud == tamano) {
+            log("ÉXITO: Archivo '" + nombreArchivo + "' (" + longitud + " bytes) enviado al cliente.");
+        } else {
+            log("ÉXITO: Bytes " + desde + "-" + (fin - 1) + " de '" + nombreArchivo + "' enviados al cliente.");
+        }
+    }
+
+    // Comprime el rango al vuelo en un único flujo zlib. Se lee en trozos de TAMANO_BLOQUE y cada
+    // BLOQUE lleva como mucho TAMANO_BLOQUE bytes comprimidos. Si tras MUESTRA_COMPRESION bytes
+    // apenas se gana espacio (un formato comprimido sin extensión conocida), el resto se envía
+    // en bloques 'stored' de zlib, que casi no gastan CPU. Devuelve los bytes comprimidos.
+    private long enviarComprimido(CacheArchivos.Contenido contenido, FileChannel canalArchivo, long desde, long fin) throws IOException {
+        Deflater compresor = new Deflater(NIVEL_COMPRESION);
+        byte[] leidos = new byte[Protocolo.TAMANO_BLOQUE];
+        byte[] comprimidos = new byte[Protocolo.TAMANO_BLOQUE];
+        int pendientes = 0;
+        long total = 0;
+        boolean muestreado = false;
+        try {
+            for (long posicion = desde; posicion < fin; posicion += Protocolo.TAMANO_BLOQUE) {
+                int trozo = (int) Math.min(Protocolo.TAMANO_BLOQUE, fin - posicion);
+                ByteBuffer destino = ByteBuffer.wrap(leidos, 0, trozo);
+                if (contenido != null) {
+                    destino.put(contenido.vista(posicion, trozo));
+                } else {
+                    while (destino.hasRemaining()) {
+                        if (canalArchivo.read(destino, posicion + destino.position()) < 0) {
+                            throw new EOFException("El archivo se truncó durante el envío.");
+                        }
+                    }
+                }
+                compresor.setInput(leidos, 0, trozo);
+                if (!muestreado && compresor.getBytesRead() >= MUESTRA_COMPRESION) {
+                    muestreado = true;
+                    if (compresor.getBytesWritten() > compresor.getBytesRead() * 9 / 10) {
+                        compresor.setLevel(Deflater.NO_COMPRESSION);
+                    }
+                }
+                while (!compresor.needsInput()) {
+                    pendientes += compresor.deflate(comprimidos, pendientes, comprimidos.length - pendientes);
+                    if (pendientes == comprimidos.length) {
+                        total += enviarBloque(comprimidos, pendientes);
+                        pendientes = 0;
+                    }
+                }
+            }
+            compresor.finish();
+            while (!compresor.finished()) {
+                pendientes += compresor.deflate(comprimidos, pendientes, comprimidos.length - pendientes);
+                if (pendientes == comprimidos.length || compresor.finished()) {
+                    total += enviarBloque(comprimidos, pendientes);
+                    pendientes = 0;
+                }
+            }
+        } finally {
+            compresor.end();
+        }
+        return total;
+    }
+
+    private int enviarBloque(byte[] datos, int longitud) throws IOException {
+        if (longitud > 0) {
+            trafico.limitar(limiteConexion, longitud);
+            salidaCanal.escribirCompleto(Protocolo.encabezado(Protocolo.BLOQUE, longitud));
+            salidaCanal.escribirCompleto(ByteBuffer.wrap(datos, 0, longitud));
+        }
+        return longitud;
+    }
+
+    // Envía varios archivos en una sola respuesta: el cliente no espera un viaje de ida y
+    // vuelta por archivo, que con muchos archivos pequeños es lo que más tarda.
+    private void enviarLote(List<String> patrones, int compresiones) throws IOException {
+        List<String> faltantes = new ArrayList<>();
+        List<EntradaArchivo> archivos = expandirLote(patrones, faltantes);
+        long total = 0;
+        for (EntradaArchivo archivo : archivos) {
+            total += archivo.getTamano();
+        }
+        Protocolo.ConstructorTrama lote = new Protocolo.ConstructorTrama(Protocolo.LOTE)
+                .varint(archivos.size()).varint(total).varint(faltantes.size());
+        for (String faltante : faltantes) {
+            lote.cadena(faltante);
+        }
+        // El lote pide un solo turno para todos sus archivos, antes de empezar a responder.
+        boolean turnoPropio = permiso == null && total > Protocolo.TAMANO_BLOQUE;
+        if (turnoPropio && !pedirTurno()) {
+            return;
+        }
+        try {
+            salidaCanal.escribirCompleto(lote.terminar());
+            for (EntradaArchivo archivo : archivos) {
+                enviarArchivoBinario(archivo.getNombre(), 0, 0, 0, 0, compresiones, "");
+            }
+        } finally {
+            if (turnoPropio) soltarTurno();
+        }
+        log("ÉXITO: Lote de " + archivos.size() + " archivos (" + total + " bytes) enviado al cliente.");
+    }
+
+    // Traduce nombres y patrones glob a rutas de archivos del directorio compartido, en el orden
+    // pedido y sin repetidos. Lo que no corresponde a ningún archivo se añade a 'faltantes'. Los
+    // patrones se comparan con la ruta completa: "*.png" solo abarca el nivel superior y
+    // "fotos/**" todo lo que hay bajo 'fotos'. En un proxy, con los archivos del origen. Las
+    // entradas salen del índice, así que el tamaño del lote se conoce sin volver al disco.
+    private List<EntradaArchivo> expandirLote(List<String> patrones, List<String> faltantes) {
+        Map<String, EntradaArchivo> archivos = new LinkedHashMap<>();
+        List<EntradaArchivo> compartidos = null;
+        for (String patron : patrones) {
+            if (Protocolo.esPatronGlob(patron)) {
+                if (compartidos == null) compartidos = proxy != null ? proxy.arbol() : indice.instantanea().getEntradas();
+                int antes = archivos.size();
+                PathMatcher coincide = Protocolo.patronGlob(patron);
+                for (EntradaArchivo entrada : compartidos) {
+                    if (coincide.matches(Path.of(entrada.getNombre()))) archivos.putIfAbsent(entrada.getNombre(), entrada);
+                }
+                if (archivos.size() == antes) faltantes.add(patron);
+            } else {
+                File archivo = resolverArchivo(patron);
+                if (proxy != null && archivo != null) {
+                    try {
+                        proxy.preparar(patron);
+                    } catch (IOException e) {
+                        log("AVISO: No se pudo traer '" + patron + "' del origen: " + e.getMessage());
+                    }
+                }
+                EntradaArchivo entrada = archivo != null ? entradaDe(patron, archivo) : null;
+                if (entrada != null) {
+                    archivos.putIfAbsent(patron, entrada);
+                } else {
+                    faltantes.add(patron);
+                }
+            }
+        }
+        return new ArrayList<>(archivos.values());
+    }
+
+    // La entrada del índice de un archivo pedido por su nombre. Solo si el vigilante aún no lo
+    // ha visto (se acaba de copiar al directorio) se consulta el disco.
+    private EntradaArchivo entradaDe(String nombre, File archivo) {
+        EntradaArchivo entrada = indice.instantanea().buscar(nombre);
+        if (entrada == null && archivo.isFile()) {
+            entrada = new EntradaArchivo(nombre, archivo.length(), archivo.lastModified());
+        }
+        return entrada;
+    }
+
+    // El cliente envía la firma de su copia y recibe solo lo que cambió: los tramos que ya tiene
+    // cuestan una trama COPIAR_BLOQUES y el contenido nuevo viaja en BLOQUEs, con los mismos
+    // límites de caudal y turnos que una descarga normal.
+    private void enviarDelta(String nombreArchivo, String hashLocal, DeltaBloques.Firma firma) throws IOException {
+        if (!traerDelOrigen(nombreArchivo)) {
+            return;
+        }
+        File archivo = resolverArchivo(nombreArchivo);
+        if (archivo == null || !archivo.isFile()) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el archivo '" + nombreArchivo + "'.");
+            log("AVISO: El cliente solicitó un archivo inexistente: '" + nombreArchivo + "'");
+            return;
+        }
+        String hash = indice.hashDe(nombreArchivo);
+        long tamano = archivo.length();
+        long modificado = archivo.lastModified();
+        if (!hashLocal.isEmpty() && hashLocal.equals(hash)) {
+            salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.NO_MODIFICADO)
+                    .cadena(nombreArchivo).varint(tamano).varint(modificado).cadena(hash).terminar());
+            log("ÉXITO: '" + nombreArchivo + "' no ha cambiado; el cliente conserva su copia.");
+            return;
+        }
+        boolean turnoPropio = permiso == null && tamano > Protocolo.TAMANO_BLOQUE;
+        if (turnoPropio && !pedirTurno()) {
+            return;
+        }
+        try {
+            long inicioEnvio = System.nanoTime();
+            salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.DELTA)
+                    .cadena(nombreArchivo).varint(tamano).varint(modificado).cadena(hash).terminar());
+            long nuevos = DeltaBloques.generar(archivo, firma, new DeltaBloques.Receptor() {
+                @Override
+                public void copiar(long primero, long cantidad) throws IOException {
+                    salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.COPIAR_BLOQUES)
+                            .varint(primero).varint(cantidad).terminar());
+                }
+
+                @Override
+                public void literal(byte[] datos, int desde, int longitud) throws IOException {
+                    trafico.limitar(limiteConexion, longitud);
+                    salidaCanal.escribirCompleto(Protocolo.encabezado(Protocolo.BLOQUE, longitud));
+                    salidaCanal.escribirCompleto(ByteBuffer.wrap(datos, desde, longitud));
+                }
+            });
+            salidaCanal.escribirCompleto(Protocolo.encabezado(Protocolo.FIN, 0));
+            metricas.transferencia(nuevos, System.nanoTime() - inicioEnvio);
+            log("ÉXITO: '" + nombreArchivo + "' enviado por bloques (" + nuevos + " de " + tamano + " bytes nuevos).");
+        } finally {
+            if (turnoPropio) soltarTurno();
+        }
+    }
+
+    private void enviarFirmas(String nombreArchivo) throws IOException {
+        if (!traerDelOrigen(nombreArchivo)) {
+            return;
+        }
+        File archivo = resolverArchivo(nombreArchivo);
+        if (archivo == null || !archivo.isFile()) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el archivo '" + nombreArchivo + "'.");
+            return;
+        }
+        String hash = indice.hashDe(nombreArchivo);
+        salidaCanal.escribirCompleto(DeltaBloques.firmar(archivo)
+                .escribir(new Protocolo.ConstructorTrama(Protocolo.FIRMAS).cadena(nombreArchivo).cadena(hash)).terminar());
+    }
+
+    // Una vista previa cuesta unos pocos KB en lugar del archivo completo. La miniatura se genera
+    // la primera vez que alguien la pide y después se sirve del disco.
+    private void enviarMiniatura(String nombreArchivo, int tamano) throws IOException {
+        File archivo = resolverArchivo(nombreArchivo);
+        if (archivo == null || !archivo.isFile()) {
+            enviarError(Protocolo.ERROR_NO_ENCONTRADO, "No existe el archivo '" + nombreArchivo + "'.");
+            return;
+        }
+        if (TipoArchivo.desdeNombre(nombreArchivo) != TipoArchivo.IMAGEN) {
+            enviarError(Protocolo.ERROR_SIN_MINIATURA, "'" + nombreArchivo + "' no es una imagen.");
+            return;
+        }
+        String hash = indice.hashDe(nombreArchivo);
+        File miniatura = miniaturas.obtener(archivo, hash, tamano);
+        if (miniatura == null) {
+            enviarError(Protocolo.ERROR_SIN_MINIATURA, "No se pudo decodificar la imagen '" + nombreArchivo + "'.");
+            return;
+        }
+        String nombreMiniatura = miniatura.getName();
+        salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.MINIATURA)
+                .cadena(nombreArchivo).cadena(hash).cadena(nombreMiniatura.substring(nombreMiniatura.lastIndexOf('.') + 1))
+                .bytes(Files.readAllBytes(miniatura.toPath())).terminar());
+    }
+
+    // --- Subidas ---
+
+    // Antes de aceptar el contenido se busca en el índice un archivo con el mismo hash: si el
+    // destino ya lo tiene no se hace nada, y si lo tiene otro archivo se copia dentro del
+    // servidor. Solo en otro caso se pide al cliente que envíe los bytes.
+    private void iniciarSubida(String nombreArchivo, long tamano, String hash) throws IOException {
+        File destino = resolverArchivo(nombreArchivo);
+        if (subida != null || errorSubida != null) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "Ya hay una subida en curso en esta conexión.");
+            return;
+        }
+        if (proxy != null && destino != null) {
+            // Se compara con la versión actual del origen; el directorio lo tiene él, no la caché.
+            if (!traerDelOrigen(nombreArchivo)) return;
+            destino.getParentFile().mkdirs();
+        }
+        // El directorio de destino tiene que existir: las subidas no crean directorios.
+        if (destino == null || destino.isDirectory() || !destino.getParentFile().isDirectory() || hash.isEmpty()) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "No se puede subir '" + nombreArchivo + "'.");
+            return;
+        }
+        if (hash.equals(indice.hashDe(nombreArchivo))) {
+            enviarSubido(nombreArchivo, tamano, hash, false);
+            log("ÉXITO: '" + nombreArchivo + "' ya estaba en el servidor con el mismo contenido.");
+            return;
+        }
+        try {
+            if (copiarIgual(nombreArchivo, destino, tamano, hash)) {
+                return;
+            }
+            subida = new SubidaArchivo(directorioArchivos, nombreArchivo, tamano, hash);
+        } catch (IOException e) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, "No se pudo preparar la subida: " + e.getMessage());
+            logError("Error al preparar la subida de '" + nombreArchivo + "': " + e.getMessage());
+            return;
+        }
+        salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.CONTINUAR).terminar());
+    }
+
+    // Si otro archivo del servidor tiene el contenido anunciado, se copia dentro del servidor y
+    // se contesta SUBIDO sin pedir nada al cliente.
+    private boolean copiarIgual(String nombreArchivo, File destino, long tamano, String hash) throws IOException {
+        EntradaArchivo igual = indice.instantanea().buscarPorHash(hash);
+        if (igual == null || igual.getTamano() != tamano) {
+            return false;
+        }
+        SubidaArchivo.copiarExistente(directorioArchivos, igual.getNombre(), nombreArchivo);
+        indice.incorporar(nombreArchivo, destino, hash);
+        if (!subirAlOrigen(nombreArchivo)) {
+            return true;
+        }
+        replicar(nombreArchivo);
+        enviarSubido(nombreArchivo, tamano, hash, false);
+        log("ÉXITO: '" + nombreArchivo + "' copiado de '" + igual.getNombre() + "', que tiene el mismo contenido.");
+        return true;
+    }
+
+    // Subida por bloques: se parte de la versión del servidor cuyas FIRMAS tiene el cliente. A
+    // diferencia de SUBIR, crea los directorios que falten, para poder sincronizar carpetas.
+    private void iniciarSubidaDelta(String nombreArchivo, long tamano, String hash, String hashBase, long tamanoBloque) throws IOException {
+        File destino = resolverArchivo(nombreArchivo);
+        if (subida != null || errorSubida != null) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "Ya hay una subida en curso en esta conexión.");
+            return;
+        }
+        if (destino == null || destino.isDirectory() || hash.isEmpty() || tamanoBloque < 1 || tamanoBloque > Integer.MAX_VALUE) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "No se puede subir '" + nombreArchivo + "'.");
+            return;
+        }
+        if (!traerDelOrigen(nombreArchivo)) {
+            return;
+        }
+        File padre = destino.getParentFile();
+        if (!padre.isDirectory() && !padre.mkdirs() && !padre.isDirectory()) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, "No se pudo crear el directorio de '" + nombreArchivo + "'.");
+            return;
+        }
+        String hashActual = indice.hashDe(nombreArchivo);
+        if (hash.equals(hashActual)) {
+            enviarSubido(nombreArchivo, tamano, hash, false);
+            log("ÉXITO: '" + nombreArchivo + "' ya estaba en el servidor con el mismo contenido.");
+            return;
+        }
+        if (!hashBase.isEmpty() && !hashBase.equals(hashActual)) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, "'" + nombreArchivo + "' cambió en el servidor; vuelva a pedir sus firmas.");
+            return;
+        }
+        try {
+            if (copiarIgual(nombreArchivo, destino, tamano, hash)) {
+                return;
+            }
+            subida = new SubidaArchivo(directorioArchivos, nombreArchivo, tamano, hash,
+                    hashBase.isEmpty() ? null : destino, (int) tamanoBloque);
+        } catch (IOException e) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, "No se pudo preparar la subida: " + e.getMessage());
+            logError("Error al preparar la subida de '" + nombreArchivo + "': " + e.getMessage());
+            return;
+        }
+        salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.CONTINUAR).terminar());
+    }
+
+    private void recibirCopiaSubida(long primero, long cantidad) throws IOException {
+        if (errorSubida != null) {
+            return;
+        }
+        if (subida == null) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "COPIAR_BLOQUES sin una subida en curso.");
+            return;
+        }
+        try {
+            subida.copiar(primero, cantidad);
+        } catch (IOException e) {
+            errorSubida = e.getMessage();
+            descartarSubida();
+        }
+    }
+
+    private void recibirBloqueSubida(ByteBuffer carga) throws IOException {
+        if (errorSubida != null) {
+            return; // El cliente aún no sabe que falló; se espera a su FIN para avisarle
+        }
+        if (subida == null) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "BLOQUE sin una subida en curso.");
+            return;
+        }
+        try {
+            subida.escribir(carga);
+        } catch (IOException e) {
+            errorSubida = e.getMessage();
+            descartarSubida();
+        }
+    }
+
+    private void terminarSubida() throws IOException {
+        if (errorSubida != null) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, errorSubida);
+            logError("Error en la subida: " + errorSubida);
+            errorSubida = null;
+            return;
+        }
+        if (subida == null) {
+            enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, "FIN sin una subida en curso.");
+            return;
+        }
+        SubidaArchivo terminada = subida;
+        subida = null;
+        try {
+            terminada.completar();
+        } catch (IOException e) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, e.getMessage());
+            logError("Error al completar la subida de '" + terminada.getNombre() + "': " + e.getMessage());
+            return;
+        }
+        indice.incorporar(terminada.getNombre(), terminada.getDestino(), terminada.getHash());
+        if (!subirAlOrigen(terminada.getNombre())) {
+            return;
+        }
+        replicar(terminada.getNombre());
+        enviarSubido(terminada.getNombre(), terminada.getRecibidos(), terminada.getHash(), true);
+        if (terminada.getCopiados() > 0) {
+            log("ÉXITO: '" + terminada.getNombre() + "' subido por bloques (" + (terminada.getRecibidos() - terminada.getCopiados())
+                    + " de " + terminada.getRecibidos() + " bytes enviados por el cliente).");
+        } else {
+            log("ÉXITO: '" + terminada.getNombre() + "' subido por el cliente (" + terminada.getRecibidos() + " bytes).");
+        }
+    }
+
+    private void enviarSubido(String nombre, long tamano, String hash, boolean transferido) throws IOException {
+        salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.SUBIDO)
+                .cadena(nombre).varint(tamano).cadena(hash).varint(transferido ? 1 : 0).terminar());
+    }
+
+    // Borra el temporal de una subida que no llegó a completarse (también al cerrar la conexión,
+    // incluidas las de sus canales).
+    public void descartarSubida() {
+        if (subida != null) {
+            subida.descartar();
+            subida = null;
+        }
+        for (Canal abierto : canales.values()) {
+            abierto.sesion.descartarSubida();
+        }
+    }
+
+    // --- Cluster ---
+
+    // Un nodo que se presenta queda anotado en la conexión: lo que suba por ella es una copia
+    // que hace él y no se vuelve a replicar. Sus latidos no se registran, para no llenar el log.
+    private void enviarAnillo(String nodo) throws IOException {
+        if (cluster == null) {
+            log("RECIBIDO: SOLICITAR_ANILLO (este servidor no forma parte de un cluster)");
+            salidaCanal.escribirCompleto(new AnilloNodos(List.of(), 1, List.of()).trama());
+            return;
+        }
+        if (nodo.isEmpty()) {
+            log("RECIBIDO: SOLICITAR_ANILLO");
+        } else {
+            try {
+                cluster.conocer(nodo);
+            } catch (IllegalArgumentException e) {
+                enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA, e.getMessage());
+                return;
+            }
+            conexion.nodoRemoto = nodo;
+        }
+        salidaCanal.escribirCompleto(cluster.getAnillo().trama());
+    }
+
+    // En un cluster, lo que sube un cliente se copia a los demás responsables del archivo.
+    private void replicar(String nombreArchivo) {
+        if (cluster != null && conexion.nodoRemoto == null) {
+            cluster.replicar(nombreArchivo);
+        }
+    }
+
+    // --- Proxy ---
+
+    // En un proxy, trae del origen la versión actual de un archivo antes de servirlo (ver
+    // 'ProxyCache'). Si no se pudo y no hay copia que servir, avisa al cliente y devuelve false;
+    // en el protocolo serializado no hay cómo, y el archivo se sirve como inexistente.
+    private boolean traerDelOrigen(String nombreArchivo) throws IOException {
+        if (proxy == null || resolverArchivo(nombreArchivo) == null) {
+            return true;
+        }
+        try {
+            proxy.preparar(nombreArchivo);
+            return true;
+        } catch (ServidorOcupadoException e) {
+            if (versionProtocolo > 0) {
+                salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.ERROR)
+                        .varint(Protocolo.ERROR_OCUPADO).cadena(e.getMessage()).varint(e.getReintentarEnMillis()).terminar());
+            }
+            log("AVISO: El origen está ocupado; no se pudo traer '" + nombreArchivo + "'.");
+        } catch (IOException e) {
+            if (versionProtocolo > 0) {
+                enviarError(Protocolo.ERROR_ORIGEN, "El servidor de origen no responde: " + e.getMessage());
+            }
+            logError("No se pudo traer '" + nombreArchivo + "' del origen: " + e.getMessage());
+        }
+        return versionProtocolo == 0;
+    }
+
+    // Listados, búsquedas y miniaturas se contestan con la respuesta del origen, guardada un
+    // tiempo para los siguientes que pidan lo mismo. Si el origen no responde y no hay ninguna
+    // guardada, devuelve false y se contesta como cualquier servidor, con lo que hay en la caché.
+    private boolean reenviarAlOrigen(byte tipo, ByteBuffer carga) throws IOException {
+        ByteBuffer encabezado = Protocolo.encabezado(tipo, carga.remaining());
+        ByteBuffer solicitud = ByteBuffer.allocate(encabezado.remaining() + carga.remaining()).put(encabezado).put(carga).flip();
+        ByteBuffer respuesta;
+        try {
+            respuesta = proxy.reenviar(solicitud);
+        } catch (IOException e) {
+            logError("No se pudo consultar al origen (" + e.getMessage() + "); se responde con la caché.");
+            return false;
+        }
+        log("RECIBIDO: " + Protocolo.nombreDeTipo(tipo) + " (respondido con el origen)");
+        salidaCanal.escribirCompleto(respuesta);
+        return true;
+    }
+
+    // Lo que sube un cliente al proxy no se confirma hasta que lo tiene el origen.
+    private boolean subirAlOrigen(String nombreArchivo) throws IOException {
+        if (proxy == null) {
+            return true;
+        }
+        try {
+            proxy.publicar(nombreArchivo);
+            return true;
+        } catch (IOException e) {
+            enviarError(Protocolo.ERROR_SUBIDA_FALLIDA, "El servidor de origen no aceptó '" + nombreArchivo + "': " + e.getMessage());
+            logError("No se pudo subir '" + nombreArchivo + "' al origen: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // --- Canales ---
+
+    // Solicitudes de un canal pendientes de atender. Un hilo virtual las atiende en orden
+    // mientras haya alguna; el canal se olvida cuando se vacía, salvo si tiene una subida a
+    // medias (sus BLOQUEs siguen llegando por el mismo canal). Se usa un ReentrantLock y no
+    // 'synchronized' porque las esperas dentro de un monitor bloquean el hilo portador de
+    // un hilo virtual.
+    private static final class Canal {
+        final SesionCliente sesion;
+        final Queue<Protocolo.Trama> pendientes = new ArrayDeque<>();
+        final ReentrantLock cerrojo = new ReentrantLock();
+        final Condition conHueco = cerrojo.newCondition();
+        boolean atendiendo;
+        boolean cerrado;
+
+        Canal(SesionCliente sesion) {
+            this.sesion = sesion;
+        }
+    }
+
+    // Se llama desde el hilo que lee la conexión. Si el canal tiene la cola llena, espera: así
+    // un cliente que envía más rápido de lo que se atiende deja de ser leído, como sin canales.
+    private void encolarEnCanal(long idCanal, Protocolo.Trama trama) throws IOException {
+        while (true) {
+            Canal destino = canales.get(idCanal);
+            if (destino == null) {
+                if (canales.size() >= MAXIMO_CANALES) {
+                    new SesionCliente(this, idCanal).enviarError(Protocolo.ERROR_SOLICITUD_INVALIDA,
+                            "Demasiadas solicitudes simultáneas en esta conexión.");
+                    return;
+                }
+                destino = canales.computeIfAbsent(idCanal, k -> new Canal(new SesionCliente(this, k)));
+            }
+            destino.cerrojo.lock();
+            try {
+                while (!destino.cerrado && destino.pendientes.size() >= MAXIMO_EN_COLA) {
+                    destino.conHueco.await();
+                }
+                if (destino.cerrado) continue; // Se acaba de vaciar y olvidar: se crea de nuevo
+                destino.pendientes.add(trama);
+                if (!destino.atendiendo) {
+                    destino.atendiendo = true;
+                    Canal atendido = destino;
+                    Thread.ofVirtual().name("canal-" + id + "-" + idCanal).start(() -> atenderCanal(idCanal, atendido));
+                }
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Conexión interrumpida.");
+            } finally {
+                destino.cerrojo.unlock();
+            }
+        }
+    }
+
+    private void atenderCanal(long idCanal, Canal atendido) {
+        boolean terminado = false;
+        try {
+            while (true) {
+                Protocolo.Trama trama;
+                atendido.cerrojo.lock();
+                try {
+                    trama = atendido.pendientes.poll();
+                    if (trama == null) {
+                        atendido.atendiendo = false;
+                        if (!atendido.sesion.subidaEnCurso()) {
+                            atendido.cerrado = true;
+                            canales.remove(idCanal, atendido);
+                        }
+                        terminado = true;
+                        return;
+                    }
+                    atendido.conHueco.signal();
+                } finally {
+                    atendido.cerrojo.unlock();
+                }
+                atendido.sesion.atenderTrama(trama);
+            }
+        } catch (IOException e) {
+            logError("Error al atender el canal " + idCanal + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            logError("Error inesperado al atender el canal " + idCanal + ": " + e);
+        } finally {
+            if (!terminado) {
+                abandonarCanal(idCanal, atendido);
+            }
+        }
+    }
+
+    // La respuesta quedó a medias y el cliente ya no puede seguir leyendo la conexión: se
+    // olvida el canal (despertando al lector si esperaba hueco en su cola) y se corta.
+    private void abandonarCanal(long idCanal, Canal atendido) {
+        atendido.cerrojo.lock();
+        try {
+            atendido.pendientes.clear();
+            atendido.atendiendo = false;
+            atendido.cerrado = true;
+            canales.remove(idCanal, atendido);
+            atendido.conHueco.signalAll();
+        } finally {
+            atendido.cerrojo.unlock();
+        }
+        atendido.sesion.descartarSubida();
+        try {
+            atendido.sesion.salidaCanal.cortar(); // También suelta el turno si la trama quedó a medias
+        } catch (IOException ignorada) {
+            // Ya estaba cerrada
+        }
+    }
+
+    private boolean subidaEnCurso() {
+        return subida != null || errorSubida != null;
+    }
+
+    // --- Admisión de descargas ---
+
+    // Espera turno para una descarga larga (ver 'ControlTrafico'). Si no lo hay devuelve false
+    // y, en el protocolo binario, responde ERROR_OCUPADO con los milisegundos sugeridos antes de
+    // reintentar; el protocolo serializado avisa a su manera.
+    private boolean pedirTurno() throws IOException {
+        permiso = trafico.admitir();
+        if (permiso != null) {
+            return true;
+        }
+        long reintento = trafico.sugerenciaReintentoMillis();
+        String mensaje = "Servidor ocupado: vuelva a intentarlo en " + (reintento + 999) / 1000 + " s.";
+        if (versionProtocolo > 0) {
+            salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.ERROR)
+                    .varint(Protocolo.ERROR_OCUPADO).cadena(mensaje).varint(reintento).terminar());
+        }
+        log("AVISO: Descarga rechazada. " + mensaje);
+        return false;
+    }
+
+    private void soltarTurno() {
+        permiso.close();
+        permiso = null;
+    }
+
+    private void enviarError(int codigo, String mensaje) throws IOException {
+        salidaCanal.escribirCompleto(new Protocolo.ConstructorTrama(Protocolo.ERROR)
+                .varint(codigo).cadena(mensaje).terminar());
+    }
+
+    // --- AUXILIARES COMUNES ---
+
+    private CacheArchivos.Contenido buscarEnCache(String nombreArchivo, File archivo, boolean cargarSiFalta) throws IOException {
+        return cache.obtener(archivo, indice.instantanea().buscar(nombreArchivo), cargarSiFalta);
+    }
+
+    // Devuelve el archivo pedido dentro del directorio compartido, o null si el nombre
+    // intenta salir de él (por ejemplo, "../secreto.txt" o "fotos/../../secreto.txt"). Se
+    // admiten rutas relativas con '/', sin componentes vacíos, "." ni "..".
+    private File resolverArchivo(String nombreArchivo) {
+        if (nombreArchivo.isEmpty() || nombreArchivo.contains("\\")) {
+            return null;
+        }
+        for (String componente : nombreArchivo.split("/", -1)) {
+            if (componente.isEmpty() || componente.equals(".") || componente.equals("..")) {
+                return null;
+            }
+        }
+        return new File(directorioArchivos, nombreArchivo);
+    }
+
+    // --- PROTOCOLO ORIGINAL (SERIALIZADO) ---
+
+    private void enviarListaArchivos() throws IOException {
+        enviarMensaje(listado().getListaSerializada());
+    }
+
+    private void enviarArchivo(String nombreArchivo) throws IOException {
+        traerDelOrigen(nombreArchivo);
+        File archivo = resolverArchivo(nombreArchivo);
+        boolean existe = archivo != null && archivo.isFile();
+
+        if (existe && archivo.length() > MAXIMO_SERIALIZADO) {
+            // Un 'Archivo' guarda el contenido en un byte[], que no puede superar los 2 GB.
+            // Estos archivos solo se pueden descargar con SOLICITAR_ARCHIVO_DIRECTO.
+            enviarMensaje("ARCHIVO_DEMASIADO_GRANDE");
+            log("AVISO: '" + nombreArchivo + "' es demasiado grande para el protocolo serializado.");
+        } else if (existe && archivo.length() > Protocolo.TAMANO_BLOQUE && !pedirTurno()) {
+            enviarMensaje("SERVIDOR_OCUPADO:" + trafico.sugerenciaReintentoMillis());
+        } else if (existe) {
+            try {
+                enviarArchivoSerializado(archivo, nombreArchivo);
+            } finally {
+                if (permiso != null) soltarTurno();
+            }
+        } else {
+            // Si el archivo no existe, se notifica al cliente.
+            enviarMensaje("ARCHIVO_NO_ENCONTRADO");
+            log("AVISO: El cliente solicitó un archivo inexistente: '" + nombreArchivo + "'");
+        }
+    }
+
+    private void enviarArchivoSerializado(File archivo, String nombreArchivo) throws IOException {
+        // Notifica al cliente que el archivo fue encontrado y se enviará.
+        enviarMensaje("ARCHIVO_ENCONTRADO");
+
+        // --- ETAPA 4: Transferencia de Datos ---
+        // Se lee el archivo a un arreglo de bytes (desde la caché si está) y se encapsula
+        // en un objeto 'Archivo'.
+        byte[] buffer;
+        CacheArchivos.Contenido contenido = buscarEnCache(nombreArchivo, archivo, true);
+        if (contenido != null) {
+            buffer = new byte[(int) contenido.getTamano()];
+            contenido.vista(0, buffer.length).get(buffer);
+        } else {
+            try (FileInputStream fis = new FileInputStream(archivo)) {
+                buffer = fis.readAllBytes();
+            }
+        }
+
+        // El objeto sale de una sola vez, así que el límite de caudal se paga entero antes.
+        trafico.limitar(limiteConexion, buffer.length);
+        Archivo archivoParaEnviar = new Archivo(nombreArchivo, buffer);
+        salida.writeObject(archivoParaEnviar); // Se envía el objeto al cliente.
+        salida.flush();
+        log("ÉXITO: Archivo '" + nombreArchivo + "' enviado al cliente.");
+    }
+
+    // Modo de transferencia directa: en lugar de un objeto 'Archivo', se envía un encabezado
+    // binario pequeño (estado, nombre y longitud) y a continuación el contenido, que pasa del
+    // disco al socket con FileChannel.transferTo (sendfile) sin atravesar el heap de la JVM.
+    private void enviarArchivoDirecto(String nombreArchivo) throws IOException {
+        traerDelOrigen(nombreArchivo);
+        File archivo = resolverArchivo(nombreArchivo);
+        if (archivo == null || !archivo.isFile()) {
+            salidaCanal.escribirCompleto(ByteBuffer.wrap(new byte[] { 0 }));
+            log("AVISO: El cliente solicitó un archivo inexistente: '" + nombreArchivo + "'");
+            return;
+        }
+
+        // El encabezado de este modo solo distingue "hay archivo" de "no lo hay": un rechazo por
+        // saturación se ve como lo segundo.
+        if (archivo.length() > Protocolo.TAMANO_BLOQUE && !pedirTurno()) {
+            salidaCanal.escribirCompleto(ByteBuffer.wrap(new byte[] { 0 }));
+            return;
+        }
+        try {
+            enviarContenidoDirecto(archivo, nombreArchivo);
+        } finally {
+            if (permiso != null) soltarTurno();
+        }
+    }
+
+    // Se envía por trozos de TAMANO_BLOQUE para respetar los límites de caudal.
+    private void enviarContenidoDirecto(File archivo, String nombreArchivo) throws IOException {
+        CacheArchivos.Contenido contenido = buscarEnCache(nombreArchivo, archivo, true);
+        if (contenido != null) {
+            long longitud = contenido.getTamano();
+            salidaCanal.escribirCompleto(encabezadoDirecto(nombreArchivo, longitud));
+            for (long posicion = 0; posicion < longitud; posicion += Protocolo.TAMANO_BLOQUE) {
+                long trozo = Math.min(Protocolo.TAMANO_BLOQUE, longitud - posicion);
+                trafico.limitar(limiteConexion, trozo);
+                salidaCanal.escribirCompleto(contenido.vista(posicion, trozo));
+            }
+            log("ÉXITO: Archivo '" + nombreArchivo + "' (" + longitud + " bytes) enviado desde la caché al cliente.");
+            return;
+        }
+        try (FileChannel canalArchivo = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+            long longitud = canalArchivo.size();
+            salidaCanal.escribirCompleto(encabezadoDirecto(nombreArchivo, longitud));
+            for (long posicion = 0; posicion < longitud; posicion += Protocolo.TAMANO_BLOQUE) {
+                long trozo = Math.min(Protocolo.TAMANO_BLOQUE, longitud - posicion);
+                trafico.limitar(limiteConexion, trozo);
+                salidaCanal.transferirDesde(canalArchivo, posicion, trozo);
+            }
+            log("ÉXITO: Archivo '" + nombreArchivo + "' (" + longitud + " bytes) enviado sin copia al cliente.");
+        }
+    }
+
+    // Mismo formato que DataOutputStream: byte de estado, nombre con writeUTF y longitud como long.
+    private static ByteBuffer encabezadoDirecto(String nombreArchivo, long longitud) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + nombreArchivo.length());
+        DataOutputStream datos = new DataOutputStream(bytes);
+        datos.writeByte(1);
+        datos.writeUTF(nombreArchivo);
+        datos.writeLong(longitud);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private void enviarMensaje(String mensaje) throws IOException {
+        salida.writeObject(mensaje);
+        salida.flush();
+        log("ENVIADO: Mensaje al cliente -> " + mensaje);
+    }
+
+    private void cerrarConexion() {
+        log("Cerrando conexión con el cliente...");
+        descartarSubida();
+        try {
+            if (salida != null) salida.close();
+            if (entrada != null) entrada.close();
+            clienteCanal.close();
+            log("Conexión con el cliente cerrada.");
+        } catch (IOException e) {
+            logError("Error al cerrar la conexión con el cliente: " + e.getMessage());
+        }
+    }
+
+    private void log(String mensaje) {
+        System.out.println("[cliente " + id + "] " + mensaje);
+    }
+
+    private void logError(String mensaje) {
+        System.err.println("[cliente " + id + "] " + mensaje);
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Sincroniza una carpeta local con un directorio del servidor (y sus subdirectorios), en un
+// sentido cada vez: 'traer' deja en la carpeta la versión del servidor de cada archivo y
+// 'enviar' sube al servidor los archivos de la carpeta. Los archivos se comparan por hash: el
+// del servidor llega en el propio listado y el de la copia local se guarda en
+// '<carpeta>.hashes' con su tamaño y fecha, así que un archivo que no cambió no cuesta más que
+// su línea del listado. Los que cambiaron viajan por bloques (ver 'DeltaBloques'): de un
+// archivo grande con unos pocos cambios solo se envían los bloques afectados.
+public class SincronizadorCarpeta {
+    private final Cliente cliente;
+    private final File carpeta;
+    private final String directorio; // En el servidor; "" = raíz
+    private final ManifiestoHashes manifiesto;
+    private final Map<String, EntradaArchivo> hashesLocales = new TreeMap<>(); // Lo que se guardará en el manifiesto
+    private boolean borrarSobrantes;
+    private Consumer<String> avisos = aviso -> { };
+
+    public SincronizadorCarpeta(Cliente cliente, File carpeta, String directorio) {
+        this.cliente = cliente;
+        this.carpeta = carpeta;
+        this.directorio = directorio;
+        this.manifiesto = new ManifiestoHashes(new File(carpeta.getPath() + ".hashes"));
+    }
+
+    // Al traer, borra de la carpeta los archivos y directorios que ya no están en el servidor.
+    // Al enviar no se borra nada en el servidor.
+    public void setBorrarSobrantes(boolean borrarSobrantes) {
+        this.borrarSobrantes = borrarSobrantes;
+    }
+
+    // Recibe un mensaje por cada archivo que se transfiere o se borra.
+    public void setAvisos(Consumer<String> avisos) {
+        this.avisos = avisos;
+    }
+
+    // El progreso se informa por archivo, como en las descargas.
+    public Resumen traer(ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        Set<String> directoriosRemotos = new HashSet<>();
+        Map<String, EntradaArchivo> remotos = listarRemotos(directoriosRemotos);
+        Resumen resumen = new Resumen();
+        carpeta.mkdirs();
+        try {
+            for (String ruta : directoriosRemotos) {
+                Cliente.destinoLocal(carpeta, ruta).mkdirs();
+            }
+            for (EntradaArchivo remoto : remotos.values()) {
+                String ruta = remoto.getNombre();
+                File local = Cliente.destinoLocal(carpeta, ruta);
+                String hashLocal = local.isFile() ? hashLocal(ruta, local, remoto) : null;
+                if (remoto.getHash() != null && remoto.getHash().equals(hashLocal)) {
+                    resumen.iguales++;
+                    continue;
+                }
+                DeltaBloques.Resultado resultado = cliente.descargarDelta(rutaRemota(ruta), local, progreso);
+                registrar(ruta, local, resultado.getVersion().getHash());
+                if (resultado.getVersion().getHash().equals(hashLocal)) {
+                    resumen.iguales++; // El listado aún no traía el hash; el servidor contestó NO_MODIFICADO
+                    continue;
+                }
+                resumen.contar(resultado, hashLocal != null);
+                avisos.accept("Recibido '" + ruta + "' (" + resultado.getTransferidos() + " de " + local.length() + " bytes por la red).");
+            }
+            if (borrarSobrantes) {
+                borrarSobrantes(remotos.keySet(), directoriosRemotos, resumen);
+            }
+        } finally {
+            manifiesto.guardar(hashesLocales.values());
+        }
+        return resumen;
+    }
+
+    public Resumen enviar(ProgresoDescarga progreso) throws IOException, ClassNotFoundException {
+        if (!carpeta.isDirectory()) {
+            throw new FileNotFoundException("No existe la carpeta '" + carpeta + "'.");
+        }
+        Map<String, EntradaArchivo> remotos;
+        try {
+            remotos = listarRemotos(new HashSet<>());
+        } catch (FileNotFoundException e) {
+            remotos = Map.of(); // El directorio aún no existe en el servidor: se crea al subir
+        }
+        Resumen resumen = new Resumen();
+        try {
+            for (String ruta : archivosLocales()) {
+                File local = Cliente.destinoLocal(carpeta, ruta);
+                EntradaArchivo remoto = remotos.get(ruta);
+                String hashLocal = hashLocal(ruta, local, null);
+                if (remoto != null && hashLocal.equals(remoto.getHash())) {
+                    resumen.iguales++;
+                    continue;
+                }
+                DeltaBloques.Resultado resultado = cliente.subirDelta(local, rutaRemota(ruta), progreso);
+                resumen.contar(resultado, remoto != null);
+                avisos.accept("Enviado '" + ruta + "' (" + resultado.getTransferidos() + " de " + local.length() + " bytes por la red).");
+            }
+        } finally {
+            manifiesto.guardar(hashesLocales.values());
+        }
+        return resumen;
+    }
+
+    // Archivos del directorio y de todos sus subdirectorios, con la ruta relativa a él como
+    // nombre. Las rutas de los subdirectorios se añaden a 'directorios'.
+    private Map<String, EntradaArchivo> listarRemotos(Set<String> directorios) throws IOException, ClassNotFoundException {
+        Map<String, EntradaArchivo> archivos = new TreeMap<>();
+        Deque<String> pendientes = new ArrayDeque<>(List.of(""));
+        while (!pendientes.isEmpty()) {
+            String relativo = pendientes.pop();
+            cliente.listarDirectorio(rutaRemota(relativo), Protocolo.ORDEN_NOMBRE, false, pagina -> {
+                for (EntradaArchivo entrada : pagina.getEntradas()) {
+                    String ruta = relativo.isEmpty() ? entrada.getNombre() : relativo + "/" + entrada.getNombre();
+                    if (entrada.esDirectorio()) {
+                        directorios.add(ruta);
+                        pendientes.push(ruta);
+                    } else {
+                        archivos.put(ruta, entrada.conNombre(ruta));
+                    }
+                }
+            });
+        }
+        return archivos;
+    }
+
+    // Ruta en el servidor de lo que en la carpeta es 'relativa' ("" = la propia carpeta).
+    private String rutaRemota(String relativa) {
+        return relativa.isEmpty() ? directorio : PaginaListado.ruta(directorio, relativa);
+    }
+
+    // Rutas relativas (con '/') de los archivos de la carpeta, sin los '.parcial' de las
+    // descargas a medias.
+    private List<String> archivosLocales() throws IOException {
+        Path raiz = carpeta.toPath();
+        List<String> rutas = new ArrayList<>();
+        try (Stream<Path> recorrido = Files.walk(raiz)) {
+            recorrido.filter(Files::isRegularFile).forEach(ruta -> {
+                String relativa = raiz.relativize(ruta).toString().replace(File.separatorChar, '/');
+                if (!relativa.endsWith(".parcial") && !relativa.endsWith(".parcial.info")) {
+                    rutas.add(relativa);
+                }
+            });
+        }
+        return rutas;
+    }
+
+    // Hash de la copia local: el del manifiesto si el archivo no ha cambiado desde que se
+    // calculó, o se calcula. Al traer, si el tamaño y la fecha coinciden con los del servidor
+    // (al recibir un archivo se le pone su fecha), se da por bueno el hash del servidor sin leer
+    // el archivo, como hace rsync.
+    private String hashLocal(String ruta, File local, EntradaArchivo remoto) throws IOException {
+        EntradaArchivo version = new EntradaArchivo(ruta, local.length(), local.lastModified());
+        String hash = manifiesto.buscar(version);
+        if (hash == null && remoto != null && remoto.getHash() != null && remoto.mismaVersion(version)) {
+            hash = remoto.getHash();
+        }
+        if (hash == null) {
+            hash = ManifiestoHashes.calcular(local);
+        }
+        hashesLocales.put(ruta, version.conHash(hash));
+        return hash;
+    }
+
+    private void registrar(String ruta, File local, String hash) {
+        hashesLocales.put(ruta, new EntradaArchivo(ruta, local.length(), local.lastModified(), hash));
+    }
+
+    // Primero los archivos y después los directorios que quedaron vacíos, de dentro afuera.
+    private void borrarSobrantes(Set<String> archivosRemotos, Set<String> directoriosRemotos, Resumen resumen) throws IOException {
+        for (String ruta : archivosLocales()) {
+            if (!archivosRemotos.contains(ruta) && Cliente.destinoLocal(carpeta, ruta).delete()) {
+                hashesLocales.remove(ruta);
+                resumen.borrados++;
+                avisos.accept("Borrado '" + ruta + "', que ya no está en el servidor.");
+            }
+        }
+        Path raiz = carpeta.toPath();
+        List<Path> directorios;
+        try (Stream<Path> recorrido = Files.walk(raiz)) {
+            directorios = recorrido.filter(Files::isDirectory).filter(d -> !d.equals(raiz))
+                    .sorted(Comparator.reverseOrder()).toList();
+        }
+        for (Path directorioLocal : directorios) {
+            String relativa = raiz.relativize(directorioLocal).toString().replace(File.separatorChar, '/');
+            if (!directoriosRemotos.contains(relativa)) {
+                directorioLocal.toFile().delete(); // Solo se borra si está vacío
+            }
+        }
+    }
+
+    // Lo que hizo una sincronización.
+    public static final class Resumen {
+        private int iguales;
+        private int nuevos;
+        private int actualizados;
+        private int borrados;
+        private long transferidos; // Bytes de contenido que viajaron por la red
+        private long total;        // Tamaño de los archivos nuevos o actualizados
+
+        private void contar(DeltaBloques.Resultado resultado, boolean existia) {
+            if (existia) {
+                actualizados++;
+            } else {
+                nuevos++;
+            }
+            transferidos += resultado.getTransferidos();
+            total += resultado.getVersion().getTamano();
+        }
+
+        public int getIguales() {
+            return iguales;
+        }
+
+        public int getNuevos() {
+            return nuevos;
+        }
+
+        public int getActualizados() {
+            return actualizados;
+        }
+
+        public int getBorrados() {
+            return borrados;
+        }
+
+        public long getTransferidos() {
+            return transferidos;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return (iguales + nuevos + actualizados) + " archivos: " + iguales + " sin cambios, " + nuevos + " nuevos, "
+                    + actualizados + " actualizados, " + borrados + " borrados. Por la red: " + transferidos
+                    + " de " + total + " bytes.";
+        }
+    }
+}
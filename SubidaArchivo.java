@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+// Un archivo que un cliente está subiendo. El contenido se escribe por bloques en un temporal
+// fuera del directorio compartido (así no aparece en el listado a medio subir) y el hash se
+// calcula a la vez, sin volver a leerlo. Al terminar se comprueban el tamaño y el hash
+// anunciados y el temporal se renombra de forma atómica: quien descarga ve el archivo anterior
+// o el nuevo completo, nunca uno a medias.
+// En una subida por bloques (SUBIR_DELTA) parte del contenido no viaja: se copia de la versión
+// que el servidor ya tenía, la 'base', que se abre al empezar para leerla aunque la sustituya
+// otra subida mientras tanto.
+public class SubidaArchivo {
+    private final File temporal;
+    private final String nombre; // Ruta relativa dentro del directorio compartido
+    private final File destino;
+    private final long tamano;
+    private final String hash;
+    private final FileChannel canal;
+    private final FileChannel base; // null si no es una subida por bloques
+    private final int tamanoBloque;
+    private final MessageDigest digest = ManifiestoHashes.nuevoDigest();
+    private long recibidos;
+    private long copiados; // De 'recibidos', los que salieron de la base
+
+    public SubidaArchivo(File directorioArchivos, String nombre, long tamano, String hash) throws IOException {
+        this(directorioArchivos, nombre, tamano, hash, null, 0);
+    }
+
+    // Subida por bloques sobre 'base' (null = sin base: todo el contenido viaja en BLOQUEs).
+    public SubidaArchivo(File directorioArchivos, String nombre, long tamano, String hash,
+            File base, int tamanoBloque) throws IOException {
+        this.tamanoBloque = tamanoBloque;
+        this.temporal = temporalPara(directorioArchivos);
+        this.nombre = nombre;
+        this.destino = new File(directorioArchivos, nombre);
+        this.tamano = tamano;
+        this.hash = hash;
+        FileChannel abierto = null;
+        try {
+            abierto = FileChannel.open(temporal.toPath(), StandardOpenOption.WRITE);
+            this.base = base != null ? DeltaBloques.abrir(base) : null;
+        } catch (IOException e) {
+            if (abierto != null) abierto.close();
+            temporal.delete();
+            throw e;
+        }
+        this.canal = abierto;
+    }
+
+    // Los temporales viven junto al directorio compartido, en el mismo sistema de archivos,
+    // para que el renombrado final pueda ser atómico.
+    public static File directorioTemporal(File directorioArchivos) {
+        File absoluto = directorioArchivos.getAbsoluteFile();
+        return new File(absoluto.getParentFile(), absoluto.getName() + ".subidas");
+    }
+
+    // Cada subida tiene su propio temporal, creado con un nombre que no existía: dos subidas
+    // simultáneas nunca escriben en el mismo archivo, aunque tengan el mismo destino o lleguen
+    // por canales de una misma conexión.
+    private static File temporalPara(File directorioArchivos) throws IOException {
+        File directorioTemporal = directorioTemporal(directorioArchivos);
+        Files.createDirectories(directorioTemporal.toPath());
+        return Files.createTempFile(directorioTemporal.toPath(), null, ".subida").toFile();
+    }
+
+    // Borra los temporales que quedaron de subidas interrumpidas por una caída del servidor.
+    public static void limpiarTemporales(File directorioArchivos) {
+        File[] restos = directorioTemporal(directorioArchivos).listFiles();
+        if (restos != null) {
+            for (File resto : restos) {
+                resto.delete();
+            }
+        }
+    }
+
+    public synchronized void escribir(ByteBuffer bloque) throws IOException {
+        if (recibidos + bloque.remaining() > tamano) {
+            throw new IOException("Se recibieron más bytes de los anunciados (" + tamano + ").");
+        }
+        digest.update(bloque.duplicate());
+        while (bloque.hasRemaining()) {
+            recibidos += canal.write(bloque);
+        }
+    }
+
+    // Bloques de la base que se repiten en la versión nueva (trama COPIAR_BLOQUES).
+    public synchronized void copiar(long primero, long cantidad) throws IOException {
+        if (base == null) {
+            throw new IOException("COPIAR_BLOQUES en una subida sin base.");
+        }
+        copiados += DeltaBloques.copiar(base, tamanoBloque, primero, cantidad, this::escribir);
+    }
+
+    // Comprueba lo recibido y publica el archivo. Si algo no cuadra, descarta el temporal.
+    public synchronized void completar() throws IOException {
+        try {
+            canal.close();
+            cerrarBase();
+            if (recibidos != tamano) {
+                throw new IOException("Subida incompleta: " + recibidos + " de " + tamano + " bytes.");
+            }
+            String calculado = HexFormat.of().formatHex(digest.digest());
+            if (!calculado.equals(hash)) {
+                throw new IOException("El hash del contenido recibido no coincide con el anunciado.");
+            }
+            Files.move(temporal.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporal.delete(); // Tras el renombrado ya no existe
+        }
+    }
+
+    // Copia dentro del servidor un archivo que ya tiene el mismo contenido, sin que el cliente
+    // envíe nada. Pasa por un temporal por el mismo motivo que una subida normal.
+    public static void copiarExistente(File directorioArchivos, String origen, String nombre) throws IOException {
+        File temporal = temporalPara(directorioArchivos);
+        File destino = new File(directorioArchivos, nombre);
+        try {
+            Files.copy(new File(directorioArchivos, origen).toPath(), temporal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporal.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporal.delete();
+        }
+    }
+
+    public synchronized void descartar() {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            // Ignorar
+        }
+        cerrarBase();
+        temporal.delete();
+    }
+
+    private void cerrarBase() {
+        try {
+            if (base != null) base.close();
+        } catch (IOException e) {
+            // Ignorar
+        }
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    public File getDestino() {
+        return destino;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getRecibidos() {
+        return recibidos;
+    }
+
+    public long getCopiados() {
+        return copiados;
+    }
+}
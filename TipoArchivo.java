@@ -0,0 +1,54 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Categoría de un archivo según su extensión. La usan el índice del servidor, el
+// 'FileCellRenderer' para elegir el ícono de cada archivo y la compresión de las descargas
+// para no recomprimir formatos que ya vienen comprimidos.
+public enum TipoArchivo {
+    IMAGEN(true, "jpg", "jpeg", "png", "gif"),
+    PDF(true, "pdf"),
+    WORD(false, "doc", "docx"),
+    VIDEO(true, "mp4", "webm", "mkv", "avi"),
+    OTRO(false);
+
+    private static final Map<String, TipoArchivo> POR_EXTENSION = new HashMap<>();
+    // Formatos comprimidos cuyo tipo, en conjunto, no lo está (un .docx es un zip; un .doc no).
+    private static final Set<String> OTRAS_COMPRIMIDAS = Set.of(
+            "docx", "xlsx", "pptx", "odt", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "mp3", "ogg");
+
+    static {
+        for (TipoArchivo tipo : values()) {
+            for (String extension : tipo.extensiones) {
+                POR_EXTENSION.put(extension, tipo);
+            }
+        }
+    }
+
+    private final boolean comprimido;
+    private final String[] extensiones;
+
+    TipoArchivo(boolean comprimido, String... extensiones) {
+        this.comprimido = comprimido;
+        this.extensiones = extensiones;
+    }
+
+    public static TipoArchivo desdeNombre(String nombreArchivo) {
+        return POR_EXTENSION.getOrDefault(extension(nombreArchivo), OTRO);
+    }
+
+    // Indica si comprimir el archivo de nuevo apenas reduciría su tamaño.
+    public static boolean yaComprimido(String nombreArchivo) {
+        return desdeNombre(nombreArchivo).comprimido || OTRAS_COMPRIMIDAS.contains(extension(nombreArchivo));
+    }
+
+    // Extensión en minúsculas, o "" si el nombre no tiene.
+    public static String extension(String nombreArchivo) {
+        int punto = nombreArchivo.lastIndexOf('.');
+        if (punto > 0 && punto < nombreArchivo.length() - 1) {
+            return nombreArchivo.substring(punto + 1).toLowerCase(Locale.ROOT);
+        }
+        return "";
+    }
+}
@@ -0,0 +1,48 @@
+import banco.Casos;
+import banco.Operacion;
+import java.io.IOException;
+
+// Las operaciones que miden los benchmarks de JMH (paquete 'banco'), preparadas con las clases
+// del proyecto. Los benchmarks la cargan por su nombre (Casos.cargar), porque desde un paquete
+// con nombre no se pueden usar las clases del paquete por defecto.
+public class Banco implements Casos {
+    @Override
+    public Operacion archivoSerializado(int tamano) {
+        return BancoProtocolo.serializado(tamano);
+    }
+
+    @Override
+    public Operacion archivoTramas(int tamano) {
+        return BancoProtocolo.tramas(tamano);
+    }
+
+    @Override
+    public Operacion delta(int tamano, boolean casiIgual) throws IOException {
+        return BancoProtocolo.delta(tamano, casiIgual);
+    }
+
+    @Override
+    public Operacion transferencia(String motor, long tamano) throws IOException {
+        return BancoServidor.transferencia(motor, tamano);
+    }
+
+    @Override
+    public Operacion listado(String motor, int cantidad) throws IOException {
+        return BancoServidor.listado(motor, cantidad, false);
+    }
+
+    @Override
+    public Operacion pagina(String motor, int cantidad) throws IOException {
+        return BancoServidor.listado(motor, cantidad, true);
+    }
+
+    @Override
+    public Operacion busqueda(String motor, int cantidad) throws IOException {
+        return BancoServidor.busqueda(motor, cantidad);
+    }
+
+    @Override
+    public Operacion baldosa() {
+        return BancoRenderer.baldosa();
+    }
+}
@@ -0,0 +1,104 @@
+import banco.Operacion;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+// El protocolo original (un objeto 'Archivo' serializado con todo el contenido) frente a las
+// tramas del protocolo binario (ARCHIVO, BLOQUEs y FIN), codificando y decodificando en memoria,
+// y el cálculo de las diferencias por bloques de la sincronización.
+public class BancoProtocolo {
+    static Operacion serializado(int tamano) {
+        byte[] datos = aleatorios(tamano);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(tamano + 1024);
+        return () -> {
+            bytes.reset();
+            try (ObjectOutputStream salida = new ObjectOutputStream(bytes)) {
+                salida.writeObject(new Archivo("banco.bin", datos));
+            }
+            try (ObjectInputStream entrada = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return entrada.readObject();
+            }
+        };
+    }
+
+    static Operacion tramas(int tamano) {
+        byte[] datos = aleatorios(tamano);
+        byte[] destino = new byte[tamano];
+        ByteBuffer buffer = ByteBuffer.allocate(tamano + 1024 + (tamano / Protocolo.TAMANO_BLOQUE + 1) * 8);
+        return () -> {
+            buffer.clear();
+            buffer.put(new Protocolo.ConstructorTrama(Protocolo.ARCHIVO).cadena("banco.bin").varint(tamano)
+                    .varint(0).varint(0).varint(tamano).varint(Protocolo.COMPRESION_NINGUNA).terminar());
+            for (int posicion = 0; posicion < tamano; posicion += Protocolo.TAMANO_BLOQUE) {
+                int bloque = Math.min(Protocolo.TAMANO_BLOQUE, tamano - posicion);
+                buffer.put(Protocolo.encabezado(Protocolo.BLOQUE, bloque)).put(datos, posicion, bloque);
+            }
+            buffer.put(Protocolo.encabezado(Protocolo.FIN, 0)).flip();
+
+            int recibidos = 0;
+            Protocolo.Trama trama;
+            while ((trama = Protocolo.siguienteTrama(buffer, Protocolo.MAXIMO_RESPUESTA)) != null) {
+                if (trama.getTipo() == Protocolo.BLOQUE) {
+                    int n = trama.getCarga().remaining();
+                    trama.getCarga().get(destino, recibidos, n);
+                    recibidos += n;
+                }
+            }
+            return destino;
+        };
+    }
+
+    // Con una versión nueva casi igual a la base (un byte cambiado) o completamente distinta.
+    // Cada operación devuelve cuántos bytes se copiarían de la base más cuántos irían literales.
+    static Operacion delta(int tamano, boolean casiIgual) throws IOException {
+        byte[] datos = aleatorios(tamano);
+        File base = File.createTempFile("banco-base", ".bin");
+        File nuevo = File.createTempFile("banco-nuevo", ".bin");
+        Files.write(base.toPath(), datos);
+        if (casiIgual) {
+            datos[tamano / 2] ^= 1;
+        } else {
+            new Random(tamano + 1).nextBytes(datos);
+        }
+        Files.write(nuevo.toPath(), datos);
+        DeltaBloques.Firma firma = DeltaBloques.firmar(base);
+        long[] generados = new long[1];
+        DeltaBloques.Receptor receptor = new DeltaBloques.Receptor() {
+            @Override
+            public void copiar(long primero, long cantidad) {
+                generados[0] += cantidad;
+            }
+
+            @Override
+            public void literal(byte[] bytes, int desde, int longitud) {
+                generados[0] += longitud;
+            }
+        };
+        return new Operacion() {
+            @Override
+            public Object ejecutar() throws Exception {
+                generados[0] = 0;
+                DeltaBloques.generar(nuevo, firma, receptor);
+                return generados[0];
+            }
+
+            @Override
+            public void close() {
+                base.delete();
+                nuevo.delete();
+            }
+        };
+    }
+
+    static byte[] aleatorios(int tamano) {
+        byte[] datos = new byte[tamano];
+        new Random(tamano).nextBytes(datos);
+        return datos;
+    }
+}
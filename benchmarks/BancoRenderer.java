@@ -0,0 +1,33 @@
+import banco.Operacion;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+
+// Coste de pintar una baldosa del explorador: obtener el componente del renderer y pintarlo,
+// como hace la JList por cada celda visible en cada repintado.
+public class BancoRenderer {
+    private static final String[] EJEMPLOS = { "foto-de-las-vacaciones.jpg (2048576 bytes)", "informe.pdf (120400 bytes)",
+            "carta.docx (20480 bytes)", "video.mp4 (734003200 bytes)", "notas.txt (512 bytes)" };
+
+    static Operacion baldosa() {
+        DefaultListModel<String> modelo = new DefaultListModel<>();
+        for (int i = 0; i < 1000; i++) {
+            modelo.addElement(EJEMPLOS[i % EJEMPLOS.length]);
+        }
+        JList<String> lista = new JList<>(modelo);
+        FileCellRenderer renderer = new FileCellRenderer();
+        renderer.configurar(lista);
+        BufferedImage lienzo = new BufferedImage(FileCellRenderer.TAMANO_CELDA, FileCellRenderer.TAMANO_CELDA, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = lienzo.createGraphics();
+        int[] indice = { 0 };
+        return () -> {
+            int i = indice[0]++ % modelo.size();
+            Component celda = renderer.getListCellRendererComponent(lista, modelo.get(i), i, i % 7 == 0, false);
+            celda.setSize(FileCellRenderer.TAMANO_CELDA, FileCellRenderer.TAMANO_CELDA);
+            celda.paint(g);
+            return lienzo;
+        };
+    }
+}
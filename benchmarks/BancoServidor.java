@@ -0,0 +1,146 @@
+import banco.Operacion;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+// Casos con un servidor real sobre loopback: caudal de descarga de un archivo y latencia del
+// listado completo, de su primera página y de una búsqueda según cuántos archivos hay en el
+// directorio compartido. Los archivos de prueba se generan una vez en el directorio temporal
+// y se reutilizan entre ejecuciones.
+public class BancoServidor {
+    private static final File TRABAJO = new File(System.getProperty("java.io.tmpdir"), "banco-servidor-nube");
+
+    // Se descarga el archivo completo con 'descargarRango' (sin compresión ni descarga
+    // condicional) sobre un destino que se sobrescribe en cada operación.
+    static Operacion transferencia(String motor, long tamano) throws IOException {
+        File directorio = new File(TRABAJO, "transferencia-" + etiqueta(tamano));
+        File archivo = new File(directorio, "archivo.bin");
+        if (archivo.length() != tamano) {
+            directorio.mkdirs();
+            escribirAleatorio(archivo, tamano);
+        }
+        File destino = new File(TRABAJO, "destino.bin");
+        MotorServidor servidor = iniciarServidor(motor, directorio);
+        Cliente cliente = conectar(servidor);
+        FileChannel canalDestino = FileChannel.open(destino.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long modificado = archivo.lastModified();
+        return new Operacion() {
+            @Override
+            public Object ejecutar() throws Exception {
+                cliente.descargarRango("archivo.bin", 0, tamano, tamano, modificado, canalDestino, ProgresoDescarga.NINGUNO);
+                return canalDestino.size();
+            }
+
+            @Override
+            public void close() throws IOException {
+                canalDestino.close();
+                destino.delete();
+                cliente.desconectar();
+                servidor.detener();
+            }
+        };
+    }
+
+    // Con 'porPaginas' solo se pide la primera página (LISTAR_DIRECTORIO), lo que tarda en
+    // aparecer algo en pantalla; si no, el listado completo de una vez (LISTAR).
+    static Operacion listado(String motor, int cantidad, boolean porPaginas) throws IOException {
+        MotorServidor servidor = iniciarServidor(motor, directorioListado(cantidad));
+        Cliente cliente = conectar(servidor);
+        return new Operacion() {
+            @Override
+            public Object ejecutar() throws Exception {
+                if (porPaginas) {
+                    return cliente.listarPagina("", "", Protocolo.ORDEN_NOMBRE, false, 0);
+                }
+                return cliente.listarEntradas();
+            }
+
+            @Override
+            public void close() {
+                cliente.desconectar();
+                servidor.detener();
+            }
+        };
+    }
+
+    // Una búsqueda de texto con pocos resultados (BUSCAR). La primera construye los índices de
+    // la instantanea; las medidas, tras el calentamiento, ya los encuentran hechos.
+    static Operacion busqueda(String motor, int cantidad) throws IOException {
+        MotorServidor servidor = iniciarServidor(motor, directorioListado(cantidad));
+        Cliente cliente = conectar(servidor);
+        ConsultaBusqueda consulta = new ConsultaBusqueda().contiene("00042");
+        return new Operacion() {
+            @Override
+            public Object ejecutar() throws Exception {
+                return cliente.buscar(consulta);
+            }
+
+            @Override
+            public void close() {
+                cliente.desconectar();
+                servidor.detener();
+            }
+        };
+    }
+
+    private static File directorioListado(int cantidad) throws IOException {
+        File directorio = new File(TRABAJO, "listado-" + cantidad);
+        String[] existentes = directorio.list();
+        if (existentes == null || existentes.length != cantidad) {
+            directorio.mkdirs();
+            for (int i = 0; i < cantidad; i++) {
+                File vacio = new File(directorio, String.format("archivo-%06d.txt", i));
+                if (!vacio.exists()) Files.write(vacio.toPath(), new byte[0]);
+            }
+        }
+        return directorio;
+    }
+
+    // El servidor y el cliente informan de cada solicitud por System.out: se silencia para no
+    // medir esa salida ni mezclarla con la de JMH.
+    private static MotorServidor iniciarServidor(String motor, File directorio) throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ConfiguracionServidor config = new ConfiguracionServidor();
+        config.setPuerto(0);
+        config.setDirectorioArchivos(directorio);
+        config.setMotor(motor);
+        MotorServidor servidor = config.crearMotor();
+        servidor.iniciar();
+        Thread aceptador = new Thread(servidor::aceptarConexiones, "banco-servidor");
+        aceptador.setDaemon(true);
+        aceptador.start();
+        return servidor;
+    }
+
+    private static Cliente conectar(MotorServidor servidor) throws IOException {
+        Cliente cliente = new Cliente();
+        cliente.setCompresion(false);
+        if (!cliente.conectar("localhost", servidor.getPuerto())) {
+            servidor.detener();
+            throw new IOException("No se pudo conectar con el servidor de prueba.");
+        }
+        return cliente;
+    }
+
+    private static void escribirAleatorio(File archivo, long tamano) throws IOException {
+        byte[] bloque = new byte[1024 * 1024];
+        Random aleatorio = new Random(tamano);
+        try (OutputStream salida = Files.newOutputStream(archivo.toPath())) {
+            for (long escritos = 0; escritos < tamano; escritos += bloque.length) {
+                aleatorio.nextBytes(bloque);
+                salida.write(bloque, 0, (int) Math.min(bloque.length, tamano - escritos));
+            }
+        }
+    }
+
+    private static String etiqueta(long bytes) {
+        if (bytes >= 1024L * 1024 * 1024) return bytes / (1024L * 1024 * 1024) + "GB";
+        if (bytes >= 1024 * 1024) return bytes / (1024 * 1024) + "MB";
+        return bytes / 1024 + "KB";
+    }
+}
@@ -0,0 +1,20 @@
+package banco;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Contador auxiliar de los benchmarks de caudal: JMH informa 'bytes' como una operación más, así
+// que en modo Throughput su puntuación son bytes por segundo, comparable entre tamaños.
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class BytesProcesados {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reiniciar() {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,39 @@
+package banco;
+
+import java.io.IOException;
+
+// Las operaciones que miden los benchmarks. Las clases del proyecto están en el paquete por
+// defecto, que no se puede importar desde un paquete con nombre, y JMH no admite benchmarks en
+// el paquete por defecto; así que las prepara la clase 'Banco', del paquete por defecto, y los
+// benchmarks la obtienen por su nombre con 'cargar'.
+public interface Casos {
+    // Un 'Archivo' con 'tamano' bytes serializado y vuelto a leer, como en el protocolo original.
+    Operacion archivoSerializado(int tamano);
+
+    // Los mismos bytes como tramas ARCHIVO, BLOQUEs y FIN, codificadas y decodificadas.
+    Operacion archivoTramas(int tamano);
+
+    // Las diferencias por bloques de la sincronización entre dos versiones de un archivo.
+    Operacion delta(int tamano, boolean casiIgual) throws IOException;
+
+    // Descarga completa de un archivo de 'tamano' bytes desde un servidor real por loopback.
+    Operacion transferencia(String motor, long tamano) throws IOException;
+
+    // Listado completo, primera página y búsqueda en un directorio con 'cantidad' archivos.
+    Operacion listado(String motor, int cantidad) throws IOException;
+
+    Operacion pagina(String motor, int cantidad) throws IOException;
+
+    Operacion busqueda(String motor, int cantidad) throws IOException;
+
+    // Obtener y pintar la baldosa de un archivo del explorador.
+    Operacion baldosa();
+
+    static Casos cargar() {
+        try {
+            return (Casos) Class.forName("Banco").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("La clase Banco no está en el classpath.", e);
+        }
+    }
+}
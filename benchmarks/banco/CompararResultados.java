@@ -0,0 +1,95 @@
+package banco;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compara dos ejecuciones de JMH guardadas en CSV (-rf csv): un benchmark empeora si se aleja
+// de la base más que el umbral y más que la suma de los márgenes de error al 99,9 %. En ese
+// caso termina con código 1, para poder usarlo en integración continua.
+//
+//   java -cp ... banco.CompararResultados resultados.csv base.csv [umbral en %]
+public class CompararResultados {
+    private static final class Resultado {
+        final boolean mayorEsMejor;
+        final double puntuacion;
+        final double error;
+        final String unidad;
+
+        Resultado(boolean mayorEsMejor, double puntuacion, double error, String unidad) {
+            this.mayorEsMejor = mayorEsMejor;
+            this.puntuacion = puntuacion;
+            this.error = error;
+            this.unidad = unidad;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args[1].isEmpty()) {
+            System.err.println("Uso: CompararResultados resultados.csv base.csv [umbral en %]");
+            System.exit(2);
+        }
+        Map<String, Resultado> actuales = leer(new File(args[0]));
+        Map<String, Resultado> base = leer(new File(args[1]));
+        double umbral = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        System.exit(comparar(actuales, base, umbral) ? 0 : 1);
+    }
+
+    private static boolean comparar(Map<String, Resultado> actuales, Map<String, Resultado> base, double umbral) {
+        boolean bien = true;
+        System.out.printf("Comparación con la base (umbral %.0f %%):%n", umbral);
+        for (Map.Entry<String, Resultado> entrada : actuales.entrySet()) {
+            Resultado actual = entrada.getValue();
+            Resultado anterior = base.get(entrada.getKey());
+            if (anterior == null || !anterior.unidad.equals(actual.unidad)) continue;
+            double cambio = (actual.puntuacion - anterior.puntuacion) / anterior.puntuacion * 100;
+            double empeora = actual.mayorEsMejor ? -cambio : cambio;
+            boolean significativo = Math.abs(actual.puntuacion - anterior.puntuacion) > actual.error + anterior.error;
+            String veredicto = "";
+            if (empeora > umbral && significativo) {
+                veredicto = "  <-- EMPEORA";
+                bien = false;
+            } else if (-empeora > umbral && significativo) {
+                veredicto = "  (mejora)";
+            }
+            System.out.printf("%-70s %+8.1f %%%s%n", entrada.getKey(), cambio, veredicto);
+        }
+        return bien;
+    }
+
+    // Una entrada por benchmark y combinación de parámetros, p. ej.
+    // "TransferenciaBenchmark.descargar motor=nio tamano=1024". Los contadores auxiliares
+    // (":bytes") repiten la puntuación en otra unidad y no se comparan.
+    private static Map<String, Resultado> leer(File archivo) throws IOException {
+        Map<String, Resultado> resultados = new LinkedHashMap<>();
+        List<String> lineas = Files.readAllLines(archivo.toPath());
+        String[] cabecera = campos(lineas.get(0));
+        for (String linea : lineas.subList(1, lineas.size())) {
+            String[] campos = campos(linea);
+            String benchmark = campos[0].substring("banco.".length());
+            if (benchmark.contains(":")) continue;
+            StringBuilder clave = new StringBuilder(benchmark);
+            for (int i = 7; i < campos.length; i++) {
+                if (!campos[i].isEmpty()) {
+                    clave.append(' ').append(cabecera[i].substring("Param: ".length())).append('=').append(campos[i]);
+                }
+            }
+            double error = Double.parseDouble(campos[5]);
+            resultados.put(clave.toString(), new Resultado(campos[1].equals("thrpt"), Double.parseDouble(campos[4]),
+                    Double.isNaN(error) ? 0 : error, campos[6]));
+        }
+        return resultados;
+    }
+
+    // Ni los nombres ni los parámetros llevan comas, así que basta con quitar las comillas.
+    private static String[] campos(String linea) {
+        String[] campos = linea.split(",", -1);
+        for (int i = 0; i < campos.length; i++) {
+            campos[i] = campos[i].replace("\"", "");
+        }
+        return campos;
+    }
+}
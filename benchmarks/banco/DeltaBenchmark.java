@@ -0,0 +1,51 @@
+package banco;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Lo que cuesta decidir qué bloques enviar en una sincronización, sin red: con una versión
+// nueva casi igual a la base (un byte cambiado) la ventana salta de bloque en bloque; con una
+// distinta rueda byte a byte sin encontrar nada.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeltaBenchmark {
+    @Param({ "1048576", "16777216" })
+    int tamano;
+
+    @Param({ "true", "false" })
+    boolean casiIgual;
+
+    private Operacion delta;
+
+    @Setup
+    public void preparar() throws IOException {
+        delta = Casos.cargar().delta(tamano, casiIgual);
+    }
+
+    @TearDown
+    public void cerrar() throws IOException {
+        delta.close();
+    }
+
+    @Benchmark
+    public Object generar(BytesProcesados procesados) throws Exception {
+        procesados.bytes += tamano;
+        return delta.ejecutar();
+    }
+}
@@ -0,0 +1,85 @@
+package banco;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Latencia del listado completo (LISTAR), de su primera página (LISTAR_DIRECTORIO, lo que tarda
+// en aparecer algo en pantalla) y de una búsqueda según cuántos archivos hay en el directorio
+// compartido. Cada benchmark tiene su propio estado, para arrancar solo el servidor que mide.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListadoBenchmark {
+    @State(Scope.Benchmark)
+    public abstract static class Directorio {
+        @Param({ "hilos", "nio" })
+        String motor;
+
+        @Param({ "100", "1000", "10000", "100000" })
+        int cantidad;
+
+        Operacion operacion;
+
+        abstract Operacion preparar(Casos casos) throws IOException;
+
+        @Setup
+        public void iniciar() throws IOException {
+            operacion = preparar(Casos.cargar());
+        }
+
+        @TearDown
+        public void cerrar() throws IOException {
+            operacion.close();
+        }
+    }
+
+    public static class Completo extends Directorio {
+        @Override
+        Operacion preparar(Casos casos) throws IOException {
+            return casos.listado(motor, cantidad);
+        }
+    }
+
+    public static class PrimeraPagina extends Directorio {
+        @Override
+        Operacion preparar(Casos casos) throws IOException {
+            return casos.pagina(motor, cantidad);
+        }
+    }
+
+    public static class Busqueda extends Directorio {
+        @Override
+        Operacion preparar(Casos casos) throws IOException {
+            return casos.busqueda(motor, cantidad);
+        }
+    }
+
+    @Benchmark
+    public Object listado(Completo directorio) throws Exception {
+        return directorio.operacion.ejecutar();
+    }
+
+    @Benchmark
+    public Object pagina(PrimeraPagina directorio) throws Exception {
+        return directorio.operacion.ejecutar();
+    }
+
+    @Benchmark
+    public Object busqueda(Busqueda directorio) throws Exception {
+        return directorio.operacion.ejecutar();
+    }
+}
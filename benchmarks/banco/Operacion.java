@@ -0,0 +1,16 @@
+package banco;
+
+import java.io.IOException;
+
+// Lo que mide un benchmark, ya preparado: crear los datos, arrancar el servidor o conectar el
+// cliente se hace antes, fuera del tiempo medido.
+public interface Operacion extends AutoCloseable {
+    // Devuelve lo producido; el benchmark lo devuelve a su vez para que JMH lo consuma y el JIT
+    // no pueda eliminar el trabajo.
+    Object ejecutar() throws Exception;
+
+    // Libera lo que creó la preparación (servidores, archivos temporales...).
+    @Override
+    default void close() throws IOException {
+    }
+}
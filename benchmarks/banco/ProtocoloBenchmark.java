@@ -0,0 +1,49 @@
+package banco;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// El protocolo original (un objeto 'Archivo' serializado con todo el contenido) frente a las
+// tramas del protocolo binario, codificando y decodificando en memoria.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocoloBenchmark {
+    @Param({ "1024", "65536", "1048576", "16777216" })
+    int tamano;
+
+    private Operacion serializado;
+    private Operacion tramas;
+
+    @Setup
+    public void preparar() {
+        Casos casos = Casos.cargar();
+        serializado = casos.archivoSerializado(tamano);
+        tramas = casos.archivoTramas(tamano);
+    }
+
+    @Benchmark
+    public Object serializado(BytesProcesados procesados) throws Exception {
+        procesados.bytes += tamano;
+        return serializado.ejecutar();
+    }
+
+    @Benchmark
+    public Object tramas(BytesProcesados procesados) throws Exception {
+        procesados.bytes += tamano;
+        return tramas.ejecutar();
+    }
+}
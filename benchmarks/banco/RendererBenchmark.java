@@ -0,0 +1,35 @@
+package banco;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Coste de pintar una baldosa del explorador: obtener el componente de FileCellRenderer y
+// pintarlo, como hace la JList por cada celda visible en cada repintado.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RendererBenchmark {
+    private Operacion baldosa;
+
+    @Setup
+    public void preparar() {
+        baldosa = Casos.cargar().baldosa();
+    }
+
+    @Benchmark
+    public Object pintar() throws Exception {
+        return baldosa.ejecutar();
+    }
+}
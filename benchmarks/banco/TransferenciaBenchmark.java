@@ -0,0 +1,51 @@
+package banco;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Caudal de descarga de un archivo desde un servidor real por loopback, de 1 KB a 1 GB, con
+// cualquiera de los dos motores. Cada operación descarga el archivo completo; los archivos de
+// prueba se generan una vez en el directorio temporal y se reutilizan entre ejecuciones.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferenciaBenchmark {
+    @Param({ "hilos", "nio" })
+    String motor;
+
+    @Param({ "1024", "1048576", "67108864", "1073741824" })
+    long tamano;
+
+    private Operacion descarga;
+
+    @Setup
+    public void preparar() throws IOException {
+        descarga = Casos.cargar().transferencia(motor, tamano);
+    }
+
+    @TearDown
+    public void cerrar() throws IOException {
+        descarga.close();
+    }
+
+    @Benchmark
+    public Object descargar(BytesProcesados procesados) throws Exception {
+        procesados.bytes += tamano;
+        return descarga.ejecutar();
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Muchos clientes a la vez contra un mismo servidor. Todos se conectan antes de empezar, así
+// que el servidor tiene abiertas las N sesiones al mismo tiempo. Después cada uno lista el
+// directorio y descarga todos los archivos a su propio directorio. Cada listado y cada
+// descarga se comparan con lo que hay en disco. Se ejecuta con los dos motores salvo que se
+// indique uno, y termina con código 1 si algo no coincide.
+//
+//   javac -d build *.java && javac -cp build -d build pruebas/*.java
+//   java -cp build:. PruebaConcurrencia [--clientes N] [--motor hilos|nio]
+public class PruebaConcurrencia {
+    private static final int ESPERA_MAXIMA_S = 120;
+
+    public static void main(String[] args) throws Exception {
+        int clientes = 200;
+        List<String> motores = List.of("hilos", "nio");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clientes": clientes = Integer.parseInt(args[++i]); break;
+                case "--motor": motores = List.of(args[++i]); break;
+                default:
+                    System.err.println("Opción desconocida: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        PrintStream informe = ServidorPrueba.silenciarSalida();
+        boolean bien = true;
+        for (String motor : motores) {
+            List<String> fallos = comprobar(motor, clientes);
+            informe.println("Motor " + motor + ": " + clientes + " clientes simultáneos, "
+                    + (fallos.isEmpty() ? "todo coincide." : fallos.size() + " fallos."));
+            fallos.forEach(fallo -> informe.println("  " + fallo));
+            bien &= fallos.isEmpty();
+        }
+        System.exit(bien ? 0 : 1);
+    }
+
+    private static List<String> comprobar(String motor, int clientes) throws Exception {
+        List<String> fallos = new ArrayList<>();
+        try (ServidorPrueba servidor = new ServidorPrueba(motor)) {
+            crearArchivos(servidor);
+            servidor.iniciar();
+            Map<String, File> esperados = new HashMap<>();
+            for (File archivo : servidor.getCompartido().listFiles()) {
+                esperados.put(archivo.getName(), archivo);
+            }
+
+            List<Cliente> conectados = new ArrayList<>();
+            try {
+                for (int i = 0; i < clientes; i++) {
+                    conectados.add(servidor.conectar("cliente-" + i));
+                }
+                esperarConexiones(servidor, clientes, fallos);
+
+                CountDownLatch salida = new CountDownLatch(1);
+                List<Future<List<String>>> resultados = new ArrayList<>();
+                try (ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor()) {
+                    for (Cliente cliente : conectados) {
+                        resultados.add(hilos.submit(() -> {
+                            salida.await();
+                            return sesion(cliente, esperados);
+                        }));
+                    }
+                    salida.countDown();
+                    for (Future<List<String>> resultado : resultados) {
+                        fallos.addAll(resultado.get(ESPERA_MAXIMA_S, TimeUnit.SECONDS));
+                    }
+                }
+            } finally {
+                conectados.forEach(Cliente::desconectar);
+            }
+        }
+        return fallos;
+    }
+
+    // Lo que hace cada cliente: listar, descargar todo y comparar. Devuelve lo que no coincidió.
+    private static List<String> sesion(Cliente cliente, Map<String, File> esperados) throws Exception {
+        List<String> fallos = new ArrayList<>();
+        List<EntradaArchivo> entradas = cliente.listarEntradas();
+        if (entradas.size() != esperados.size()) {
+            fallos.add("El listado tiene " + entradas.size() + " archivos en lugar de " + esperados.size() + ".");
+        }
+        for (EntradaArchivo entrada : entradas) {
+            File archivo = esperados.get(entrada.getNombre());
+            if (archivo == null) {
+                fallos.add("El listado incluye '" + entrada.getNombre() + "', que no existe.");
+            } else if (entrada.getTamano() != archivo.length() || entrada.getModificado() != archivo.lastModified()) {
+                fallos.add("Tamaño o fecha de '" + entrada.getNombre() + "' distintos de los del disco.");
+            }
+        }
+        for (File archivo : esperados.values()) {
+            if (!cliente.descargarArchivo(archivo.getName())) {
+                fallos.add("No se pudo descargar '" + archivo.getName() + "'.");
+                continue;
+            }
+            File copia = new File(cliente.getDirectorioDescargas(), archivo.getName());
+            if (Files.mismatch(archivo.toPath(), copia.toPath()) != -1) {
+                fallos.add("La copia descargada de '" + archivo.getName() + "' no coincide con el original.");
+            }
+        }
+        return fallos;
+    }
+
+    // Vacío, pequeños y grandes, aleatorios (viajan tal cual) y de texto (viajan comprimidos).
+    private static void crearArchivos(ServidorPrueba servidor) throws IOException {
+        servidor.crearArchivo("vacio.bin", 0, 0);
+        for (int i = 0; i < 8; i++) {
+            servidor.crearArchivo("pequeno-" + i + ".bin", 1024 * (i + 1), i);
+        }
+        servidor.crearArchivo("mediano.bin", 300 * 1024 + 17, 100);
+        servidor.crearArchivo("grande.bin", 1024 * 1024 + 3, 200);
+        StringBuilder texto = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            texto.append("Línea ").append(i).append(" del informe de prueba.\n");
+        }
+        servidor.crearArchivo("informe.txt", texto.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Las sesiones se registran en el servidor en otro hilo; se espera a verlas todas abiertas.
+    private static void esperarConexiones(ServidorPrueba servidor, int clientes, List<String> fallos) throws InterruptedException {
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (servidor.getMetricas().getConexionesActivas() < clientes && System.nanoTime() < limite) {
+            Thread.sleep(10);
+        }
+        int activas = servidor.getMetricas().getConexionesActivas();
+        if (activas != clientes) {
+            fallos.add("El servidor tiene " + activas + " conexiones abiertas en lugar de " + clientes + ".");
+        }
+    }
+}
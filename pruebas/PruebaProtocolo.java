@@ -0,0 +1,571 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+// Batería de pruebas del protocolo, la misma para los dos motores ('Servidor' y 'ServidorNIO').
+// Cubre el protocolo serializado de los clientes antiguos (LISTAR_ARCHIVOS, SOLICITAR_ARCHIVO,
+// SOLICITAR_ARCHIVO_DIRECTO, SALIR), las solicitudes binarias a través de 'Cliente' y, con
+// tramas escritas a mano, las solicitudes mal formadas: el servidor debe contestar con un ERROR
+// o cerrar solo esa conexión, y seguir atendiendo a los demás. Termina con código 1 si falla
+// algún caso.
+//
+//   javac -d build *.java && javac -cp build -d build pruebas/*.java
+//   java -cp build:. PruebaProtocolo [--motor hilos|nio] [--filtro texto]
+public class PruebaProtocolo {
+    // Lo que espera una conexión cruda una respuesta antes de dar el caso por fallido.
+    private static final int ESPERA_MILIS = 10_000;
+
+    private interface Caso {
+        void ejecutar(ServidorPrueba servidor) throws Exception;
+    }
+
+    private static final Map<String, Caso> CASOS = new LinkedHashMap<>();
+
+    static {
+        CASOS.put("serializado: bienvenida, listado, archivo y SALIR", PruebaProtocolo::serializado);
+        CASOS.put("serializado: transferencia directa", PruebaProtocolo::serializadoDirecto);
+        CASOS.put("serializado: archivo inexistente", PruebaProtocolo::serializadoInexistente);
+        CASOS.put("binario: versión acordada", PruebaProtocolo::versionAcordada);
+        CASOS.put("binario: cliente de la versión 1", PruebaProtocolo::versionAntigua);
+        CASOS.put("binario: listado", PruebaProtocolo::listado);
+        CASOS.put("binario: descarga completa y condicional", PruebaProtocolo::descargaCondicional);
+        CASOS.put("binario: rango", PruebaProtocolo::rango);
+        CASOS.put("binario: rango negativo", PruebaProtocolo::rangoNegativo);
+        CASOS.put("binario: lote con patrones", PruebaProtocolo::lote);
+        CASOS.put("binario: subida", PruebaProtocolo::subida);
+        CASOS.put("binario: página de un subdirectorio", PruebaProtocolo::pagina);
+        CASOS.put("binario: búsqueda", PruebaProtocolo::busqueda);
+        CASOS.put("binario: máximo negativo en página y búsqueda", PruebaProtocolo::maximoNegativo);
+        CASOS.put("binario: miniatura", PruebaProtocolo::miniatura);
+        CASOS.put("binario: estadísticas", PruebaProtocolo::estadisticas);
+        CASOS.put("binario: operaciones simultáneas en una conexión", PruebaProtocolo::simultaneas);
+        CASOS.put("binario: archivo inexistente o fuera del directorio", PruebaProtocolo::inexistente);
+        CASOS.put("errores: tipo de solicitud desconocido", PruebaProtocolo::tipoDesconocido);
+        CASOS.put("errores: solicitud truncada", PruebaProtocolo::solicitudTruncada);
+        CASOS.put("errores: trama demasiado grande", PruebaProtocolo::tramaDemasiadoGrande);
+        CASOS.put("errores: trama con longitud negativa", PruebaProtocolo::longitudNegativa);
+        CASOS.put("errores: cadena con longitud negativa", PruebaProtocolo::cadenaNegativa);
+        CASOS.put("errores: rango no válido dentro de un canal", PruebaProtocolo::errorEnCanal);
+        CASOS.put("errores: saludo no válido", PruebaProtocolo::saludoNoValido);
+        CASOS.put("el servidor sigue aceptando conexiones", PruebaProtocolo::sigueAceptando);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        List<String> motores = List.of("hilos", "nio");
+        String filtro = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--motor": motores = List.of(args[++i]); break;
+                case "--filtro": filtro = args[++i]; break;
+                default:
+                    System.err.println("Opción desconocida: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        PrintStream informe = ServidorPrueba.silenciarSalida();
+        int fallidos = 0;
+        for (String motor : motores) {
+            informe.println("Motor " + motor + ":");
+            try (ServidorPrueba servidor = new ServidorPrueba(motor)) {
+                crearArchivos(servidor);
+                servidor.iniciar();
+                for (Map.Entry<String, Caso> caso : CASOS.entrySet()) {
+                    if (!caso.getKey().contains(filtro)) continue;
+                    try {
+                        caso.getValue().ejecutar(servidor);
+                        informe.println("  ok     " + caso.getKey());
+                    } catch (Exception | AssertionError e) {
+                        informe.println("  FALLA  " + caso.getKey() + ": " + e);
+                        fallidos++;
+                    }
+                }
+            }
+        }
+        informe.println(fallidos == 0 ? "Todos los casos pasan." : fallidos + " casos fallan.");
+        System.exit(fallidos == 0 ? 0 : 1);
+    }
+
+    private static void crearArchivos(ServidorPrueba servidor) throws IOException {
+        servidor.crearArchivo("hola.txt", "Hola desde el servidor.\n".repeat(500).getBytes(StandardCharsets.UTF_8));
+        servidor.crearArchivo("datos.bin", 700 * 1024 + 5, 1);
+        servidor.crearArchivo("otros.bin", 10 * 1024, 2);
+        BufferedImage imagen = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < imagen.getWidth(); x++) {
+            for (int y = 0; y < imagen.getHeight(); y++) {
+                imagen.setRGB(x, y, x * 0x10101 ^ y * 0x100);
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(imagen, "png", png);
+        servidor.crearArchivo("fotos/playa.png", png.toByteArray());
+    }
+
+    // --- Protocolo serializado ---
+
+    private static void serializado(ServidorPrueba servidor) throws Exception {
+        try (Socket socket = abrir(servidor)) {
+            ObjectOutputStream salida = new ObjectOutputStream(socket.getOutputStream());
+            salida.flush();
+            ObjectInputStream entrada = new ObjectInputStream(socket.getInputStream());
+            exigir(((String) entrada.readObject()).startsWith("Conexión exitosa"), "falta el mensaje de bienvenida");
+
+            salida.writeObject("LISTAR_ARCHIVOS");
+            salida.flush();
+            String listado = (String) entrada.readObject();
+            exigir(listado.startsWith("--- Archivos Disponibles ---"), "listado inesperado: " + listado);
+            for (String nombre : List.of("hola.txt", "datos.bin", "otros.bin")) {
+                exigir(listado.contains(nombre), "el listado no incluye " + nombre);
+            }
+
+            salida.writeObject("SOLICITAR_ARCHIVO:datos.bin");
+            salida.flush();
+            exigir("ARCHIVO_ENCONTRADO".equals(entrada.readObject()), "no se encontró datos.bin");
+            Archivo archivo = (Archivo) entrada.readObject();
+            exigir(archivo.getNombre().equals("datos.bin"), "nombre recibido: " + archivo.getNombre());
+            exigir(Arrays.equals(archivo.getDatos(), contenido(servidor, "datos.bin")), "el contenido no coincide");
+
+            salida.writeObject("SALIR");
+            salida.flush();
+            exigir(cerradaPorServidor(socket), "el servidor no cerró la conexión tras SALIR");
+        }
+    }
+
+    private static void serializadoDirecto(ServidorPrueba servidor) throws Exception {
+        try (Socket socket = abrir(servidor)) {
+            ObjectOutputStream salida = new ObjectOutputStream(socket.getOutputStream());
+            salida.flush();
+            DataInputStream datos = new DataInputStream(socket.getInputStream());
+            ObjectInputStream entrada = new ObjectInputStream(datos);
+            entrada.readObject();
+            salida.writeObject("SOLICITAR_ARCHIVO_DIRECTO:datos.bin");
+            salida.flush();
+            exigir(datos.readByte() == 1, "no se encontró datos.bin");
+            exigir(datos.readUTF().equals("datos.bin"), "nombre recibido distinto");
+            byte[] contenido = new byte[(int) datos.readLong()];
+            datos.readFully(contenido);
+            exigir(Arrays.equals(contenido, contenido(servidor, "datos.bin")), "el contenido no coincide");
+        }
+    }
+
+    private static void serializadoInexistente(ServidorPrueba servidor) throws Exception {
+        try (Socket socket = abrir(servidor)) {
+            ObjectOutputStream salida = new ObjectOutputStream(socket.getOutputStream());
+            salida.flush();
+            ObjectInputStream entrada = new ObjectInputStream(socket.getInputStream());
+            entrada.readObject();
+            salida.writeObject("SOLICITAR_ARCHIVO:no-existe.txt");
+            salida.flush();
+            exigir("ARCHIVO_NO_ENCONTRADO".equals(entrada.readObject()), "respuesta inesperada");
+        }
+    }
+
+    // --- Protocolo binario con 'Cliente' ---
+
+    private static void versionAcordada(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("version");
+        try {
+            exigir(cliente.isBinario(), "no se acordó el protocolo binario");
+            exigir(cliente.getVersionProtocolo() == Protocolo.VERSION, "versión " + cliente.getVersionProtocolo());
+            exigir(cliente.isMultiplexado(), "la conexión no usa canales");
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    // Un cliente que solo conoce la versión 1 recibe esa versión y tramas sin canales.
+    private static void versionAntigua(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, 1)) {
+            conexion.enviar(new Protocolo.ConstructorTrama(Protocolo.LISTAR).terminar());
+            Protocolo.Trama lista = conexion.leer();
+            exigir(lista.getTipo() == Protocolo.LISTA, "respuesta de tipo " + lista.getTipo());
+            exigir(Protocolo.leerVarint(lista.getCarga()) == 3, "el listado no tiene los 3 archivos de la raíz");
+        }
+    }
+
+    private static void listado(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("listado");
+        try {
+            List<EntradaArchivo> entradas = cliente.listarEntradas();
+            exigir(entradas.size() == 3, entradas.size() + " entradas en la raíz");
+            for (EntradaArchivo entrada : entradas) {
+                File archivo = new File(servidor.getCompartido(), entrada.getNombre());
+                exigir(archivo.length() == entrada.getTamano() && archivo.lastModified() == entrada.getModificado(),
+                        "tamaño o fecha distintos para " + entrada.getNombre());
+            }
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    // La segunda descarga ya tiene una copia idéntica: solo debe viajar NO_MODIFICADO.
+    private static void descargaCondicional(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("condicional");
+        try {
+            exigir(cliente.descargarArchivo("datos.bin"), "no se pudo descargar datos.bin");
+            exigirCopia(servidor, cliente, "datos.bin");
+            long antes = servidor.getMetricas().getBytesEnviados();
+            exigir(cliente.descargarArchivo("datos.bin"), "falló la descarga condicional");
+            long enviados = servidor.getMetricas().getBytesEnviados() - antes;
+            exigir(enviados < 1024, "la descarga condicional envió " + enviados + " bytes");
+            // Una copia local modificada (mismo tamaño, otra fecha) se vuelve a descargar entera.
+            File copia = new File(cliente.getDirectorioDescargas(), "datos.bin");
+            byte[] alterada = Files.readAllBytes(copia.toPath());
+            alterada[0] ^= 1;
+            Files.write(copia.toPath(), alterada);
+            copia.setLastModified(copia.lastModified() - 10_000);
+            exigir(cliente.descargarArchivo("datos.bin"), "falló la descarga de la copia modificada");
+            exigirCopia(servidor, cliente, "datos.bin");
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    private static void rango(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("rango");
+        File original = new File(servidor.getCompartido(), "datos.bin");
+        File destino = File.createTempFile("rango", ".bin");
+        try (FileChannel canal = FileChannel.open(destino.toPath(), StandardOpenOption.WRITE)) {
+            long desde = 300_000;
+            long longitud = 100_000;
+            cliente.descargarRango("datos.bin", desde, longitud, original.length(), original.lastModified(), canal, ProgresoDescarga.NINGUNO);
+            byte[] recibido = Arrays.copyOfRange(Files.readAllBytes(destino.toPath()), (int) desde, (int) (desde + longitud));
+            byte[] esperado = Arrays.copyOfRange(contenido(servidor, "datos.bin"), (int) desde, (int) (desde + longitud));
+            exigir(Arrays.equals(recibido, esperado), "el rango recibido no coincide");
+        } finally {
+            cliente.desconectar();
+            destino.delete();
+        }
+    }
+
+    // Un varint de 10 bytes se lee como negativo; se rechaza antes de enviar nada del archivo.
+    private static void rangoNegativo(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(rangoCrudo(-5, 10));
+            exigirError(conexion.leer(), Protocolo.ERROR_RANGO_NO_VALIDO);
+            conexion.enviar(rangoCrudo(0, -1));
+            exigirError(conexion.leer(), Protocolo.ERROR_RANGO_NO_VALIDO);
+            exigirQueResponde(conexion);
+        }
+    }
+
+    private static void lote(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("lote");
+        try {
+            List<String> descargados = cliente.descargarLote(List.of("*.bin", "hola.txt", "no-existe.txt"), ProgresoDescarga.NINGUNO);
+            exigir(descargados.size() == 3 && descargados.containsAll(List.of("datos.bin", "otros.bin", "hola.txt")),
+                    "descargados: " + descargados);
+            for (String nombre : descargados) {
+                exigirCopia(servidor, cliente, nombre);
+            }
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    private static void subida(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("subida");
+        File origen = File.createTempFile("subida", ".bin");
+        try {
+            byte[] contenido = new byte[400 * 1024];
+            new Random(3).nextBytes(contenido);
+            Files.write(origen.toPath(), contenido);
+            exigir(cliente.subirArchivo(origen, "fotos/subido.bin", ProgresoDescarga.NINGUNO), "el contenido no viajó");
+            exigir(Arrays.equals(contenido(servidor, "fotos/subido.bin"), contenido), "el archivo subido no coincide");
+            exigir(!cliente.subirArchivo(origen, "fotos/subido.bin", ProgresoDescarga.NINGUNO),
+                    "el contenido volvió a viajar aunque el servidor ya lo tenía");
+        } finally {
+            cliente.desconectar();
+            origen.delete();
+        }
+    }
+
+    private static void pagina(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("pagina");
+        try {
+            PaginaListado pagina = cliente.listarPagina("fotos", "", Protocolo.ORDEN_NOMBRE, false, 0);
+            exigir(pagina.esUltima(), "el subdirectorio no cabe en una página");
+            exigir(pagina.getEntradas().stream().anyMatch(e -> e.getNombre().equals("playa.png")), "falta playa.png");
+            PaginaListado raiz = cliente.listarPagina("", "", Protocolo.ORDEN_NOMBRE, false, 0);
+            exigir(raiz.getEntradas().get(0).esDirectorio(), "los subdirectorios no van primero");
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    private static void busqueda(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("busqueda");
+        try {
+            ConsultaBusqueda.Resultado resultado = cliente.buscar(new ConsultaBusqueda().contiene("PLAYA"));
+            exigir(resultado.getEntradas().size() == 1 && resultado.getEntradas().get(0).getNombre().equals("fotos/playa.png"),
+                    "resultados: " + resultado.getEntradas());
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    // Un máximo negativo se trata como 0: la página o la búsqueda usan el tamaño por defecto.
+    private static void maximoNegativo(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("maximo");
+        try {
+            PaginaListado pagina = cliente.listarPagina("fotos", "", Protocolo.ORDEN_NOMBRE, false, -1);
+            exigir(pagina.esUltima() && pagina.getEntradas().stream().anyMatch(e -> e.getNombre().equals("playa.png")),
+                    "página: " + pagina.getEntradas());
+            ConsultaBusqueda.Resultado resultado = cliente.buscar(new ConsultaBusqueda().contiene("PLAYA").maximo(-1));
+            exigir(resultado.getEntradas().size() == 1, "resultados: " + resultado.getEntradas());
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    private static void miniatura(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("miniatura");
+        try {
+            BufferedImage miniatura = cliente.obtenerMiniatura("fotos/playa.png", 64);
+            exigir(miniatura != null, "no llegó la miniatura");
+            exigir(Math.max(miniatura.getWidth(), miniatura.getHeight()) <= 64,
+                    "miniatura de " + miniatura.getWidth() + "x" + miniatura.getHeight());
+            exigir(cliente.obtenerMiniatura("hola.txt", 64) == null, "un texto no tiene miniatura");
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    private static void estadisticas(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("estadisticas");
+        try {
+            Map<String, Long> valores = cliente.obtenerEstadisticas();
+            exigir(valores.getOrDefault("conexiones.activas", 0L) >= 1, "estadísticas: " + valores);
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    // Varias operaciones a la vez sobre la misma conexión, cada una en su canal.
+    private static void simultaneas(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("simultaneas");
+        try {
+            List<CompletableFuture<?>> operaciones = new ArrayList<>();
+            for (String nombre : List.of("datos.bin", "otros.bin", "hola.txt")) {
+                operaciones.add(cliente.descargarArchivoAsync(nombre, ProgresoDescarga.NINGUNO));
+            }
+            operaciones.add(cliente.listarEntradasAsync());
+            operaciones.add(cliente.obtenerMiniaturaAsync("fotos/playa.png", 32));
+            CompletableFuture.allOf(operaciones.toArray(new CompletableFuture<?>[0])).get();
+            for (String nombre : List.of("datos.bin", "otros.bin", "hola.txt")) {
+                exigirCopia(servidor, cliente, nombre);
+            }
+        } finally {
+            cliente.desconectar();
+        }
+    }
+
+    // 'Cliente' no envía rutas con "..", así que la segunda solicitud se escribe a mano.
+    private static void inexistente(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("inexistente");
+        try {
+            exigir(!cliente.descargarArchivo("no-existe.txt"), "se descargó un archivo inexistente");
+            exigir(cliente.listarEntradas().size() == 3, "la conexión dejó de responder");
+        } finally {
+            cliente.desconectar();
+        }
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_ARCHIVO).cadena("../compartido.hashes").terminar());
+            exigirError(conexion.leer(), Protocolo.ERROR_NO_ENCONTRADO);
+        }
+    }
+
+    // --- Solicitudes mal formadas ---
+
+    private static void tipoDesconocido(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(new Protocolo.ConstructorTrama((byte) 0x3F).cadena("???").terminar());
+            exigirError(conexion.leer(), Protocolo.ERROR_SOLICITUD_INVALIDA);
+            exigirQueResponde(conexion);
+        }
+    }
+
+    private static void solicitudTruncada(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_RANGO).cadena("datos.bin").terminar());
+            exigirError(conexion.leer(), Protocolo.ERROR_SOLICITUD_INVALIDA);
+            exigirQueResponde(conexion);
+        }
+    }
+
+    private static void tramaDemasiadoGrande(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(Protocolo.encabezado(Protocolo.LISTAR, Protocolo.MAXIMO_SOLICITUD + 1L));
+            exigir(conexion.cerradaPorServidor(), "el servidor no cerró la conexión");
+        }
+    }
+
+    // Un varint de 10 bytes con el bit alto a 1: la longitud se lee como un número negativo.
+    private static void longitudNegativa(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            ByteBuffer trama = ByteBuffer.allocate(11).put(Protocolo.LISTAR);
+            Protocolo.escribirVarint(trama, -1);
+            conexion.enviar(trama.flip());
+            exigir(conexion.cerradaPorServidor(), "el servidor no cerró la conexión");
+        }
+    }
+
+    private static void cadenaNegativa(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_ARCHIVO).varint(-1).terminar());
+            exigir(conexion.cerradaPorServidor(), "el servidor no cerró la conexión");
+        }
+    }
+
+    // Un rango no válido dentro de un CANAL: el ERROR llega por ese canal y la conexión sigue
+    // respondiendo fuera de él.
+    private static void errorEnCanal(ServidorPrueba servidor) throws Exception {
+        try (ConexionCruda conexion = new ConexionCruda(servidor, Protocolo.VERSION)) {
+            conexion.enviar(Protocolo.envolver(Protocolo.CANAL, 1, rangoCrudo(-5, 10)));
+            Protocolo.Trama respuesta = conexion.leer();
+            exigir(respuesta.getTipo() == Protocolo.RESPUESTA_CANAL, "se esperaba una RESPUESTA_CANAL y llegó el tipo " + respuesta.getTipo());
+            exigir(Protocolo.leerVarint(respuesta.getCarga()) == 1, "la respuesta no es del canal 1");
+            exigirError(Protocolo.desenvolver(respuesta.getCarga()), Protocolo.ERROR_RANGO_NO_VALIDO);
+            exigirQueResponde(conexion);
+        }
+    }
+
+    private static void saludoNoValido(ServidorPrueba servidor) throws Exception {
+        try (Socket socket = abrir(servidor)) {
+            socket.getOutputStream().write(new byte[] { 'N', 'U', 'X', 'X', 1 });
+            socket.getOutputStream().flush();
+            exigir(cerradaPorServidor(socket), "el servidor no cerró la conexión");
+        }
+    }
+
+    // Tras los casos anteriores, un cliente nuevo se conecta y recibe el listado.
+    private static void sigueAceptando(ServidorPrueba servidor) throws Exception {
+        Cliente cliente = servidor.conectar("final");
+        try {
+            exigir(cliente.listarEntradas().size() == 3, "el listado no tiene los 3 archivos de la raíz");
+        } finally {
+            cliente.desconectar();
+        }
+        exigir(servidor.getMetricas().getConexionesActivas() == 0 || esperarSinConexiones(servidor),
+                "quedan " + servidor.getMetricas().getConexionesActivas() + " conexiones abiertas");
+    }
+
+    // --- Auxiliares ---
+
+    // Conexión con el protocolo binario sin 'Cliente', para enviar tramas arbitrarias. Con la
+    // versión 5 o superior las solicitudes también pueden ir fuera de un canal.
+    private static final class ConexionCruda implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream entrada;
+        private final OutputStream salida;
+
+        ConexionCruda(ServidorPrueba servidor, int version) throws IOException {
+            socket = abrir(servidor);
+            entrada = new DataInputStream(socket.getInputStream());
+            salida = socket.getOutputStream();
+            salida.write(Protocolo.saludo(version));
+            salida.flush();
+            exigir(Protocolo.leerSaludo(entrada) == version, "el servidor no aceptó la versión " + version);
+        }
+
+        void enviar(ByteBuffer trama) throws IOException {
+            salida.write(trama.array(), trama.arrayOffset() + trama.position(), trama.remaining());
+            salida.flush();
+        }
+
+        Protocolo.Trama leer() throws IOException {
+            Protocolo.Trama trama = Protocolo.leerTrama(entrada, Protocolo.MAXIMO_RESPUESTA);
+            if (trama == null) throw new EOFException("El servidor cerró la conexión.");
+            return trama;
+        }
+
+        boolean cerradaPorServidor() throws IOException {
+            return PruebaProtocolo.cerradaPorServidor(socket);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static Socket abrir(ServidorPrueba servidor) throws IOException {
+        Socket socket = new Socket("localhost", servidor.getPuerto());
+        socket.setSoTimeout(ESPERA_MILIS);
+        return socket;
+    }
+
+    // Lee hasta el final: una conexión que sigue abierta sin responder agota la espera.
+    private static boolean cerradaPorServidor(Socket socket) throws IOException {
+        try {
+            while (socket.getInputStream().read() >= 0) {
+                // Se descarta lo que quede por leer (por ejemplo, un ERROR antes del cierre)
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            return true; // Cerrada con un RST
+        }
+    }
+
+    private static ByteBuffer rangoCrudo(long desde, long longitud) {
+        return new Protocolo.ConstructorTrama(Protocolo.SOLICITAR_RANGO)
+                .cadena("datos.bin").varint(desde).varint(longitud).varint(0).varint(0).terminar();
+    }
+
+    private static void exigirQueResponde(ConexionCruda conexion) throws IOException {
+        conexion.enviar(new Protocolo.ConstructorTrama(Protocolo.LISTAR).terminar());
+        exigir(conexion.leer().getTipo() == Protocolo.LISTA, "la conexión dejó de responder");
+    }
+
+    private static void exigirError(Protocolo.Trama trama, int codigo) throws IOException {
+        exigir(trama.getTipo() == Protocolo.ERROR, "se esperaba un ERROR y llegó el tipo " + trama.getTipo());
+        long recibido = Protocolo.leerVarint(trama.getCarga());
+        exigir(recibido == codigo, "código de error " + recibido + " en lugar de " + codigo);
+    }
+
+    private static void exigirCopia(ServidorPrueba servidor, Cliente cliente, String nombre) throws IOException {
+        File copia = new File(cliente.getDirectorioDescargas(), nombre);
+        exigir(Arrays.equals(Files.readAllBytes(copia.toPath()), contenido(servidor, nombre)), "la copia de " + nombre + " no coincide");
+    }
+
+    // Las conexiones cerradas se descuentan en el hilo de cada sesión, un poco después.
+    private static boolean esperarSinConexiones(ServidorPrueba servidor) throws InterruptedException {
+        for (int i = 0; i < 200 && servidor.getMetricas().getConexionesActivas() > 0; i++) {
+            Thread.sleep(10);
+        }
+        return servidor.getMetricas().getConexionesActivas() == 0;
+    }
+
+    private static byte[] contenido(ServidorPrueba servidor, String nombre) throws IOException {
+        return Files.readAllBytes(new File(servidor.getCompartido(), nombre).toPath());
+    }
+
+    private static void exigir(boolean condicion, String mensaje) {
+        if (!condicion) throw new AssertionError(mensaje);
+    }
+}
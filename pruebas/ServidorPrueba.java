@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Servidor real en este mismo proceso para las comprobaciones de 'pruebas/'. Escucha en un
+// puerto libre (0) y comparte un directorio temporal; al cerrarlo se detiene y se borra todo lo
+// que creó, incluidas las descargas de los clientes. Los archivos se crean antes de 'iniciar',
+// para que el índice los encuentre al arrancar sin depender del WatchService.
+public class ServidorPrueba implements AutoCloseable {
+    private final File raiz;
+    private final File compartido;
+    private final String motor;
+    private MotorServidor servidor;
+
+    public ServidorPrueba(String motor) throws IOException {
+        this.motor = motor;
+        this.raiz = Files.createTempDirectory("prueba-servidor-nube").toFile();
+        this.compartido = new File(raiz, "compartido");
+        compartido.mkdirs();
+    }
+
+    // Archivo de contenido aleatorio (reproducible con 'semilla') en el directorio compartido.
+    public File crearArchivo(String nombre, int tamano, long semilla) throws IOException {
+        byte[] contenido = new byte[tamano];
+        new Random(semilla).nextBytes(contenido);
+        return crearArchivo(nombre, contenido);
+    }
+
+    public File crearArchivo(String nombre, byte[] contenido) throws IOException {
+        File archivo = new File(compartido, nombre);
+        archivo.getParentFile().mkdirs();
+        Files.write(archivo.toPath(), contenido);
+        return archivo;
+    }
+
+    public void iniciar() throws IOException {
+        ConfiguracionServidor config = new ConfiguracionServidor();
+        config.setPuerto(0);
+        config.setDirectorioArchivos(compartido);
+        config.setMotor(motor);
+        servidor = config.crearMotor();
+        servidor.iniciar();
+        Thread aceptador = new Thread(servidor::aceptarConexiones, "prueba-servidor");
+        aceptador.setDaemon(true);
+        aceptador.start();
+    }
+
+    // Un cliente conectado que descarga en su propio directorio, 'descargas-<nombre>'.
+    public Cliente conectar(String nombre) throws IOException {
+        Cliente cliente = new Cliente();
+        cliente.setDirectorioDescargas(new File(raiz, "descargas-" + nombre));
+        if (!cliente.conectar("localhost", getPuerto())) {
+            throw new IOException("No se pudo conectar con el servidor de prueba.");
+        }
+        return cliente;
+    }
+
+    public File getCompartido() {
+        return compartido;
+    }
+
+    public String getMotor() {
+        return motor;
+    }
+
+    public int getPuerto() {
+        return servidor.getPuerto();
+    }
+
+    public MetricasServidor getMetricas() {
+        return servidor.getMetricas();
+    }
+
+    @Override
+    public void close() {
+        if (servidor != null) servidor.detener();
+        try (Stream<Path> rutas = Files.walk(raiz.toPath())) {
+            rutas.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("No se pudo borrar " + raiz + ": " + e.getMessage());
+        }
+    }
+
+    // Los servidores y los clientes informan de cada solicitud por System.out; las
+    // comprobaciones lo silencian y escriben su resultado en el flujo que devuelve esta llamada.
+    public static PrintStream silenciarSalida() {
+        PrintStream informe = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return informe;
+    }
+}